@@ -94,6 +94,31 @@ export default function DriverApp() {
       }]);
     });
 
+    newSocket.on('shared-trip-offer', (offerData) => {
+      // Batch dispatch: this trip is offered to this driver only, until the offer expires
+      Alert.alert(
+        'Resa erbjuden till dig!',
+        `${offerData.passengerCount} passagerare, ${offerData.pickupKm} km till upphämtning, ${offerData.estimatedEarning} SEK`,
+        [
+          { text: 'Avvisa', style: 'cancel' },
+          {
+            text: 'Acceptera',
+            onPress: () => acceptOfferedTrip(offerData.sharedTripId)
+          }
+        ]
+      );
+      
+      setAssignedTrips(prev => [...prev.filter(trip => trip.tripId !== offerData.sharedTripId), {
+        tripId: offerData.sharedTripId,
+        isSharedTrip: true,
+        offered: true,
+        passengers: offerData.trips || [],
+        estimatedEarning: offerData.estimatedEarning,
+        pickupAddresses: offerData.pickupAddresses,
+        destinationAddresses: offerData.destinationAddresses
+      }]);
+    });
+
     newSocket.on('shared-trip-taken', (data) => {
       // Remove the trip from available trips as another driver took it
       setAssignedTrips(prev => prev.filter(trip => trip.tripId !== data.sharedTripId));
@@ -154,6 +179,20 @@ export default function DriverApp() {
     }
   };
 
+  const acceptOfferedTrip = async (sharedTripId) => {
+    // The backend decides offered trips; the socket accept only follows once it has agreed
+    try {
+      await axios.post(`${API_URL}/api/shared-trips/${sharedTripId}/accept`, null, {
+        params: { driverId: driverId }
+      });
+    } catch (error) {
+      Alert.alert('Erbjudandet har gått ut', 'Resan har erbjudits en annan förare.');
+      setAssignedTrips(prev => prev.filter(trip => trip.tripId !== sharedTripId));
+      return;
+    }
+    acceptSharedTrip(sharedTripId);
+  };
+
   const acceptSharedTrip = (sharedTripId) => {
     console.log('acceptSharedTrip called for trip:', sharedTripId);
     
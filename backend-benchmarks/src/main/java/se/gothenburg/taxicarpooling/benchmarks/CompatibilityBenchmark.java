@@ -0,0 +1,107 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.GeoKernel;
+import se.gothenburg.taxicarpooling.matching.PendingTripIndex;
+import se.gothenburg.taxicarpooling.matching.TripColumns;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairwise costs of matching: the haversine distance, one compatibility check, and the
+ * per-booking step that checks a new trip against its candidates from the pending index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class CompatibilityBenchmark {
+    
+    // Same limits as MatchmakingService
+    private static final double MAX_PICKUP_DISTANCE_KM = 2.0;
+    private static final double MAX_DESTINATION_DISTANCE_KM = 2.0;
+    private static final int MAX_TIME_DIFFERENCE_MINUTES = 30;
+    
+    private static final int PAIRS = 4096;
+    
+    @Param({"1000", "10000", "100000"})
+    public int pendingTrips;
+    
+    @Param({"scalar"})
+    public String kernel;
+    
+    private List<TripRequest> trips;
+    private PendingTripIndex index;
+    private GeoKernel geoKernel;
+    private final TripColumns columns = new TripColumns();
+    
+    private TripColumns pairColumns;
+    private int[] pairRows;
+    private double[] pairCoordinates;
+    
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        trips = GothenburgWorkload.pendingTrips(pendingTrips);
+        index = new PendingTripIndex(MAX_PICKUP_DISTANCE_KM, MAX_DESTINATION_DISTANCE_KM, MAX_TIME_DIFFERENCE_MINUTES);
+        for (TripRequest trip : trips) {
+            index.add(trip);
+        }
+        geoKernel = GeoKernel.create(MAX_PICKUP_DISTANCE_KM, MAX_DESTINATION_DISTANCE_KM,
+            MAX_TIME_DIFFERENCE_MINUTES, "vector".equals(kernel));
+        
+        // Random pairs, so distances and compatibility outcomes follow the workload's mix
+        Random random = new Random(GothenburgWorkload.DEFAULT_SEED);
+        pairColumns = new TripColumns(2 * PAIRS);
+        pairRows = new int[2 * PAIRS];
+        pairCoordinates = new double[4 * PAIRS];
+        for (int p = 0; p < PAIRS; p++) {
+            TripRequest a = trips.get(random.nextInt(trips.size()));
+            TripRequest b = trips.get(random.nextInt(trips.size()));
+            pairRows[2 * p] = pairColumns.add(a);
+            pairRows[2 * p + 1] = pairColumns.add(b);
+            pairCoordinates[4 * p] = a.getPickupLatitude().doubleValue();
+            pairCoordinates[4 * p + 1] = a.getPickupLongitude().doubleValue();
+            pairCoordinates[4 * p + 2] = b.getPickupLatitude().doubleValue();
+            pairCoordinates[4 * p + 3] = b.getPickupLongitude().doubleValue();
+        }
+    }
+    
+    /** The distance MatchmakingService.calculateDistance used to compute per pair. */
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void calculateDistance(Blackhole blackhole) {
+        for (int p = 0; p < PAIRS; p++) {
+            blackhole.consume(GeoKernel.haversineKm(pairCoordinates[4 * p], pairCoordinates[4 * p + 1],
+                pairCoordinates[4 * p + 2], pairCoordinates[4 * p + 3]));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void isCompatible(Blackhole blackhole) {
+        for (int p = 0; p < PAIRS; p++) {
+            blackhole.consume(geoKernel.isCompatible(pairColumns, pairRows[2 * p], pairRows[2 * p + 1]));
+        }
+    }
+    
+    /** Candidate lookup plus the kernel pass over the candidates, as done for every booking. */
+    @Benchmark
+    public int connectToCandidates() {
+        TripRequest trip = trips.get(next);
+        next = next + 1 == trips.size() ? 0 : next + 1;
+        
+        List<TripRequest> candidates = index.findCandidates(trip);
+        columns.clear();
+        columns.addAll(candidates);
+        int newRow = columns.add(trip);
+        return geoKernel.filterCompatible(columns, newRow, columns.rowBuffer());
+    }
+}
@@ -0,0 +1,147 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded generator of pending trip requests that look like Gothenburg's färdtjänst traffic. Most
+ * trips run between residential areas with care homes and the hospitals, towards the hospitals in
+ * the morning peak and back home in the afternoon peak; the rest go to or from Centralstationen.
+ * Trips are spread over as many days as a real booking horizon would need, starting tomorrow.
+ */
+public class GothenburgWorkload {
+    
+    public static final long DEFAULT_SEED = 20240611L;
+    public static final double DEFAULT_WHEELCHAIR_RATIO = 0.15;
+    
+    private static final int TRIPS_PER_DAY = 5_000;
+    
+    private static final Place[] HOSPITALS = {
+        new Place("Sahlgrenska Universitetssjukhuset", 57.6838, 11.9607, 0.0015, 3),
+        new Place("Östra sjukhuset", 57.7210, 12.0530, 0.0012, 2),
+        new Place("Mölndals sjukhus", 57.6571, 12.0147, 0.0010, 1),
+    };
+    
+    private static final Place CENTRALSTATIONEN = new Place("Centralstationen", 57.7089, 11.9733, 0.0010, 1);
+    
+    // Spreads cover each area's care homes and the blocks around them
+    private static final Place[] HOMES = {
+        new Place("Majorna", 57.6925, 11.9160, 0.008, 3),
+        new Place("Frölunda", 57.6510, 11.9120, 0.010, 3),
+        new Place("Angered", 57.7960, 12.0480, 0.010, 2),
+        new Place("Kortedala", 57.7530, 12.0400, 0.008, 2),
+        new Place("Biskopsgården", 57.7210, 11.8970, 0.008, 2),
+        new Place("Backa", 57.7510, 11.9880, 0.008, 1),
+        new Place("Örgryte", 57.7000, 12.0050, 0.006, 2),
+        new Place("Askim", 57.6310, 11.9350, 0.010, 1),
+    };
+    
+    // Relative booking volume per hour of day, 06:00 to 21:00
+    private static final int FIRST_HOUR = 6;
+    private static final int[] HOURLY_WEIGHTS = {2, 6, 10, 10, 8, 5, 4, 6, 9, 9, 7, 4, 3, 2, 2, 1};
+    
+    private final Random random;
+    private final double wheelchairRatio;
+    private final LocalDate firstDay;
+    
+    public GothenburgWorkload(long seed, double wheelchairRatio) {
+        this(seed, wheelchairRatio, LocalDate.now().plusDays(1));
+    }
+    
+    public GothenburgWorkload(long seed, double wheelchairRatio, LocalDate firstDay) {
+        this.random = new Random(seed);
+        this.wheelchairRatio = wheelchairRatio;
+        this.firstDay = firstDay;
+    }
+    
+    public static List<TripRequest> pendingTrips(int count) {
+        return new GothenburgWorkload(DEFAULT_SEED, DEFAULT_WHEELCHAIR_RATIO).generate(count);
+    }
+    
+    /** Trips with ids 1..count, all PENDING and in version 0, ordered by id. */
+    public List<TripRequest> generate(int count) {
+        int days = Math.max(1, (count + TRIPS_PER_DAY - 1) / TRIPS_PER_DAY);
+        List<TripRequest> trips = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            trips.add(trip(i + 1L, firstDay.plusDays(random.nextInt(days))));
+        }
+        return trips;
+    }
+    
+    private TripRequest trip(long id, LocalDate day) {
+        int hour = FIRST_HOUR + pick(HOURLY_WEIGHTS);
+        LocalDateTime pickupTime = day.atTime(hour, random.nextInt(60));
+        
+        Place home = HOMES[pick(weights(HOMES))];
+        Place other = random.nextDouble() < 0.85 ? HOSPITALS[pick(weights(HOSPITALS))] : CENTRALSTATIONEN;
+        // Appointments in the morning, going home in the afternoon
+        boolean outbound = hour < 12 ? random.nextDouble() < 0.8 : random.nextDouble() < 0.2;
+        Place from = outbound ? home : other;
+        Place to = outbound ? other : home;
+        
+        TripRequest trip = new TripRequest();
+        trip.setId(id);
+        trip.setPickupAddress(from.name);
+        trip.setDestinationAddress(to.name);
+        trip.setPickupLatitude(coordinate(from.latitude, from.spread));
+        trip.setPickupLongitude(coordinate(from.longitude, from.spread * 1.8));
+        trip.setDestinationLatitude(coordinate(to.latitude, to.spread));
+        trip.setDestinationLongitude(coordinate(to.longitude, to.spread * 1.8));
+        trip.setRequestedPickupTime(pickupTime);
+        trip.setStatus(TripRequest.TripStatus.PENDING);
+        trip.setPassengerCount(random.nextDouble() < 0.1 ? 2 : 1);
+        trip.setNeedsWheelchairAccess(random.nextDouble() < wheelchairRatio);
+        trip.setNeedsAssistance(random.nextDouble() < 0.3);
+        return trip;
+    }
+    
+    private BigDecimal coordinate(double centre, double spread) {
+        return BigDecimal.valueOf(centre + random.nextGaussian() * spread).setScale(6, RoundingMode.HALF_UP);
+    }
+    
+    private int pick(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int r = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+    
+    private static int[] weights(Place[] places) {
+        int[] weights = new int[places.length];
+        for (int i = 0; i < places.length; i++) {
+            weights[i] = places[i].weight;
+        }
+        return weights;
+    }
+    
+    private static final class Place {
+        final String name;
+        final double latitude;
+        final double longitude;
+        final double spread;
+        final int weight;
+        
+        Place(String name, double latitude, double longitude, double spread, int weight) {
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.spread = spread;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.GeoKernel;
+import se.gothenburg.taxicarpooling.matching.GreedyGroupingEngine;
+import se.gothenburg.taxicarpooling.matching.GroupingEngine;
+import se.gothenburg.taxicarpooling.matching.OptimalGroupingEngine;
+import se.gothenburg.taxicarpooling.matching.PendingTripIndex;
+import se.gothenburg.taxicarpooling.matching.SlotGraph;
+import se.gothenburg.taxicarpooling.matching.TripColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the pending trips of every two-hour slot into shared-trip groups, the step that
+ * replaced MatchmakingService.findCompatibleGroups. Slot graphs are built once per trial the way
+ * a matchmaking pass builds them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupingBenchmark {
+    
+    private static final int MAX_GROUP_SIZE = 3;
+    
+    @Param({"1000", "10000", "100000"})
+    public int pendingTrips;
+    
+    @Param({"greedy", "optimal"})
+    public String strategy;
+    
+    private GroupingEngine engine;
+    private List<SlotGraph> slots;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = "optimal".equals(strategy)
+            ? new OptimalGroupingEngine(0, 50, 650, 800)
+            : new GreedyGroupingEngine();
+        slots = slotGraphs(GothenburgWorkload.pendingTrips(pendingTrips));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (engine instanceof OptimalGroupingEngine) {
+            ((OptimalGroupingEngine) engine).shutdown();
+        }
+    }
+    
+    @Benchmark
+    public List<List<int[]>> findCompatibleGroups() {
+        return engine.groupAll(slots, MAX_GROUP_SIZE);
+    }
+    
+    static List<SlotGraph> slotGraphs(List<TripRequest> trips) {
+        PendingTripIndex index = new PendingTripIndex(2.0, 2.0, 30);
+        GeoKernel geoKernel = new GeoKernel(2.0, 2.0, 30);
+        Map<String, List<TripRequest>> tripsBySlot = new LinkedHashMap<>();
+        for (TripRequest trip : trips) {
+            index.add(trip);
+            String slotKey = trip.getRequestedPickupTime().toLocalDate() + "_"
+                + (trip.getRequestedPickupTime().getHour() / 2) * 2;
+            tripsBySlot.computeIfAbsent(slotKey, key -> new ArrayList<>()).add(trip);
+        }
+        
+        List<SlotGraph> slots = new ArrayList<>();
+        TripColumns columns = new TripColumns();
+        for (Map.Entry<String, List<TripRequest>> slot : tripsBySlot.entrySet()) {
+            List<TripRequest> slotTrips = slot.getValue();
+            long[] tripIds = new long[slotTrips.size()];
+            Map<Long, Integer> positions = new HashMap<>();
+            for (int i = 0; i < slotTrips.size(); i++) {
+                tripIds[i] = slotTrips.get(i).getId();
+                positions.put(tripIds[i], i);
+            }
+            SlotGraph slotGraph = new SlotGraph(slot.getKey(), tripIds);
+            for (int i = 0; i < slotTrips.size(); i++) {
+                columns.clear();
+                columns.addAll(index.findCandidates(slotTrips.get(i)));
+                int newRow = columns.add(slotTrips.get(i));
+                int[] compatibleRows = columns.rowBuffer();
+                int compatibleCount = geoKernel.filterCompatible(columns, newRow, compatibleRows);
+                for (int k = 0; k < compatibleCount; k++) {
+                    Integer j = positions.get(columns.id(compatibleRows[k]));
+                    if (j != null) {
+                        slotGraph.connect(i, j);
+                    }
+                }
+            }
+            slots.add(slotGraph);
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,151 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.RoutePlan;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+import se.gothenburg.taxicarpooling.service.MatchCommitter;
+import se.gothenburg.taxicarpooling.service.MatchmakingMetrics;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+import se.gothenburg.taxicarpooling.service.ShardLeaseManager;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a {@link MatchmakingService} without Spring or a database. The repository serves the
+ * pending trips from a list and the committer accepts every group, so a pass measures only the
+ * matching work, plus recording into an in-memory meter registry. Fields are set the way Spring
+ * would inject them.
+ */
+public final class InMemoryMatchmaking {
+    
+    private InMemoryMatchmaking() {
+    }
+    
+    public static MatchmakingService create(List<TripRequest> pendingTrips, String groupingStrategy,
+                                            CountingCommitter committer) {
+        MatchmakingService service = new MatchmakingService();
+        set(service, "tripRequestRepository", repository(pendingTrips));
+        set(service, "matchCommitter", committer);
+        set(service, "matchmakingMetrics", metrics());
+        set(service, "shardLeaseManager", new ShardLeaseManager());
+        set(service, "maxPassengersPerTrip", 3);
+        set(service, "costPerSharedTrip", new BigDecimal("800"));
+        set(service, "costPerIndividualTrip", new BigDecimal("650"));
+        set(service, "useVectorKernel", false);
+        set(service, "groupingStrategy", groupingStrategy);
+        set(service, "groupingTimeBudgetMs", 50L);
+        set(service, "groupingParallelism", 0);
+        set(service, "maxDetourFactor", 1.5);
+        set(service, "minDetourMinutes", 5);
+        set(service, "stopMinutes", 2);
+        set(service, "averageSpeedKmh", 30.0);
+        invoke(service, "initEngines");
+        return service;
+    }
+    
+    /** Loads the pending trips into the service's index and compatibility graph. */
+    public static void loadIndex(MatchmakingService service) {
+        invoke(service, "ensureIndexLoaded");
+    }
+    
+    public static void shutdown(MatchmakingService service) {
+        invoke(service, "shutdownEngines");
+    }
+    
+    private static MatchmakingMetrics metrics() {
+        MatchmakingMetrics metrics = new MatchmakingMetrics();
+        set(metrics, "meterRegistry", new SimpleMeterRegistry());
+        invoke(metrics, "init");
+        return metrics;
+    }
+    
+    private static TripRequestRepository repository(List<TripRequest> pendingTrips) {
+        return (TripRequestRepository) Proxy.newProxyInstance(
+            TripRequestRepository.class.getClassLoader(),
+            new Class<?>[] {TripRequestRepository.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "findByStatusAndRequestedPickupTimeAfter":
+                        List<TripRequest> trips = new ArrayList<>();
+                        for (TripRequest trip : pendingTrips) {
+                            if (trip.getStatus() == args[0] && trip.getRequestedPickupTime().isAfter((LocalDateTime) args[1])) {
+                                trips.add(trip);
+                            }
+                        }
+                        return trips;
+                    case "toString":
+                        return "InMemoryTripRequestRepository";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName() + " is not stubbed");
+                }
+            });
+    }
+    
+    /** Commits every group and hands out shared trip ids in order. */
+    public static class CountingCommitter extends MatchCommitter {
+        private long nextSharedTripId = 1;
+        private int committedGroups;
+        private int matchedTrips;
+        
+        @Override
+        public Result commit(List<List<TripRequest>> groups, List<RoutePlan> routes, BigDecimal costPerSharedTrip) {
+            Result result = new Result();
+            for (int g = 0; g < groups.size(); g++) {
+                List<TripRequest> group = groups.get(g);
+                SharedTrip sharedTrip = new SharedTrip();
+                sharedTrip.setId(nextSharedTripId++);
+                sharedTrip.setStatus(SharedTrip.TripStatus.PENDING);
+                sharedTrip.setEstimatedCost(costPerSharedTrip);
+                sharedTrip.setPassengerCount(group.size());
+                sharedTrip.setPickupSequence(routes.get(g).pickupSequence());
+                sharedTrip.setDropoffSequence(routes.get(g).dropoffSequence());
+                sharedTrip.setEstimatedDurationMinutes(routes.get(g).durationMinutes());
+                result.getCommittedGroups().add(group);
+                result.getSharedTrips().add(sharedTrip);
+                committedGroups++;
+                matchedTrips += group.size();
+            }
+            return result;
+        }
+        
+        public int getCommittedGroups() {
+            return committedGroups;
+        }
+        
+        public int getMatchedTrips() {
+            return matchedTrips;
+        }
+    }
+    
+    private static void set(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not set " + name, e);
+        }
+    }
+    
+    private static void invoke(Object target, String name) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(name);
+            method.setAccessible(true);
+            method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not call " + name, e);
+        }
+    }
+}
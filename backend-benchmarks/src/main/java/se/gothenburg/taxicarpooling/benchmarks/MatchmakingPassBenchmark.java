@@ -0,0 +1,78 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link MatchmakingService#processMatchmaking()} passes over in-memory repositories. A pass
+ * matches and removes most of the pending trips, so every measured pass starts from a freshly
+ * generated workload. {@code loadIndex} is the first pass after startup, which also indexes every
+ * pending trip and builds the compatibility graph.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class MatchmakingPassBenchmark {
+    
+    @Param({"1000", "10000", "100000"})
+    public int pendingTrips;
+    
+    @Param({"greedy"})
+    public String strategy;
+    
+    /** Service whose index and compatibility graph are already loaded. */
+    @State(Scope.Thread)
+    public static class Loaded {
+        MatchmakingService service;
+        InMemoryMatchmaking.CountingCommitter committer;
+        
+        @Setup(Level.Iteration)
+        public void setUp(MatchmakingPassBenchmark benchmark) {
+            committer = new InMemoryMatchmaking.CountingCommitter();
+            service = InMemoryMatchmaking.create(
+                GothenburgWorkload.pendingTrips(benchmark.pendingTrips), benchmark.strategy, committer);
+            InMemoryMatchmaking.loadIndex(service);
+        }
+        
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            InMemoryMatchmaking.shutdown(service);
+        }
+    }
+    
+    /** Service that has not run a pass yet. */
+    @State(Scope.Thread)
+    public static class Cold {
+        MatchmakingService service;
+        InMemoryMatchmaking.CountingCommitter committer;
+        
+        @Setup(Level.Iteration)
+        public void setUp(MatchmakingPassBenchmark benchmark) {
+            committer = new InMemoryMatchmaking.CountingCommitter();
+            service = InMemoryMatchmaking.create(
+                GothenburgWorkload.pendingTrips(benchmark.pendingTrips), benchmark.strategy, committer);
+        }
+        
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            InMemoryMatchmaking.shutdown(service);
+        }
+    }
+    
+    @Benchmark
+    public int processMatchmaking(Loaded loaded) {
+        loaded.service.processMatchmaking();
+        return loaded.committer.getMatchedTrips();
+    }
+    
+    @Benchmark
+    public int loadIndex(Cold cold) {
+        cold.service.processMatchmaking();
+        return cold.committer.getMatchedTrips();
+    }
+}
@@ -0,0 +1,88 @@
+package se.gothenburg.taxicarpooling.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.GreedyGroupingEngine;
+import se.gothenburg.taxicarpooling.matching.HaversineTravelTimes;
+import se.gothenburg.taxicarpooling.matching.RouteSequencer;
+import se.gothenburg.taxicarpooling.matching.SlotGraph;
+import se.gothenburg.taxicarpooling.matching.TravelTimes;
+import se.gothenburg.taxicarpooling.routing.NetworkTravelTimes;
+import se.gothenburg.taxicarpooling.routing.RoadGraph;
+import se.gothenburg.taxicarpooling.routing.RoadGraphBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequencing the stops of one candidate group, as a matchmaking pass does for every group the
+ * grouping engine proposes. The groups are the ones greedy grouping forms from the workload; a
+ * one-entry travel time cache shows the cost when every matrix entry is computed. Network travel
+ * times run over the synthetic road graph, built into a temporary file for the trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteSequencerBenchmark {
+    
+    private static final int PENDING_TRIPS = 10_000;
+    private static final int MAX_GROUP_SIZE = 3;
+    
+    @Param({"1", "16384"})
+    public int cacheSize;
+    
+    @Param({"haversine", "network"})
+    public String travelTimes;
+    
+    private List<List<TripRequest>> groups;
+    private RouteSequencer sequencer;
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<TripRequest> trips = GothenburgWorkload.pendingTrips(PENDING_TRIPS);
+        Map<Long, TripRequest> tripsById = new HashMap<>();
+        for (TripRequest trip : trips) {
+            tripsById.put(trip.getId(), trip);
+        }
+        
+        List<SlotGraph> slots = GroupingBenchmark.slotGraphs(trips);
+        List<List<int[]>> groupsBySlot = new GreedyGroupingEngine().groupAll(slots, MAX_GROUP_SIZE);
+        groups = new ArrayList<>();
+        for (int s = 0; s < slots.size(); s++) {
+            for (int[] positions : groupsBySlot.get(s)) {
+                if (positions.length >= 2) {
+                    List<TripRequest> group = new ArrayList<>();
+                    for (int position : positions) {
+                        group.add(tripsById.get(slots.get(s).tripId(position)));
+                    }
+                    groups.add(group);
+                }
+            }
+        }
+        TravelTimes model = new HaversineTravelTimes(30);
+        if (travelTimes.equals("network")) {
+            Path graphFile = Files.createTempFile("synthetic", ".graph");
+            graphFile.toFile().deleteOnExit();
+            RoadGraphBuilder.main(new String[] {"--synthetic", "--out", graphFile.toString()});
+            model = new NetworkTravelTimes(RoadGraph.open(graphFile), model);
+        }
+        sequencer = new RouteSequencer(model, 1.5, 5 * 60, 2 * 60, cacheSize);
+    }
+    
+    @Benchmark
+    public int sequence() {
+        List<TripRequest> group = groups.get(next);
+        next = next + 1 == groups.size() ? 0 : next + 1;
+        return sequencer.sequence(group);
+    }
+}
@@ -0,0 +1,99 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import se.gothenburg.taxicarpooling.benchmarks.GothenburgWorkload;
+import se.gothenburg.taxicarpooling.dto.TripRequestDto;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Booking streams as JSON lines, one {@code {"at": ..., "booking": {TripRequestDto}}} per line.
+ * {@code at} is when the booking was made; {@code booking.userId} numbers the passengers from 1 and
+ * is mapped to real users at replay time.
+ */
+public final class BookingStream {
+    
+    public record RecordedBooking(LocalDateTime at, TripRequestDto booking) {
+    }
+    
+    // Call centre and app bookings for the next day, 07:00 to 21:00
+    private static final int FIRST_BOOKING_HOUR = 7;
+    private static final int BOOKING_HOURS = 14;
+    
+    static final ObjectMapper MAPPER = new ObjectMapper()
+        .registerModule(new JavaTimeModule())
+        .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    
+    private BookingStream() {
+    }
+    
+    public static List<RecordedBooking> read(Path file) throws IOException {
+        List<RecordedBooking> bookings = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    bookings.add(MAPPER.readValue(line, RecordedBooking.class));
+                }
+            }
+        }
+        bookings.sort(Comparator.comparing(RecordedBooking::at));
+        return bookings;
+    }
+    
+    public static void write(Path file, List<RecordedBooking> bookings) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (RecordedBooking booking : bookings) {
+                writer.write(MAPPER.writeValueAsString(booking));
+                writer.newLine();
+            }
+        }
+    }
+    
+    /**
+     * Generates {@code count} bookings from {@link GothenburgWorkload}, each made the day before its
+     * pickup by one of {@code passengers} passengers.
+     */
+    public static List<RecordedBooking> generate(int count, int passengers, long seed, double wheelchairRatio) {
+        LocalDate firstPickupDay = LocalDate.now().plusDays(1);
+        List<TripRequest> trips = new GothenburgWorkload(seed, wheelchairRatio, firstPickupDay).generate(count);
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        
+        List<RecordedBooking> bookings = new ArrayList<>(count);
+        for (TripRequest trip : trips) {
+            LocalDateTime at = trip.getRequestedPickupTime().toLocalDate().minusDays(1)
+                .atTime(FIRST_BOOKING_HOUR, 0)
+                .plusSeconds(random.nextInt(BOOKING_HOURS * 3600));
+            
+            TripRequestDto dto = new TripRequestDto();
+            dto.setUserId(1L + random.nextInt(passengers));
+            dto.setPickupAddress(trip.getPickupAddress());
+            dto.setDestinationAddress(trip.getDestinationAddress());
+            dto.setPickupLatitude(trip.getPickupLatitude());
+            dto.setPickupLongitude(trip.getPickupLongitude());
+            dto.setDestinationLatitude(trip.getDestinationLatitude());
+            dto.setDestinationLongitude(trip.getDestinationLongitude());
+            dto.setRequestedPickupTime(trip.getRequestedPickupTime());
+            dto.setPriority(trip.getPriority().name());
+            dto.setPassengerCount(trip.getPassengerCount());
+            dto.setNeedsWheelchairAccess(trip.isNeedsWheelchairAccess());
+            dto.setNeedsAssistance(trip.isNeedsAssistance());
+            bookings.add(new RecordedBooking(at, dto));
+        }
+        bookings.sort(Comparator.comparing(RecordedBooking::at));
+        return bookings;
+    }
+}
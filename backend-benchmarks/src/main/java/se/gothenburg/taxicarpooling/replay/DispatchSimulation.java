@@ -0,0 +1,378 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import se.gothenburg.taxicarpooling.benchmarks.GothenburgWorkload;
+import se.gothenburg.taxicarpooling.benchmarks.InMemoryMatchmaking;
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.AssignmentSolver;
+import se.gothenburg.taxicarpooling.matching.DispatchCostModel;
+import se.gothenburg.taxicarpooling.matching.GeoKernel;
+import se.gothenburg.taxicarpooling.matching.NearbyDriver;
+import se.gothenburg.taxicarpooling.matching.RoutePlan;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Compares first-come-first-served dispatch with batch dispatch over one generated day. The day's
+ * trips are grouped by one in-memory matchmaking pass; every shared trip, and every trip left on its
+ * own, becomes an order that drivers can see {@code --lead-minutes} before its pickup. A synthetic
+ * fleet (70% four-seat cars, 20% six-seat vans, 10% wheelchair accessible vans) starts spread over
+ * the city. Under FCFS each new order goes to whichever capable free driver in range taps first,
+ * modelled as a random one. Batch dispatch solves the {@link AssignmentSolver} over all open orders
+ * and free drivers every {@code --tick-seconds}, with the same {@link DispatchCostModel} as the
+ * backend. Offers are accepted at once in both policies. A driver drives empty to the first pickup at
+ * the average speed, is busy until the trip's estimated duration has passed, and ends at the
+ * drop-off.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.DispatchSimulation
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.DispatchSimulation --trips 5000 --drivers 120
+ * </pre>
+ *
+ * Other options: {@code --seed}, {@code --wheelchair-ratio}, {@code --max-pickup-km},
+ * {@code --unserved-after-minutes}, {@code --out file}.
+ */
+public class DispatchSimulation {
+    
+    private static final double AVERAGE_SPEED_KMH = 30.0;
+    private static final double WHEELCHAIR_PENALTY_KM = 3.0;
+    private static final double EMPTY_SEAT_PENALTY_KM = 0.5;
+    
+    private final Map<String, String> options;
+    
+    private DispatchSimulation(Map<String, String> options) {
+        this.options = options;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+        }
+        new DispatchSimulation(options).run();
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    /** One dispatchable unit: a shared trip, or a trip nobody could share with. */
+    private record Order(DispatchCostModel.Order order, LocalDateTime pickupTime, double dropoffLatitude,
+                         double dropoffLongitude, int durationMinutes) {
+    }
+    
+    private static final class Driver {
+        final long id;
+        final int seats;
+        final boolean wheelchairAccessible;
+        double latitude;
+        double longitude;
+        LocalDateTime freeAt;
+        
+        Driver(long id, int seats, boolean wheelchairAccessible, double latitude, double longitude, LocalDateTime freeAt) {
+            this.id = id;
+            this.seats = seats;
+            this.wheelchairAccessible = wheelchairAccessible;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.freeAt = freeAt;
+        }
+        
+        NearbyDriver nearby() {
+            return new NearbyDriver(id, latitude, longitude, 0, seats, wheelchairAccessible);
+        }
+    }
+    
+    private static final class Outcome {
+        final String policy;
+        int served;
+        int unserved;
+        int latePickups;
+        int wheelchairVansOnOtherTrips;
+        double emptyKm;
+        final List<Long> solveNanos = new ArrayList<>();
+        int maxOrders;
+        int maxDrivers;
+        
+        Outcome(String policy) {
+            this.policy = policy;
+        }
+        
+        Map<String, Object> toMap(int orders) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("policy", policy);
+            map.put("orders", orders);
+            map.put("served", served);
+            map.put("unserved", unserved);
+            map.put("latePickups", latePickups);
+            map.put("emptyKm", Math.round(emptyKm));
+            map.put("emptyKmPerServedOrder", served == 0 ? 0.0 : emptyKm / served);
+            map.put("wheelchairVansOnOtherTrips", wheelchairVansOnOtherTrips);
+            if (!solveNanos.isEmpty()) {
+                Map<String, Object> solve = new LinkedHashMap<>();
+                long[] sorted = solveNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+                solve.put("ticks", sorted.length);
+                solve.put("p50Millis", percentile(sorted, 50));
+                solve.put("p99Millis", percentile(sorted, 99));
+                solve.put("maxMillis", sorted[sorted.length - 1] / 1e6);
+                solve.put("maxOrders", maxOrders);
+                solve.put("maxDrivers", maxDrivers);
+                map.put("solve", solve);
+            }
+            return map;
+        }
+    }
+    
+    private void run() throws Exception {
+        int tripCount = Integer.parseInt(option("trips", "5000"));
+        int driverCount = Integer.parseInt(option("drivers", "150"));
+        long seed = Long.parseLong(option("seed", String.valueOf(GothenburgWorkload.DEFAULT_SEED)));
+        double wheelchairRatio = Double.parseDouble(option("wheelchair-ratio", String.valueOf(GothenburgWorkload.DEFAULT_WHEELCHAIR_RATIO)));
+        
+        LocalDate day = LocalDate.now().plusDays(1);
+        List<TripRequest> trips = new GothenburgWorkload(seed, wheelchairRatio, day).generate(tripCount);
+        List<Order> orders = orders(trips);
+        int shared = 0;
+        for (Order order : orders) {
+            shared += order.order().sharedTripId() > 0 ? 1 : 0;
+        }
+        System.out.printf("Dispatching %d orders (%d shared trips) from %d trips to %d drivers%n",
+            orders.size(), shared, trips.size(), driverCount);
+        
+        Outcome fcfs = simulate(orders, fleet(driverCount, seed, day), false, seed);
+        Outcome batch = simulate(orders, fleet(driverCount, seed, day), true, seed);
+        
+        Map<String, Object> batchStats = batch.toMap(orders.size());
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("trips", trips.size());
+        report.put("orders", orders.size());
+        report.put("drivers", driverCount);
+        report.put("fcfs", fcfs.toMap(orders.size()));
+        report.put("batch", batchStats);
+        
+        System.out.println();
+        for (Outcome outcome : List.of(fcfs, batch)) {
+            System.out.printf("%-6s %d served, %d unserved, %d late, %.0f empty km (%.2f per order), %d wheelchair vans on other trips%n",
+                outcome.policy, outcome.served, outcome.unserved, outcome.latePickups, outcome.emptyKm,
+                outcome.served == 0 ? 0.0 : outcome.emptyKm / outcome.served, outcome.wheelchairVansOnOtherTrips);
+        }
+        System.out.println("Batch solve: " + batchStats.get("solve"));
+        if (fcfs.emptyKm > 0) {
+            System.out.printf("Empty km: %.1f%% less with batch dispatch%n", 100 * (fcfs.emptyKm - batch.emptyKm) / fcfs.emptyKm);
+        }
+        
+        Path out = Path.of(option("out", "replay-results/dispatch-"
+            + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        BookingStream.MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), report);
+        System.out.println("Report written to " + out);
+    }
+    
+    /** Groups the trips with one matchmaking pass and turns every group and every leftover trip into an order. */
+    private List<Order> orders(List<TripRequest> trips) {
+        RecordingCommitter committer = new RecordingCommitter();
+        MatchmakingService service = InMemoryMatchmaking.create(trips, "greedy", committer);
+        try {
+            service.processMatchmaking();
+        } finally {
+            InMemoryMatchmaking.shutdown(service);
+        }
+        
+        List<Order> orders = new ArrayList<>();
+        Set<Long> grouped = new HashSet<>();
+        for (int g = 0; g < committer.groups.size(); g++) {
+            List<TripRequest> group = committer.groups.get(g);
+            SharedTrip sharedTrip = committer.sharedTrips.get(g);
+            for (TripRequest trip : group) {
+                grouped.add(trip.getId());
+            }
+            orders.add(order(sharedTrip.getId(), group, sharedTrip.getEstimatedDurationMinutes()));
+        }
+        // Trips left on their own get negative ids so they cannot collide with shared trips
+        for (TripRequest trip : trips) {
+            if (!grouped.contains(trip.getId())) {
+                orders.add(order(-trip.getId(), List.of(trip), 0));
+            }
+        }
+        orders.sort(Comparator.comparing(Order::pickupTime));
+        return orders;
+    }
+    
+    private static Order order(long id, List<TripRequest> members, int durationMinutes) {
+        TripRequest first = Collections.min(members, Comparator.comparing(TripRequest::getRequestedPickupTime));
+        TripRequest last = members.get(members.size() - 1);
+        int seats = 0;
+        boolean wheelchair = false;
+        for (TripRequest member : members) {
+            seats += member.getPassengerCount();
+            wheelchair |= member.isNeedsWheelchairAccess();
+        }
+        double pickupLatitude = MicroDegreesConverter.toDouble(first.getPickupLatitudeE6());
+        double pickupLongitude = MicroDegreesConverter.toDouble(first.getPickupLongitudeE6());
+        double dropoffLatitude = MicroDegreesConverter.toDouble(last.getDestinationLatitudeE6());
+        double dropoffLongitude = MicroDegreesConverter.toDouble(last.getDestinationLongitudeE6());
+        if (durationMinutes <= 0) {
+            double km = GeoKernel.haversineKm(pickupLatitude, pickupLongitude, dropoffLatitude, dropoffLongitude);
+            durationMinutes = (int) Math.ceil(km / AVERAGE_SPEED_KMH * 60) + 4;
+        }
+        return new Order(new DispatchCostModel.Order(id, pickupLatitude, pickupLongitude, seats, wheelchair),
+            first.getRequestedPickupTime(), dropoffLatitude, dropoffLongitude, durationMinutes);
+    }
+    
+    private static List<Driver> fleet(int count, long seed, LocalDate day) {
+        Random random = new Random(seed ^ 0x2545F4914F6CDD1DL);
+        List<Driver> drivers = new ArrayList<>(count);
+        LocalDateTime start = day.atStartOfDay();
+        for (int i = 0; i < count; i++) {
+            double kind = random.nextDouble();
+            int seats = kind < 0.7 ? 4 : 6;
+            boolean wheelchair = kind >= 0.9;
+            drivers.add(new Driver(i + 1, seats, wheelchair,
+                57.71 + random.nextGaussian() * 0.035, 11.97 + random.nextGaussian() * 0.06, start));
+        }
+        return drivers;
+    }
+    
+    private Outcome simulate(List<Order> orders, List<Driver> drivers, boolean batch, long seed) {
+        int tickSeconds = Integer.parseInt(option("tick-seconds", "10"));
+        int leadMinutes = Integer.parseInt(option("lead-minutes", "30"));
+        int unservedAfterMinutes = Integer.parseInt(option("unserved-after-minutes", "15"));
+        DispatchCostModel costModel = new DispatchCostModel(
+            Double.parseDouble(option("max-pickup-km", "15")), WHEELCHAIR_PENALTY_KM, EMPTY_SEAT_PENALTY_KM);
+        AssignmentSolver solver = new AssignmentSolver();
+        Random random = new Random(seed);
+        Outcome outcome = new Outcome(batch ? "batch" : "fcfs");
+        
+        LocalDateTime now = orders.get(0).pickupTime().minusMinutes(leadMinutes);
+        LocalDateTime end = orders.get(orders.size() - 1).pickupTime().plusMinutes(unservedAfterMinutes + 1);
+        List<Order> open = new ArrayList<>();
+        int next = 0;
+        while (now.isBefore(end)) {
+            while (next < orders.size() && !orders.get(next).pickupTime().minusMinutes(leadMinutes).isAfter(now)) {
+                open.add(orders.get(next++));
+            }
+            for (Iterator<Order> it = open.iterator(); it.hasNext(); ) {
+                if (it.next().pickupTime().plusMinutes(unservedAfterMinutes).isBefore(now)) {
+                    it.remove();
+                    outcome.unserved++;
+                }
+            }
+            List<Driver> free = new ArrayList<>();
+            for (Driver driver : drivers) {
+                if (!driver.freeAt.isAfter(now)) {
+                    free.add(driver);
+                }
+            }
+            if (!open.isEmpty() && !free.isEmpty()) {
+                if (batch) {
+                    dispatchBatch(open, free, now, costModel, solver, outcome);
+                } else {
+                    dispatchFirstCome(open, free, now, costModel, random, outcome);
+                }
+            }
+            now = now.plusSeconds(tickSeconds);
+        }
+        outcome.unserved += open.size();
+        return outcome;
+    }
+    
+    private void dispatchFirstCome(List<Order> open, List<Driver> free, LocalDateTime now, DispatchCostModel costModel,
+                                   Random random, Outcome outcome) {
+        for (Iterator<Order> it = open.iterator(); it.hasNext() && !free.isEmpty(); ) {
+            Order order = it.next();
+            List<Driver> capable = new ArrayList<>();
+            for (Driver driver : free) {
+                if (costModel.cost(order.order(), driver.nearby()) < AssignmentSolver.INFEASIBLE) {
+                    capable.add(driver);
+                }
+            }
+            if (capable.isEmpty()) {
+                continue;
+            }
+            Driver driver = capable.get(random.nextInt(capable.size()));
+            assign(order, driver, now, outcome);
+            free.remove(driver);
+            it.remove();
+        }
+    }
+    
+    private void dispatchBatch(List<Order> open, List<Driver> free, LocalDateTime now, DispatchCostModel costModel,
+                               AssignmentSolver solver, Outcome outcome) {
+        List<DispatchCostModel.Order> rows = new ArrayList<>(open.size());
+        for (Order order : open) {
+            rows.add(order.order());
+        }
+        List<NearbyDriver> cols = new ArrayList<>(free.size());
+        for (Driver driver : free) {
+            cols.add(driver.nearby());
+        }
+        long start = System.nanoTime();
+        int[] assignment = solver.solve(costModel.costs(rows, cols), rows.size(), cols.size());
+        outcome.solveNanos.add(System.nanoTime() - start);
+        outcome.maxOrders = Math.max(outcome.maxOrders, rows.size());
+        outcome.maxDrivers = Math.max(outcome.maxDrivers, cols.size());
+        
+        List<Order> remaining = new ArrayList<>();
+        for (int row = 0; row < open.size(); row++) {
+            if (assignment[row] == AssignmentSolver.UNASSIGNED) {
+                remaining.add(open.get(row));
+            } else {
+                assign(open.get(row), free.get(assignment[row]), now, outcome);
+            }
+        }
+        open.clear();
+        open.addAll(remaining);
+    }
+    
+    private static void assign(Order order, Driver driver, LocalDateTime now, Outcome outcome) {
+        double km = GeoKernel.haversineKm(driver.latitude, driver.longitude,
+            order.order().pickupLatitude(), order.order().pickupLongitude());
+        LocalDateTime arrival = now.plusSeconds(Math.round(km / AVERAGE_SPEED_KMH * 3600));
+        if (arrival.isAfter(order.pickupTime().plusMinutes(10))) {
+            outcome.latePickups++;
+        }
+        LocalDateTime pickup = arrival.isAfter(order.pickupTime()) ? arrival : order.pickupTime();
+        driver.freeAt = pickup.plus(order.durationMinutes(), ChronoUnit.MINUTES);
+        driver.latitude = order.dropoffLatitude();
+        driver.longitude = order.dropoffLongitude();
+        outcome.served++;
+        outcome.emptyKm += km;
+        if (driver.wheelchairAccessible && !order.order().needsWheelchair()) {
+            outcome.wheelchairVansOnOtherTrips++;
+        }
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p / 100 * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+    
+    /** Keeps every committed group and its shared trip. */
+    private static final class RecordingCommitter extends InMemoryMatchmaking.CountingCommitter {
+        final List<List<TripRequest>> groups = new ArrayList<>();
+        final List<SharedTrip> sharedTrips = new ArrayList<>();
+        
+        @Override
+        public Result commit(List<List<TripRequest>> groups, List<RoutePlan> routes, BigDecimal costPerSharedTrip) {
+            Result result = super.commit(groups, routes, costPerSharedTrip);
+            this.groups.addAll(result.getCommittedGroups());
+            this.sharedTrips.addAll(result.getSharedTrips());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.gothenburg.taxicarpooling.TaxiCarpoolingApplication;
+import se.gothenburg.taxicarpooling.benchmarks.GothenburgWorkload;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+import se.gothenburg.taxicarpooling.repository.UserRepository;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Counts the SQL statements one full matchmaking pass sends to an embedded H2 database, per shared
+ * trip it creates. Trips are booked through the repositories and registered with the pending index
+ * the way bookings are, so the pass itself only groups and persists.
+ * <p>
+ * Statements are read from Hibernate statistics rather than {@code StatementCounter}, so the class
+ * also compiles against builds that predate it. Background pollers are slowed down to keep their
+ * queries out of the count. A JDBC batch counts once.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.PassStatementsHarness --trips 1000,10000
+ * </pre>
+ *
+ * Other options: {@code --out file}.
+ */
+public class PassStatementsHarness {
+    
+    // Divides evenly by every group size, which builds that still divide the cost unrounded need
+    private static final int COST_PER_SHARED_TRIP = 600;
+    
+    private final Map<String, String> options;
+    
+    private PassStatementsHarness(Map<String, String> options) {
+        this.options = options;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+        }
+        int exitCode = new PassStatementsHarness(options).run();
+        System.exit(exitCode);
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    private int run() throws IOException {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String size : option("trips", "1000,10000").split(",")) {
+            int trips = Integer.parseInt(size.trim());
+            System.out.printf("Matching %d pending trips%n", trips);
+            results.add(measure(trips));
+        }
+        
+        printReport(results);
+        Path out = Path.of(option("out", "statements-results/"
+            + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        BookingStream.MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), results);
+        System.out.println("Report written to " + out);
+        // A pass that matched nothing measured nothing
+        return results.stream().allMatch(result -> (long) result.get("sharedTrips") > 0) ? 0 : 1;
+    }
+    
+    private Map<String, Object> measure(int tripCount) {
+        ConfigurableApplicationContext context = startNode("statements" + tripCount + "_" + System.nanoTime());
+        try {
+            MatchmakingService matchmakingService = context.getBean(MatchmakingService.class);
+            // Loads the still empty index, so the booked trips below go through registerPendingTrip
+            matchmakingService.processMatchmaking();
+            for (TripRequest trip : seed(context, tripCount)) {
+                matchmakingService.registerPendingTrip(trip);
+            }
+            
+            Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+            statistics.clear();
+            long start = System.nanoTime();
+            matchmakingService.processMatchmaking();
+            long passMillis = (System.nanoTime() - start) / 1_000_000;
+            long statements = statistics.getPrepareStatementCount();
+            
+            JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+            long groups = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM shared_trips", Long.class);
+            long matched = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM trip_requests WHERE status = 'MATCHED'", Long.class);
+            
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("pendingTrips", tripCount);
+            result.put("sharedTrips", groups);
+            result.put("matchedTrips", matched);
+            result.put("statements", statements);
+            result.put("statementsPerSharedTrip", groups == 0 ? 0.0 : (double) statements / groups);
+            result.put("passMillis", passMillis);
+            return result;
+        } finally {
+            context.close();
+        }
+    }
+    
+    private static List<TripRequest> seed(ConfigurableApplicationContext context, int tripCount) {
+        List<User> users = new ArrayList<>();
+        int passengers = Math.max(50, tripCount / 4);
+        for (int i = 0; i < passengers; i++) {
+            User user = new User();
+            user.setPersonnummer(String.valueOf(194001010000L + i));
+            user.setFirstName("Statements");
+            user.setLastName("Passenger " + i);
+            user.setEmail("statements-" + i + "@example.se");
+            user.setUserType(User.UserType.PASSENGER);
+            user.setEligibilityType(User.EligibilityType.ELDERLY);
+            users.add(user);
+        }
+        users = context.getBean(UserRepository.class).saveAll(users);
+    
+        List<TripRequest> trips = new GothenburgWorkload(GothenburgWorkload.DEFAULT_SEED,
+            GothenburgWorkload.DEFAULT_WHEELCHAIR_RATIO).generate(tripCount);
+        for (int i = 0; i < trips.size(); i++) {
+            trips.get(i).setId(null);
+            trips.get(i).setUser(users.get(i % users.size()));
+        }
+        TripRequestRepository tripRequestRepository = context.getBean(TripRequestRepository.class);
+        List<TripRequest> saved = new ArrayList<>(trips.size());
+        for (int from = 0; from < trips.size(); from += 1_000) {
+            saved.addAll(tripRequestRepository.saveAll(trips.subList(from, Math.min(trips.size(), from + 1_000))));
+        }
+        return saved;
+    }
+    
+    private static ConfigurableApplicationContext startNode(String database) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.datasource.url", "jdbc:h2:mem:" + database
+            + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        properties.put("spring.jpa.hibernate.ddl-auto", "create");
+        properties.put("spring.jpa.show-sql", false);
+        properties.put("spring.jpa.properties.hibernate.generate_statistics", true);
+        properties.put("government.cost.per.shared.trip", COST_PER_SHARED_TRIP);
+        // Nothing listens; notifications are only queued or fail fast
+        properties.put("realtime.service.url", "http://127.0.0.1:9");
+        properties.put("savings.rebuild.backfill-on-startup", false);
+        properties.put("changes.poll-ms", 3_600_000);
+        properties.put("notifications.outbox.poll-ms", 3_600_000);
+        properties.put("matchmaking.pipeline.batch-window-ms", 3_600_000);
+        properties.put("logging.level.root", "WARN");
+        properties.put("logging.level.org.hibernate.tool.schema", "ERROR");
+        properties.put("logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener", "ERROR");
+    
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("statements", properties));
+        SpringApplication application = new SpringApplication(TaxiCarpoolingApplication.class);
+        application.setEnvironment(environment);
+        return application.run();
+    }
+    
+    private static void printReport(List<Map<String, Object>> results) {
+        System.out.println();
+        System.out.printf("%-8s %8s %10s %12s %12s %10s%n", "trips", "groups", "matched", "statements",
+            "per group", "pass ms");
+        for (Map<String, Object> result : results) {
+            System.out.printf("%-8d %8d %10d %12d %12.2f %10d%n", (int) result.get("pendingTrips"),
+                (long) result.get("sharedTrips"), (long) result.get("matchedTrips"), (long) result.get("statements"),
+                (double) result.get("statementsPerSharedTrip"), (long) result.get("passMillis"));
+        }
+    }
+}
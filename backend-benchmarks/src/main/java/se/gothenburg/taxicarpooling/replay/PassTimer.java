@@ -0,0 +1,57 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps the MatchmakingService bean so every processMatchmaking call, full or for a batch, is timed.
+ * Nothing in the backend changes; the pipeline just calls the wrapper.
+ */
+public class PassTimer implements BeanPostProcessor {
+    
+    private final List<Long> passNanos = new ArrayList<>();
+    private final AtomicLong lastPassEndNanos = new AtomicLong(System.nanoTime());
+    
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof MatchmakingService)) {
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+            if (!"processMatchmaking".equals(invocation.getMethod().getName())) {
+                return invocation.proceed();
+            }
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                long end = System.nanoTime();
+                synchronized (passNanos) {
+                    passNanos.add(end - start);
+                }
+                lastPassEndNanos.set(end);
+            }
+        });
+        return proxyFactory.getProxy();
+    }
+    
+    public long[] drainPassNanos() {
+        synchronized (passNanos) {
+            long[] nanos = passNanos.stream().mapToLong(Long::longValue).toArray();
+            passNanos.clear();
+            return nanos;
+        }
+    }
+    
+    public long getLastPassEndNanos() {
+        return lastPassEndNanos.get();
+    }
+}
@@ -0,0 +1,426 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.gothenburg.taxicarpooling.TaxiCarpoolingApplication;
+import se.gothenburg.taxicarpooling.dto.TripRequestDto;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.repository.UserRepository;
+import se.gothenburg.taxicarpooling.service.MatchmakingPipeline;
+import se.gothenburg.taxicarpooling.service.OutboxPublisher;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a booking stream through the whole backend: bookings go over HTTP to the real Spring
+ * context running on an embedded H2 database in MySQL mode, matchmaking and the notification outbox
+ * run as in production, and realtime-service is replaced by {@link StubRealtimeService}. Booking
+ * times are compressed by {@code --compression} (288 plays a 24 hour day in 5 minutes); pickup times
+ * keep their real spacing so the matching windows are not distorted.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.ReplayHarness --generate 5000
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.ReplayHarness --stream day.jsonl --compression 144
+ * </pre>
+ *
+ * Other options: {@code --write-stream file}, {@code --seed}, {@code --wheelchair-ratio},
+ * {@code --passengers}, {@code --concurrency}, {@code --drain-seconds}, {@code --out file}. Arguments
+ * of the form {@code --name=value} are passed to Spring, e.g. {@code --matchmaking.grouping.strategy=optimal}.
+ */
+public class ReplayHarness {
+    
+    private final Map<String, String> options;
+    private final List<String> springArgs;
+    
+    private ReplayHarness(Map<String, String> options, List<String> springArgs) {
+        this.options = options;
+        this.springArgs = springArgs;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> springArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].contains("=")) {
+                springArgs.add(args[i]);
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+        }
+        int exitCode = new ReplayHarness(options, springArgs).run();
+        System.exit(exitCode);
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    private int run() throws Exception {
+        List<BookingStream.RecordedBooking> stream = loadStream();
+        if (stream.isEmpty()) {
+            System.err.println("Booking stream is empty");
+            return 1;
+        }
+        double compression = Double.parseDouble(option("compression", "288"));
+        int concurrency = Integer.parseInt(option("concurrency", "32"));
+        long drainNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("drain-seconds", "60")));
+        
+        StubRealtimeService realtime = new StubRealtimeService();
+        realtime.start();
+        PassTimer passTimer = new PassTimer();
+        ConfigurableApplicationContext context = startBackend(realtime, passTimer, concurrency);
+        try {
+            String baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            Map<Long, Long> userIds = createPassengers(context, stream);
+            Statistics statistics = context.getBean(EntityManagerFactory.class)
+                .unwrap(SessionFactory.class).getStatistics();
+            statistics.clear();
+            passTimer.drainPassNanos();
+            
+            System.out.printf("Replaying %d bookings over %s of booking time at %.0fx against %s%n",
+                stream.size(), Duration.between(stream.get(0).at(), stream.get(stream.size() - 1).at()),
+                compression, baseUrl);
+            Replay replay = replay(stream, userIds, baseUrl, compression, concurrency);
+            long replayEndNanos = System.nanoTime();
+            drain(context, passTimer, drainNanos);
+            long drainedNanos = System.nanoTime();
+            
+            Map<String, Object> report = report(context, stream, replay, passTimer, realtime, statistics,
+                replayEndNanos - replay.startNanos, drainedNanos - replayEndNanos, compression);
+            printReport(report);
+            Path out = Path.of(option("out", "replay-results/"
+                + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+            if (out.getParent() != null) {
+                Files.createDirectories(out.getParent());
+            }
+            BookingStream.MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), report);
+            System.out.println("Report written to " + out);
+            return replay.failed == 0 ? 0 : 1;
+        } finally {
+            context.close();
+            realtime.stop();
+        }
+    }
+    
+    private List<BookingStream.RecordedBooking> loadStream() throws Exception {
+        List<BookingStream.RecordedBooking> stream;
+        if (options.containsKey("stream")) {
+            stream = BookingStream.read(Path.of(options.get("stream")));
+        } else {
+            int count = Integer.parseInt(option("generate", "5000"));
+            stream = BookingStream.generate(count,
+                Integer.parseInt(option("passengers", String.valueOf(Math.max(50, count / 4)))),
+                Long.parseLong(option("seed", "20240611")),
+                Double.parseDouble(option("wheelchair-ratio", "0.15")));
+        }
+        if (options.containsKey("write-stream")) {
+            BookingStream.write(Path.of(options.get("write-stream")), stream);
+        }
+        return stream;
+    }
+    
+    private ConfigurableApplicationContext startBackend(StubRealtimeService realtime, PassTimer passTimer, int concurrency) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.datasource.url",
+            "jdbc:h2:mem:replay;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        // The pooled id generators fetch their next block on a second connection while the booking
+        // transaction holds its own, so the pool needs room for both on every booking thread
+        properties.put("spring.datasource.hikari.maximum-pool-size", 2 * concurrency + 4);
+        properties.put("spring.jpa.hibernate.ddl-auto", "create");
+        properties.put("spring.jpa.show-sql", false);
+        properties.put("spring.jpa.properties.hibernate.generate_statistics", true);
+        properties.put("realtime.service.url", realtime.getUrl());
+        properties.put("savings.rebuild.backfill-on-startup", false);
+        properties.put("logging.level.root", "WARN");
+        properties.put("logging.level.org.hibernate.tool.schema", "ERROR");
+        properties.put("logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener", "OFF");
+        
+        // Above application.properties, below --name=value arguments
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("replay", properties));
+        SpringApplication application = new SpringApplication(TaxiCarpoolingApplication.class);
+        application.setEnvironment(environment);
+        application.addInitializers(context -> context.getBeanFactory().addBeanPostProcessor(passTimer));
+        return application.run(springArgs.toArray(new String[0]));
+    }
+    
+    private Map<Long, Long> createPassengers(ConfigurableApplicationContext context,
+                                             List<BookingStream.RecordedBooking> stream) {
+        SortedSet<Long> passengers = new TreeSet<>();
+        for (BookingStream.RecordedBooking booking : stream) {
+            passengers.add(booking.booking().getUserId());
+        }
+        List<User> users = new ArrayList<>();
+        for (Long passenger : passengers) {
+            User user = new User();
+            user.setPersonnummer(String.valueOf(194001010000L + passenger));
+            user.setFirstName("Replay");
+            user.setLastName("Passenger " + passenger);
+            user.setEmail("replay-" + passenger + "@example.se");
+            user.setUserType(User.UserType.PASSENGER);
+            user.setEligibilityType(User.EligibilityType.ELDERLY);
+            users.add(user);
+        }
+        users = context.getBean(UserRepository.class).saveAll(users);
+        
+        Map<Long, Long> userIds = new HashMap<>();
+        Iterator<User> saved = users.iterator();
+        for (Long passenger : passengers) {
+            userIds.put(passenger, saved.next().getId());
+        }
+        return userIds;
+    }
+    
+    private static final class Replay {
+        long startNanos;
+        long[] latencyNanos;
+        long[] dispatchLagNanos;
+        long[] respondedNanos;
+        long[] tripIds;
+        int failed;
+    }
+    
+    private Replay replay(List<BookingStream.RecordedBooking> stream, Map<Long, Long> userIds, String baseUrl,
+                          double compression, int concurrency) throws InterruptedException {
+        int count = stream.size();
+        Replay replay = new Replay();
+        replay.latencyNanos = new long[count];
+        replay.dispatchLagNanos = new long[count];
+        replay.respondedNanos = new long[count];
+        replay.tripIds = new long[count];
+        
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        ExecutorService bookers = Executors.newFixedThreadPool(concurrency);
+        LocalDateTime streamStart = stream.get(0).at();
+        // Pickups move with the replay but are not compressed, so every pickup stays after its booking
+        Duration pickupShift = Duration.between(streamStart, LocalDateTime.now());
+        int[] failed = new int[1];
+        
+        replay.startNanos = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            BookingStream.RecordedBooking recorded = stream.get(i);
+            long dueNanos = replay.startNanos
+                + (long) (Duration.between(streamStart, recorded.at()).toNanos() / compression);
+            long waitNanos;
+            while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            
+            TripRequestDto booking = copy(recorded.booking());
+            booking.setUserId(userIds.get(recorded.booking().getUserId()));
+            booking.setRequestedPickupTime(booking.getRequestedPickupTime().plus(pickupShift));
+            int index = i;
+            bookers.execute(() -> {
+                long start = System.nanoTime();
+                replay.dispatchLagNanos[index] = start - dueNanos;
+                try {
+                    HttpResponse<String> response = client.send(
+                        HttpRequest.newBuilder(URI.create(baseUrl + "/api/trips/book"))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(BookingStream.MAPPER.writeValueAsString(booking)))
+                            .build(),
+                        HttpResponse.BodyHandlers.ofString());
+                    long end = System.nanoTime();
+                    replay.latencyNanos[index] = end - start;
+                    replay.respondedNanos[index] = end;
+                    if (response.statusCode() == 200) {
+                        replay.tripIds[index] = BookingStream.MAPPER.readTree(response.body()).path("id").asLong();
+                    } else {
+                        recordFailure(failed, "HTTP " + response.statusCode() + ": " + response.body());
+                    }
+                } catch (Exception e) {
+                    replay.latencyNanos[index] = System.nanoTime() - start;
+                    recordFailure(failed, e.toString());
+                }
+            });
+        }
+        bookers.shutdown();
+        bookers.awaitTermination(10, TimeUnit.MINUTES);
+        replay.failed = failed[0];
+        return replay;
+    }
+    
+    private static void recordFailure(int[] failed, String error) {
+        synchronized (failed) {
+            if (failed[0]++ < 5) {
+                System.err.println("Booking failed: " + error);
+            }
+        }
+    }
+    
+    private static TripRequestDto copy(TripRequestDto source) {
+        return BookingStream.MAPPER.convertValue(source, TripRequestDto.class);
+    }
+    
+    /** Waits until matchmaking has been idle for a second and the outbox is empty, or the timeout. */
+    private void drain(ConfigurableApplicationContext context, PassTimer passTimer, long timeoutNanos)
+            throws InterruptedException {
+        MatchmakingPipeline pipeline = context.getBean(MatchmakingPipeline.class);
+        OutboxPublisher outbox = context.getBean(OutboxPublisher.class);
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (System.nanoTime() < deadline) {
+            boolean queueEmpty = ((Number) pipeline.getStats().get("queueDepth")).intValue() == 0;
+            boolean idle = System.nanoTime() - passTimer.getLastPassEndNanos() > TimeUnit.SECONDS.toNanos(1);
+            Map<String, Object> outboxStats = outbox.getStats();
+            boolean delivered = ((Number) outboxStats.get("pending")).longValue()
+                + ((Number) outboxStats.get("claimed")).longValue() == 0;
+            if (queueEmpty && idle && delivered) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+        System.err.println("Backend did not drain within the timeout, figures below include unfinished work");
+    }
+    
+    private Map<String, Object> report(ConfigurableApplicationContext context, List<BookingStream.RecordedBooking> stream,
+                                       Replay replay, PassTimer passTimer, StubRealtimeService realtime,
+                                       Statistics statistics, long replayNanos, long drainNanos, double compression) {
+        int bookings = stream.size();
+        int succeeded = bookings - replay.failed;
+        
+        List<Long> matchLatencies = new ArrayList<>();
+        for (int i = 0; i < bookings; i++) {
+            Long notified = replay.tripIds[i] == 0 ? null : realtime.sharedTripNotifiedNanos(replay.tripIds[i]);
+            if (notified != null) {
+                matchLatencies.add(notified - replay.respondedNanos[i]);
+            }
+        }
+        
+        JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+        long booked = jdbc.queryForObject("SELECT COUNT(*) FROM trip_requests", Long.class);
+        long matched = jdbc.queryForObject("SELECT COUNT(*) FROM trip_requests WHERE shared_trip_id IS NOT NULL", Long.class);
+        long sharedTrips = jdbc.queryForObject("SELECT COUNT(*) FROM shared_trips", Long.class);
+        long individualRate = context.getEnvironment().getProperty("government.cost.per.individual.trip", Long.class, 650L);
+        long sharedRate = context.getEnvironment().getProperty("government.cost.per.shared.trip", Long.class, 800L);
+        long individualCost = booked * individualRate;
+        long saved = matched * individualRate - sharedTrips * sharedRate;
+        
+        Map<String, Object> streamStats = new LinkedHashMap<>();
+        streamStats.put("bookings", bookings);
+        streamStats.put("bookingSpanMinutes", Duration.between(stream.get(0).at(), stream.get(bookings - 1).at()).toMinutes());
+        streamStats.put("compression", compression);
+        streamStats.put("replayMillis", replayNanos / 1_000_000);
+        streamStats.put("drainMillis", drainNanos / 1_000_000);
+        
+        Map<String, Object> bookingStats = new LinkedHashMap<>();
+        bookingStats.put("succeeded", succeeded);
+        bookingStats.put("failed", replay.failed);
+        bookingStats.put("latencyMillis", percentiles(replay.latencyNanos));
+        bookingStats.put("dispatchLagMillis", percentiles(replay.dispatchLagNanos));
+        
+        long[] passes = passTimer.drainPassNanos();
+        Map<String, Object> matchmakingStats = new LinkedHashMap<>();
+        matchmakingStats.put("passes", passes.length);
+        matchmakingStats.put("durationMillis", percentiles(passes));
+        matchmakingStats.put("totalMillis", Arrays.stream(passes).sum() / 1_000_000);
+        matchmakingStats.put("pipeline", context.getBean(MatchmakingPipeline.class).getStats());
+        
+        Map<String, Object> sharingStats = new LinkedHashMap<>();
+        sharingStats.put("bookedTrips", booked);
+        sharingStats.put("matchedTrips", matched);
+        sharingStats.put("sharedTrips", sharedTrips);
+        sharingStats.put("shareRate", booked == 0 ? 0.0 : (double) matched / booked);
+        sharingStats.put("individualCostSek", individualCost);
+        sharingStats.put("sekSaved", saved);
+        sharingStats.put("savedPercent", individualCost == 0 ? 0.0 : 100.0 * saved / individualCost);
+        
+        Map<String, Object> notificationStats = new LinkedHashMap<>();
+        notificationStats.put("requests", realtime.getRequests());
+        notificationStats.put("batches", realtime.getBatches());
+        notificationStats.put("events", realtime.getEvents());
+        notificationStats.put("bookingToSharedTripNotificationMillis",
+            percentiles(matchLatencies.stream().mapToLong(Long::longValue).toArray()));
+        notificationStats.put("outbox", context.getBean(OutboxPublisher.class).getStats());
+        
+        // Counted from the start of the replay until drained, so background polling is included
+        Map<String, Object> databaseStats = new LinkedHashMap<>();
+        databaseStats.put("statements", statistics.getPrepareStatementCount());
+        databaseStats.put("statementsPerBooking", perBooking(statistics.getPrepareStatementCount(), succeeded));
+        databaseStats.put("transactions", statistics.getTransactionCount());
+        databaseStats.put("transactionsPerBooking", perBooking(statistics.getTransactionCount(), succeeded));
+        databaseStats.put("queries", statistics.getQueryExecutionCount());
+        databaseStats.put("entityInserts", statistics.getEntityInsertCount());
+        databaseStats.put("entityUpdates", statistics.getEntityUpdateCount());
+        
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("stream", streamStats);
+        report.put("bookings", bookingStats);
+        report.put("matchmaking", matchmakingStats);
+        report.put("sharing", sharingStats);
+        report.put("notifications", notificationStats);
+        report.put("database", databaseStats);
+        return report;
+    }
+    
+    private static double perBooking(long count, int bookings) {
+        return bookings == 0 ? 0.0 : (double) count / bookings;
+    }
+    
+    private static Map<String, Object> percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        percentiles.put("count", sorted.length);
+        percentiles.put("p50", percentile(sorted, 50));
+        percentiles.put("p90", percentile(sorted, 90));
+        percentiles.put("p99", percentile(sorted, 99));
+        percentiles.put("max", sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6);
+        return percentiles;
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p / 100 * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void printReport(Map<String, Object> report) {
+        Map<String, Object> bookings = (Map<String, Object>) report.get("bookings");
+        Map<String, Object> matchmaking = (Map<String, Object>) report.get("matchmaking");
+        Map<String, Object> sharing = (Map<String, Object>) report.get("sharing");
+        Map<String, Object> notifications = (Map<String, Object>) report.get("notifications");
+        Map<String, Object> database = (Map<String, Object>) report.get("database");
+        
+        System.out.println();
+        System.out.println("Bookings:      " + bookings.get("succeeded") + " ok, " + bookings.get("failed")
+            + " failed, latency ms " + bookings.get("latencyMillis"));
+        System.out.println("Matchmaking:   " + matchmaking.get("passes") + " passes, duration ms "
+            + matchmaking.get("durationMillis"));
+        System.out.printf("Sharing:       %d of %d trips shared in %d shared trips (%.1f%%), %d SEK saved (%.1f%%)%n",
+            sharing.get("matchedTrips"), sharing.get("bookedTrips"), sharing.get("sharedTrips"),
+            100 * (double) sharing.get("shareRate"), sharing.get("sekSaved"), (double) sharing.get("savedPercent"));
+        System.out.println("Notifications: " + notifications.get("events") + " events in " + notifications.get("batches")
+            + " batches, booking to shared trip notification ms " + notifications.get("bookingToSharedTripNotificationMillis"));
+        System.out.printf("Database:      %d statements (%.1f per booking), %d transactions (%.1f per booking)%n",
+            database.get("statements"), database.get("statementsPerBooking"),
+            database.get("transactions"), database.get("transactionsPerBooking"));
+    }
+}
@@ -0,0 +1,408 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.gothenburg.taxicarpooling.TaxiCarpoolingApplication;
+import se.gothenburg.taxicarpooling.benchmarks.GothenburgWorkload;
+import se.gothenburg.taxicarpooling.entity.MatchmakingNode;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.repository.MatchmakingNodeRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+import se.gothenburg.taxicarpooling.repository.UserRepository;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+import se.gothenburg.taxicarpooling.service.ShardLeaseManager;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs matchmaking on 1, 2 and 4 backend nodes sharing one embedded H2 database, with shard leases
+ * deciding which node matches which trips, and compares them with a single unsharded node on the
+ * same trips. Every cluster gets a fresh database seeded with the same workload; its nodes are
+ * announced up front so each takes its even share of shards on startup, loads only those trips and
+ * runs one full pass.
+ * <p>
+ * Pass times are thread CPU time, so a machine with fewer cores than nodes still shows what each
+ * node would take on its own; the makespan is the slowest node. Afterwards every shared trip is
+ * checked to hold exactly the trips pointing at it, so a trip matched twice, by two nodes or within
+ * one, fails the run. The last cluster then gets a node joining and a node leaving, timed until the
+ * shards are spread evenly again.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.ShardedMatchmakingHarness --trips 10000 --nodes 1,2,4
+ * </pre>
+ *
+ * Other options: {@code --shards}, {@code --out file}.
+ */
+public class ShardedMatchmakingHarness {
+    
+    private static final long RENEW_MS = 200;
+    // Long enough for announced nodes to stay live while the others start
+    private static final long LEASE_SECONDS = 60;
+    
+    private final Map<String, String> options;
+    private final StubRealtimeService realtime;
+    
+    private ShardedMatchmakingHarness(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.realtime = new StubRealtimeService();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+        }
+        int exitCode = new ShardedMatchmakingHarness(options).run();
+        System.exit(exitCode);
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    private int run() throws Exception {
+        int trips = Integer.parseInt(option("trips", "10000"));
+        int shards = Integer.parseInt(option("shards", "32"));
+        List<Integer> nodeCounts = new ArrayList<>();
+        for (String count : option("nodes", "1,2,4").split(",")) {
+            nodeCounts.add(Integer.parseInt(count.trim()));
+        }
+        
+        realtime.start();
+        try {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("trips", trips);
+            report.put("shards", shards);
+            System.out.printf("Matching %d trips unsharded%n", trips);
+            Map<String, Object> baseline = runCluster(0, trips, shards, false);
+            report.put("unsharded", baseline);
+            
+            List<Map<String, Object>> clusters = new ArrayList<>();
+            boolean clean = (long) baseline.get("doubleMatchedSharedTrips") == 0;
+            for (int i = 0; i < nodeCounts.size(); i++) {
+                int nodes = nodeCounts.get(i);
+                System.out.printf("Matching %d trips on %d nodes%n", trips, nodes);
+                Map<String, Object> cluster = runCluster(nodes, trips, shards, i == nodeCounts.size() - 1);
+                clusters.add(cluster);
+                clean &= (long) cluster.get("doubleMatchedSharedTrips") == 0;
+            }
+            report.put("clusters", clusters);
+            
+            printReport(baseline, clusters);
+            Path out = Path.of(option("out", "sharding-results/"
+                + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+            if (out.getParent() != null) {
+                Files.createDirectories(out.getParent());
+            }
+            BookingStream.MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), report);
+            System.out.println("Report written to " + out);
+            return clean ? 0 : 1;
+        } finally {
+            realtime.stop();
+        }
+    }
+    
+    /** One database, {@code nodes} sharded nodes on it, or a single unsharded node for 0. */
+    private Map<String, Object> runCluster(int nodes, int tripCount, int shards, boolean rebalance) throws Exception {
+        String database = "sharding" + nodes + "_" + System.nanoTime();
+        List<String> nodeIds = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            nodeIds.add("node-" + i);
+        }
+        
+        ConfigurableApplicationContext setup = startNode(database, "create", null, shards, null);
+        try {
+            seed(setup, tripCount, nodeIds);
+        } finally {
+            setup.close();
+        }
+        
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("nodes", nodes);
+        List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+        List<NodeTimer> timers = new ArrayList<>();
+        try {
+            if (nodes == 0) {
+                NodeTimer timer = new NodeTimer();
+                ConfigurableApplicationContext context = startNode(database, "none", null, shards, timer);
+                contexts.add(context);
+                timers.add(timer);
+                context.getBean(MatchmakingService.class).processMatchmaking();
+            } else {
+                for (String nodeId : nodeIds) {
+                    NodeTimer timer = new NodeTimer();
+                    contexts.add(startNode(database, "none", nodeId, shards, timer));
+                    timers.add(timer);
+                }
+                awaitFirstPasses(contexts, timers, shards);
+            }
+            
+            List<Map<String, Object>> perNode = new ArrayList<>();
+            long makespan = 0;
+            long totalCpu = 0;
+            long conflicted = 0;
+            for (int i = 0; i < contexts.size(); i++) {
+                ConfigurableApplicationContext context = contexts.get(i);
+                NodeTimer timer = timers.get(i);
+                Map<String, Object> node = new LinkedHashMap<>();
+                node.put("nodeId", nodes == 0 ? "unsharded" : nodeIds.get(i));
+                node.put("ownedShards", nodes == 0 ? shards : context.getBean(ShardLeaseManager.class).ownedShards().size());
+                node.put("passes", timer.passes);
+                node.put("passCpuMillis", timer.cpuNanos / 1_000_000);
+                node.put("passWallMillis", timer.wallNanos / 1_000_000);
+                Map<String, Object> grouping = context.getBean(MatchmakingService.class).getGroupingStats();
+                conflicted += ((Number) grouping.get("conflictedGroups")).longValue();
+                perNode.add(node);
+                makespan = Math.max(makespan, timer.cpuNanos);
+                totalCpu += timer.cpuNanos;
+            }
+            result.put("perNode", perNode);
+            result.put("makespanMillis", makespan / 1_000_000);
+            result.put("totalCpuMillis", totalCpu / 1_000_000);
+            result.put("tripsPerSecond", makespan == 0 ? 0.0 : tripCount * 1e9 / makespan);
+            result.put("conflictedGroups", conflicted);
+            
+            JdbcTemplate jdbc = contexts.get(0).getBean(JdbcTemplate.class);
+            long matched = jdbc.queryForObject(
+                "SELECT COUNT(*) FROM trip_requests WHERE status = 'MATCHED'", Long.class);
+            result.put("matchedTrips", matched);
+            result.put("sharedTrips", jdbc.queryForObject("SELECT COUNT(*) FROM shared_trips", Long.class));
+            result.put("shareRate", (double) matched / tripCount);
+            // A trip matched twice leaves a shared trip with fewer trips pointing at it than it was created with
+            result.put("doubleMatchedSharedTrips", jdbc.queryForObject(
+                "SELECT COUNT(*) FROM shared_trips st WHERE st.passenger_count <> " +
+                "(SELECT COUNT(*) FROM trip_requests tr WHERE tr.shared_trip_id = st.id)",
+                Long.class));
+            
+            if (rebalance && nodes > 0) {
+                result.put("rebalance", rebalance(database, contexts, nodes, shards));
+            }
+            return result;
+        } finally {
+            for (ConfigurableApplicationContext context : contexts) {
+                if (context.isActive()) {
+                    context.close();
+                }
+            }
+        }
+    }
+    
+    private void seed(ConfigurableApplicationContext context, int tripCount, List<String> nodeIds) {
+        List<TripRequest> trips = new GothenburgWorkload(GothenburgWorkload.DEFAULT_SEED,
+            GothenburgWorkload.DEFAULT_WHEELCHAIR_RATIO).generate(tripCount);
+        List<User> users = new ArrayList<>();
+        int passengers = Math.max(50, tripCount / 4);
+        for (int i = 0; i < passengers; i++) {
+            User user = new User();
+            user.setPersonnummer(String.valueOf(194001010000L + i));
+            user.setFirstName("Sharding");
+            user.setLastName("Passenger " + i);
+            user.setEmail("sharding-" + i + "@example.se");
+            user.setUserType(User.UserType.PASSENGER);
+            user.setEligibilityType(User.EligibilityType.ELDERLY);
+            users.add(user);
+        }
+        users = context.getBean(UserRepository.class).saveAll(users);
+        for (int i = 0; i < trips.size(); i++) {
+            trips.get(i).setId(null);
+            trips.get(i).setUser(users.get(i % users.size()));
+        }
+        TripRequestRepository tripRequestRepository = context.getBean(TripRequestRepository.class);
+        for (int from = 0; from < trips.size(); from += 1_000) {
+            tripRequestRepository.saveAll(trips.subList(from, Math.min(trips.size(), from + 1_000)));
+        }
+        
+        LocalDateTime now = LocalDateTime.now();
+        List<MatchmakingNode> announced = new ArrayList<>();
+        for (String nodeId : nodeIds) {
+            announced.add(new MatchmakingNode(nodeId, now));
+        }
+        context.getBean(MatchmakingNodeRepository.class).saveAll(announced);
+    }
+    
+    /** Waits until the nodes own every shard between them and each finished its full pass. */
+    private void awaitFirstPasses(List<ConfigurableApplicationContext> contexts, List<NodeTimer> timers, int shards) {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            int owned = 0;
+            boolean passed = true;
+            for (int i = 0; i < contexts.size(); i++) {
+                owned += contexts.get(i).getBean(ShardLeaseManager.class).ownedShards().size();
+                passed &= timers.get(i).passes > 0 && !timers.get(i).running;
+            }
+            if (owned == shards && passed) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        throw new IllegalStateException("Nodes did not finish their first passes");
+    }
+    
+    /** Times a node joining the cluster, then one leaving it, until the shards are spread evenly again. */
+    private Map<String, Object> rebalance(String database, List<ConfigurableApplicationContext> contexts,
+                                          int nodes, int shards) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        ConfigurableApplicationContext joined = startNode(database, "none", "node-" + nodes, shards, new NodeTimer());
+        contexts.add(joined);
+        long joinStart = System.nanoTime();
+        awaitEvenSpread(contexts, shards);
+        result.put("joinMillis", (System.nanoTime() - joinStart) / 1_000_000);
+        result.put("afterJoin", ownership(contexts));
+        
+        ConfigurableApplicationContext leaving = contexts.remove(0);
+        long leaveStart = System.nanoTime();
+        leaving.close();
+        awaitEvenSpread(contexts, shards);
+        result.put("leaveMillis", (System.nanoTime() - leaveStart) / 1_000_000);
+        result.put("afterLeave", ownership(contexts));
+        result.put("renewMs", RENEW_MS);
+        return result;
+    }
+    
+    private void awaitEvenSpread(List<ConfigurableApplicationContext> contexts, int shards) {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            Set<Integer> all = new HashSet<>();
+            int total = 0;
+            int fewest = Integer.MAX_VALUE;
+            int most = 0;
+            for (ConfigurableApplicationContext context : contexts) {
+                Set<Integer> owned = context.getBean(ShardLeaseManager.class).ownedShards();
+                all.addAll(owned);
+                total += owned.size();
+                fewest = Math.min(fewest, owned.size());
+                most = Math.max(most, owned.size());
+            }
+            if (all.size() == shards && total == shards && most - fewest <= 1) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        throw new IllegalStateException("Shards were not spread evenly in time: " + ownership(contexts));
+    }
+    
+    private static Map<String, Integer> ownership(List<ConfigurableApplicationContext> contexts) {
+        Map<String, Integer> owned = new LinkedHashMap<>();
+        for (ConfigurableApplicationContext context : contexts) {
+            ShardLeaseManager leases = context.getBean(ShardLeaseManager.class);
+            owned.put(leases.getNodeId(), leases.ownedShards().size());
+        }
+        return owned;
+    }
+    
+    private ConfigurableApplicationContext startNode(String database, String ddl, String nodeId, int shards,
+                                                     NodeTimer timer) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.datasource.url", "jdbc:h2:mem:" + database
+            + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        properties.put("spring.jpa.hibernate.ddl-auto", ddl);
+        properties.put("spring.jpa.show-sql", false);
+        properties.put("realtime.service.url", realtime.getUrl());
+        properties.put("savings.rebuild.backfill-on-startup", false);
+        properties.put("matchmaking.sharding.enabled", nodeId != null);
+        properties.put("matchmaking.sharding.shards", shards);
+        properties.put("matchmaking.sharding.node-id", nodeId == null ? "" : nodeId);
+        properties.put("matchmaking.sharding.renew-ms", RENEW_MS);
+        properties.put("matchmaking.sharding.lease-seconds", LEASE_SECONDS);
+        properties.put("logging.level.root", "WARN");
+        properties.put("logging.level.org.hibernate.tool.schema", "ERROR");
+        
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("sharding", properties));
+        SpringApplication application = new SpringApplication(TaxiCarpoolingApplication.class);
+        application.setEnvironment(environment);
+        if (timer != null) {
+            application.addInitializers(context -> context.getBeanFactory().addBeanPostProcessor(timer));
+        }
+        return application.run();
+    }
+    
+    private static void printReport(Map<String, Object> baseline, List<Map<String, Object>> clusters) {
+        System.out.println();
+        System.out.printf("%-10s %12s %12s %12s %10s %10s %8s%n",
+            "nodes", "makespan ms", "total ms", "trips/s", "speedup", "shared", "double");
+        double baseMakespan = ((Number) baseline.get("makespanMillis")).doubleValue();
+        for (Map<String, Object> row : concat(baseline, clusters)) {
+            int nodes = (int) row.get("nodes");
+            long makespan = (long) row.get("makespanMillis");
+            System.out.printf("%-10s %12d %12d %12.0f %9.2fx %9.1f%% %8d%n",
+                nodes == 0 ? "unsharded" : String.valueOf(nodes), makespan, (long) row.get("totalCpuMillis"),
+                (double) row.get("tripsPerSecond"), makespan == 0 ? 0.0 : baseMakespan / makespan,
+                100 * (double) row.get("shareRate"), (long) row.get("doubleMatchedSharedTrips"));
+        }
+        for (Map<String, Object> cluster : clusters) {
+            if (cluster.containsKey("rebalance")) {
+                System.out.println("Rebalancing on " + cluster.get("nodes") + " nodes: " + cluster.get("rebalance"));
+            }
+        }
+    }
+    
+    private static List<Map<String, Object>> concat(Map<String, Object> first, List<Map<String, Object>> rest) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(first);
+        rows.addAll(rest);
+        return rows;
+    }
+    
+    /** Adds up the CPU time each processMatchmaking call of one node takes on its calling thread. */
+    private static final class NodeTimer implements BeanPostProcessor {
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        
+        volatile int passes;
+        volatile boolean running;
+        volatile long cpuNanos;
+        volatile long wallNanos;
+        
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (!(bean instanceof MatchmakingService)) {
+                return bean;
+            }
+            ProxyFactory proxyFactory = new ProxyFactory(bean);
+            proxyFactory.setProxyTargetClass(true);
+            proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+                if (!"processMatchmaking".equals(invocation.getMethod().getName())) {
+                    return invocation.proceed();
+                }
+                running = true;
+                long cpuStart = THREADS.getCurrentThreadCpuTime();
+                long start = System.nanoTime();
+                try {
+                    return invocation.proceed();
+                } finally {
+                    synchronized (this) {
+                        cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+                        wallNanos += System.nanoTime() - start;
+                        passes++;
+                    }
+                    running = false;
+                }
+            });
+            return proxyFactory.getProxy();
+        }
+    }
+}
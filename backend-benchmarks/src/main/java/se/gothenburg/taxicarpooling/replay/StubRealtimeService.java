@@ -0,0 +1,100 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import se.gothenburg.taxicarpooling.service.OutboxPublisher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stands in for realtime-service. Acknowledges every event posted to {@code /api/events/batch} the
+ * way the Node service does, and remembers when each trip was first announced in a shared trip.
+ * Every other request gets an empty 200.
+ */
+public class StubRealtimeService {
+    
+    private final HttpServer server;
+    
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final Map<Long, Long> sharedTripNotifiedNanos = new ConcurrentHashMap<>();
+    
+    public StubRealtimeService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable, "stub-realtime");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", this::handle);
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+    }
+    
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        long receivedNanos = System.nanoTime();
+        requests.increment();
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        
+        byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+        if ("/api/events/batch".equals(exchange.getRequestURI().getPath())) {
+            batches.increment();
+            ObjectNode ack = BookingStream.MAPPER.createObjectNode();
+            ArrayNode results = ack.putArray("results");
+            for (JsonNode event : BookingStream.MAPPER.readTree(body).path("events")) {
+                events.increment();
+                results.addObject().put("eventId", event.path("eventId").asLong()).put("success", true);
+                if (OutboxPublisher.SHARED_TRIP_CREATED.equals(event.path("type").asText())) {
+                    for (JsonNode trip : event.path("payload").path("trips")) {
+                        sharedTripNotifiedNanos.putIfAbsent(trip.path("tripId").asLong(), receivedNanos);
+                    }
+                }
+            }
+            response = BookingStream.MAPPER.writeValueAsBytes(ack);
+        }
+        
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+    
+    public long getRequests() {
+        return requests.sum();
+    }
+    
+    public long getBatches() {
+        return batches.sum();
+    }
+    
+    public long getEvents() {
+        return events.sum();
+    }
+    
+    /** {@link System#nanoTime()} at which the trip's shared trip reached this service, or null. */
+    public Long sharedTripNotifiedNanos(long tripId) {
+        return sharedTripNotifiedNanos.get(tripId);
+    }
+}
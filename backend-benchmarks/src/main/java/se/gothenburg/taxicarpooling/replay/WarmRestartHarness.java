@@ -0,0 +1,288 @@
+package se.gothenburg.taxicarpooling.replay;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.gothenburg.taxicarpooling.TaxiCarpoolingApplication;
+import se.gothenburg.taxicarpooling.benchmarks.GothenburgWorkload;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.repository.TripChangeRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+import se.gothenburg.taxicarpooling.repository.UserRepository;
+import se.gothenburg.taxicarpooling.service.MatchmakingService;
+import se.gothenburg.taxicarpooling.service.TripChangeFeed;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a restarted node takes until its pending index is ready, loading every pending
+ * trip from the database against restoring a matching snapshot. For each size a writer node seeds
+ * the pending trips on an embedded H2 database, a cold node loads them and writes a snapshot, and
+ * while it is down the writer cancels and books a share of trips. A warm node then starts from the
+ * snapshot, and a second cold node on the same data checks that both end with the same trips and
+ * compatibility edges.
+ *
+ * <pre>
+ * java -Xmx3g -cp target/benchmarks.jar se.gothenburg.taxicarpooling.replay.WarmRestartHarness --trips 10000,100000
+ * </pre>
+ *
+ * Other options: {@code --changed-ratio} (0.01), {@code --out file}.
+ */
+public class WarmRestartHarness {
+    
+    private final Map<String, String> options;
+    private final StubRealtimeService realtime;
+    
+    private WarmRestartHarness(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.realtime = new StubRealtimeService();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+        }
+        int exitCode = new WarmRestartHarness(options).run();
+        System.exit(exitCode);
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    private int run() throws Exception {
+        double changedRatio = Double.parseDouble(option("changed-ratio", "0.01"));
+        List<Map<String, Object>> results = new ArrayList<>();
+        boolean consistent = true;
+        realtime.start();
+        try {
+            for (String size : option("trips", "10000,100000").split(",")) {
+                int trips = Integer.parseInt(size.trim());
+                System.out.printf("Restarting with %d pending trips%n", trips);
+                Map<String, Object> result = measure(trips, changedRatio);
+                results.add(result);
+                consistent &= (boolean) result.get("sameAsCold");
+            }
+        } finally {
+            realtime.stop();
+        }
+        
+        printReport(results);
+        Path out = Path.of(option("out", "restart-results/"
+            + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        BookingStream.MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), results);
+        System.out.println("Report written to " + out);
+        return consistent ? 0 : 1;
+    }
+    
+    private Map<String, Object> measure(int tripCount, double changedRatio) throws Exception {
+        String database = "restart" + tripCount + "_" + System.nanoTime();
+        Path directory = Files.createTempDirectory("matching-snapshot");
+        Path snapshot = directory.resolve("matching.snapshot");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("pendingTrips", tripCount);
+        
+        ConfigurableApplicationContext writer = startNode(database, "create", null);
+        try {
+            List<User> users = seed(writer, tripCount);
+            
+            Map<String, Object> cold = new LinkedHashMap<>();
+            ConfigurableApplicationContext coldNode = timedStart(database, snapshot, cold);
+            try {
+                MatchmakingService matchmakingService = coldNode.getBean(MatchmakingService.class);
+                long start = System.nanoTime();
+                matchmakingService.writeSnapshot();
+                cold.put("snapshotWriteMillis", (System.nanoTime() - start) / 1_000_000);
+                cold.put("snapshot", indexStats(coldNode).get("snapshot"));
+                cold.put("snapshotBytes", Files.size(snapshot));
+            } finally {
+                coldNode.close();
+            }
+            result.put("cold", cold);
+            
+            result.put("changedWhileDown", changeWhileDown(writer, users, (int) Math.round(tripCount * changedRatio)));
+            
+            Map<String, Object> warm = new LinkedHashMap<>();
+            ConfigurableApplicationContext warmNode = timedStart(database, snapshot, warm);
+            Map<String, Object> check = new LinkedHashMap<>();
+            ConfigurableApplicationContext checkNode = null;
+            try {
+                checkNode = timedStart(database, directory.resolve("none.snapshot"), check);
+                long pending = writer.getBean(JdbcTemplate.class).queryForObject(
+                    "SELECT COUNT(*) FROM trip_requests WHERE status = 'PENDING' AND requested_pickup_time > ?",
+                    Long.class, LocalDateTime.now());
+                result.put("warm", warm);
+                result.put("coldAfterChanges", check);
+                result.put("pendingInDatabase", pending);
+                result.put("sameAsCold", warm.get("indexedTrips").equals(check.get("indexedTrips"))
+                    && warm.get("edges").equals(check.get("edges")));
+            } finally {
+                warmNode.close();
+                if (checkNode != null) {
+                    checkNode.close();
+                }
+            }
+        } finally {
+            writer.close();
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+        return result;
+    }
+    
+    private List<User> seed(ConfigurableApplicationContext context, int tripCount) {
+        List<User> users = new ArrayList<>();
+        int passengers = Math.max(50, tripCount / 4);
+        for (int i = 0; i < passengers; i++) {
+            User user = new User();
+            user.setPersonnummer(String.valueOf(194001010000L + i));
+            user.setFirstName("Restart");
+            user.setLastName("Passenger " + i);
+            user.setEmail("restart-" + i + "@example.se");
+            user.setUserType(User.UserType.PASSENGER);
+            user.setEligibilityType(User.EligibilityType.ELDERLY);
+            users.add(user);
+        }
+        users = context.getBean(UserRepository.class).saveAll(users);
+        save(context, new GothenburgWorkload(GothenburgWorkload.DEFAULT_SEED,
+            GothenburgWorkload.DEFAULT_WHEELCHAIR_RATIO).generate(tripCount), users);
+        return users;
+    }
+    
+    private static void save(ConfigurableApplicationContext context, List<TripRequest> trips, List<User> users) {
+        for (int i = 0; i < trips.size(); i++) {
+            trips.get(i).setId(null);
+            trips.get(i).setUser(users.get(i % users.size()));
+        }
+        TripRequestRepository tripRequestRepository = context.getBean(TripRequestRepository.class);
+        for (int from = 0; from < trips.size(); from += 1_000) {
+            tripRequestRepository.saveAll(trips.subList(from, Math.min(trips.size(), from + 1_000)));
+        }
+    }
+    
+    /** Cancels and books {@code count} trips each through the writer, recorded in the change feed like the services do. */
+    private Map<String, Object> changeWhileDown(ConfigurableApplicationContext writer, List<User> users, int count) {
+        TripRequestRepository tripRequestRepository = writer.getBean(TripRequestRepository.class);
+        TripChangeFeed tripChangeFeed = writer.getBean(TripChangeFeed.class);
+        TransactionTemplate transaction = new TransactionTemplate(writer.getBean(PlatformTransactionManager.class));
+        
+        List<Long> pendingIds = writer.getBean(JdbcTemplate.class).queryForList(
+            "SELECT id FROM trip_requests WHERE status = 'PENDING' ORDER BY id", Long.class);
+        Collections.shuffle(pendingIds, new Random(GothenburgWorkload.DEFAULT_SEED));
+        List<Long> cancelled = pendingIds.subList(0, Math.min(count, pendingIds.size()));
+        transaction.executeWithoutResult(status -> {
+            for (Long id : cancelled) {
+                tripRequestRepository.transitionStatus(id, EnumSet.of(TripRequest.TripStatus.PENDING),
+                    TripRequest.TripStatus.CANCELLED);
+            }
+            tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, cancelled);
+        });
+        
+        List<TripRequest> booked = new GothenburgWorkload(GothenburgWorkload.DEFAULT_SEED + 1,
+            GothenburgWorkload.DEFAULT_WHEELCHAIR_RATIO, LocalDate.now().plusDays(1)).generate(count);
+        transaction.executeWithoutResult(status -> {
+            save(writer, booked, users);
+            List<Long> bookedIds = new ArrayList<>();
+            for (TripRequest trip : booked) {
+                bookedIds.add(trip.getId());
+            }
+            tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, bookedIds);
+        });
+        
+        // Let the writer's feed number the changes, as a running node would
+        TripChangeRepository tripChangeRepository = writer.getBean(TripChangeRepository.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (tripChangeFeed.currentSeq() < tripChangeRepository.count() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        Map<String, Object> changed = new LinkedHashMap<>();
+        changed.put("cancelled", cancelled.size());
+        changed.put("booked", booked.size());
+        return changed;
+    }
+    
+    private ConfigurableApplicationContext timedStart(String database, Path snapshot, Map<String, Object> stats) {
+        long start = System.nanoTime();
+        ConfigurableApplicationContext context = startNode(database, "none", snapshot);
+        stats.put("contextReadyMillis", (System.nanoTime() - start) / 1_000_000);
+        Map<String, Object> index = indexStats(context);
+        stats.put("warmStart", index.get("warmStart"));
+        stats.put("indexedTrips", index.get("size"));
+        stats.put("edges", ((Map<?, ?>) index.get("compatibilityGraph")).get("edges"));
+        return context;
+    }
+    
+    private static Map<String, Object> indexStats(ConfigurableApplicationContext context) {
+        return context.getBean(MatchmakingService.class).getIndexStats();
+    }
+    
+    private ConfigurableApplicationContext startNode(String database, String ddl, Path snapshot) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.datasource.url", "jdbc:h2:mem:" + database
+            + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        properties.put("spring.jpa.hibernate.ddl-auto", ddl);
+        properties.put("spring.jpa.show-sql", false);
+        properties.put("realtime.service.url", realtime.getUrl());
+        properties.put("savings.rebuild.backfill-on-startup", false);
+        properties.put("matchmaking.snapshot.path", snapshot == null ? "" : snapshot.toString());
+        // Written explicitly; the periodic write would race the measurements
+        properties.put("matchmaking.snapshot.interval-ms", 3_600_000);
+        properties.put("logging.level.root", "WARN");
+        properties.put("logging.level.org.hibernate.tool.schema", "ERROR");
+        
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("restart", properties));
+        SpringApplication application = new SpringApplication(TaxiCarpoolingApplication.class);
+        application.setEnvironment(environment);
+        return application.run();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void printReport(List<Map<String, Object>> results) {
+        System.out.println();
+        System.out.printf("%-10s %10s %14s %12s %10s %14s %12s %10s %8s%n", "pending", "cold ms", "cold index ms",
+            "snapshot MB", "write ms", "warm ms", "warm index ms", "replayed", "same");
+        for (Map<String, Object> result : results) {
+            Map<String, Object> cold = (Map<String, Object>) result.get("coldAfterChanges");
+            Map<String, Object> warm = (Map<String, Object>) result.get("warm");
+            Map<String, Object> written = (Map<String, Object>) result.get("cold");
+            Map<String, Object> warmStart = (Map<String, Object>) warm.get("warmStart");
+            System.out.printf("%-10d %10d %14d %12.1f %10d %14d %12d %10d %8s%n",
+                (int) result.get("pendingTrips"), (long) cold.get("contextReadyMillis"),
+                ((Number) ((Map<String, Object>) cold.get("warmStart")).get("readyMillis")).longValue(),
+                ((Number) written.get("snapshotBytes")).longValue() / 1e6, (long) written.get("snapshotWriteMillis"),
+                (long) warm.get("contextReadyMillis"), ((Number) warmStart.get("readyMillis")).longValue(),
+                ((Number) warmStart.get("loadedTrips")).longValue(), result.get("sameAsCold"));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package se.gothenburg.taxicarpooling.config;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Counts the SQL statements Hibernate prepares on the current thread between {@link #begin()} and
+ * {@link #end(long[])}. A JDBC batch counts once, as one prepared statement.
+ */
+@Component
+public class StatementCounter implements StatementInspector, HibernatePropertiesCustomizer {
+    
+    private static final ThreadLocal<long[]> COUNT = new ThreadLocal<>();
+    
+    @Override
+    public void customize(Map<String, Object> hibernateProperties) {
+        hibernateProperties.put(AvailableSettings.STATEMENT_INSPECTOR, this);
+    }
+    
+    @Override
+    public String inspect(String sql) {
+        long[] count = COUNT.get();
+        if (count != null) {
+            count[0]++;
+        }
+        return sql;
+    }
+    
+    /** Starts counting on this thread and returns the enclosing count, to be passed to {@link #end}. */
+    public static long[] begin() {
+        long[] enclosing = COUNT.get();
+        COUNT.set(new long[1]);
+        return enclosing;
+    }
+    
+    /** Stops counting, adds the statements to the enclosing count and returns them. */
+    public static long end(long[] enclosing) {
+        long[] count = COUNT.get();
+        long statements = count == null ? 0 : count[0];
+        if (enclosing == null) {
+            COUNT.remove();
+        } else {
+            enclosing[0] += statements;
+            COUNT.set(enclosing);
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,44 @@
+package se.gothenburg.taxicarpooling.config;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+
+/**
+ * Records the SQL statements each HTTP request made as {@code http.server.requests.statements},
+ * tagged like {@code http.server.requests} with the method and the matched URI pattern. Statements
+ * run after an async request has left its servlet thread are not counted.
+ */
+@Component
+public class StatementMetricsFilter extends OncePerRequestFilter {
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long[] enclosing = StatementCounter.begin();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            long statements = StatementCounter.end(enclosing);
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            DistributionSummary.builder("http.server.requests.statements")
+                .description("SQL statements prepared while serving one request")
+                .tag("method", request.getMethod())
+                .tag("uri", pattern == null ? "UNKNOWN" : pattern.toString())
+                .register(meterRegistry)
+                .record(statements);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package se.gothenburg.taxicarpooling.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches the JFR {@code jdk.VirtualThreadPinned} event while virtual threads are enabled. A pinned
+ * virtual thread blocks its carrier, typically because it parked inside a {@code synchronized} block
+ * around JDBC or HTTP calls; the monitor counts these and records where they happen.
+ */
+@Component
+public class VirtualThreadPinningMonitor {
+    
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String APPLICATION_PACKAGE = "se.gothenburg.taxicarpooling";
+    
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    
+    @Value("${threads.pinning.threshold-ms:20}")
+    private long thresholdMs;
+    
+    private RecordingStream recordingStream;
+    
+    private final LongAdder pinnedEvents = new LongAdder();
+    private final LongAdder pinnedNanos = new LongAdder();
+    private final Map<String, LongAdder> pinnedSites = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    void start() {
+        if (!virtualThreads) {
+            return;
+        }
+        if (!VirtualThreads.isSupported()) {
+            System.err.println("spring.threads.virtual.enabled is set but Java " + Runtime.version().feature() +
+                " has no virtual threads, running on platform threads");
+            return;
+        }
+        try {
+            recordingStream = new RecordingStream();
+            recordingStream.enable(PINNED_EVENT).withThreshold(Duration.ofMillis(thresholdMs)).withStackTrace();
+            recordingStream.onEvent(PINNED_EVENT, this::record);
+            recordingStream.startAsync();
+        } catch (Exception e) {
+            System.err.println("Could not start virtual thread pinning monitor: " + e.getMessage());
+        }
+    }
+    
+    @PreDestroy
+    void stop() {
+        if (recordingStream != null) {
+            recordingStream.close();
+        }
+    }
+    
+    private void record(RecordedEvent event) {
+        pinnedEvents.increment();
+        pinnedNanos.add(event.getDuration().toNanos());
+        String site = pinnedSite(event.getStackTrace());
+        LongAdder count = pinnedSites.computeIfAbsent(site, key -> new LongAdder());
+        if (count.sum() == 0) {
+            System.err.println("Virtual thread pinned for " + event.getDuration().toMillis() + " ms at " + site);
+        }
+        count.increment();
+    }
+    
+    // The first application frame says which of our calls needs fixing, otherwise the top frame
+    private static String pinnedSite(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "unknown";
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (frame.getMethod().getType().getName().startsWith(APPLICATION_PACKAGE)) {
+                return describe(frame);
+            }
+        }
+        return describe(stackTrace.getFrames().get(0));
+    }
+    
+    private static String describe(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        boolean virtualActive = virtualThreads && VirtualThreads.isSupported();
+        stats.put("javaVersion", Runtime.version().feature());
+        stats.put("threadMode", virtualActive ? "virtual" : "platform");
+        stats.put("pinningMonitor", recordingStream != null);
+        stats.put("pinningThresholdMs", thresholdMs);
+        stats.put("pinnedEvents", pinnedEvents.sum());
+        stats.put("pinnedMillis", pinnedNanos.sum() / 1_000_000);
+        
+        List<Map.Entry<String, LongAdder>> sites = new ArrayList<>(pinnedSites.entrySet());
+        sites.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+        Map<String, Long> topSites = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> site : sites.subList(0, Math.min(10, sites.size()))) {
+            topSites.put(site.getKey(), site.getValue().sum());
+        }
+        stats.put("topPinnedSites", topSites);
+        return stats;
+    }
+}
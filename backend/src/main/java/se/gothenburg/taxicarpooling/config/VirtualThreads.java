@@ -0,0 +1,31 @@
+package se.gothenburg.taxicarpooling.config;
+
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for the application's own executors. With {@code spring.threads.virtual.enabled}
+ * on a Java 21 runtime they hand out virtual threads, otherwise named daemon platform threads, so
+ * the same build runs on Java 17.
+ */
+public final class VirtualThreads {
+    
+    private VirtualThreads() {
+    }
+    
+    public static boolean isSupported() {
+        return Runtime.version().feature() >= 21;
+    }
+    
+    public static ThreadFactory threadFactory(String name, boolean virtual) {
+        if (virtual && isSupported()) {
+            return new VirtualThreadTaskExecutor(name + "-").getVirtualThreadFactory();
+        }
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package se.gothenburg.taxicarpooling.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import se.gothenburg.taxicarpooling.dto.TripChanges;
+import se.gothenburg.taxicarpooling.dto.TripSnapshot;
+import se.gothenburg.taxicarpooling.service.TripChangeFeed;
+
+import java.util.Map;
+
+/**
+ * Change feed for dashboards: load {@code /snapshot} once, then follow {@code /stream} (SSE) or
+ * long-poll {@code /api/changes} from the snapshot's {@code seq}.
+ */
+@RestController
+@RequestMapping("/api/changes")
+@CrossOrigin(origins = "*")
+public class ChangeFeedController {
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @GetMapping("/snapshot")
+    public ResponseEntity<TripSnapshot> getSnapshot() {
+        return ResponseEntity.ok(tripChangeFeed.snapshot());
+    }
+    
+    @GetMapping
+    public DeferredResult<TripChanges> getChanges(
+            @RequestParam long since,
+            @RequestParam(defaultValue = "500") int limit,
+            @RequestParam(defaultValue = "25000") long waitMs) {
+        return tripChangeFeed.awaitChanges(since, Math.max(1, Math.min(limit, 1000)), waitMs);
+    }
+    
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(
+            @RequestParam(required = false) Long since,
+            @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        // A reconnecting EventSource resumes from the last event it saw
+        long cursor = lastEventId != null ? lastEventId : since != null ? since : tripChangeFeed.currentSeq();
+        return tripChangeFeed.subscribe(cursor);
+    }
+    
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStats() {
+        return ResponseEntity.ok(tripChangeFeed.getStats());
+    }
+}
@@ -0,0 +1,86 @@
+package se.gothenburg.taxicarpooling.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.gothenburg.taxicarpooling.dto.DriverLocationDto;
+import se.gothenburg.taxicarpooling.matching.NearbyDriver;
+import se.gothenburg.taxicarpooling.service.DriverLocationService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/drivers")
+@CrossOrigin(origins = "*")
+public class DriverController {
+    
+    @Autowired
+    private DriverLocationService driverLocationService;
+    
+    @PostMapping("/{driverId}/location")
+    public ResponseEntity<?> updateLocation(
+            @PathVariable Long driverId,
+            @RequestBody DriverLocationDto location) {
+        try {
+            location.setDriverId(driverId);
+            if (!driverLocationService.recordLocation(location)) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Unknown driver " + driverId);
+            }
+            return ResponseEntity.accepted().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Unknown status: " + location.getStatus());
+        }
+    }
+    
+    @PostMapping("/locations")
+    public ResponseEntity<?> updateLocations(@RequestBody List<DriverLocationDto> locations) {
+        try {
+            int accepted = driverLocationService.recordLocations(locations);
+            Map<String, Object> body = new HashMap<>();
+            body.put("accepted", accepted);
+            body.put("rejected", locations.size() - accepted);
+            return ResponseEntity.accepted().body(body);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    @GetMapping("/nearest")
+    public ResponseEntity<List<NearbyDriver>> getNearestDrivers(
+            @RequestParam double latitude,
+            @RequestParam double longitude,
+            @RequestParam(defaultValue = "5") int k,
+            @RequestParam(defaultValue = "1") int seats,
+            @RequestParam(defaultValue = "false") boolean wheelchair) {
+        try {
+            return ResponseEntity.ok(driverLocationService.findNearestDrivers(latitude, longitude, k, seats, wheelchair));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(null);
+        }
+    }
+    
+    @GetMapping("/nearest/shared-trip/{sharedTripId}")
+    public ResponseEntity<?> getNearestDriversForSharedTrip(
+            @PathVariable Long sharedTripId,
+            @RequestParam(defaultValue = "5") int k) {
+        try {
+            return ResponseEntity.ok(driverLocationService.findNearestDriversForSharedTrip(sharedTripId, k));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    @PostMapping("/refresh")
+    public ResponseEntity<String> refreshDrivers() {
+        driverLocationService.refreshDrivers();
+        return ResponseEntity.ok("Driver capabilities reloaded");
+    }
+    
+    @GetMapping("/locations/stats")
+    public ResponseEntity<Map<String, Object>> getLocationStats() {
+        return ResponseEntity.ok(driverLocationService.getStats());
+    }
+}
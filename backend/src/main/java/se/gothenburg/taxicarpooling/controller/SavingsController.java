@@ -0,0 +1,53 @@
+package se.gothenburg.taxicarpooling.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.gothenburg.taxicarpooling.dto.SavingsReport;
+import se.gothenburg.taxicarpooling.service.CostSavingsService;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Municipal cost savings by booking day. Reports read only the daily aggregates, so any date range
+ * costs the same regardless of how much trip history there is.
+ */
+@RestController
+@RequestMapping("/api/savings")
+@CrossOrigin(origins = "*")
+public class SavingsController {
+    
+    @Autowired
+    private CostSavingsService costSavingsService;
+    
+    @GetMapping
+    public ResponseEntity<?> getSavings(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        LocalDate end = to != null ? to : LocalDate.now();
+        LocalDate start = from != null ? from : end.minusDays(29);
+        if (end.isBefore(start)) {
+            return ResponseEntity.badRequest().body("from must not be after to");
+        }
+        SavingsReport report = costSavingsService.getReport(start, end);
+        return ResponseEntity.ok(report);
+    }
+    
+    @PostMapping("/rebuild")
+    public ResponseEntity<?> rebuild(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (!costSavingsService.rebuild(from, to != null ? to : LocalDate.now())) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("A rebuild is already running or the range is empty");
+        }
+        return ResponseEntity.accepted().body(costSavingsService.getStats());
+    }
+    
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStats() {
+        return ResponseEntity.ok(costSavingsService.getStats());
+    }
+}
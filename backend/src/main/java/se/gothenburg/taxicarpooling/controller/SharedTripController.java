@@ -0,0 +1,68 @@
+package se.gothenburg.taxicarpooling.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.service.DispatchService;
+import se.gothenburg.taxicarpooling.service.SharedTripService;
+import se.gothenburg.taxicarpooling.service.TripConflictException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/shared-trips")
+@CrossOrigin(origins = "*")
+public class SharedTripController {
+    
+    @Autowired
+    private SharedTripService sharedTripService;
+    
+    @Autowired
+    private DispatchService dispatchService;
+    
+    @PutMapping("/{sharedTripId}/status")
+    public ResponseEntity<?> updateStatus(
+            @PathVariable Long sharedTripId,
+            @RequestParam String status) {
+        try {
+            SharedTrip updatedTrip = sharedTripService.updateStatus(sharedTripId, status);
+            // Not the entity itself: its trip requests point back at it
+            Map<String, Object> body = new HashMap<>();
+            body.put("sharedTripId", updatedTrip.getId());
+            body.put("status", updatedTrip.getStatus());
+            body.put("passengerCount", updatedTrip.getPassengerCount());
+            return ResponseEntity.ok(body);
+        } catch (TripConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    /** Accepts a batch dispatch offer; only the driver the trip was offered to can take it. */
+    @PostMapping("/{sharedTripId}/accept")
+    public ResponseEntity<?> acceptOffer(
+            @PathVariable Long sharedTripId,
+            @RequestParam Long driverId) {
+        try {
+            SharedTrip assignedTrip = dispatchService.acceptOffer(sharedTripId, driverId);
+            Map<String, Object> body = new HashMap<>();
+            body.put("sharedTripId", assignedTrip.getId());
+            body.put("status", assignedTrip.getStatus());
+            body.put("driverId", driverId);
+            return ResponseEntity.ok(body);
+        } catch (TripConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    @GetMapping("/dispatch/stats")
+    public ResponseEntity<Map<String, Object>> getDispatchStats() {
+        return ResponseEntity.ok(dispatchService.getStats());
+    }
+}
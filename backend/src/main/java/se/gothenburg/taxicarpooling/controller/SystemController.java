@@ -0,0 +1,35 @@
+package se.gothenburg.taxicarpooling.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.gothenburg.taxicarpooling.config.VirtualThreadPinningMonitor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/system")
+@CrossOrigin(origins = "*")
+public class SystemController {
+    
+    @Autowired
+    private VirtualThreadPinningMonitor virtualThreadPinningMonitor;
+    
+    @GetMapping("/threads")
+    public ResponseEntity<Map<String, Object>> getThreadStats() {
+        return ResponseEntity.ok(virtualThreadPinningMonitor.getStats());
+    }
+    
+    @GetMapping("/memory")
+    public ResponseEntity<Map<String, Object>> getMemoryStats() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("heapUsedBytes", heap.getUsed());
+        stats.put("heapCommittedBytes", heap.getCommitted());
+        stats.put("heapMaxBytes", heap.getMax());
+        return ResponseEntity.ok(stats);
+    }
+}
@@ -1,26 +1,42 @@
 package se.gothenburg.taxicarpooling.controller;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.service.MatchmakingMetrics;
+import se.gothenburg.taxicarpooling.service.TripConflictException;
 import se.gothenburg.taxicarpooling.service.TripRequestService;
+import se.gothenburg.taxicarpooling.dto.TripCursor;
+import se.gothenburg.taxicarpooling.dto.TripPage;
 import se.gothenburg.taxicarpooling.dto.TripRequestDto;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/trips")
 @CrossOrigin(origins = "*")
 public class TripController {
     
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    
     @Autowired
     private TripRequestService tripRequestService;
     
+    @Autowired
+    private MatchmakingMetrics matchmakingMetrics;
+    
     @PostMapping("/book")
     public ResponseEntity<?> bookTrip(@RequestBody TripRequestDto tripRequestDto) {
+        long start = System.nanoTime();
         try {
             TripRequest savedTrip = tripRequestService.createTripRequest(tripRequestDto);
+            matchmakingMetrics.recordBooking(savedTrip, System.nanoTime() - start);
             return ResponseEntity.ok(savedTrip);
         } catch (Exception e) {
             System.err.println("Trip booking error: " + e.getMessage());
@@ -29,25 +45,63 @@ public class TripController {
         }
     }
     
+    /**
+     * Whole history by default. With {@code limit} or {@code before} it returns one page and puts the
+     * cursor for the next page in the {@value #NEXT_CURSOR_HEADER} header.
+     */
     @GetMapping("/user/{userId}")
-    public ResponseEntity<List<TripRequest>> getUserTrips(@PathVariable Long userId) {
-        List<TripRequest> trips = tripRequestService.getUserTrips(userId);
-        return ResponseEntity.ok(trips);
+    public ResponseEntity<?> getUserTrips(
+            @PathVariable Long userId,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String before) {
+        if (limit == null && before == null) {
+            return ResponseEntity.ok(tripRequestService.getUserTrips(userId));
+        }
+        try {
+            return page(tripRequestService.getUserTrips(userId, TripCursor.decode(before), limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
     
+    @GetMapping(value = "/user/{userId}/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamUserTrips(@PathVariable Long userId) {
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_NDJSON)
+            .body(out -> tripRequestService.streamUserTrips(userId, out));
+    }
+    
+    /** Whole queue by default, paged like {@link #getUserTrips} with {@code limit} or {@code after}. */
     @GetMapping("/pending")
-    public ResponseEntity<List<TripRequest>> getPendingTrips() {
-        List<TripRequest> trips = tripRequestService.getPendingTrips();
-        return ResponseEntity.ok(trips);
+    public ResponseEntity<?> getPendingTrips(
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String after) {
+        if (limit == null && after == null) {
+            return ResponseEntity.ok(tripRequestService.getPendingTrips());
+        }
+        try {
+            return page(tripRequestService.getPendingTrips(TripCursor.decode(after), limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    @GetMapping(value = "/pending/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamPendingTrips() {
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_NDJSON)
+            .body(tripRequestService::streamPendingTrips);
     }
     
     @PutMapping("/{tripId}/status")
-    public ResponseEntity<TripRequest> updateTripStatus(
+    public ResponseEntity<?> updateTripStatus(
             @PathVariable Long tripId,
             @RequestParam String status) {
         try {
             TripRequest updatedTrip = tripRequestService.updateTripStatus(tripId, status);
             return ResponseEntity.ok(updatedTrip);
+        } catch (TripConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(null);
         }
@@ -60,6 +114,8 @@ public class TripController {
         try {
             TripRequest assignedTrip = tripRequestService.assignMergedTripToDriver(tripId, driverId);
             return ResponseEntity.ok(assignedTrip);
+        } catch (TripConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -74,4 +130,42 @@ public class TripController {
             return ResponseEntity.badRequest().body("Matchmaking failed: " + e.getMessage());
         }
     }
+    
+    @GetMapping("/matchmaking/index")
+    public ResponseEntity<Map<String, Object>> getMatchmakingIndexStats() {
+        return ResponseEntity.ok(tripRequestService.getMatchmakingIndexStats());
+    }
+    
+    @GetMapping("/matchmaking/pipeline")
+    public ResponseEntity<Map<String, Object>> getMatchmakingPipelineStats() {
+        return ResponseEntity.ok(tripRequestService.getMatchmakingPipelineStats());
+    }
+    
+    @GetMapping("/matchmaking/grouping")
+    public ResponseEntity<Map<String, Object>> getMatchmakingGroupingStats() {
+        return ResponseEntity.ok(tripRequestService.getMatchmakingGroupingStats());
+    }
+    
+    @GetMapping("/matchmaking/shards")
+    public ResponseEntity<Map<String, Object>> getMatchmakingShardStats() {
+        return ResponseEntity.ok(tripRequestService.getMatchmakingShardStats());
+    }
+    
+    @GetMapping("/matchmaking/outbox")
+    public ResponseEntity<Map<String, Object>> getOutboxStats() {
+        return ResponseEntity.ok(tripRequestService.getOutboxStats());
+    }
+    
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        return ResponseEntity.ok(tripRequestService.getCacheStats());
+    }
+    
+    private ResponseEntity<List<TripSummary>> page(TripPage page) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.nextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+        }
+        return response.body(page.trips());
+    }
 }
\ No newline at end of file
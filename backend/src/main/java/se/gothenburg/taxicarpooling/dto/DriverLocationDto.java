@@ -0,0 +1,20 @@
+package se.gothenburg.taxicarpooling.dto;
+
+public class DriverLocationDto {
+    private Long driverId;
+    private double latitude;
+    private double longitude;
+    private String status;
+    
+    public Long getDriverId() { return driverId; }
+    public void setDriverId(Long driverId) { this.driverId = driverId; }
+    
+    public double getLatitude() { return latitude; }
+    public void setLatitude(double latitude) { this.latitude = latitude; }
+    
+    public double getLongitude() { return longitude; }
+    public void setLongitude(double longitude) { this.longitude = longitude; }
+    
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+}
@@ -0,0 +1,16 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * The columns that decide which matchmaking shard a pending trip falls in, so a node can pick out
+ * its own trips before loading any as entities.
+ */
+public record PendingTripKey(Long id, int pickupLatitudeE6, int pickupLongitudeE6, LocalDateTime requestedPickupTime) {
+    
+    /** Same minute as {@code TripRequest.getPickupEpochMinute()}. */
+    public int pickupEpochMinute() {
+        return (int) Math.floorDiv(requestedPickupTime.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+}
@@ -0,0 +1,22 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import se.gothenburg.taxicarpooling.entity.CostSavings;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/** Cost savings totals over the booking days {@code from} to {@code to} inclusive, with the days themselves. */
+public record SavingsReport(
+    LocalDate from,
+    LocalDate to,
+    long individualTrips,
+    long sharedTrips,
+    long passengersInSharedTrips,
+    BigDecimal individualCost,
+    BigDecimal sharedCost,
+    BigDecimal savings,
+    BigDecimal savingsPercentage,
+    List<CostSavings> days
+) {
+}
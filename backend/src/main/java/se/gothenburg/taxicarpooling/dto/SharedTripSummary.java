@@ -0,0 +1,17 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/** Read model of a shared trip for the change feed, without its member trips or driver entity. */
+public record SharedTripSummary(
+    Long id,
+    SharedTrip.TripStatus status,
+    int passengerCount,
+    BigDecimal estimatedCost,
+    Long assignedDriverId,
+    LocalDateTime createdAt
+) {
+}
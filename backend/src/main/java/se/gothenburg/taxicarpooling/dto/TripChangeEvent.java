@@ -0,0 +1,10 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import se.gothenburg.taxicarpooling.entity.TripChange;
+
+/**
+ * One entry of the change feed. {@code state} is the entity's current {@link TripSummary} or
+ * {@link SharedTripSummary}, or null when it no longer exists.
+ */
+public record TripChangeEvent(long seq, TripChange.EntityType type, long id, Object state) {
+}
@@ -0,0 +1,10 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import java.util.List;
+
+/**
+ * Changes after a client's cursor. {@code seq} is the cursor for the next request. With
+ * {@code reset} set the cursor is too old to continue from and the client reloads the snapshot.
+ */
+public record TripChanges(long seq, boolean reset, List<TripChangeEvent> changes) {
+}
@@ -0,0 +1,7 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import java.util.List;
+
+/** One page of a trip listing; {@code nextCursor} is null on the last page. */
+public record TripPage(List<TripSummary> trips, String nextCursor) {
+}
@@ -0,0 +1,7 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import java.util.List;
+
+/** Open trips and active shared trips as of feed position {@code seq}, to bootstrap a change feed client. */
+public record TripSnapshot(long seq, List<TripSummary> trips, List<SharedTripSummary> sharedTrips) {
+}
@@ -0,0 +1,54 @@
+package se.gothenburg.taxicarpooling.dto;
+
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Read model for trip listings. Selected column by column in one joined query, so listing trips
+ * never loads users, drivers or shared trips as entities, and the passenger is reduced to a name.
+ */
+public record TripSummary(
+    Long id,
+    Passenger user,
+    String pickupAddress,
+    String destinationAddress,
+    BigDecimal pickupLatitude,
+    BigDecimal pickupLongitude,
+    BigDecimal destinationLatitude,
+    BigDecimal destinationLongitude,
+    LocalDateTime requestedPickupTime,
+    TripRequest.TripStatus status,
+    TripRequest.Priority priority,
+    int passengerCount,
+    boolean needsWheelchairAccess,
+    boolean needsAssistance,
+    BigDecimal estimatedCost,
+    Long sharedTripId,
+    Long assignedDriverId,
+    LocalDateTime createdAt
+) {
+    
+    public record Passenger(Long id, String firstName, String lastName) {
+    }
+    
+    /**
+     * Flat form for JPQL constructor expressions, which cannot nest {@code new}. Coordinates arrive
+     * as the entity's micro-degrees.
+     */
+    public TripSummary(Long id, Long userId, String firstName, String lastName,
+                       String pickupAddress, String destinationAddress,
+                       Integer pickupLatitude, Integer pickupLongitude,
+                       Integer destinationLatitude, Integer destinationLongitude,
+                       LocalDateTime requestedPickupTime, TripRequest.TripStatus status, TripRequest.Priority priority,
+                       int passengerCount, boolean needsWheelchairAccess, boolean needsAssistance,
+                       BigDecimal estimatedCost, Long sharedTripId, Long assignedDriverId, LocalDateTime createdAt) {
+        this(id, new Passenger(userId, firstName, lastName), pickupAddress, destinationAddress,
+            MicroDegreesConverter.toDegrees(pickupLatitude), MicroDegreesConverter.toDegrees(pickupLongitude),
+            MicroDegreesConverter.toDegrees(destinationLatitude), MicroDegreesConverter.toDegrees(destinationLongitude),
+            requestedPickupTime, status, priority, passengerCount, needsWheelchairAccess, needsAssistance,
+            estimatedCost, sharedTripId, assignedDriverId, createdAt);
+    }
+}
@@ -0,0 +1,73 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Completed trips and what pooling saved, one row per day the trips were booked. Maintained
+ * incrementally as trips complete, and rebuilt from trip_requests by the savings backfill.
+ */
+@Entity
+@Table(name = "cost_savings")
+public class CostSavings {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(nullable = false, unique = true)
+    private LocalDate date;
+    
+    private int individualTripsCount;
+    
+    // Completed trip requests that rode in a shared trip, and the passengers they carried
+    private int sharedTripsCount;
+    private int passengersInSharedTrips;
+    
+    @Column(precision = 12, scale = 2)
+    private BigDecimal totalIndividualCost = BigDecimal.ZERO;
+    
+    @Column(precision = 12, scale = 2)
+    private BigDecimal totalSharedCost = BigDecimal.ZERO;
+    
+    // What the shared riders would have cost at the individual rate, minus what they did cost
+    @Column(precision = 12, scale = 2)
+    private BigDecimal totalSavings = BigDecimal.ZERO;
+    
+    @Column(precision = 5, scale = 2)
+    private BigDecimal savingsPercentage = BigDecimal.ZERO;
+    
+    @Column(updatable = false)
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public LocalDate getDate() { return date; }
+    public void setDate(LocalDate date) { this.date = date; }
+    
+    public int getIndividualTripsCount() { return individualTripsCount; }
+    public void setIndividualTripsCount(int individualTripsCount) { this.individualTripsCount = individualTripsCount; }
+    
+    public int getSharedTripsCount() { return sharedTripsCount; }
+    public void setSharedTripsCount(int sharedTripsCount) { this.sharedTripsCount = sharedTripsCount; }
+    
+    public int getPassengersInSharedTrips() { return passengersInSharedTrips; }
+    public void setPassengersInSharedTrips(int passengersInSharedTrips) { this.passengersInSharedTrips = passengersInSharedTrips; }
+    
+    public BigDecimal getTotalIndividualCost() { return totalIndividualCost; }
+    public void setTotalIndividualCost(BigDecimal totalIndividualCost) { this.totalIndividualCost = totalIndividualCost; }
+    
+    public BigDecimal getTotalSharedCost() { return totalSharedCost; }
+    public void setTotalSharedCost(BigDecimal totalSharedCost) { this.totalSharedCost = totalSharedCost; }
+    
+    public BigDecimal getTotalSavings() { return totalSavings; }
+    public void setTotalSavings(BigDecimal totalSavings) { this.totalSavings = totalSavings; }
+    
+    public BigDecimal getSavingsPercentage() { return savingsPercentage; }
+    public void setSavingsPercentage(BigDecimal savingsPercentage) { this.savingsPercentage = savingsPercentage; }
+    
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
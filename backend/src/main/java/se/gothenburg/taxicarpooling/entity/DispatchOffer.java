@@ -0,0 +1,37 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * An open batch dispatch offer of one shared trip to one driver. A shared trip has at most one open
+ * offer and a driver is offered at most one trip at a time; the keys enforce both, so backend nodes
+ * dispatching side by side cannot offer the same trip or driver twice. Any node can accept the offer
+ * until {@code expiresAt}, which is set and compared by the database clock.
+ */
+@Entity
+@Table(name = "dispatch_offers")
+public class DispatchOffer {
+    @Id
+    private Long sharedTripId;
+    
+    @Column(nullable = false, unique = true)
+    private Long driverId;
+    
+    private double pickupKm;
+    
+    @Column(nullable = false)
+    private LocalDateTime expiresAt;
+    
+    public Long getSharedTripId() { return sharedTripId; }
+    public void setSharedTripId(Long sharedTripId) { this.sharedTripId = sharedTripId; }
+    
+    public Long getDriverId() { return driverId; }
+    public void setDriverId(Long driverId) { this.driverId = driverId; }
+    
+    public double getPickupKm() { return pickupKm; }
+    public void setPickupKm(double pickupKm) { this.pickupKm = pickupKm; }
+    
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+}
@@ -0,0 +1,39 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+
+/**
+ * A driver who let the offer of a shared trip lapse. The trip is not offered to that driver again
+ * while it is pending.
+ */
+@Entity
+@Table(name = "dispatch_offer_lapses",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"shared_trip_id", "driver_id"}))
+public class DispatchOfferLapse {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(nullable = false)
+    private Long sharedTripId;
+    
+    @Column(nullable = false)
+    private Long driverId;
+    
+    public DispatchOfferLapse() {
+    }
+    
+    public DispatchOfferLapse(Long sharedTripId, Long driverId) {
+        this.sharedTripId = sharedTripId;
+        this.driverId = driverId;
+    }
+    
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public Long getSharedTripId() { return sharedTripId; }
+    public void setSharedTripId(Long sharedTripId) { this.sharedTripId = sharedTripId; }
+    
+    public Long getDriverId() { return driverId; }
+    public void setDriverId(Long driverId) { this.driverId = driverId; }
+}
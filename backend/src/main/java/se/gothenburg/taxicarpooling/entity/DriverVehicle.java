@@ -0,0 +1,66 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "driver_vehicles")
+public class DriverVehicle {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne
+    @JoinColumn(name = "driver_id", nullable = false)
+    private User driver;
+    
+    @Column(unique = true, nullable = false)
+    private String licensePlate;
+    
+    private String vehicleMake;
+    private String vehicleModel;
+    private Integer vehicleYear;
+    
+    private int maxPassengers = 4;
+    private boolean wheelchairAccessible;
+    
+    @Enumerated(EnumType.STRING)
+    private VehicleStatus status = VehicleStatus.ACTIVE;
+    
+    @Column(updatable = false)
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    public enum VehicleStatus {
+        ACTIVE, MAINTENANCE, INACTIVE
+    }
+    
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public User getDriver() { return driver; }
+    public void setDriver(User driver) { this.driver = driver; }
+    
+    public String getLicensePlate() { return licensePlate; }
+    public void setLicensePlate(String licensePlate) { this.licensePlate = licensePlate; }
+    
+    public String getVehicleMake() { return vehicleMake; }
+    public void setVehicleMake(String vehicleMake) { this.vehicleMake = vehicleMake; }
+    
+    public String getVehicleModel() { return vehicleModel; }
+    public void setVehicleModel(String vehicleModel) { this.vehicleModel = vehicleModel; }
+    
+    public Integer getVehicleYear() { return vehicleYear; }
+    public void setVehicleYear(Integer vehicleYear) { this.vehicleYear = vehicleYear; }
+    
+    public int getMaxPassengers() { return maxPassengers; }
+    public void setMaxPassengers(int maxPassengers) { this.maxPassengers = maxPassengers; }
+    
+    public boolean isWheelchairAccessible() { return wheelchairAccessible; }
+    public void setWheelchairAccessible(boolean wheelchairAccessible) { this.wheelchairAccessible = wheelchairAccessible; }
+    
+    public VehicleStatus getStatus() { return status; }
+    public void setStatus(VehicleStatus status) { this.status = status; }
+    
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
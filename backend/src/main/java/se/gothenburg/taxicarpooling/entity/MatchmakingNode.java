@@ -0,0 +1,38 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * A backend instance taking part in sharded matchmaking. Nodes with a recent heartbeat count as
+ * live, and the shards are shared out evenly between them.
+ */
+@Entity
+@Table(name = "matchmaking_nodes")
+public class MatchmakingNode {
+    @Id
+    private String nodeId;
+    
+    @Column(nullable = false)
+    private LocalDateTime heartbeatAt;
+    
+    @Column(updatable = false)
+    private LocalDateTime startedAt = LocalDateTime.now();
+    
+    public MatchmakingNode() {
+    }
+    
+    public MatchmakingNode(String nodeId, LocalDateTime heartbeatAt) {
+        this.nodeId = nodeId;
+        this.heartbeatAt = heartbeatAt;
+    }
+    
+    public String getNodeId() { return nodeId; }
+    public void setNodeId(String nodeId) { this.nodeId = nodeId; }
+    
+    public LocalDateTime getHeartbeatAt() { return heartbeatAt; }
+    public void setHeartbeatAt(LocalDateTime heartbeatAt) { this.heartbeatAt = heartbeatAt; }
+    
+    public LocalDateTime getStartedAt() { return startedAt; }
+    public void setStartedAt(LocalDateTime startedAt) { this.startedAt = startedAt; }
+}
@@ -0,0 +1,41 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Stores a coordinate held in memory as an {@code int} of micro-degrees (degrees x 10^6, about 0.1 m)
+ * in a DECIMAL(9,6) column. A null column maps to {@link #UNKNOWN}, so entities can use a primitive.
+ */
+@Converter
+public class MicroDegreesConverter implements AttributeConverter<Integer, BigDecimal> {
+    
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+    public static final double PER_DEGREE = 1_000_000.0;
+    
+    @Override
+    public BigDecimal convertToDatabaseColumn(Integer microDegrees) {
+        return toDegrees(microDegrees == null ? UNKNOWN : microDegrees);
+    }
+    
+    @Override
+    public Integer convertToEntityAttribute(BigDecimal degrees) {
+        return toMicroDegrees(degrees);
+    }
+    
+    public static int toMicroDegrees(BigDecimal degrees) {
+        return degrees == null ? UNKNOWN : degrees.movePointRight(6).setScale(0, RoundingMode.HALF_UP).intValueExact();
+    }
+    
+    public static BigDecimal toDegrees(int microDegrees) {
+        return microDegrees == UNKNOWN ? null : BigDecimal.valueOf(microDegrees, 6);
+    }
+    
+    /** Same double as {@code toDegrees(microDegrees).doubleValue()}, without the BigDecimal. */
+    public static double toDouble(int microDegrees) {
+        return microDegrees / PER_DEGREE;
+    }
+}
@@ -0,0 +1,82 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Event for the realtime service, written in the same transaction as the change it describes and
+ * delivered later by the outbox publisher.
+ */
+@Entity
+@Table(name = "notification_outbox")
+public class NotificationOutbox {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "notification_outbox_seq")
+    @SequenceGenerator(name = "notification_outbox_seq", sequenceName = "notification_outbox_seq", allocationSize = 50)
+    private Long id;
+    
+    @Column(nullable = false)
+    private String eventType;
+    
+    // Events with the same type and aggregate coalesce, only the newest is delivered
+    @Column(nullable = false)
+    private Long aggregateId;
+    
+    @Column(nullable = false, columnDefinition = "TEXT")
+    private String payload;
+    
+    @Enumerated(EnumType.STRING)
+    private OutboxStatus status = OutboxStatus.PENDING;
+    
+    private int attempts = 0;
+    
+    private LocalDateTime nextAttemptAt = LocalDateTime.now();
+    
+    private String lastError;
+    
+    // Set while one drain is sending the event, see OutboxPublisher
+    @Column(length = 36)
+    private String claimToken;
+    
+    @Column(updatable = false)
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    private LocalDateTime publishedAt;
+    
+    public enum OutboxStatus {
+        PENDING, CLAIMED, PUBLISHED, FAILED
+    }
+    
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public String getEventType() { return eventType; }
+    public void setEventType(String eventType) { this.eventType = eventType; }
+    
+    public Long getAggregateId() { return aggregateId; }
+    public void setAggregateId(Long aggregateId) { this.aggregateId = aggregateId; }
+    
+    public String getPayload() { return payload; }
+    public void setPayload(String payload) { this.payload = payload; }
+    
+    public OutboxStatus getStatus() { return status; }
+    public void setStatus(OutboxStatus status) { this.status = status; }
+    
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+    
+    public LocalDateTime getNextAttemptAt() { return nextAttemptAt; }
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) { this.nextAttemptAt = nextAttemptAt; }
+    
+    public String getLastError() { return lastError; }
+    public void setLastError(String lastError) { this.lastError = lastError; }
+    
+    public String getClaimToken() { return claimToken; }
+    public void setClaimToken(String claimToken) { this.claimToken = claimToken; }
+    
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+    
+    public LocalDateTime getPublishedAt() { return publishedAt; }
+    public void setPublishedAt(LocalDateTime publishedAt) { this.publishedAt = publishedAt; }
+}
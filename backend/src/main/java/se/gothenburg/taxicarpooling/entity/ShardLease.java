@@ -0,0 +1,43 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Ownership of one matchmaking shard. A node owns the shard while {@code leaseUntil} is in the
+ * future and keeps it by renewing; a lease that runs out or is released can be taken by any node.
+ * All changes are conditional updates, so two nodes never both win the same shard.
+ */
+@Entity
+@Table(name = "matchmaking_shard_leases")
+public class ShardLease {
+    @Id
+    private Integer shardId;
+    
+    private String owner;
+    
+    @Column(nullable = false)
+    private LocalDateTime leaseUntil;
+    
+    private LocalDateTime acquiredAt;
+    
+    public ShardLease() {
+    }
+    
+    public ShardLease(Integer shardId, LocalDateTime leaseUntil) {
+        this.shardId = shardId;
+        this.leaseUntil = leaseUntil;
+    }
+    
+    public Integer getShardId() { return shardId; }
+    public void setShardId(Integer shardId) { this.shardId = shardId; }
+    
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+    
+    public LocalDateTime getLeaseUntil() { return leaseUntil; }
+    public void setLeaseUntil(LocalDateTime leaseUntil) { this.leaseUntil = leaseUntil; }
+    
+    public LocalDateTime getAcquiredAt() { return acquiredAt; }
+    public void setAcquiredAt(LocalDateTime acquiredAt) { this.acquiredAt = acquiredAt; }
+}
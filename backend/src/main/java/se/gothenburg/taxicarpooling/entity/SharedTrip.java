@@ -1,21 +1,29 @@
 package se.gothenburg.taxicarpooling.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
 import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Entity
 @Table(name = "shared_trips")
+@JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class SharedTrip {
+    // Pooled ids let Hibernate batch the inserts of a matchmaking pass
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "shared_trips_seq")
+    @SequenceGenerator(name = "shared_trips_seq", sequenceName = "shared_trips_seq", allocationSize = 50)
     private Long id;
     
     @Enumerated(EnumType.STRING)
     private TripStatus status = TripStatus.PENDING;
     
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "assigned_driver_id")
     private User assignedDriver;
     
@@ -32,13 +40,42 @@ public class SharedTrip {
     @Column(updatable = false)
     private LocalDateTime createdAt = LocalDateTime.now();
     
+    @Version
+    private long version;
+    
     private LocalDateTime completedAt;
     
     @OneToMany(mappedBy = "sharedTrip")
     private List<TripRequest> tripRequests;
     
     public enum TripStatus {
-        PENDING, ASSIGNED, IN_PROGRESS, COMPLETED, CANCELLED
+        PENDING, ASSIGNED, IN_PROGRESS, COMPLETED, CANCELLED;
+        
+        private static final Map<TripStatus, Set<TripStatus>> TRANSITIONS = new EnumMap<>(TripStatus.class);
+        
+        // ASSIGNED is only reached through an accepted dispatch offer, which also sets the driver
+        static {
+            TRANSITIONS.put(PENDING, EnumSet.of(CANCELLED));
+            TRANSITIONS.put(ASSIGNED, EnumSet.of(IN_PROGRESS, CANCELLED));
+            TRANSITIONS.put(IN_PROGRESS, EnumSet.of(COMPLETED));
+            TRANSITIONS.put(COMPLETED, EnumSet.noneOf(TripStatus.class));
+            TRANSITIONS.put(CANCELLED, EnumSet.noneOf(TripStatus.class));
+        }
+        
+        public boolean canTransitionTo(TripStatus next) {
+            return TRANSITIONS.get(this).contains(next);
+        }
+        
+        /** Statuses from which a trip may move to {@code next}, for conditional updates. */
+        public static Set<TripStatus> sourcesOf(TripStatus next) {
+            Set<TripStatus> sources = EnumSet.noneOf(TripStatus.class);
+            for (Map.Entry<TripStatus, Set<TripStatus>> transition : TRANSITIONS.entrySet()) {
+                if (transition.getValue().contains(next)) {
+                    sources.add(transition.getKey());
+                }
+            }
+            return sources;
+        }
     }
 
     public Long getId() { return id; }
@@ -74,6 +111,9 @@ public class SharedTrip {
     public LocalDateTime getCreatedAt() { return createdAt; }
     public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
     
+    public long getVersion() { return version; }
+    public void setVersion(long version) { this.version = version; }
+    
     public LocalDateTime getCompletedAt() { return completedAt; }
     public void setCompletedAt(LocalDateTime completedAt) { this.completedAt = completedAt; }
     
@@ -0,0 +1,58 @@
+package se.gothenburg.taxicarpooling.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Marks that a trip request or shared trip changed state, written in the same transaction as the
+ * change. The change feed gives it a sequence number after commit, so sequence order is the order
+ * in which changes became visible.
+ */
+@Entity
+@Table(name = "trip_changes")
+public class TripChange {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "trip_changes_seq")
+    @SequenceGenerator(name = "trip_changes_seq", sequenceName = "trip_changes_seq", allocationSize = 50)
+    private Long id;
+    
+    @Column(unique = true)
+    private Long seq;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private EntityType entityType;
+    
+    @Column(nullable = false)
+    private Long entityId;
+    
+    @Column(updatable = false)
+    private LocalDateTime changedAt = LocalDateTime.now();
+    
+    public enum EntityType {
+        TRIP_REQUEST, SHARED_TRIP
+    }
+    
+    public TripChange() {
+    }
+    
+    public TripChange(EntityType entityType, Long entityId) {
+        this.entityType = entityType;
+        this.entityId = entityId;
+    }
+    
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public Long getSeq() { return seq; }
+    public void setSeq(Long seq) { this.seq = seq; }
+    
+    public EntityType getEntityType() { return entityType; }
+    public void setEntityType(EntityType entityType) { this.entityType = entityType; }
+    
+    public Long getEntityId() { return entityId; }
+    public void setEntityId(Long entityId) { this.entityId = entityId; }
+    
+    public LocalDateTime getChangedAt() { return changedAt; }
+    public void setChangedAt(LocalDateTime changedAt) { this.changedAt = changedAt; }
+}
@@ -1,8 +1,15 @@
 package se.gothenburg.taxicarpooling.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 
 @Entity
 @Table(name = "trip_requests")
@@ -11,7 +18,7 @@ public class TripRequest {
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
     
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", nullable = false)
     private User user;
     
@@ -21,10 +28,22 @@ public class TripRequest {
     @Column(nullable = false)
     private String destinationAddress;
     
-    private BigDecimal pickupLatitude;
-    private BigDecimal pickupLongitude;
-    private BigDecimal destinationLatitude;
-    private BigDecimal destinationLongitude;
+    // Micro-degrees rather than four BigDecimals per trip; the JSON getters still return degrees
+    @Convert(converter = MicroDegreesConverter.class)
+    @Column(precision = 9, scale = 6)
+    private int pickupLatitude = MicroDegreesConverter.UNKNOWN;
+    
+    @Convert(converter = MicroDegreesConverter.class)
+    @Column(precision = 9, scale = 6)
+    private int pickupLongitude = MicroDegreesConverter.UNKNOWN;
+    
+    @Convert(converter = MicroDegreesConverter.class)
+    @Column(precision = 9, scale = 6)
+    private int destinationLatitude = MicroDegreesConverter.UNKNOWN;
+    
+    @Convert(converter = MicroDegreesConverter.class)
+    @Column(precision = 9, scale = 6)
+    private int destinationLongitude = MicroDegreesConverter.UNKNOWN;
     
     @Column(nullable = false)
     private LocalDateTime requestedPickupTime;
@@ -44,14 +63,16 @@ public class TripRequest {
     
     private String specialRequirements;
     
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "assigned_driver_id")
     private User assignedDriver;
     
     private LocalDateTime assignedAt;
     
-    @ManyToOne
+    // The shared trip's own trip list would point back here when serialized
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "shared_trip_id")
+    @JsonIgnoreProperties("tripRequests")
     private SharedTrip sharedTrip;
     
     private BigDecimal estimatedCost;
@@ -60,8 +81,41 @@ public class TripRequest {
     @Column(updatable = false)
     private LocalDateTime createdAt = LocalDateTime.now();
     
+    @Version
+    private long version;
+    
     public enum TripStatus {
-        PENDING, MATCHED, ASSIGNED, PICKUP_CONFIRMED, IN_TRANSIT, COMPLETED, CANCELLED
+        PENDING, MATCHED, ASSIGNED, PICKUP_CONFIRMED, IN_TRANSIT, COMPLETED, CANCELLED;
+        
+        private static final Map<TripStatus, Set<TripStatus>> TRANSITIONS = new EnumMap<>(TripStatus.class);
+        
+        // ASSIGNED is only reached through a driver accept, which also sets the driver and the 800 SEK
+        // rate. Nothing here leads back to PENDING, since a matched or assigned trip keeps its shared trip,
+        // cost and driver; only cancelling the shared trip releases its members, with those cleared.
+        static {
+            TRANSITIONS.put(PENDING, EnumSet.of(MATCHED, CANCELLED));
+            TRANSITIONS.put(MATCHED, EnumSet.of(PICKUP_CONFIRMED, CANCELLED));
+            TRANSITIONS.put(ASSIGNED, EnumSet.of(PICKUP_CONFIRMED, CANCELLED));
+            TRANSITIONS.put(PICKUP_CONFIRMED, EnumSet.of(IN_TRANSIT, CANCELLED));
+            TRANSITIONS.put(IN_TRANSIT, EnumSet.of(COMPLETED));
+            TRANSITIONS.put(COMPLETED, EnumSet.noneOf(TripStatus.class));
+            TRANSITIONS.put(CANCELLED, EnumSet.noneOf(TripStatus.class));
+        }
+        
+        public boolean canTransitionTo(TripStatus next) {
+            return TRANSITIONS.get(this).contains(next);
+        }
+        
+        /** Statuses from which a trip may move to {@code next}, for conditional updates. */
+        public static Set<TripStatus> sourcesOf(TripStatus next) {
+            Set<TripStatus> sources = EnumSet.noneOf(TripStatus.class);
+            for (Map.Entry<TripStatus, Set<TripStatus>> transition : TRANSITIONS.entrySet()) {
+                if (transition.getValue().contains(next)) {
+                    sources.add(transition.getKey());
+                }
+            }
+            return sources;
+        }
     }
     
     public enum Priority {
@@ -80,21 +134,38 @@ public class TripRequest {
     public String getDestinationAddress() { return destinationAddress; }
     public void setDestinationAddress(String destinationAddress) { this.destinationAddress = destinationAddress; }
     
-    public BigDecimal getPickupLatitude() { return pickupLatitude; }
-    public void setPickupLatitude(BigDecimal pickupLatitude) { this.pickupLatitude = pickupLatitude; }
+    public BigDecimal getPickupLatitude() { return MicroDegreesConverter.toDegrees(pickupLatitude); }
+    public void setPickupLatitude(BigDecimal pickupLatitude) { this.pickupLatitude = MicroDegreesConverter.toMicroDegrees(pickupLatitude); }
+    
+    public BigDecimal getPickupLongitude() { return MicroDegreesConverter.toDegrees(pickupLongitude); }
+    public void setPickupLongitude(BigDecimal pickupLongitude) { this.pickupLongitude = MicroDegreesConverter.toMicroDegrees(pickupLongitude); }
     
-    public BigDecimal getPickupLongitude() { return pickupLongitude; }
-    public void setPickupLongitude(BigDecimal pickupLongitude) { this.pickupLongitude = pickupLongitude; }
+    public BigDecimal getDestinationLatitude() { return MicroDegreesConverter.toDegrees(destinationLatitude); }
+    public void setDestinationLatitude(BigDecimal destinationLatitude) { this.destinationLatitude = MicroDegreesConverter.toMicroDegrees(destinationLatitude); }
     
-    public BigDecimal getDestinationLatitude() { return destinationLatitude; }
-    public void setDestinationLatitude(BigDecimal destinationLatitude) { this.destinationLatitude = destinationLatitude; }
+    public BigDecimal getDestinationLongitude() { return MicroDegreesConverter.toDegrees(destinationLongitude); }
+    public void setDestinationLongitude(BigDecimal destinationLongitude) { this.destinationLongitude = MicroDegreesConverter.toMicroDegrees(destinationLongitude); }
     
-    public BigDecimal getDestinationLongitude() { return destinationLongitude; }
-    public void setDestinationLongitude(BigDecimal destinationLongitude) { this.destinationLongitude = destinationLongitude; }
+    @JsonIgnore public int getPickupLatitudeE6() { return pickupLatitude; }
+    @JsonIgnore public int getPickupLongitudeE6() { return pickupLongitude; }
+    @JsonIgnore public int getDestinationLatitudeE6() { return destinationLatitude; }
+    @JsonIgnore public int getDestinationLongitudeE6() { return destinationLongitude; }
+    
+    @JsonIgnore
+    public boolean hasCoordinates() {
+        return pickupLatitude != MicroDegreesConverter.UNKNOWN && pickupLongitude != MicroDegreesConverter.UNKNOWN
+            && destinationLatitude != MicroDegreesConverter.UNKNOWN && destinationLongitude != MicroDegreesConverter.UNKNOWN;
+    }
     
     public LocalDateTime getRequestedPickupTime() { return requestedPickupTime; }
     public void setRequestedPickupTime(LocalDateTime requestedPickupTime) { this.requestedPickupTime = requestedPickupTime; }
     
+    /** Pickup time as whole minutes since the epoch, the resolution matching works at. */
+    @JsonIgnore
+    public int getPickupEpochMinute() {
+        return (int) Math.floorDiv(requestedPickupTime.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+    
     public LocalDateTime getActualPickupTime() { return actualPickupTime; }
     public void setActualPickupTime(LocalDateTime actualPickupTime) { this.actualPickupTime = actualPickupTime; }
     
@@ -134,6 +205,9 @@ public class TripRequest {
     public LocalDateTime getCreatedAt() { return createdAt; }
     public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
     
+    public long getVersion() { return version; }
+    public void setVersion(long version) { this.version = version; }
+    
     public LocalDateTime getAssignedAt() { return assignedAt; }
     public void setAssignedAt(LocalDateTime assignedAt) { this.assignedAt = assignedAt; }
 }
\ No newline at end of file
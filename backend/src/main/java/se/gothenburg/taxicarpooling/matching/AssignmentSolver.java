@@ -0,0 +1,134 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.Arrays;
+
+/**
+ * Minimum-cost assignment of rows to columns by the Hungarian method in its shortest augmenting
+ * path form: each row is added in turn and a Dijkstra-like scan over the columns, with dual
+ * potentials keeping reduced costs non-negative, finds the cheapest way to make room for it.
+ * Runs in O(n^2 m) for n rows and m columns, n no greater than m; wider problems are transposed.
+ * <p>
+ * Pairs that must not be matched carry {@link #INFEASIBLE}. It is large enough that the solver
+ * first matches as many feasible pairs as it can and only then minimises their cost, and rows left
+ * with an infeasible pair come back unassigned. Working arrays grow as needed and are reused; an
+ * instance is not thread-safe.
+ */
+public class AssignmentSolver {
+    
+    public static final long INFEASIBLE = 1L << 40;
+    public static final int UNASSIGNED = -1;
+    
+    private long[] rowPotential = new long[0];
+    private long[] columnPotential = new long[0];
+    private long[] minReduced = new long[0];
+    private int[] columnOwner = new int[0];
+    private int[] previousColumn = new int[0];
+    private boolean[] visited = new boolean[0];
+    private long[] transposed = new long[0];
+    
+    /**
+     * Solves the problem with {@code cost[row * cols + col]} and returns the column assigned to each
+     * row, or {@link #UNASSIGNED}.
+     */
+    public int[] solve(long[] cost, int rows, int cols) {
+        int[] assignment = new int[rows];
+        Arrays.fill(assignment, UNASSIGNED);
+        if (rows == 0 || cols == 0) {
+            return assignment;
+        }
+        if (rows <= cols) {
+            int[] owners = solveTall(cost, rows, cols);
+            for (int col = 0; col < cols; col++) {
+                int row = owners[col + 1] - 1;
+                if (row >= 0 && cost[row * cols + col] < INFEASIBLE) {
+                    assignment[row] = col;
+                }
+            }
+            return assignment;
+        }
+        
+        if (transposed.length < cost.length) {
+            transposed = new long[cost.length];
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                transposed[col * rows + row] = cost[row * cols + col];
+            }
+        }
+        int[] owners = solveTall(transposed, cols, rows);
+        for (int row = 0; row < rows; row++) {
+            int col = owners[row + 1] - 1;
+            if (col >= 0 && cost[row * cols + col] < INFEASIBLE) {
+                assignment[row] = col;
+            }
+        }
+        return assignment;
+    }
+    
+    /** Assigns every one of n rows to a distinct column of m, returning the 1-based row owning each 1-based column. */
+    private int[] solveTall(long[] cost, int n, int m) {
+        ensureCapacity(n, m);
+        Arrays.fill(rowPotential, 0, n + 1, 0);
+        Arrays.fill(columnPotential, 0, m + 1, 0);
+        Arrays.fill(columnOwner, 0, m + 1, 0);
+        
+        for (int row = 1; row <= n; row++) {
+            // Column 0 is a virtual column holding the row being added
+            columnOwner[0] = row;
+            int col0 = 0;
+            Arrays.fill(minReduced, 0, m + 1, Long.MAX_VALUE);
+            Arrays.fill(visited, 0, m + 1, false);
+            do {
+                visited[col0] = true;
+                int owner = columnOwner[col0];
+                int base = (owner - 1) * m;
+                long delta = Long.MAX_VALUE;
+                int col1 = 0;
+                long ownerPotential = rowPotential[owner];
+                for (int col = 1; col <= m; col++) {
+                    if (visited[col]) {
+                        continue;
+                    }
+                    long reduced = cost[base + col - 1] - ownerPotential - columnPotential[col];
+                    if (reduced < minReduced[col]) {
+                        minReduced[col] = reduced;
+                        previousColumn[col] = col0;
+                    }
+                    if (minReduced[col] < delta) {
+                        delta = minReduced[col];
+                        col1 = col;
+                    }
+                }
+                for (int col = 0; col <= m; col++) {
+                    if (visited[col]) {
+                        rowPotential[columnOwner[col]] += delta;
+                        columnPotential[col] -= delta;
+                    } else {
+                        minReduced[col] -= delta;
+                    }
+                }
+                col0 = col1;
+            } while (columnOwner[col0] != 0);
+            
+            do {
+                int col1 = previousColumn[col0];
+                columnOwner[col0] = columnOwner[col1];
+                col0 = col1;
+            } while (col0 != 0);
+        }
+        return columnOwner;
+    }
+    
+    private void ensureCapacity(int n, int m) {
+        if (rowPotential.length < n + 1) {
+            rowPotential = new long[n + 1];
+        }
+        if (columnPotential.length < m + 1) {
+            columnPotential = new long[m + 1];
+            minReduced = new long[m + 1];
+            columnOwner = new int[m + 1];
+            previousColumn = new int[m + 1];
+            visited = new boolean[m + 1];
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Undirected compatibility graph over pending trip ids. Edges are added when a trip is booked and
+ * dropped together with the trip once it leaves the pending set.
+ */
+public class CompatibilityGraph {
+    
+    private final Map<Long, Set<Long>> adjacency = new ConcurrentHashMap<>();
+    
+    private final LongAdder pairEvaluations = new LongAdder();
+    private final LongAdder edgesAdded = new LongAdder();
+    private final LongAdder edgesRemoved = new LongAdder();
+    
+    public void addTrip(Long tripId) {
+        adjacency.computeIfAbsent(tripId, id -> ConcurrentHashMap.newKeySet());
+    }
+    
+    public void addEdge(Long tripId, Long otherTripId) {
+        if (tripId.equals(otherTripId)) {
+            return;
+        }
+        // Both trips must still be pending; a concurrent removal must not bring a node back
+        Set<Long> neighbours = adjacency.get(tripId);
+        Set<Long> otherNeighbours = adjacency.get(otherTripId);
+        if (neighbours == null || otherNeighbours == null) {
+            return;
+        }
+        neighbours.add(otherTripId);
+        if (otherNeighbours.add(tripId)) {
+            edgesAdded.increment();
+        }
+    }
+    
+    public void removeTrip(Long tripId) {
+        Set<Long> neighbours = adjacency.remove(tripId);
+        if (neighbours == null) {
+            return;
+        }
+        for (Long neighbour : neighbours) {
+            Set<Long> reverse = adjacency.get(neighbour);
+            if (reverse != null && reverse.remove(tripId)) {
+                edgesRemoved.increment();
+            }
+        }
+    }
+    
+    public void clear() {
+        adjacency.clear();
+    }
+    
+    public boolean contains(Long tripId) {
+        return adjacency.containsKey(tripId);
+    }
+    
+    public boolean areCompatible(Long tripId, Long otherTripId) {
+        Set<Long> neighbours = adjacency.get(tripId);
+        return neighbours != null && neighbours.contains(otherTripId);
+    }
+    
+    public Set<Long> neighbours(Long tripId) {
+        Set<Long> neighbours = adjacency.get(tripId);
+        return neighbours == null ? Collections.emptySet() : Collections.unmodifiableSet(neighbours);
+    }
+    
+    public void recordPairEvaluations(int count) {
+        pairEvaluations.add(count);
+    }
+    
+    public int size() {
+        return adjacency.size();
+    }
+    
+    public long edgeCount() {
+        long degrees = 0;
+        for (Set<Long> neighbours : adjacency.values()) {
+            degrees += neighbours.size();
+        }
+        return degrees / 2;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodes", size());
+        stats.put("edges", edgeCount());
+        stats.put("pairEvaluations", pairEvaluations.sum());
+        stats.put("edgesAdded", edgesAdded.sum());
+        stats.put("edgesRemoved", edgesRemoved.sum());
+        return stats;
+    }
+}
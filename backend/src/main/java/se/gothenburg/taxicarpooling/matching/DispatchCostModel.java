@@ -0,0 +1,61 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.List;
+
+/**
+ * Cost of offering a shared trip to a driver, in metres: the straight-line empty drive to the
+ * first pickup, plus penalties for a wheelchair accessible vehicle spent on a trip that does not
+ * need one and for every seat left empty. Drivers without the seats or the wheelchair access a
+ * trip needs, or further away than the pickup limit, are {@link AssignmentSolver#INFEASIBLE}.
+ */
+public class DispatchCostModel {
+    
+    /** What dispatch needs to know about one unassigned shared trip. */
+    public record Order(long sharedTripId, double pickupLatitude, double pickupLongitude,
+                        int seatsNeeded, boolean needsWheelchair) {
+    }
+    
+    private final double maxPickupKm;
+    private final long wheelchairPenaltyMeters;
+    private final long emptySeatPenaltyMeters;
+    
+    public DispatchCostModel(double maxPickupKm, double wheelchairPenaltyKm, double emptySeatPenaltyKm) {
+        this.maxPickupKm = maxPickupKm;
+        this.wheelchairPenaltyMeters = Math.round(wheelchairPenaltyKm * 1000);
+        this.emptySeatPenaltyMeters = Math.round(emptySeatPenaltyKm * 1000);
+    }
+    
+    public long cost(Order order, NearbyDriver driver) {
+        if (driver.getMaxPassengers() < order.seatsNeeded()
+                || (order.needsWheelchair() && !driver.isWheelchairAccessible())) {
+            return AssignmentSolver.INFEASIBLE;
+        }
+        double km = pickupKm(order, driver);
+        if (km > maxPickupKm) {
+            return AssignmentSolver.INFEASIBLE;
+        }
+        long cost = Math.round(km * 1000);
+        if (driver.isWheelchairAccessible() && !order.needsWheelchair()) {
+            cost += wheelchairPenaltyMeters;
+        }
+        return cost + (driver.getMaxPassengers() - order.seatsNeeded()) * emptySeatPenaltyMeters;
+    }
+    
+    /** Cost matrix with one row per order and one column per driver. */
+    public long[] costs(List<Order> orders, List<NearbyDriver> drivers) {
+        int cols = drivers.size();
+        long[] costs = new long[orders.size() * cols];
+        for (int row = 0; row < orders.size(); row++) {
+            Order order = orders.get(row);
+            for (int col = 0; col < cols; col++) {
+                costs[row * cols + col] = cost(order, drivers.get(col));
+            }
+        }
+        return costs;
+    }
+    
+    public static double pickupKm(Order order, NearbyDriver driver) {
+        return GeoKernel.haversineKm(order.pickupLatitude(), order.pickupLongitude(),
+            driver.getLatitude(), driver.getLongitude());
+    }
+}
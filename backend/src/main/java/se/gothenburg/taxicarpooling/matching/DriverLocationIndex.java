@@ -0,0 +1,309 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latest known position of every driver, answering "k nearest available drivers that can take this
+ * trip". Pings only overwrite the driver's entry in a concurrent map, so bursts of pings from one
+ * driver coalesce into one. {@link #publish()} periodically turns the entries into an immutable grid
+ * snapshot; queries read that snapshot through one volatile field and never take a lock.
+ */
+public class DriverLocationIndex {
+    
+    public enum Availability {
+        AVAILABLE, BUSY, OFFLINE
+    }
+    
+    static final double CELL_LAT_DEGREES = 0.01;
+    static final double CELL_LON_DEGREES = 0.02;
+    private static final double KM_PER_DEGREE = Math.PI * GeoKernel.EARTH_RADIUS_KM / 180;
+    
+    private final ConcurrentHashMap<Long, Ping> latestPings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Capability> capabilities = new ConcurrentHashMap<>();
+    
+    private final long staleAfterMillis;
+    private final int maxRings;
+    
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder coalescedPings = new LongAdder();
+    private final LongAdder publishes = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private long pingsAtLastPublish;
+    private long lastPublishMicros;
+    
+    public DriverLocationIndex(long staleAfterMillis, int maxRings) {
+        this.staleAfterMillis = staleAfterMillis;
+        this.maxRings = maxRings;
+    }
+    
+    public void update(long driverId, double latitude, double longitude, Availability availability) {
+        latestPings.put(driverId, new Ping(latitude, longitude, availability, System.currentTimeMillis()));
+        pings.increment();
+    }
+    
+    /** Changes availability without moving the driver, e.g. when an order is accepted. */
+    public void setAvailability(long driverId, Availability availability) {
+        latestPings.computeIfPresent(driverId, (id, ping) ->
+            new Ping(ping.latitude, ping.longitude, availability, ping.receivedAtMillis));
+    }
+    
+    public void setCapability(long driverId, int maxPassengers, boolean wheelchairAccessible) {
+        capabilities.put(driverId, new Capability(maxPassengers, wheelchairAccessible));
+    }
+    
+    /** Forgets capabilities and positions of everyone who is no longer a known driver. */
+    public void retainDrivers(Collection<Long> driverIds) {
+        capabilities.keySet().retainAll(driverIds);
+        latestPings.keySet().retainAll(driverIds);
+    }
+    
+    public boolean isKnownDriver(long driverId) {
+        return capabilities.containsKey(driverId);
+    }
+    
+    /**
+     * Rebuilds the query snapshot from the latest pings. Only available drivers with fresh pings and
+     * known capabilities are included. Called from a single scheduler thread.
+     */
+    public synchronized void publish() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long publishedAfter = snapshot.publishedAtMillis;
+        
+        List<Long> ids = new ArrayList<>();
+        List<Ping> entries = new ArrayList<>();
+        int freshPings = 0;
+        for (Map.Entry<Long, Ping> entry : latestPings.entrySet()) {
+            Ping ping = entry.getValue();
+            if (now - ping.receivedAtMillis > staleAfterMillis) {
+                latestPings.remove(entry.getKey(), ping);
+                continue;
+            }
+            if (ping.receivedAtMillis >= publishedAfter) {
+                freshPings++;
+            }
+            if (ping.availability == Availability.AVAILABLE && capabilities.containsKey(entry.getKey())) {
+                ids.add(entry.getKey());
+                entries.add(ping);
+            }
+        }
+        
+        int n = ids.size();
+        long[] cellOfDriver = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            Ping ping = entries.get(i);
+            cellOfDriver[i] = cellKey(latCell(ping.latitude), lonCell(ping.longitude));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(cellOfDriver[a], cellOfDriver[b]));
+        
+        Snapshot next = new Snapshot(n, now);
+        int cells = 0;
+        for (int row = 0; row < n; row++) {
+            int i = order[row];
+            Ping ping = entries.get(i);
+            Capability capability = capabilities.get(ids.get(i));
+            if (capability == null) {
+                capability = Capability.DEFAULT;
+            }
+            if (row == 0 || cellOfDriver[i] != next.cellKeys[cells - 1]) {
+                next.cellKeys[cells] = cellOfDriver[i];
+                next.cellStart[cells] = row;
+                cells++;
+            }
+            next.driverIds[row] = ids.get(i);
+            next.latitude[row] = ping.latitude;
+            next.longitude[row] = ping.longitude;
+            next.cosLatitude[row] = Math.cos(Math.toRadians(ping.latitude));
+            next.maxPassengers[row] = capability.maxPassengers;
+            next.wheelchairAccessible[row] = capability.wheelchairAccessible;
+        }
+        next.cellStart[cells] = n;
+        next.cellCount = cells;
+        snapshot = next;
+        
+        long totalPings = pings.sum();
+        coalescedPings.add(Math.max(0, totalPings - pingsAtLastPublish - freshPings));
+        pingsAtLastPublish = totalPings;
+        publishes.increment();
+        lastPublishMicros = (System.nanoTime() - start) / 1000;
+    }
+    
+    /**
+     * Nearest available drivers, closest first, with at least {@code seatsNeeded} seats and a
+     * wheelchair accessible vehicle when {@code needsWheelchair} is set. Searches the grid ring by
+     * ring around the pickup and stops once no unvisited cell can hold a closer driver.
+     */
+    public List<NearbyDriver> nearest(double latitude, double longitude, int k, int seatsNeeded, boolean needsWheelchair) {
+        long start = System.nanoTime();
+        Snapshot s = snapshot;
+        
+        int[] bestRows = new int[k];
+        double[] bestKm = new double[k];
+        int found = 0;
+        
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        int centerLat = latCell(latitude);
+        int centerLon = lonCell(longitude);
+        // Smallest cell side in km, with the cosine taken a degree closer to the pole to stay conservative
+        double widthCos = Math.cos(Math.toRadians(Math.min(89.0, Math.abs(latitude) + 1.0)));
+        double ringKm = Math.min(CELL_LAT_DEGREES * KM_PER_DEGREE, CELL_LON_DEGREES * KM_PER_DEGREE * widthCos);
+        
+        for (int ring = 0; ring <= maxRings && s.cellCount > 0; ring++) {
+            if (found == k && (ring - 1) * ringKm > bestKm[k - 1]) {
+                break;
+            }
+            for (int dLat = -ring; dLat <= ring; dLat++) {
+                boolean edgeRow = dLat == -ring || dLat == ring;
+                int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+                for (int dLon = -ring; dLon <= ring; dLon += step) {
+                    int cell = s.findCell(cellKey(centerLat + dLat, centerLon + dLon));
+                    if (cell < 0) {
+                        continue;
+                    }
+                    for (int row = s.cellStart[cell]; row < s.cellStart[cell + 1]; row++) {
+                        if (s.maxPassengers[row] < seatsNeeded || (needsWheelchair && !s.wheelchairAccessible[row])) {
+                            continue;
+                        }
+                        double km = GeoKernel.haversineKm(latitude, longitude, cosLatitude,
+                            s.latitude[row], s.longitude[row], s.cosLatitude[row]);
+                        if (found < k) {
+                            found++;
+                        } else if (km >= bestKm[k - 1]) {
+                            continue;
+                        }
+                        int position = found - 1;
+                        while (position > 0 && bestKm[position - 1] > km) {
+                            bestKm[position] = bestKm[position - 1];
+                            bestRows[position] = bestRows[position - 1];
+                            position--;
+                        }
+                        bestKm[position] = km;
+                        bestRows[position] = row;
+                    }
+                }
+            }
+        }
+        
+        List<NearbyDriver> drivers = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            int row = bestRows[i];
+            drivers.add(new NearbyDriver(s.driverIds[row], s.latitude[row], s.longitude[row], bestKm[i],
+                s.maxPassengers[row], s.wheelchairAccessible[row]));
+        }
+        queries.increment();
+        queryNanos.add(System.nanoTime() - start);
+        return drivers;
+    }
+    
+    /** Every available driver in the current snapshot, with a distance of zero. */
+    public List<NearbyDriver> available() {
+        Snapshot s = snapshot;
+        List<NearbyDriver> drivers = new ArrayList<>(s.driverIds.length);
+        for (int row = 0; row < s.driverIds.length; row++) {
+            drivers.add(new NearbyDriver(s.driverIds[row], s.latitude[row], s.longitude[row], 0.0,
+                s.maxPassengers[row], s.wheelchairAccessible[row]));
+        }
+        return drivers;
+    }
+    
+    public Map<String, Object> getStats() {
+        Snapshot s = snapshot;
+        long queryCount = queries.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("knownDrivers", capabilities.size());
+        stats.put("trackedDrivers", latestPings.size());
+        stats.put("availableDrivers", s.driverIds.length);
+        stats.put("occupiedCells", s.cellCount);
+        stats.put("pings", pings.sum());
+        stats.put("coalescedPings", coalescedPings.sum());
+        stats.put("publishes", publishes.sum());
+        stats.put("lastPublishMicros", lastPublishMicros);
+        stats.put("snapshotAgeMillis", s.publishedAtMillis == 0 ? -1 : System.currentTimeMillis() - s.publishedAtMillis);
+        stats.put("queries", queryCount);
+        stats.put("avgQueryMicros", queryCount == 0 ? 0.0 : queryNanos.sum() / 1000.0 / queryCount);
+        return stats;
+    }
+    
+    static int latCell(double latitude) {
+        return (int) Math.floor(latitude / CELL_LAT_DEGREES);
+    }
+    
+    static int lonCell(double longitude) {
+        return (int) Math.floor(longitude / CELL_LON_DEGREES);
+    }
+    
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+    
+    private static final class Ping {
+        final double latitude;
+        final double longitude;
+        final Availability availability;
+        final long receivedAtMillis;
+        
+        Ping(double latitude, double longitude, Availability availability, long receivedAtMillis) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.availability = availability;
+            this.receivedAtMillis = receivedAtMillis;
+        }
+    }
+    
+    private static final class Capability {
+        static final Capability DEFAULT = new Capability(4, false);
+        
+        final int maxPassengers;
+        final boolean wheelchairAccessible;
+        
+        Capability(int maxPassengers, boolean wheelchairAccessible) {
+            this.maxPassengers = maxPassengers;
+            this.wheelchairAccessible = wheelchairAccessible;
+        }
+    }
+    
+    /** Available drivers sorted by grid cell, with cellStart marking where each cell begins. */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, 0);
+        
+        final long[] cellKeys;
+        final int[] cellStart;
+        int cellCount;
+        final long[] driverIds;
+        final double[] latitude;
+        final double[] longitude;
+        final double[] cosLatitude;
+        final int[] maxPassengers;
+        final boolean[] wheelchairAccessible;
+        final long publishedAtMillis;
+        
+        Snapshot(int size, long publishedAtMillis) {
+            cellKeys = new long[size];
+            cellStart = new int[size + 1];
+            driverIds = new long[size];
+            latitude = new double[size];
+            longitude = new double[size];
+            cosLatitude = new double[size];
+            maxPassengers = new int[size];
+            wheelchairAccessible = new boolean[size];
+            this.publishedAtMillis = publishedAtMillis;
+        }
+        
+        int findCell(long key) {
+            int cell = Arrays.binarySearch(cellKeys, 0, cellCount, key);
+            return cell < 0 ? -1 : cell;
+        }
+    }
+}
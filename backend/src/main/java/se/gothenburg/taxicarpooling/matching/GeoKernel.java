@@ -0,0 +1,125 @@
+package se.gothenburg.taxicarpooling.matching;
+
+/**
+ * Pairwise compatibility checks over {@link TripColumns}. A pair is first tested against a cheap
+ * lower bound of the haversine term, and only pairs that survive it pay for the exact distance.
+ * The bound only ever rejects pairs that are clearly outside the limits, so decisions are the same
+ * as running the haversine formula on every pair.
+ */
+public class GeoKernel {
+    
+    static final int EARTH_RADIUS_KM = 6371;
+    static final double HALF_DEGREE_IN_RADIANS = Math.PI / 360;
+    static final double MAX_BOUND_ANGLE = 0.5;
+    private static final double BOUND_MARGIN = 1e-9;
+    
+    protected final double maxPickupDistanceKm;
+    protected final double maxDestinationDistanceKm;
+    protected final long maxTimeDifferenceMinutes;
+    
+    // sin^2(d / 2R) for the distance limits, slightly widened so the bound never rejects a borderline pair
+    protected final double pickupHaversineLimit;
+    protected final double destinationHaversineLimit;
+    
+    public GeoKernel(double maxPickupDistanceKm, double maxDestinationDistanceKm, int maxTimeDifferenceMinutes) {
+        this.maxPickupDistanceKm = maxPickupDistanceKm;
+        this.maxDestinationDistanceKm = maxDestinationDistanceKm;
+        this.maxTimeDifferenceMinutes = maxTimeDifferenceMinutes;
+        this.pickupHaversineLimit = haversineLimit(maxPickupDistanceKm);
+        this.destinationHaversineLimit = haversineLimit(maxDestinationDistanceKm);
+    }
+    
+    public static GeoKernel create(double maxPickupDistanceKm, double maxDestinationDistanceKm,
+                                   int maxTimeDifferenceMinutes, boolean useVectorApi) {
+        if (useVectorApi) {
+            try {
+                // Loaded reflectively so the incubator module is only needed when the vector path is enabled
+                return (GeoKernel) Class.forName("se.gothenburg.taxicarpooling.matching.VectorGeoKernel")
+                    .getConstructor(double.class, double.class, int.class)
+                    .newInstance(maxPickupDistanceKm, maxDestinationDistanceKm, maxTimeDifferenceMinutes);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API kernel unavailable, using scalar kernel: " + e);
+            }
+        }
+        return new GeoKernel(maxPickupDistanceKm, maxDestinationDistanceKm, maxTimeDifferenceMinutes);
+    }
+    
+    public String getName() {
+        return "scalar";
+    }
+    
+    /**
+     * Writes the rows that are compatible with {@code newRow} into {@code out} and returns how many
+     * there are. Every other row is treated as an existing trip and {@code newRow} as the new one.
+     */
+    public int filterCompatible(TripColumns columns, int newRow, int[] out) {
+        int count = 0;
+        for (int row = 0; row < columns.size; row++) {
+            if (row != newRow && isCompatible(columns, row, newRow)) {
+                out[count++] = row;
+            }
+        }
+        return count;
+    }
+    
+    public boolean isCompatible(TripColumns c, int existingRow, int newRow) {
+        return !(c.wheelchair[existingRow] && c.wheelchair[newRow])
+            && isTimeCompatible(c, existingRow, newRow)
+            && mayBeWithin(c.pickupLat, c.pickupLon, c.pickupCosLat, existingRow, newRow, pickupHaversineLimit)
+            && mayBeWithin(c.destinationLat, c.destinationLon, c.destinationCosLat, existingRow, newRow, destinationHaversineLimit)
+            && isLocationCompatible(c, existingRow, newRow);
+    }
+    
+    protected boolean isTimeCompatible(TripColumns c, int existingRow, int newRow) {
+        // Pickup times are whole minutes, so this equals Duration.between(existing, new).toMinutes()
+        return Math.abs(c.pickupMinute[newRow] - c.pickupMinute[existingRow]) <= maxTimeDifferenceMinutes;
+    }
+    
+    protected boolean isLocationCompatible(TripColumns c, int existingRow, int newRow) {
+        return haversineKm(c.pickupLat[existingRow], c.pickupLon[existingRow], c.pickupCosLat[existingRow],
+                           c.pickupLat[newRow], c.pickupLon[newRow], c.pickupCosLat[newRow]) <= maxPickupDistanceKm
+            && haversineKm(c.destinationLat[existingRow], c.destinationLon[existingRow], c.destinationCosLat[existingRow],
+                           c.destinationLat[newRow], c.destinationLon[newRow], c.destinationCosLat[newRow]) <= maxDestinationDistanceKm;
+    }
+    
+    /**
+     * Lower bound of the haversine term using sin(x) >= x - x^3/6, no trigonometry needed.
+     * Returns false only when the exact distance is certainly above the limit.
+     */
+    static boolean mayBeWithin(double[] lat, double[] lon, double[] cosLat, int i, int j, double haversineLimit) {
+        double halfLat = Math.abs(lat[j] - lat[i]) * HALF_DEGREE_IN_RADIANS;
+        double halfLon = Math.abs(lon[j] - lon[i]) * HALF_DEGREE_IN_RADIANS;
+        if (halfLat > MAX_BOUND_ANGLE || halfLon > MAX_BOUND_ANGLE) {
+            return false;
+        }
+        double sinLat = halfLat - halfLat * halfLat * halfLat / 6;
+        double sinLon = halfLon - halfLon * halfLon * halfLon / 6;
+        return sinLat * sinLat + cosLat[i] * cosLat[j] * sinLon * sinLon <= haversineLimit;
+    }
+    
+    /**
+     * Haversine distance in km, evaluated with the same operations and order as the original
+     * BigDecimal version so results are bit-for-bit identical.
+     */
+    public static double haversineKm(double lat1, double lon1, double cosLat1, double lat2, double lon2, double cosLat2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + cosLat1 * cosLat2
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        
+        return EARTH_RADIUS_KM * c;
+    }
+    
+    public static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+        return haversineKm(lat1, lon1, Math.cos(Math.toRadians(lat1)), lat2, lon2, Math.cos(Math.toRadians(lat2)));
+    }
+    
+    private static double haversineLimit(double maxDistanceKm) {
+        double s = Math.sin(maxDistanceKm / (2.0 * EARTH_RADIUS_KM));
+        return s * s * (1 + BOUND_MARGIN);
+    }
+}
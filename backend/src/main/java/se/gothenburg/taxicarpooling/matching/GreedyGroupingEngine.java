@@ -0,0 +1,72 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * First-fit grouping in slot order: each unused trip opens a group and takes every later trip that
+ * is compatible with all current members, until the group is full.
+ */
+public class GreedyGroupingEngine implements GroupingEngine {
+    
+    private final LongAdder slotsGrouped = new LongAdder();
+    private final LongAdder groupsFormed = new LongAdder();
+    
+    @Override
+    public String getName() {
+        return "greedy";
+    }
+    
+    @Override
+    public List<int[]> group(SlotGraph slot, int maxGroupSize) {
+        List<int[]> groups = greedyGroups(slot, maxGroupSize);
+        slotsGrouped.increment();
+        groupsFormed.add(groups.size());
+        return groups;
+    }
+    
+    static List<int[]> greedyGroups(SlotGraph slot, int maxGroupSize) {
+        List<int[]> groups = new ArrayList<>();
+        boolean[] used = new boolean[slot.size()];
+        int[] currentGroup = new int[maxGroupSize];
+        
+        for (int i = 0; i < slot.size(); i++) {
+            if (used[i]) continue;
+            
+            int groupSize = 0;
+            currentGroup[groupSize++] = i;
+            used[i] = true;
+            
+            BitSet candidates = slot.neighbours(i);
+            for (int j = candidates.nextSetBit(i + 1); j >= 0 && groupSize < maxGroupSize; j = candidates.nextSetBit(j + 1)) {
+                if (!used[j] && isCompatible(slot, currentGroup, groupSize, j)) {
+                    currentGroup[groupSize++] = j;
+                    used[j] = true;
+                }
+            }
+            
+            if (groupSize >= 2) {
+                groups.add(Arrays.copyOf(currentGroup, groupSize));
+            }
+        }
+        return groups;
+    }
+    
+    private static boolean isCompatible(SlotGraph slot, int[] group, int groupSize, int candidate) {
+        for (int k = 0; k < groupSize; k++) {
+            if (!slot.areCompatible(group[k], candidate)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("engine", getName());
+        stats.put("slotsGrouped", slotsGrouped.sum());
+        stats.put("groupsFormed", groupsFormed.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,26 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the trips of a time slot into shared-trip groups. Every group is a clique of the slot
+ * graph with between 2 and {@code maxGroupSize} members, and no trip appears in two groups.
+ */
+public interface GroupingEngine {
+    
+    String getName();
+    
+    List<int[]> group(SlotGraph slot, int maxGroupSize);
+    
+    default List<List<int[]>> groupAll(List<SlotGraph> slots, int maxGroupSize) {
+        List<List<int[]>> groups = new ArrayList<>();
+        for (SlotGraph slot : slots) {
+            groups.add(group(slot, maxGroupSize));
+        }
+        return groups;
+    }
+    
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,309 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Pending trips and their compatibility edges as written by a matchmaking node, so a restart can
+ * map the file and skip loading every trip and re-checking every pair. Only the fields matching
+ * reads are kept; the committer takes passengers and addresses from the rows it locks.
+ * <p>
+ * File layout, little-endian: the header ({@link #MAGIC}, {@link #VERSION}, the CRC32C of
+ * everything after the header, a fingerprint of the settings the edges depend on, the creation
+ * time in epoch milliseconds, the change feed sequence number the state is complete up to, trip,
+ * edge and shard counts), then per trip the ids, versions, creation times in epoch milliseconds and
+ * pickup times in epoch seconds as longs, the pickup and destination micro-degrees, passenger counts
+ * and flags as ints, the edge offsets per trip and the neighbouring trip rows, and the shards the
+ * state covers. Edges are stored in both directions. Files are written beside the target and moved
+ * over it, so a reader never sees a partial file.
+ */
+public class MatchingSnapshot {
+    
+    public static final int MAGIC = 0x4D534E50;
+    public static final int VERSION = 1;
+    static final int HEADER_BYTES = 48;
+    
+    private static final int WHEELCHAIR = 1;
+    private static final int ASSISTANCE = 2;
+    private static final int PRIORITY_SHIFT = 8;
+    
+    private final Path path;
+    private final ByteBuffer buffer;
+    
+    private final long fingerprint;
+    private final long createdAtMillis;
+    private final long highWaterSeq;
+    private final int tripCount;
+    private final int edgeCount;
+    private final int shardCount;
+    
+    private final int versionBase;
+    private final int createdBase;
+    private final int pickupTimeBase;
+    private final int pickupLatBase;
+    private final int pickupLonBase;
+    private final int destinationLatBase;
+    private final int destinationLonBase;
+    private final int passengerBase;
+    private final int flagsBase;
+    private final int offsetBase;
+    private final int neighbourBase;
+    private final int shardBase;
+    
+    private MatchingSnapshot(Path path, ByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException(path + " is not a version " + VERSION + " matching snapshot");
+        }
+        int checksum = buffer.getInt(8);
+        fingerprint = buffer.getLong(16);
+        createdAtMillis = buffer.getLong(24);
+        highWaterSeq = buffer.getLong(32);
+        tripCount = buffer.getInt(40);
+        edgeCount = buffer.getInt(44);
+        
+        int n = tripCount;
+        if (n < 0 || edgeCount < 0 || HEADER_BYTES + 60L * n + 4L * edgeCount + 8 > buffer.limit()) {
+            throw new IllegalArgumentException(path + " is truncated");
+        }
+        versionBase = HEADER_BYTES + 8 * n;
+        createdBase = versionBase + 8 * n;
+        pickupTimeBase = createdBase + 8 * n;
+        pickupLatBase = pickupTimeBase + 8 * n;
+        pickupLonBase = pickupLatBase + 4 * n;
+        destinationLatBase = pickupLonBase + 4 * n;
+        destinationLonBase = destinationLatBase + 4 * n;
+        passengerBase = destinationLonBase + 4 * n;
+        flagsBase = passengerBase + 4 * n;
+        offsetBase = flagsBase + 4 * n;
+        neighbourBase = offsetBase + 4 * (n + 1);
+        int shardCountBase = neighbourBase + 4 * edgeCount;
+        shardCount = buffer.getInt(shardCountBase);
+        shardBase = shardCountBase + 4;
+        if (shardCount < 0 || shardBase + 4L * shardCount != buffer.limit()) {
+            throw new IllegalArgumentException(path + " is truncated or has trailing data");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(HEADER_BYTES));
+        if ((int) crc.getValue() != checksum) {
+            throw new IllegalArgumentException(path + " fails its checksum");
+        }
+    }
+    
+    public static MatchingSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MatchingSnapshot(path, buffer.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+    
+    /**
+     * Encodes the trips and the edges between them. {@code shards} are the shards the trips are all
+     * the pending trips of, or null when they are all pending trips.
+     */
+    public static ByteBuffer encode(long fingerprint, long highWaterSeq, List<TripRequest> trips,
+                                    CompatibilityGraph graph, Collection<Integer> shards) {
+        int n = trips.size();
+        Map<Long, Integer> rows = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            rows.put(trips.get(i).getId(), i);
+        }
+        int[] offsets = new int[n + 1];
+        int[] neighbours = new int[16];
+        int edges = 0;
+        for (int i = 0; i < n; i++) {
+            for (Long neighbour : graph.neighbours(trips.get(i).getId())) {
+                Integer row = rows.get(neighbour);
+                if (row != null) {
+                    if (edges == neighbours.length) {
+                        neighbours = Arrays.copyOf(neighbours, edges * 2);
+                    }
+                    neighbours[edges++] = row;
+                }
+            }
+            offsets[i + 1] = edges;
+        }
+        int[] shardIds = shards == null ? new int[0] : shards.stream().mapToInt(Integer::intValue).sorted().toArray();
+        
+        long size = HEADER_BYTES + 56L * n + 4L * (n + 1) + 4L * edges + 4 + 4L * shardIds.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Snapshot of " + n + " trips and " + edges + " edges is too large");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        out.position(HEADER_BYTES);
+        for (TripRequest trip : trips) {
+            out.putLong(trip.getId());
+        }
+        for (TripRequest trip : trips) {
+            out.putLong(trip.getVersion());
+        }
+        for (TripRequest trip : trips) {
+            out.putLong(trip.getCreatedAt() == null ? Long.MIN_VALUE : trip.getCreatedAt().toInstant(ZoneOffset.UTC).toEpochMilli());
+        }
+        for (TripRequest trip : trips) {
+            out.putLong(trip.getRequestedPickupTime().toEpochSecond(ZoneOffset.UTC));
+        }
+        for (TripRequest trip : trips) {
+            out.putInt(trip.getPickupLatitudeE6());
+        }
+        for (TripRequest trip : trips) {
+            out.putInt(trip.getPickupLongitudeE6());
+        }
+        for (TripRequest trip : trips) {
+            out.putInt(trip.getDestinationLatitudeE6());
+        }
+        for (TripRequest trip : trips) {
+            out.putInt(trip.getDestinationLongitudeE6());
+        }
+        for (TripRequest trip : trips) {
+            out.putInt(trip.getPassengerCount());
+        }
+        for (TripRequest trip : trips) {
+            out.putInt((trip.isNeedsWheelchairAccess() ? WHEELCHAIR : 0) | (trip.isNeedsAssistance() ? ASSISTANCE : 0)
+                | trip.getPriority().ordinal() << PRIORITY_SHIFT);
+        }
+        for (int offset : offsets) {
+            out.putInt(offset);
+        }
+        for (int e = 0; e < edges; e++) {
+            out.putInt(neighbours[e]);
+        }
+        out.putInt(shardIds.length);
+        for (int shard : shardIds) {
+            out.putInt(shard);
+        }
+        
+        CRC32C crc = new CRC32C();
+        crc.update(out.duplicate().position(HEADER_BYTES));
+        out.putInt(0, MAGIC);
+        out.putInt(4, VERSION);
+        out.putInt(8, (int) crc.getValue());
+        out.putLong(16, fingerprint);
+        out.putLong(24, System.currentTimeMillis());
+        out.putLong(32, highWaterSeq);
+        out.putInt(40, n);
+        out.putInt(44, edges);
+        out.position(0);
+        return out;
+    }
+    
+    /** Writes an encoded snapshot beside {@code path} and moves it into place. */
+    public static void write(Path path, ByteBuffer encoded) throws IOException {
+        ByteBuffer out = encoded.duplicate();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    public long fingerprint() {
+        return fingerprint;
+    }
+    
+    /** In local time, like the change feed's timestamps. */
+    public LocalDateTime createdAt() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAtMillis), ZoneId.systemDefault());
+    }
+    
+    public long highWaterSeq() {
+        return highWaterSeq;
+    }
+    
+    public int tripCount() {
+        return tripCount;
+    }
+    
+    public int edgeCount() {
+        return edgeCount;
+    }
+    
+    public long sizeBytes() {
+        return buffer.limit();
+    }
+    
+    /** The shards the snapshot holds every pending trip of; empty when it holds all pending trips. */
+    public Set<Integer> shards() {
+        Set<Integer> shards = new TreeSet<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(buffer.getInt(shardBase + 4 * i));
+        }
+        return shards;
+    }
+    
+    public long tripId(int row) {
+        return buffer.getLong(HEADER_BYTES + 8 * row);
+    }
+    
+    public int pickupLatitudeE6(int row) {
+        return buffer.getInt(pickupLatBase + 4 * row);
+    }
+    
+    public int pickupLongitudeE6(int row) {
+        return buffer.getInt(pickupLonBase + 4 * row);
+    }
+    
+    public long pickupEpochSecond(int row) {
+        return buffer.getLong(pickupTimeBase + 8 * row);
+    }
+    
+    public int neighbourStart(int row) {
+        return buffer.getInt(offsetBase + 4 * row);
+    }
+    
+    public int neighbourEnd(int row) {
+        return buffer.getInt(offsetBase + 4 * (row + 1));
+    }
+    
+    public int neighbour(int edge) {
+        return buffer.getInt(neighbourBase + 4 * edge);
+    }
+    
+    /** A detached pending trip with the fields matching reads; passenger, addresses and costs are not kept. */
+    public TripRequest trip(int row) {
+        TripRequest trip = new TripRequest();
+        trip.setId(tripId(row));
+        trip.setVersion(buffer.getLong(versionBase + 8 * row));
+        long createdAt = buffer.getLong(createdBase + 8 * row);
+        trip.setCreatedAt(createdAt == Long.MIN_VALUE ? null
+            : LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt), ZoneOffset.UTC));
+        trip.setRequestedPickupTime(LocalDateTime.ofEpochSecond(pickupEpochSecond(row), 0, ZoneOffset.UTC));
+        trip.setPickupLatitude(MicroDegreesConverter.toDegrees(pickupLatitudeE6(row)));
+        trip.setPickupLongitude(MicroDegreesConverter.toDegrees(pickupLongitudeE6(row)));
+        trip.setDestinationLatitude(MicroDegreesConverter.toDegrees(buffer.getInt(destinationLatBase + 4 * row)));
+        trip.setDestinationLongitude(MicroDegreesConverter.toDegrees(buffer.getInt(destinationLonBase + 4 * row)));
+        trip.setPassengerCount(buffer.getInt(passengerBase + 4 * row));
+        int flags = buffer.getInt(flagsBase + 4 * row);
+        trip.setNeedsWheelchairAccess((flags & WHEELCHAIR) != 0);
+        trip.setNeedsAssistance((flags & ASSISTANCE) != 0);
+        trip.setPriority(TripRequest.Priority.values()[flags >>> PRIORITY_SHIFT]);
+        trip.setStatus(TripRequest.TripStatus.PENDING);
+        return trip;
+    }
+}
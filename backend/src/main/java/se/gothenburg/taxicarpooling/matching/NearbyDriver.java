@@ -0,0 +1,33 @@
+package se.gothenburg.taxicarpooling.matching;
+
+public class NearbyDriver {
+    
+    private final long driverId;
+    private final double latitude;
+    private final double longitude;
+    private final double distanceKm;
+    private final int maxPassengers;
+    private final boolean wheelchairAccessible;
+    
+    public NearbyDriver(long driverId, double latitude, double longitude, double distanceKm,
+                        int maxPassengers, boolean wheelchairAccessible) {
+        this.driverId = driverId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.distanceKm = distanceKm;
+        this.maxPassengers = maxPassengers;
+        this.wheelchairAccessible = wheelchairAccessible;
+    }
+    
+    public long getDriverId() { return driverId; }
+    
+    public double getLatitude() { return latitude; }
+    
+    public double getLongitude() { return longitude; }
+    
+    public double getDistanceKm() { return distanceKm; }
+    
+    public int getMaxPassengers() { return maxPassengers; }
+    
+    public boolean isWheelchairAccessible() { return wheelchairAccessible; }
+}
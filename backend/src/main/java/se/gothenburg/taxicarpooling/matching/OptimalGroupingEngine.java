@@ -0,0 +1,370 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maximum-savings set packing of each slot graph into cliques of 2..maxGroupSize trips. Every
+ * connected component is solved by a bounded branch-and-bound search seeded with the greedy
+ * solution, and components of all slots are solved in parallel on a fork-join pool. A search that
+ * runs out of its time budget keeps the best packing found so far, which is never worse than greedy.
+ */
+public class OptimalGroupingEngine implements GroupingEngine {
+    
+    private static final int MAX_CLIQUES_PER_TRIP = 2000;
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+    // Larger components keep the greedy packing; the search recurses once per trip
+    private static final int MAX_SEARCH_COMPONENT_SIZE = 512;
+    
+    private final ForkJoinPool pool;
+    private final long timeBudgetNanos;
+    private final long costPerIndividualTrip;
+    private final long costPerSharedTrip;
+    
+    private final LongAdder slotsGrouped = new LongAdder();
+    private final LongAdder componentsSolved = new LongAdder();
+    private final LongAdder componentsTimedOut = new LongAdder();
+    private final LongAdder groupsFormed = new LongAdder();
+    private final LongAdder optimalSavings = new LongAdder();
+    private final LongAdder greedySavings = new LongAdder();
+    private final LongAdder searchNodes = new LongAdder();
+    
+    public OptimalGroupingEngine(int parallelism, long timeBudgetMillis, long costPerIndividualTrip, long costPerSharedTrip) {
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.timeBudgetNanos = timeBudgetMillis * 1_000_000L;
+        this.costPerIndividualTrip = costPerIndividualTrip;
+        this.costPerSharedTrip = costPerSharedTrip;
+    }
+    
+    @Override
+    public String getName() {
+        return "optimal";
+    }
+    
+    @Override
+    public List<int[]> group(SlotGraph slot, int maxGroupSize) {
+        return groupAll(Collections.singletonList(slot), maxGroupSize).get(0);
+    }
+    
+    @Override
+    public List<List<int[]>> groupAll(List<SlotGraph> slots, int maxGroupSize) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        
+        List<Callable<List<int[]>>> tasks = new ArrayList<>();
+        List<Integer> slotOfTask = new ArrayList<>();
+        for (int s = 0; s < slots.size(); s++) {
+            SlotGraph slot = slots.get(s);
+            for (int[] component : components(slot)) {
+                if (component.length >= 2) {
+                    tasks.add(() -> new ComponentSearch(slot, component, maxGroupSize, deadline).solve());
+                    slotOfTask.add(s);
+                }
+            }
+        }
+        
+        List<List<int[]>> groups = new ArrayList<>();
+        for (int s = 0; s < slots.size(); s++) {
+            groups.add(new ArrayList<>());
+        }
+        List<Future<List<int[]>>> results = pool.invokeAll(tasks);
+        for (int t = 0; t < results.size(); t++) {
+            try {
+                groups.get(slotOfTask.get(t)).addAll(results.get(t).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Grouping interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Grouping failed", e.getCause());
+            }
+        }
+        
+        for (int s = 0; s < slots.size(); s++) {
+            List<int[]> slotGroups = groups.get(s);
+            slotGroups.sort(Comparator.comparingInt(group -> group[0]));
+            optimalSavings.add(savings(slotGroups));
+            groupsFormed.add(slotGroups.size());
+        }
+        slotsGrouped.add(slots.size());
+        return groups;
+    }
+    
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+    
+    private long savings(int groupSize) {
+        return groupSize * costPerIndividualTrip - costPerSharedTrip;
+    }
+    
+    private long savings(List<int[]> groups) {
+        long total = 0;
+        for (int[] group : groups) {
+            total += savings(group.length);
+        }
+        return total;
+    }
+    
+    private static List<int[]> components(SlotGraph slot) {
+        List<int[]> components = new ArrayList<>();
+        BitSet seen = new BitSet(slot.size());
+        int[] queue = new int[slot.size()];
+        for (int start = 0; start < slot.size(); start++) {
+            if (seen.get(start)) continue;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            seen.set(start);
+            while (head < tail) {
+                BitSet neighbours = slot.neighbours(queue[head++]);
+                for (int j = neighbours.nextSetBit(0); j >= 0; j = neighbours.nextSetBit(j + 1)) {
+                    if (!seen.get(j)) {
+                        seen.set(j);
+                        queue[tail++] = j;
+                    }
+                }
+            }
+            int[] component = Arrays.copyOf(queue, tail);
+            Arrays.sort(component);
+            components.add(component);
+        }
+        return components;
+    }
+    
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("engine", getName());
+        stats.put("parallelism", pool.getParallelism());
+        stats.put("timeBudgetMillis", timeBudgetNanos / 1_000_000L);
+        stats.put("slotsGrouped", slotsGrouped.sum());
+        stats.put("componentsSolved", componentsSolved.sum());
+        stats.put("componentsTimedOut", componentsTimedOut.sum());
+        stats.put("searchNodes", searchNodes.sum());
+        stats.put("groupsFormed", groupsFormed.sum());
+        stats.put("savingsSek", optimalSavings.sum());
+        stats.put("greedySavingsSek", greedySavings.sum());
+        stats.put("extraSavingsVsGreedySek", optimalSavings.sum() - greedySavings.sum());
+        return stats;
+    }
+    
+    /**
+     * Branch and bound over one connected component. Trips are decided in slot order: the lowest
+     * undecided trip either rides alone or opens one of the cliques in which it is the first member.
+     */
+    private class ComponentSearch {
+        
+        private final SlotGraph slot;
+        private final int[] slotPositions;
+        private final int size;
+        private final int maxGroupSize;
+        private final long deadline;
+        
+        private int[][][] cliquesByTrip;
+        private long[][] cliqueSavingsByTrip;
+        private double bestSavingsPerTrip;
+        
+        private BitSet[] laterNeighbours;
+        private boolean[] covered;
+        private int[] chosen;
+        private int chosenCount;
+        private final List<int[]> bestGroups = new ArrayList<>();
+        private long bestSavings;
+        private long nodes;
+        private long cliquesEnumerated;
+        private boolean timedOut;
+        
+        ComponentSearch(SlotGraph slot, int[] slotPositions, int maxGroupSize, long deadline) {
+            this.slot = slot;
+            this.slotPositions = slotPositions;
+            this.size = slotPositions.length;
+            this.maxGroupSize = maxGroupSize;
+            this.deadline = deadline;
+        }
+        
+        /** Builds the search tables; false if the time budget ran out while enumerating cliques. */
+        private boolean prepare() {
+            this.covered = new boolean[size];
+            this.chosen = new int[size];
+            
+            this.laterNeighbours = new BitSet[size];
+            for (int i = 0; i < size; i++) {
+                laterNeighbours[i] = new BitSet(size);
+                for (int j = i + 1; j < size; j++) {
+                    if (slot.areCompatible(slotPositions[i], slotPositions[j])) {
+                        laterNeighbours[i].set(j);
+                    }
+                }
+            }
+            
+            this.cliquesByTrip = new int[size][][];
+            this.cliqueSavingsByTrip = new long[size][];
+            for (int i = 0; i < size; i++) {
+                List<int[]> cliques = new ArrayList<>();
+                int[] clique = new int[maxGroupSize];
+                clique[0] = i;
+                collectCliques(laterNeighbours, clique, 1, laterNeighbours[i], cliques);
+                if (timedOut) {
+                    return false;
+                }
+                cliques.sort((a, b) -> Integer.compare(b.length, a.length));
+                cliquesByTrip[i] = cliques.toArray(new int[0][]);
+                cliqueSavingsByTrip[i] = new long[cliques.size()];
+                for (int c = 0; c < cliques.size(); c++) {
+                    cliqueSavingsByTrip[i][c] = savings(cliques.get(c).length);
+                }
+            }
+            
+            double best = 0;
+            for (int k = 2; k <= maxGroupSize; k++) {
+                best = Math.max(best, (double) savings(k) / k);
+            }
+            this.bestSavingsPerTrip = best;
+            return true;
+        }
+        
+        private void collectCliques(BitSet[] laterNeighbours, int[] clique, int cliqueSize, BitSet candidates, List<int[]> out) {
+            for (int j = candidates.nextSetBit(0); j >= 0 && out.size() < MAX_CLIQUES_PER_TRIP; j = candidates.nextSetBit(j + 1)) {
+                if (timedOut || (++cliquesEnumerated % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadline)) {
+                    timedOut = true;
+                    return;
+                }
+                clique[cliqueSize] = j;
+                out.add(Arrays.copyOf(clique, cliqueSize + 1));
+                if (cliqueSize + 1 < maxGroupSize) {
+                    BitSet next = (BitSet) candidates.clone();
+                    next.and(laterNeighbours[j]);
+                    if (!next.isEmpty()) {
+                        collectCliques(laterNeighbours, clique, cliqueSize + 1, next, out);
+                    }
+                }
+            }
+        }
+        
+        List<int[]> solve() {
+            seedWithGreedy();
+            // The seed is what greedy grouping would form here, so it also feeds the savings-vs-greedy stat
+            greedySavings.add(bestSavings);
+            // Large components keep the greedy packing without building any search tables
+            if (size <= MAX_SEARCH_COMPONENT_SIZE) {
+                if (prepare()) {
+                    search(0, 0);
+                }
+            }
+            
+            componentsSolved.increment();
+            searchNodes.add(nodes);
+            if (timedOut) {
+                componentsTimedOut.increment();
+            }
+            
+            List<int[]> groups = new ArrayList<>();
+            for (int[] clique : bestGroups) {
+                int[] group = new int[clique.length];
+                for (int k = 0; k < clique.length; k++) {
+                    group[k] = slotPositions[clique[k]];
+                }
+                groups.add(group);
+            }
+            return groups;
+        }
+        
+        private void seedWithGreedy() {
+            // Same first-fit rule as GreedyGroupingEngine, restricted to this component
+            boolean[] used = new boolean[size];
+            int[] group = new int[maxGroupSize];
+            for (int i = 0; i < size; i++) {
+                if (used[i]) continue;
+                used[i] = true;
+                int groupSize = 0;
+                group[groupSize++] = i;
+                for (int j = i + 1; j < size && groupSize < maxGroupSize; j++) {
+                    if (!used[j] && compatibleWithAll(group, groupSize, j)) {
+                        group[groupSize++] = j;
+                        used[j] = true;
+                    }
+                }
+                if (groupSize >= 2) {
+                    bestGroups.add(Arrays.copyOf(group, groupSize));
+                    bestSavings += savings(groupSize);
+                }
+            }
+        }
+        
+        private boolean compatibleWithAll(int[] group, int groupSize, int candidate) {
+            for (int k = 0; k < groupSize; k++) {
+                if (!slot.areCompatible(slotPositions[group[k]], slotPositions[candidate])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private boolean isFree(int[] clique) {
+            for (int k = 1; k < clique.length; k++) {
+                if (covered[clique[k]]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private void search(int trip, long savings) {
+            if (timedOut || (++nodes % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadline)) {
+                timedOut = true;
+                return;
+            }
+            
+            while (trip < size && covered[trip]) {
+                trip++;
+            }
+            if (trip >= size) {
+                if (savings > bestSavings) {
+                    bestSavings = savings;
+                    bestGroups.clear();
+                    for (int g = 0; g < chosenCount; g++) {
+                        bestGroups.add(cliqueOf(chosen[g]));
+                    }
+                }
+                return;
+            }
+            
+            int uncovered = 0;
+            for (int i = trip; i < size; i++) {
+                if (!covered[i]) uncovered++;
+            }
+            if (savings + uncovered * bestSavingsPerTrip <= bestSavings) {
+                return;
+            }
+            
+            int[][] cliques = cliquesByTrip[trip];
+            for (int c = 0; c < cliques.length; c++) {
+                int[] clique = cliques[c];
+                if (!isFree(clique)) continue;
+                
+                for (int member : clique) covered[member] = true;
+                chosen[chosenCount++] = encode(trip, c);
+                search(trip + 1, savings + cliqueSavingsByTrip[trip][c]);
+                chosenCount--;
+                for (int member : clique) covered[member] = false;
+                
+                if (timedOut) return;
+            }
+            
+            covered[trip] = true;
+            search(trip + 1, savings);
+            covered[trip] = false;
+        }
+        
+        private int encode(int trip, int clique) {
+            return trip * MAX_CLIQUES_PER_TRIP + clique;
+        }
+        
+        private int[] cliqueOf(int code) {
+            return cliquesByTrip[code / MAX_CLIQUES_PER_TRIP][code % MAX_CLIQUES_PER_TRIP];
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resident index of pending trips keyed by pickup grid cell, time bucket and destination grid cell.
+ * Lookups return a superset of the trips that can pass the distance and time thresholds, so callers
+ * still run the exact compatibility check on what comes back.
+ */
+public class PendingTripIndex {
+    
+    static final double CELL_DEGREES = 0.02;
+    private static final int CELL_MICRODEGREES = 20_000;
+    private static final double KM_PER_DEGREE = 6371 * Math.PI / 180;
+    private static final double SAFETY_FACTOR = 1.01;
+    
+    private final double pickupReachKm;
+    private final double destinationReachKm;
+    private final int bucketMinutes;
+    
+    // pickup cell + time bucket -> destination cell -> trip ids
+    private final Map<Long, Map<Long, Set<Long>>> cells = new ConcurrentHashMap<>();
+    private final Map<Long, TripRequest> trips = new ConcurrentHashMap<>();
+    private final Map<Long, long[]> keysByTrip = new ConcurrentHashMap<>();
+    
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder cellsProbed = new LongAdder();
+    private final LongAdder candidatesReturned = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    
+    public PendingTripIndex(double maxPickupDistanceKm, double maxDestinationDistanceKm, int maxTimeDifferenceMinutes) {
+        this.pickupReachKm = maxPickupDistanceKm * SAFETY_FACTOR;
+        this.destinationReachKm = maxDestinationDistanceKm * SAFETY_FACTOR;
+        // Duration.toMinutes() truncates, so two trips up to (max + 1) minutes apart can still be compatible
+        this.bucketMinutes = maxTimeDifferenceMinutes + 1;
+    }
+    
+    public void add(TripRequest trip) {
+        if (trip.getId() == null || !isIndexable(trip)) {
+            return;
+        }
+        remove(trip.getId());
+        
+        long pickupKey = pickupKey(
+            cell(trip.getPickupLatitudeE6()), cell(trip.getPickupLongitudeE6()), timeBucket(trip.getPickupEpochMinute()));
+        long destinationKey = cellKey(cell(trip.getDestinationLatitudeE6()), cell(trip.getDestinationLongitudeE6()));
+        
+        cells.computeIfAbsent(pickupKey, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(destinationKey, k -> ConcurrentHashMap.newKeySet())
+            .add(trip.getId());
+        keysByTrip.put(trip.getId(), new long[] { pickupKey, destinationKey });
+        trips.put(trip.getId(), trip);
+        inserts.increment();
+    }
+    
+    public TripRequest remove(Long tripId) {
+        if (tripId == null) {
+            return null;
+        }
+        TripRequest removed = trips.remove(tripId);
+        long[] keys = keysByTrip.remove(tripId);
+        if (keys != null) {
+            Map<Long, Set<Long>> byDestination = cells.get(keys[0]);
+            if (byDestination != null) {
+                Set<Long> ids = byDestination.get(keys[1]);
+                if (ids != null) {
+                    ids.remove(tripId);
+                    if (ids.isEmpty()) {
+                        byDestination.remove(keys[1], ids);
+                    }
+                }
+                if (byDestination.isEmpty()) {
+                    cells.remove(keys[0], byDestination);
+                }
+            }
+            removals.increment();
+        }
+        return removed;
+    }
+    
+    public void clear() {
+        cells.clear();
+        trips.clear();
+        keysByTrip.clear();
+    }
+    
+    public TripRequest get(Long tripId) {
+        return trips.get(tripId);
+    }
+    
+    public boolean contains(Long tripId) {
+        return trips.containsKey(tripId);
+    }
+    
+    public int size() {
+        return trips.size();
+    }
+    
+    public List<TripRequest> pendingAfter(LocalDateTime time) {
+        List<TripRequest> result = new ArrayList<>();
+        for (TripRequest trip : trips.values()) {
+            if (trip.getRequestedPickupTime().isAfter(time)) {
+                result.add(trip);
+            }
+        }
+        result.sort(Comparator.comparing(TripRequest::getId));
+        return result;
+    }
+    
+    public List<Long> evictPickupsBefore(LocalDateTime time) {
+        List<Long> evicted = new ArrayList<>();
+        for (TripRequest trip : new ArrayList<>(trips.values())) {
+            if (!trip.getRequestedPickupTime().isAfter(time)) {
+                remove(trip.getId());
+                evicted.add(trip.getId());
+            }
+        }
+        return evicted;
+    }
+    
+    /**
+     * Returns every indexed trip, other than the trip itself, whose pickup and destination fall in
+     * neighbouring cells and whose pickup time falls in a neighbouring time bucket.
+     */
+    public List<TripRequest> findCandidates(TripRequest trip) {
+        if (!isIndexable(trip)) {
+            return Collections.emptyList();
+        }
+        long start = System.nanoTime();
+        
+        double pickupLat = MicroDegreesConverter.toDouble(trip.getPickupLatitudeE6());
+        double destinationLat = MicroDegreesConverter.toDouble(trip.getDestinationLatitudeE6());
+        int pickupLatCell = cell(trip.getPickupLatitudeE6());
+        int pickupLonCell = cell(trip.getPickupLongitudeE6());
+        int destinationLatCell = cell(trip.getDestinationLatitudeE6());
+        int destinationLonCell = cell(trip.getDestinationLongitudeE6());
+        long bucket = timeBucket(trip.getPickupEpochMinute());
+        
+        int pickupLatReach = latReach(pickupReachKm);
+        int pickupLonReach = lonReach(pickupReachKm, pickupLat);
+        int destinationLatReach = latReach(destinationReachKm);
+        int destinationLonReach = lonReach(destinationReachKm, destinationLat);
+        
+        List<TripRequest> candidates = new ArrayList<>();
+        int probed = 0;
+        for (long b = bucket - 1; b <= bucket + 1; b++) {
+            for (int pLat = pickupLatCell - pickupLatReach; pLat <= pickupLatCell + pickupLatReach; pLat++) {
+                for (int pLon = pickupLonCell - pickupLonReach; pLon <= pickupLonCell + pickupLonReach; pLon++) {
+                    probed++;
+                    Map<Long, Set<Long>> byDestination = cells.get(pickupKey(pLat, pLon, b));
+                    if (byDestination == null) {
+                        continue;
+                    }
+                    for (int dLat = destinationLatCell - destinationLatReach; dLat <= destinationLatCell + destinationLatReach; dLat++) {
+                        for (int dLon = destinationLonCell - destinationLonReach; dLon <= destinationLonCell + destinationLonReach; dLon++) {
+                            probed++;
+                            Set<Long> ids = byDestination.get(cellKey(dLat, dLon));
+                            if (ids == null) {
+                                continue;
+                            }
+                            for (Long id : ids) {
+                                TripRequest candidate = trips.get(id);
+                                if (candidate != null && !id.equals(trip.getId())) {
+                                    candidates.add(candidate);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        lookups.increment();
+        cellsProbed.add(probed);
+        candidatesReturned.add(candidates.size());
+        lookupNanos.add(System.nanoTime() - start);
+        return candidates;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long lookupCount = lookups.sum();
+        stats.put("size", size());
+        stats.put("occupiedCells", cells.size());
+        stats.put("inserts", inserts.sum());
+        stats.put("removals", removals.sum());
+        stats.put("lookups", lookupCount);
+        stats.put("cellsProbed", cellsProbed.sum());
+        stats.put("candidatesReturned", candidatesReturned.sum());
+        stats.put("avgCandidatesPerLookup", lookupCount == 0 ? 0.0 : (double) candidatesReturned.sum() / lookupCount);
+        stats.put("avgLookupMicros", lookupCount == 0 ? 0.0 : lookupNanos.sum() / 1000.0 / lookupCount);
+        return stats;
+    }
+    
+    private boolean isIndexable(TripRequest trip) {
+        return trip.hasCoordinates() && trip.getRequestedPickupTime() != null;
+    }
+    
+    private int latReach(double reachKm) {
+        return (int) Math.ceil(reachKm / KM_PER_DEGREE / CELL_DEGREES);
+    }
+    
+    private int lonReach(double reachKm, double latitude) {
+        double reachDegrees = reachKm / KM_PER_DEGREE;
+        double worstLatitude = Math.min(Math.abs(latitude) + reachDegrees, 89.0);
+        return (int) Math.ceil(reachDegrees / Math.cos(Math.toRadians(worstLatitude)) / CELL_DEGREES);
+    }
+    
+    private long timeBucket(int epochMinute) {
+        return Math.floorDiv(epochMinute, bucketMinutes);
+    }
+    
+    private static int cell(int microDegrees) {
+        return Math.floorDiv(microDegrees, CELL_MICRODEGREES);
+    }
+    
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+    
+    private static long pickupKey(int latCell, int lonCell, long bucket) {
+        return ((long) (latCell & 0xFFFF) << 48) | ((long) (lonCell & 0xFFFF) << 32) | (bucket & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,9 @@
+package se.gothenburg.taxicarpooling.matching;
+
+/**
+ * Stop order of a shared trip. Both sequences list trip request ids in visiting order, each with
+ * the 1-based position of that stop in the whole route, e.g. pickups {@code 12:1,15:2} and
+ * drop-offs {@code 15:3,12:4}.
+ */
+public record RoutePlan(String pickupSequence, String dropoffSequence, int durationMinutes) {
+}
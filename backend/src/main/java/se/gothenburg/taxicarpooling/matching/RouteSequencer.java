@@ -0,0 +1,304 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the quickest stop order for one group: every member is picked up before they are dropped
+ * off, nobody rides much longer than their own direct trip would take, and at some point at least
+ * two members are on board together, since serving them one after another is not a shared trip.
+ * The shortest order is found by dynamic programming over (visited stops as a bitmask, last stop).
+ * If that order breaks a rule, a depth-first search over the precedence-respecting orders, pruned
+ * by the best route so far, looks for the quickest order that keeps them all.
+ * <p>
+ * Travel times between stops go through a direct-mapped cache keyed by the stops' coordinates, so
+ * the overlapping groups that later passes evaluate rarely reach the {@link TravelTimes} model; on
+ * a miss the whole group is asked for as one table.
+ * All working arrays are allocated up front. An instance is not thread-safe; keep one per thread.
+ */
+public class RouteSequencer {
+    
+    public static final int MAX_MEMBERS = 5;
+    public static final int INFEASIBLE = -1;
+    
+    private static final int MAX_STOPS = 2 * MAX_MEMBERS;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    private static final long EMPTY = Long.MIN_VALUE;
+    
+    private final TravelTimes travelTimes;
+    private final double maxDetourFactor;
+    private final int minDetourSeconds;
+    private final int stopSeconds;
+    
+    // Stops 0..members-1 are the pickups, members..stops-1 the drop-offs in the same member order
+    private int members;
+    private int stops;
+    private final long[] stopKeys = new long[MAX_STOPS];
+    private final int[] stopLat = new int[MAX_STOPS];
+    private final int[] stopLon = new int[MAX_STOPS];
+    private final int[] table = new int[MAX_STOPS * MAX_STOPS];
+    private final int[] matrix = new int[MAX_STOPS * MAX_STOPS];
+    private final int[] maxRideSeconds = new int[MAX_MEMBERS];
+    
+    private final int[] arrival = new int[(1 << MAX_STOPS) * MAX_STOPS];
+    private final byte[] previous = new byte[(1 << MAX_STOPS) * MAX_STOPS];
+    
+    private final int[] order = new int[MAX_STOPS];
+    private final int[] path = new int[MAX_STOPS];
+    private final int[] departures = new int[MAX_MEMBERS];
+    private int bestArrival;
+    private int durationSeconds;
+    
+    private final long[] cacheFrom;
+    private final long[] cacheTo;
+    private final int[] cacheSeconds;
+    private final int cacheMask;
+    
+    private long evaluations;
+    private long detourSearches;
+    private long infeasible;
+    private long cacheLookups;
+    private long cacheHits;
+    
+    public RouteSequencer(TravelTimes travelTimes, double maxDetourFactor, int minDetourSeconds,
+                          int stopSeconds, int cacheSize) {
+        this.travelTimes = travelTimes;
+        this.maxDetourFactor = maxDetourFactor;
+        this.minDetourSeconds = minDetourSeconds;
+        this.stopSeconds = stopSeconds;
+        int size = Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+        this.cacheFrom = new long[size];
+        this.cacheTo = new long[size];
+        this.cacheSeconds = new int[size];
+        this.cacheMask = size - 1;
+        Arrays.fill(cacheFrom, EMPTY);
+    }
+    
+    /**
+     * Sequences the group and returns the route duration in seconds, from arriving at the first
+     * pickup until leaving the last drop-off, or {@link #INFEASIBLE} when no order keeps every
+     * ride within its limit while sharing the car. The order stays available to {@link #plan} until
+     * the next call.
+     */
+    public int sequence(List<TripRequest> group) {
+        members = group.size();
+        if (members < 1 || members > MAX_MEMBERS) {
+            throw new IllegalArgumentException("Groups of " + members + " cannot be sequenced, at most " + MAX_MEMBERS);
+        }
+        stops = 2 * members;
+        evaluations++;
+        
+        for (int m = 0; m < members; m++) {
+            TripRequest trip = group.get(m);
+            stopKeys[m] = key(trip.getPickupLatitudeE6(), trip.getPickupLongitudeE6());
+            stopKeys[members + m] = key(trip.getDestinationLatitudeE6(), trip.getDestinationLongitudeE6());
+        }
+        fillMatrix();
+        for (int m = 0; m < members; m++) {
+            int direct = matrix[m * MAX_STOPS + members + m];
+            maxRideSeconds[m] = Math.max((int) (direct * maxDetourFactor), direct + minDetourSeconds);
+        }
+        
+        int shortest = shortestOrder();
+        if (isAcceptable()) {
+            durationSeconds = shortest + stopSeconds;
+            return durationSeconds;
+        }
+        
+        detourSearches++;
+        bestArrival = UNREACHED;
+        search(0, 0, 0, 0, false);
+        if (bestArrival == UNREACHED) {
+            infeasible++;
+            durationSeconds = INFEASIBLE;
+            return INFEASIBLE;
+        }
+        durationSeconds = bestArrival + stopSeconds;
+        return durationSeconds;
+    }
+    
+    /** The order found by the last successful {@link #sequence} call for the same group. */
+    public RoutePlan plan(List<TripRequest> group) {
+        if (durationSeconds == INFEASIBLE || group.size() != members) {
+            throw new IllegalStateException("No route sequenced for this group");
+        }
+        StringBuilder pickups = new StringBuilder();
+        StringBuilder dropoffs = new StringBuilder();
+        for (int k = 0; k < stops; k++) {
+            int stop = order[k];
+            StringBuilder sequence = stop < members ? pickups : dropoffs;
+            if (sequence.length() > 0) {
+                sequence.append(',');
+            }
+            sequence.append(group.get(stop % members).getId()).append(':').append(k + 1);
+        }
+        return new RoutePlan(pickups.toString(), dropoffs.toString(), (durationSeconds + 59) / 60);
+    }
+    
+    /** Fills {@link #order} with the quickest precedence-respecting order and returns its last arrival. */
+    private int shortestOrder() {
+        int full = (1 << stops) - 1;
+        Arrays.fill(arrival, 0, (full + 1) * stops, UNREACHED);
+        for (int m = 0; m < members; m++) {
+            arrival[(1 << m) * stops + m] = 0;
+        }
+        
+        for (int mask = 1; mask < full; mask++) {
+            for (int last = 0; last < stops; last++) {
+                int at = arrival[mask * stops + last];
+                if (at == UNREACHED) {
+                    continue;
+                }
+                int departure = at + stopSeconds;
+                for (int next = 0; next < stops; next++) {
+                    int bit = 1 << next;
+                    if ((mask & bit) != 0 || (next >= members && (mask & (1 << (next - members))) == 0)) {
+                        continue;
+                    }
+                    int index = (mask | bit) * stops + next;
+                    int nextAt = departure + matrix[last * MAX_STOPS + next];
+                    if (nextAt < arrival[index]) {
+                        arrival[index] = nextAt;
+                        previous[index] = (byte) last;
+                    }
+                }
+            }
+        }
+        
+        int last = members;
+        for (int stop = members + 1; stop < stops; stop++) {
+            if (arrival[full * stops + stop] < arrival[full * stops + last]) {
+                last = stop;
+            }
+        }
+        int shortest = arrival[full * stops + last];
+        int mask = full;
+        for (int k = stops - 1; k >= 0; k--) {
+            order[k] = last;
+            int before = previous[mask * stops + last];
+            mask ^= 1 << last;
+            last = before;
+        }
+        return shortest;
+    }
+    
+    private boolean isAcceptable() {
+        int at = 0;
+        int mask = 0;
+        boolean shared = false;
+        for (int k = 0; k < stops; k++) {
+            int stop = order[k];
+            if (k > 0) {
+                at += stopSeconds + matrix[order[k - 1] * MAX_STOPS + stop];
+            }
+            if (stop < members) {
+                shared |= someoneOnBoard(mask);
+                departures[stop] = at + stopSeconds;
+            } else if (at - departures[stop - members] > maxRideSeconds[stop - members]) {
+                return false;
+            }
+            mask |= 1 << stop;
+        }
+        return shared;
+    }
+    
+    private void search(int depth, int mask, int last, int at, boolean shared) {
+        if (at >= bestArrival) {
+            return;
+        }
+        if (depth == stops) {
+            if (shared) {
+                bestArrival = at;
+                System.arraycopy(path, 0, order, 0, stops);
+            }
+            return;
+        }
+        for (int next = 0; next < stops; next++) {
+            if ((mask & (1 << next)) != 0) {
+                continue;
+            }
+            int nextAt = depth == 0 ? 0 : at + stopSeconds + matrix[last * MAX_STOPS + next];
+            boolean nextShared = shared;
+            if (next < members) {
+                nextShared |= someoneOnBoard(mask);
+                departures[next] = nextAt + stopSeconds;
+            } else {
+                int member = next - members;
+                if ((mask & (1 << member)) == 0 || nextAt - departures[member] > maxRideSeconds[member]) {
+                    continue;
+                }
+            }
+            path[depth] = next;
+            search(depth + 1, mask | (1 << next), next, nextAt, nextShared);
+        }
+    }
+    
+    private boolean someoneOnBoard(int mask) {
+        return Integer.bitCount(mask & ((1 << members) - 1)) > Integer.bitCount(mask >>> members);
+    }
+    
+    /** Fills the travel time matrix from the cache, asking the model for one table on any miss. */
+    private void fillMatrix() {
+        boolean missed = false;
+        for (int i = 0; i < stops; i++) {
+            for (int j = 0; j < stops; j++) {
+                if (i == j) {
+                    matrix[i * MAX_STOPS + j] = 0;
+                    continue;
+                }
+                cacheLookups++;
+                int slot = cacheSlot(stopKeys[i], stopKeys[j]);
+                if (cacheFrom[slot] == stopKeys[i] && cacheTo[slot] == stopKeys[j]) {
+                    cacheHits++;
+                    matrix[i * MAX_STOPS + j] = cacheSeconds[slot];
+                } else {
+                    missed = true;
+                }
+            }
+        }
+        if (!missed) {
+            return;
+        }
+        for (int i = 0; i < stops; i++) {
+            stopLat[i] = (int) (stopKeys[i] >> 32);
+            stopLon[i] = (int) stopKeys[i];
+        }
+        travelTimes.table(stopLat, stopLon, stops, stopLat, stopLon, stops, table);
+        for (int i = 0; i < stops; i++) {
+            for (int j = 0; j < stops; j++) {
+                if (i == j) {
+                    continue;
+                }
+                int seconds = table[i * stops + j];
+                matrix[i * MAX_STOPS + j] = seconds;
+                int slot = cacheSlot(stopKeys[i], stopKeys[j]);
+                cacheFrom[slot] = stopKeys[i];
+                cacheTo[slot] = stopKeys[j];
+                cacheSeconds[slot] = seconds;
+            }
+        }
+    }
+    
+    private int cacheSlot(long from, long to) {
+        long hash = from * 0x9E3779B97F4A7C15L ^ to * 0xC2B2AE3D27D4EB4FL;
+        return (int) (hash ^ (hash >>> 31)) & cacheMask;
+    }
+    
+    private static long key(int latE6, int lonE6) {
+        return ((long) latE6 << 32) | (lonE6 & 0xFFFFFFFFL);
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("travelTimes", travelTimes.getName());
+        stats.put("evaluations", evaluations);
+        stats.put("detourSearches", detourSearches);
+        stats.put("infeasible", infeasible);
+        stats.put("cacheHitRate", cacheLookups == 0 ? 0.0 : (double) cacheHits / cacheLookups);
+        return stats;
+    }
+}
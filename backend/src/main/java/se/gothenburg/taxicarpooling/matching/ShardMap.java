@@ -0,0 +1,77 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+/**
+ * Maps trips onto a fixed number of matchmaking shards. The unit is a region of the map in one
+ * pickup time slot; regions and slots are hashed onto the shards, so each shard gets a spread of
+ * places and hours.
+ * <p>
+ * Slot boundaries cost nothing, since grouping never crosses a slot. Region boundaries would split
+ * pairs whose pickups lie on either side, so the hand-off rule is this: a trip whose pickup lies
+ * within the pickup distance limit of a neighbouring region belongs to the lowest shard of its own
+ * and those regions. Two compatible trips near a shared border then land in the same shard. A pair
+ * is only split near a corner, when one trip also reaches a third region with a lower shard.
+ */
+public class ShardMap {
+    
+    private static final double KM_PER_DEGREE = 6371 * Math.PI / 180;
+    private static final double SAFETY_FACTOR = 1.01;
+    
+    private final int shardCount;
+    private final int regionLatMicrodegrees;
+    private final int regionLonMicrodegrees;
+    private final int slotMinutes;
+    private final double marginLatMicrodegrees;
+    
+    public ShardMap(int shardCount, int regionLatMicrodegrees, int regionLonMicrodegrees, int slotMinutes,
+                    double maxPickupDistanceKm) {
+        this.shardCount = shardCount;
+        this.regionLatMicrodegrees = regionLatMicrodegrees;
+        this.regionLonMicrodegrees = regionLonMicrodegrees;
+        this.slotMinutes = slotMinutes;
+        this.marginLatMicrodegrees = maxPickupDistanceKm * SAFETY_FACTOR / KM_PER_DEGREE * 1_000_000;
+    }
+    
+    public int shardCount() {
+        return shardCount;
+    }
+    
+    public int shardOf(TripRequest trip) {
+        return shardOf(trip.getPickupLatitudeE6(), trip.getPickupLongitudeE6(), trip.getPickupEpochMinute());
+    }
+    
+    /** The shard that matches a trip with this pickup, after the hand-off rule. */
+    public int shardOf(int latitudeE6, int longitudeE6, int epochMinute) {
+        long slot = Math.floorDiv(epochMinute, slotMinutes);
+        int latRegion = Math.floorDiv(latitudeE6, regionLatMicrodegrees);
+        int lonRegion = Math.floorDiv(longitudeE6, regionLonMicrodegrees);
+        double marginLon = marginLatMicrodegrees / Math.cos(Math.toRadians(latitudeE6 / 1_000_000.0));
+        
+        // How close the pickup is to each side of its region decides which neighbours it reaches
+        int fromSouth = latitudeE6 - latRegion * regionLatMicrodegrees;
+        int fromWest = longitudeE6 - lonRegion * regionLonMicrodegrees;
+        int minLat = fromSouth < marginLatMicrodegrees ? -1 : 0;
+        int maxLat = regionLatMicrodegrees - fromSouth <= marginLatMicrodegrees ? 1 : 0;
+        int minLon = fromWest < marginLon ? -1 : 0;
+        int maxLon = regionLonMicrodegrees - fromWest <= marginLon ? 1 : 0;
+        
+        int shard = regionShard(slot, latRegion, lonRegion);
+        for (int dLat = minLat; dLat <= maxLat; dLat++) {
+            for (int dLon = minLon; dLon <= maxLon; dLon++) {
+                shard = Math.min(shard, regionShard(slot, latRegion + dLat, lonRegion + dLon));
+            }
+        }
+        return shard;
+    }
+    
+    int regionShard(long slot, int latRegion, int lonRegion) {
+        long h = slot * 0x9E3779B97F4A7C15L;
+        h ^= latRegion * 0xC2B2AE3D27D4EB4FL;
+        h ^= lonRegion * 0x165667B19E3779F9L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return (int) Math.floorMod(h, (long) shardCount);
+    }
+}
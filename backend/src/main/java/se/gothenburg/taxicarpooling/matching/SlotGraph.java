@@ -0,0 +1,49 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.BitSet;
+
+/**
+ * Compatibility graph of the trips in one time slot, indexed by the trips' position in the slot.
+ */
+public class SlotGraph {
+    
+    private final String slotKey;
+    private final long[] tripIds;
+    private final BitSet[] adjacency;
+    
+    public SlotGraph(String slotKey, long[] tripIds) {
+        this.slotKey = slotKey;
+        this.tripIds = tripIds;
+        this.adjacency = new BitSet[tripIds.length];
+        for (int i = 0; i < tripIds.length; i++) {
+            adjacency[i] = new BitSet(tripIds.length);
+        }
+    }
+    
+    public void connect(int i, int j) {
+        if (i != j) {
+            adjacency[i].set(j);
+            adjacency[j].set(i);
+        }
+    }
+    
+    public boolean areCompatible(int i, int j) {
+        return adjacency[i].get(j);
+    }
+    
+    public BitSet neighbours(int i) {
+        return adjacency[i];
+    }
+    
+    public String getSlotKey() {
+        return slotKey;
+    }
+    
+    public long tripId(int position) {
+        return tripIds[position];
+    }
+    
+    public int size() {
+        return tripIds.length;
+    }
+}
@@ -0,0 +1,90 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks that partition keys are hashed onto. A caller locks every stripe its keys map
+ * to, always in ascending stripe order, so two callers can never wait on each other in a cycle.
+ */
+public class StripedLocks {
+    
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    
+    public StripedLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(stripeCount - 1, 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+    
+    public Held lockAll(long[] keys) {
+        int[] held = stripesFor(keys);
+        long start = 0;
+        boolean waited = false;
+        for (int stripe : held) {
+            ReentrantLock lock = stripes[stripe];
+            if (!lock.tryLock()) {
+                if (!waited) {
+                    waited = true;
+                    start = System.nanoTime();
+                }
+                lock.lock();
+            }
+        }
+        acquisitions.increment();
+        if (waited) {
+            contended.increment();
+            waitNanos.add(System.nanoTime() - start);
+        }
+        return () -> {
+            for (int i = held.length - 1; i >= 0; i--) {
+                stripes[held[i]].unlock();
+            }
+        };
+    }
+    
+    int[] stripesFor(long[] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = stripe(keys[i]);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return Arrays.copyOf(indexes, distinct);
+    }
+    
+    private int stripe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("stripes", stripes.length);
+        stats.put("acquisitions", acquisitions.sum());
+        stats.put("contended", contended.sum());
+        stats.put("waitMillis", waitNanos.sum() / 1_000_000);
+        return stats;
+    }
+    
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
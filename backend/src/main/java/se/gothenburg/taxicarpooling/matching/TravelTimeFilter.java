@@ -0,0 +1,96 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second compatibility pass for pairs the {@link GeoKernel} accepted: the drive from the new
+ * trip's pickup to each candidate's pickup, and between the destinations, must fit the time limits.
+ * Straight-line distance cannot see the river or a missing bridge, driving time can. Both legs of
+ * all candidates are answered by one table per side.
+ */
+public class TravelTimeFilter {
+    
+    private final TravelTimes travelTimes;
+    private final int maxPickupSeconds;
+    private final int maxDestinationSeconds;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    
+    public TravelTimeFilter(TravelTimes travelTimes, int maxPickupSeconds, int maxDestinationSeconds) {
+        this.travelTimes = travelTimes;
+        this.maxPickupSeconds = maxPickupSeconds;
+        this.maxDestinationSeconds = maxDestinationSeconds;
+    }
+    
+    /**
+     * Keeps the rows, indexes into {@code candidates}, whose travel times from {@code trip} are
+     * within the limits, compacting them to the front of {@code rows}, and returns how many remain.
+     */
+    public int filter(TripRequest trip, List<TripRequest> candidates, int[] rows, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        Scratch s = scratch.get();
+        s.ensureCapacity(count);
+        for (int k = 0; k < count; k++) {
+            TripRequest candidate = candidates.get(rows[k]);
+            s.pickupLat[k] = candidate.getPickupLatitudeE6();
+            s.pickupLon[k] = candidate.getPickupLongitudeE6();
+            s.destinationLat[k] = candidate.getDestinationLatitudeE6();
+            s.destinationLon[k] = candidate.getDestinationLongitudeE6();
+        }
+        s.fromLat[0] = trip.getPickupLatitudeE6();
+        s.fromLon[0] = trip.getPickupLongitudeE6();
+        travelTimes.table(s.fromLat, s.fromLon, 1, s.pickupLat, s.pickupLon, count, s.pickupSeconds);
+        s.fromLat[0] = trip.getDestinationLatitudeE6();
+        s.fromLon[0] = trip.getDestinationLongitudeE6();
+        travelTimes.table(s.fromLat, s.fromLon, 1, s.destinationLat, s.destinationLon, count, s.destinationSeconds);
+        
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            if (s.pickupSeconds[k] <= maxPickupSeconds && s.destinationSeconds[k] <= maxDestinationSeconds) {
+                rows[kept++] = rows[k];
+            }
+        }
+        evaluated.add(count);
+        rejected.add(count - kept);
+        return kept;
+    }
+    
+    public long getEvaluated() {
+        return evaluated.sum();
+    }
+    
+    public long getRejected() {
+        return rejected.sum();
+    }
+    
+    private static final class Scratch {
+        
+        final int[] fromLat = new int[1];
+        final int[] fromLon = new int[1];
+        int[] pickupLat = new int[0];
+        int[] pickupLon = new int[0];
+        int[] destinationLat = new int[0];
+        int[] destinationLon = new int[0];
+        int[] pickupSeconds = new int[0];
+        int[] destinationSeconds = new int[0];
+        
+        void ensureCapacity(int count) {
+            if (pickupLat.length < count) {
+                int capacity = Math.max(count, 2 * pickupLat.length);
+                pickupLat = new int[capacity];
+                pickupLon = new int[capacity];
+                destinationLat = new int[capacity];
+                destinationLon = new int[capacity];
+                pickupSeconds = new int[capacity];
+                destinationSeconds = new int[capacity];
+            }
+        }
+    }
+}
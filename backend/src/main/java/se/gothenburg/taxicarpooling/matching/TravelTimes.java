@@ -0,0 +1,25 @@
+package se.gothenburg.taxicarpooling.matching;
+
+/**
+ * Driving time between two points given in micro-degrees. Implementations must be safe to call
+ * from several threads at once.
+ */
+public interface TravelTimes {
+    
+    String getName();
+    
+    int seconds(int fromLatE6, int fromLonE6, int toLatE6, int toLonE6);
+    
+    /**
+     * Fills {@code out[i * toCount + j]} with the time from point i of the first set to point j of
+     * the second. Models that can answer a whole table faster than pair by pair override this.
+     */
+    default void table(int[] fromLatE6, int[] fromLonE6, int fromCount,
+                       int[] toLatE6, int[] toLonE6, int toCount, int[] out) {
+        for (int i = 0; i < fromCount; i++) {
+            for (int j = 0; j < toCount; j++) {
+                out[i * toCount + j] = seconds(fromLatE6[i], fromLonE6[i], toLatE6[j], toLonE6[j]);
+            }
+        }
+    }
+}
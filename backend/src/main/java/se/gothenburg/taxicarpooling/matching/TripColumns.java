@@ -0,0 +1,104 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Structure-of-arrays copy of the fields the compatibility checks read, so the pair loop works on
+ * primitive columns instead of entities. Coordinates come from the entity's micro-degrees and pickup
+ * times are epoch minutes. Instances are reused between calls.
+ */
+public final class TripColumns {
+    
+    int size;
+    long[] ids;
+    double[] pickupLat;
+    double[] pickupLon;
+    double[] pickupCosLat;
+    double[] destinationLat;
+    double[] destinationLon;
+    double[] destinationCosLat;
+    int[] pickupMinute;
+    boolean[] wheelchair;
+    
+    private int[] rowBuffer = new int[0];
+    
+    public TripColumns() {
+        this(64);
+    }
+    
+    public TripColumns(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long id(int row) {
+        return ids[row];
+    }
+    
+    public int[] rowBuffer() {
+        if (rowBuffer.length < size) {
+            rowBuffer = new int[ids.length];
+        }
+        return rowBuffer;
+    }
+    
+    public void addAll(Collection<TripRequest> trips) {
+        ensureCapacity(size + trips.size());
+        for (TripRequest trip : trips) {
+            add(trip);
+        }
+    }
+    
+    public int add(TripRequest trip) {
+        ensureCapacity(size + 1);
+        int row = size++;
+        ids[row] = trip.getId() == null ? -1 : trip.getId();
+        pickupLat[row] = MicroDegreesConverter.toDouble(trip.getPickupLatitudeE6());
+        pickupLon[row] = MicroDegreesConverter.toDouble(trip.getPickupLongitudeE6());
+        pickupCosLat[row] = Math.cos(Math.toRadians(pickupLat[row]));
+        destinationLat[row] = MicroDegreesConverter.toDouble(trip.getDestinationLatitudeE6());
+        destinationLon[row] = MicroDegreesConverter.toDouble(trip.getDestinationLongitudeE6());
+        destinationCosLat[row] = Math.cos(Math.toRadians(destinationLat[row]));
+        pickupMinute[row] = trip.getPickupEpochMinute();
+        wheelchair[row] = trip.isNeedsWheelchairAccess();
+        return row;
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newCapacity = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, newCapacity);
+            pickupLat = Arrays.copyOf(pickupLat, newCapacity);
+            pickupLon = Arrays.copyOf(pickupLon, newCapacity);
+            pickupCosLat = Arrays.copyOf(pickupCosLat, newCapacity);
+            destinationLat = Arrays.copyOf(destinationLat, newCapacity);
+            destinationLon = Arrays.copyOf(destinationLon, newCapacity);
+            destinationCosLat = Arrays.copyOf(destinationCosLat, newCapacity);
+            pickupMinute = Arrays.copyOf(pickupMinute, newCapacity);
+            wheelchair = Arrays.copyOf(wheelchair, newCapacity);
+        }
+    }
+    
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        pickupLat = new double[capacity];
+        pickupLon = new double[capacity];
+        pickupCosLat = new double[capacity];
+        destinationLat = new double[capacity];
+        destinationLon = new double[capacity];
+        destinationCosLat = new double[capacity];
+        pickupMinute = new int[capacity];
+        wheelchair = new boolean[capacity];
+    }
+}
@@ -0,0 +1,72 @@
+package se.gothenburg.taxicarpooling.matching;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link GeoKernel} that evaluates the distance lower bound for a whole vector of candidate rows at
+ * once. Needs the JVM to run with {@code --add-modules jdk.incubator.vector}; rows that survive the
+ * vector filter still go through the scalar exact checks.
+ */
+public class VectorGeoKernel extends GeoKernel {
+    
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    
+    public VectorGeoKernel(double maxPickupDistanceKm, double maxDestinationDistanceKm, int maxTimeDifferenceMinutes) {
+        super(maxPickupDistanceKm, maxDestinationDistanceKm, maxTimeDifferenceMinutes);
+    }
+    
+    @Override
+    public String getName() {
+        return "vector-" + SPECIES.length();
+    }
+    
+    @Override
+    public int filterCompatible(TripColumns c, int newRow, int[] out) {
+        int count = 0;
+        int upperBound = SPECIES.loopBound(c.size);
+        int row = 0;
+        for (; row < upperBound; row += SPECIES.length()) {
+            VectorMask<Double> mask = lanesMayBeWithin(c.pickupLat, c.pickupLon, c.pickupCosLat, row, newRow, pickupHaversineLimit)
+                .and(lanesMayBeWithin(c.destinationLat, c.destinationLon, c.destinationCosLat, row, newRow, destinationHaversineLimit));
+            long bits = mask.toLong();
+            while (bits != 0) {
+                int existingRow = row + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (existingRow != newRow && isExactlyCompatible(c, existingRow, newRow)) {
+                    out[count++] = existingRow;
+                }
+            }
+        }
+        for (; row < c.size; row++) {
+            if (row != newRow && isCompatible(c, row, newRow)) {
+                out[count++] = row;
+            }
+        }
+        return count;
+    }
+    
+    private boolean isExactlyCompatible(TripColumns c, int existingRow, int newRow) {
+        return !(c.wheelchair[existingRow] && c.wheelchair[newRow])
+            && isTimeCompatible(c, existingRow, newRow)
+            && isLocationCompatible(c, existingRow, newRow);
+    }
+    
+    private static VectorMask<Double> lanesMayBeWithin(double[] lat, double[] lon, double[] cosLat,
+                                                    int row, int newRow, double haversineLimit) {
+        DoubleVector halfLat = DoubleVector.fromArray(SPECIES, lat, row)
+            .sub(lat[newRow]).abs().mul(HALF_DEGREE_IN_RADIANS);
+        DoubleVector halfLon = DoubleVector.fromArray(SPECIES, lon, row)
+            .sub(lon[newRow]).abs().mul(HALF_DEGREE_IN_RADIANS);
+        VectorMask<Double> inRange = halfLat.compare(VectorOperators.LE, MAX_BOUND_ANGLE)
+            .and(halfLon.compare(VectorOperators.LE, MAX_BOUND_ANGLE));
+        
+        DoubleVector sinLat = halfLat.sub(halfLat.mul(halfLat).mul(halfLat).div(6));
+        DoubleVector sinLon = halfLon.sub(halfLon.mul(halfLon).mul(halfLon).div(6));
+        DoubleVector bound = sinLat.mul(sinLat).add(
+            DoubleVector.fromArray(SPECIES, cosLat, row).mul(cosLat[newRow]).mul(sinLon).mul(sinLon));
+        return inRange.and(bound.compare(VectorOperators.LE, haversineLimit));
+    }
+}
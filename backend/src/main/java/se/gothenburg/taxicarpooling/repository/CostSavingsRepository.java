@@ -0,0 +1,87 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import se.gothenburg.taxicarpooling.entity.CostSavings;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface CostSavingsRepository extends JpaRepository<CostSavings, Long> {
+    
+    // Savings relative to what every completed trip would have cost at the individual rate
+    String SAVINGS_PERCENTAGE =
+        "CASE WHEN total_individual_cost + total_shared_cost + total_savings > 0 " +
+        "THEN ROUND(100 * total_savings / (total_individual_cost + total_shared_cost + total_savings), 2) ELSE 0 END";
+    
+    List<CostSavings> findByDateBetweenOrderByDate(LocalDate from, LocalDate to);
+    
+    /** Adds one completed trip to its day, creating the day on its first trip. */
+    @Modifying
+    @Query(value = "INSERT INTO cost_savings (date, individual_trips_count, shared_trips_count, passengers_in_shared_trips, " +
+                   "total_individual_cost, total_shared_cost, total_savings, savings_percentage, created_at) " +
+                   "VALUES (:date, :individualTrips, :sharedTrips, :sharedPassengers, :individualCost, :sharedCost, :savings, " +
+                   ":savingsPercentage, CURRENT_TIMESTAMP) " +
+                   "ON DUPLICATE KEY UPDATE " +
+                   // First, and only from the old values, so the order in which assignments see each other does not matter
+                   "savings_percentage = CASE WHEN total_individual_cost + total_shared_cost + total_savings + " +
+                   "VALUES(total_individual_cost) + VALUES(total_shared_cost) + VALUES(total_savings) > 0 " +
+                   "THEN ROUND(100 * (total_savings + VALUES(total_savings)) / (total_individual_cost + total_shared_cost + " +
+                   "total_savings + VALUES(total_individual_cost) + VALUES(total_shared_cost) + VALUES(total_savings)), 2) ELSE 0 END, " +
+                   "individual_trips_count = individual_trips_count + VALUES(individual_trips_count), " +
+                   "shared_trips_count = shared_trips_count + VALUES(shared_trips_count), " +
+                   "passengers_in_shared_trips = passengers_in_shared_trips + VALUES(passengers_in_shared_trips), " +
+                   "total_individual_cost = total_individual_cost + VALUES(total_individual_cost), " +
+                   "total_shared_cost = total_shared_cost + VALUES(total_shared_cost), " +
+                   "total_savings = total_savings + VALUES(total_savings)",
+           nativeQuery = true)
+    int addCompletedTrip(
+        @Param("date") LocalDate date,
+        @Param("individualTrips") int individualTrips,
+        @Param("sharedTrips") int sharedTrips,
+        @Param("sharedPassengers") int sharedPassengers,
+        @Param("individualCost") BigDecimal individualCost,
+        @Param("sharedCost") BigDecimal sharedCost,
+        @Param("savings") BigDecimal savings,
+        @Param("savingsPercentage") BigDecimal savingsPercentage);
+    
+    @Modifying
+    @Query(value = "DELETE FROM cost_savings WHERE date >= :from AND date < :to", nativeQuery = true)
+    int deleteDays(@Param("from") LocalDate from, @Param("to") LocalDate to);
+    
+    /**
+     * Recomputes the days booked in [from, to) from completed trip requests. The range predicate on
+     * created_at lets the scan use idx_trip_requests_completed_day.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO cost_savings (date, individual_trips_count, shared_trips_count, passengers_in_shared_trips, " +
+                   "total_individual_cost, total_shared_cost, total_savings, savings_percentage, created_at) " +
+                   "SELECT DATE(tr.created_at), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NULL THEN 1 ELSE 0 END), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN 1 ELSE 0 END), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN tr.passenger_count ELSE 0 END), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NULL THEN COALESCE(tr.estimated_cost, :individualRate) ELSE 0 END), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN COALESCE(tr.estimated_cost, 0) ELSE 0 END), " +
+                   "SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN :individualRate - COALESCE(tr.estimated_cost, 0) ELSE 0 END), " +
+                   "0, CURRENT_TIMESTAMP " +
+                   "FROM trip_requests tr " +
+                   "WHERE tr.status = 'COMPLETED' AND tr.created_at >= :from AND tr.created_at < :to " +
+                   "GROUP BY DATE(tr.created_at)",
+           nativeQuery = true)
+    int insertDaysFromTrips(
+        @Param("from") LocalDateTime from,
+        @Param("to") LocalDateTime to,
+        @Param("individualRate") BigDecimal individualRate);
+    
+    @Modifying
+    @Query(value = "UPDATE cost_savings SET savings_percentage = " + SAVINGS_PERCENTAGE +
+                   " WHERE date >= :from AND date < :to",
+           nativeQuery = true)
+    int refreshSavingsPercentage(@Param("from") LocalDate from, @Param("to") LocalDate to);
+}
@@ -0,0 +1,29 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.DispatchOfferLapse;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface DispatchOfferLapseRepository extends JpaRepository<DispatchOfferLapse, Long> {
+    
+    List<DispatchOfferLapse> findBySharedTripIdIn(Collection<Long> sharedTripIds);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM DispatchOfferLapse l WHERE l.sharedTripId = :sharedTripId")
+    int deleteBySharedTripId(@Param("sharedTripId") Long sharedTripId);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM DispatchOfferLapse l WHERE l.sharedTripId NOT IN " +
+           "(SELECT st.id FROM SharedTrip st WHERE st.status = 'PENDING')")
+    int deleteUnlessPending();
+}
@@ -0,0 +1,46 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.DispatchOffer;
+
+import java.util.List;
+
+@Repository
+public interface DispatchOfferRepository extends JpaRepository<DispatchOffer, Long> {
+    
+    // Inserts nothing when the trip or the driver already has an open offer
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO dispatch_offers (shared_trip_id, driver_id, pickup_km, expires_at) " +
+                   "VALUES (:sharedTripId, :driverId, :pickupKm, TIMESTAMPADD(SECOND, :timeoutSeconds, CURRENT_TIMESTAMP))",
+           nativeQuery = true)
+    int offer(@Param("sharedTripId") Long sharedTripId, @Param("driverId") Long driverId,
+              @Param("pickupKm") double pickupKm, @Param("timeoutSeconds") long timeoutSeconds);
+    
+    @Query("SELECT o FROM DispatchOffer o WHERE o.expiresAt < CURRENT_TIMESTAMP")
+    List<DispatchOffer> findExpired();
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM DispatchOffer o WHERE o.sharedTripId = :sharedTripId AND o.driverId = :driverId " +
+           "AND o.expiresAt < CURRENT_TIMESTAMP")
+    int deleteExpired(@Param("sharedTripId") Long sharedTripId, @Param("driverId") Long driverId);
+    
+    // Only the driver the trip was offered to wins, and only until the offer lapses
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM DispatchOffer o WHERE o.sharedTripId = :sharedTripId AND o.driverId = :driverId " +
+           "AND o.expiresAt >= CURRENT_TIMESTAMP")
+    int take(@Param("sharedTripId") Long sharedTripId, @Param("driverId") Long driverId);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM DispatchOffer o WHERE o.sharedTripId NOT IN " +
+           "(SELECT st.id FROM SharedTrip st WHERE st.status = 'PENDING')")
+    int deleteUnlessPending();
+}
@@ -0,0 +1,21 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import se.gothenburg.taxicarpooling.entity.DriverVehicle;
+import se.gothenburg.taxicarpooling.entity.User;
+
+import java.util.List;
+
+@Repository
+public interface DriverVehicleRepository extends JpaRepository<DriverVehicle, Long> {
+    
+    List<DriverVehicle> findByDriverId(Long driverId);
+    
+    @Query("SELECT dv FROM DriverVehicle dv JOIN FETCH dv.driver d WHERE dv.status = :status AND d.userType = :userType")
+    List<DriverVehicle> findByStatusAndDriverType(
+        @Param("status") DriverVehicle.VehicleStatus status,
+        @Param("userType") User.UserType userType);
+}
@@ -0,0 +1,30 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.MatchmakingNode;
+
+import java.util.List;
+
+@Repository
+public interface MatchmakingNodeRepository extends JpaRepository<MatchmakingNode, String> {
+    
+    // Heartbeats are written and aged with the database clock, like the shard leases
+    @Query("SELECT n.nodeId FROM MatchmakingNode n " +
+           "WHERE n.heartbeatAt >= timestampadd(second, -:seconds, CURRENT_TIMESTAMP) ORDER BY n.nodeId")
+    List<String> findLiveNodeIds(@Param("seconds") long seconds);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE MatchmakingNode n SET n.heartbeatAt = CURRENT_TIMESTAMP WHERE n.nodeId = :nodeId")
+    int heartbeat(@Param("nodeId") String nodeId);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM MatchmakingNode n WHERE n.heartbeatAt < timestampadd(second, -:seconds, CURRENT_TIMESTAMP)")
+    int deleteStale(@Param("seconds") long seconds);
+}
@@ -0,0 +1,80 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.NotificationOutbox;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface NotificationOutboxRepository extends JpaRepository<NotificationOutbox, Long> {
+    
+    // A claim that ran out counts as due again, its drain stopped before finishing. Due times are
+    // compared and set by the database clock, the one every node shares. Setting them is native SQL,
+    // since HQL has no sub-second unit short of nanoseconds, which H2 turns into a slow decimal division.
+    @Query("SELECT o.id FROM NotificationOutbox o WHERE o.status IN ('PENDING', 'CLAIMED') " +
+           "AND o.nextAttemptAt <= CURRENT_TIMESTAMP ORDER BY o.id")
+    List<Long> findDueIds(Pageable pageable);
+    
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE notification_outbox SET status = 'CLAIMED', claim_token = :claimToken, " +
+                   "next_attempt_at = TIMESTAMPADD(MICROSECOND, :claimMicros, CURRENT_TIMESTAMP) " +
+                   "WHERE id IN (:ids) AND status IN ('PENDING', 'CLAIMED') AND next_attempt_at <= CURRENT_TIMESTAMP",
+           nativeQuery = true)
+    int claim(
+        @Param("ids") Collection<Long> ids,
+        @Param("claimToken") String claimToken,
+        @Param("claimMicros") long claimMicros);
+    
+    List<NotificationOutbox> findByClaimTokenOrderById(String claimToken);
+    
+    @Query("SELECT MIN(o.createdAt) FROM NotificationOutbox o WHERE o.status IN ('PENDING', 'CLAIMED')")
+    LocalDateTime findOldestPendingCreatedAt();
+    
+    long countByStatus(NotificationOutbox.OutboxStatus status);
+    
+    // The updates after a send only touch rows this node still holds; a claim that ran out may
+    // already be another node's, or published by it
+    @Transactional
+    @Modifying
+    @Query("UPDATE NotificationOutbox o SET o.status = 'PUBLISHED', o.publishedAt = :now, o.attempts = o.attempts + 1 " +
+           "WHERE o.id IN :ids AND o.status = 'CLAIMED' AND o.claimToken = :claimToken")
+    int markPublished(
+        @Param("ids") Collection<Long> ids,
+        @Param("claimToken") String claimToken,
+        @Param("now") LocalDateTime now);
+    
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE notification_outbox SET status = 'PENDING', claim_token = NULL, attempts = attempts + 1, " +
+                   "last_error = :error, next_attempt_at = TIMESTAMPADD(MICROSECOND, :backoffMicros, CURRENT_TIMESTAMP) " +
+                   "WHERE id IN (:ids) AND status = 'CLAIMED' AND claim_token = :claimToken",
+           nativeQuery = true)
+    int retry(
+        @Param("ids") Collection<Long> ids,
+        @Param("claimToken") String claimToken,
+        @Param("error") String error,
+        @Param("backoffMicros") long backoffMicros);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE NotificationOutbox o SET o.status = 'FAILED', o.claimToken = NULL, o.attempts = o.attempts + 1, " +
+           "o.lastError = :error WHERE o.id IN :ids AND o.status = 'CLAIMED' AND o.claimToken = :claimToken")
+    int deadLetter(
+        @Param("ids") Collection<Long> ids,
+        @Param("claimToken") String claimToken,
+        @Param("error") String error);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM NotificationOutbox o WHERE o.status = 'PUBLISHED' AND o.publishedAt < :before")
+    int deletePublishedBefore(@Param("before") LocalDateTime before);
+}
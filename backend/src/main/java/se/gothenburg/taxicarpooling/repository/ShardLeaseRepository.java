@@ -0,0 +1,41 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.ShardLease;
+
+import java.util.List;
+
+@Repository
+public interface ShardLeaseRepository extends JpaRepository<ShardLease, Integer> {
+    
+    // Lease times are compared with the database clock, never with a node's own
+    @Query("SELECT l.shardId FROM ShardLease l WHERE l.owner IS NULL OR l.leaseUntil < CURRENT_TIMESTAMP ORDER BY l.shardId")
+    List<Integer> findAcquirable();
+    
+    @Query("SELECT l.shardId FROM ShardLease l WHERE l.owner = :owner ORDER BY l.shardId")
+    List<Integer> findShardIdsByOwner(@Param("owner") String owner);
+    
+    // Wins only if the lease is still free or expired when the row is written
+    @Transactional
+    @Modifying
+    @Query("UPDATE ShardLease l SET l.owner = :owner, l.leaseUntil = timestampadd(second, :leaseSeconds, CURRENT_TIMESTAMP), " +
+           "l.acquiredAt = CURRENT_TIMESTAMP " +
+           "WHERE l.shardId = :shardId AND (l.owner IS NULL OR l.leaseUntil < CURRENT_TIMESTAMP)")
+    int acquire(@Param("shardId") Integer shardId, @Param("owner") String owner, @Param("leaseSeconds") long leaseSeconds);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE ShardLease l SET l.leaseUntil = timestampadd(second, :leaseSeconds, CURRENT_TIMESTAMP) " +
+           "WHERE l.owner = :owner")
+    int renewAll(@Param("owner") String owner, @Param("leaseSeconds") long leaseSeconds);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE ShardLease l SET l.owner = NULL, l.leaseUntil = CURRENT_TIMESTAMP WHERE l.shardId = :shardId AND l.owner = :owner")
+    int release(@Param("shardId") Integer shardId, @Param("owner") String owner);
+}
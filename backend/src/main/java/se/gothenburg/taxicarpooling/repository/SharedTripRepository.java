@@ -1,10 +1,15 @@
 package se.gothenburg.taxicarpooling.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import se.gothenburg.taxicarpooling.dto.SharedTripSummary;
 import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.User;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -14,6 +19,19 @@ public interface SharedTripRepository extends JpaRepository<SharedTrip, Long> {
     
     List<SharedTrip> findByAssignedDriverId(Long driverId);
     
+    @Query("SELECT st.assignedDriver.id FROM SharedTrip st WHERE st.status IN ('ASSIGNED', 'IN_PROGRESS')")
+    List<Long> findBusyDriverIds();
+    
+    String SHARED_TRIP_SUMMARY_SELECT =
+        "SELECT new se.gothenburg.taxicarpooling.dto.SharedTripSummary(st.id, st.status, st.passengerCount, " +
+        "st.estimatedCost, d.id, st.createdAt) FROM SharedTrip st LEFT JOIN st.assignedDriver d ";
+    
+    @Query(SHARED_TRIP_SUMMARY_SELECT + "WHERE st.id IN :ids")
+    List<SharedTripSummary> findSummariesByIdIn(@Param("ids") Collection<Long> ids);
+    
+    @Query(SHARED_TRIP_SUMMARY_SELECT + "WHERE st.status IN :statuses ORDER BY st.createdAt, st.id")
+    List<SharedTripSummary> findSummariesByStatusIn(@Param("statuses") Collection<SharedTrip.TripStatus> statuses);
+    
     @Query("SELECT st FROM SharedTrip st WHERE st.status IN ('PENDING', 'ASSIGNED') " +
            "ORDER BY st.createdAt ASC")
     List<SharedTrip> findActiveTrips();
@@ -21,4 +39,21 @@ public interface SharedTripRepository extends JpaRepository<SharedTrip, Long> {
     @Query("SELECT COUNT(st) FROM SharedTrip st WHERE st.status = 'COMPLETED' " +
            "AND DATE(st.createdAt) = CURRENT_DATE")
     Long countCompletedSharedTripsToday();
-}
\ No newline at end of file
+    
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE SharedTrip st SET st.status = :to, st.version = st.version + 1 " +
+           "WHERE st.id = :id AND st.status IN :from")
+    int transitionStatus(
+        @Param("id") Long id,
+        @Param("from") Collection<SharedTrip.TripStatus> from,
+        @Param("to") SharedTrip.TripStatus to);
+    
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE SharedTrip st SET st.status = :assigned, st.assignedDriver = :driver, st.version = st.version + 1 " +
+           "WHERE st.id = :id AND st.status = :pending")
+    int assignDriver(
+        @Param("id") Long id,
+        @Param("driver") User driver,
+        @Param("assigned") SharedTrip.TripStatus assigned,
+        @Param("pending") SharedTrip.TripStatus pending);
+}
@@ -0,0 +1,46 @@
+package se.gothenburg.taxicarpooling.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import jakarta.persistence.LockModeType;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface TripChangeRepository extends JpaRepository<TripChange, Long> {
+    
+    // Locked so that two nodes sequencing at once wait for each other instead of numbering the same rows
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT c FROM TripChange c WHERE c.seq IS NULL ORDER BY c.id")
+    List<TripChange> findUnsequencedForUpdate(Pageable pageable);
+    
+    @Query("SELECT COALESCE(MAX(c.seq), 0) FROM TripChange c")
+    long findMaxSeq();
+    
+    @Query("SELECT MIN(c.seq) FROM TripChange c")
+    Long findMinSeq();
+    
+    // Rows not yet sequenced are included, as are rows from just before the mark in case they were numbered late
+    @Query("SELECT DISTINCT c.entityId FROM TripChange c WHERE c.entityType = :type " +
+           "AND (c.seq > :after OR c.seq IS NULL OR c.changedAt >= :since)")
+    List<Long> findEntityIdsChangedSince(
+        @Param("type") TripChange.EntityType type,
+        @Param("after") long after,
+        @Param("since") LocalDateTime since);
+    
+    @Query("SELECT c FROM TripChange c WHERE c.seq > :after ORDER BY c.seq")
+    List<TripChange> findSequencedAfter(@Param("after") long after, Pageable pageable);
+    
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM TripChange c WHERE c.seq IS NOT NULL AND c.changedAt < :before")
+    int deleteSequencedBefore(@Param("before") LocalDateTime before);
+}
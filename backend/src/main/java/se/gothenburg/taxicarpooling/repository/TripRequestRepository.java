@@ -1,15 +1,27 @@
 package se.gothenburg.taxicarpooling.repository;
 
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import se.gothenburg.taxicarpooling.dto.PendingTripKey;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
 import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
 
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface TripRequestRepository extends JpaRepository<TripRequest, Long> {
@@ -17,10 +29,77 @@ public interface TripRequestRepository extends JpaRepository<TripRequest, Long>
     List<TripRequest> findByStatusAndRequestedPickupTimeAfter(
         TripRequest.TripStatus status, LocalDateTime time);
     
-    List<TripRequest> findByUserIdOrderByCreatedAtDesc(Long userId);
-    
     List<TripRequest> findByStatusIn(List<TripRequest.TripStatus> statuses);
     
+    List<TripRequest> findBySharedTripId(Long sharedTripId);
+    
+    List<TripRequest> findBySharedTripIdIn(Collection<Long> sharedTripIds);
+    
+    @Query("SELECT DISTINCT tr.assignedDriver.id FROM TripRequest tr " +
+           "WHERE tr.status IN ('ASSIGNED', 'PICKUP_CONFIRMED', 'IN_TRANSIT')")
+    List<Long> findBusyDriverIds();
+    
+    // Rows per round trip for streamed listings; MySQL needs useCursorFetch for this to take effect
+    String STREAM_FETCH_SIZE = "500";
+    
+    String TRIP_SUMMARY_SELECT =
+        "SELECT new se.gothenburg.taxicarpooling.dto.TripSummary(tr.id, u.id, u.firstName, u.lastName, " +
+        "tr.pickupAddress, tr.destinationAddress, tr.pickupLatitude, tr.pickupLongitude, " +
+        "tr.destinationLatitude, tr.destinationLongitude, tr.requestedPickupTime, tr.status, tr.priority, " +
+        "tr.passengerCount, tr.needsWheelchairAccess, tr.needsAssistance, tr.estimatedCost, st.id, d.id, tr.createdAt) " +
+        "FROM TripRequest tr JOIN tr.user u LEFT JOIN tr.sharedTrip st LEFT JOIN tr.assignedDriver d ";
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE tr.status = :status AND tr.requestedPickupTime > :time " +
+           "ORDER BY tr.requestedPickupTime, tr.id")
+    List<TripSummary> findSummariesByStatusAndRequestedPickupTimeAfter(
+        @Param("status") TripRequest.TripStatus status,
+        @Param("time") LocalDateTime time);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE tr.status = :status AND tr.requestedPickupTime > :time " +
+           "AND (tr.requestedPickupTime > :afterTime OR (tr.requestedPickupTime = :afterTime AND tr.id > :afterId)) " +
+           "ORDER BY tr.requestedPickupTime, tr.id")
+    List<TripSummary> findSummariesByStatusAndRequestedPickupTimeAfter(
+        @Param("status") TripRequest.TripStatus status,
+        @Param("time") LocalDateTime time,
+        @Param("afterTime") LocalDateTime afterTime,
+        @Param("afterId") long afterId,
+        Pageable pageable);
+    
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    @Query(TRIP_SUMMARY_SELECT + "WHERE tr.status = :status AND tr.requestedPickupTime > :time " +
+           "ORDER BY tr.requestedPickupTime, tr.id")
+    Stream<TripSummary> streamSummariesByStatusAndRequestedPickupTimeAfter(
+        @Param("status") TripRequest.TripStatus status,
+        @Param("time") LocalDateTime time);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE tr.status IN :statuses AND tr.requestedPickupTime > :time " +
+           "ORDER BY tr.requestedPickupTime, tr.id")
+    List<TripSummary> findSummariesByStatusInAndRequestedPickupTimeAfter(
+        @Param("statuses") Collection<TripRequest.TripStatus> statuses,
+        @Param("time") LocalDateTime time);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE tr.id IN :ids")
+    List<TripSummary> findSummariesByIdIn(@Param("ids") Collection<Long> ids);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE u.id = :userId ORDER BY tr.createdAt DESC, tr.id DESC")
+    List<TripSummary> findSummariesByUserId(@Param("userId") Long userId);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE u.id = :userId ORDER BY tr.createdAt DESC, tr.id DESC")
+    List<TripSummary> findSummariesByUserId(@Param("userId") Long userId, Pageable pageable);
+    
+    @Query(TRIP_SUMMARY_SELECT + "WHERE u.id = :userId " +
+           "AND (tr.createdAt < :beforeTime OR (tr.createdAt = :beforeTime AND tr.id < :beforeId)) " +
+           "ORDER BY tr.createdAt DESC, tr.id DESC")
+    List<TripSummary> findSummariesByUserIdBefore(
+        @Param("userId") Long userId,
+        @Param("beforeTime") LocalDateTime beforeTime,
+        @Param("beforeId") long beforeId,
+        Pageable pageable);
+    
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    @Query(TRIP_SUMMARY_SELECT + "WHERE u.id = :userId ORDER BY tr.createdAt DESC, tr.id DESC")
+    Stream<TripSummary> streamSummariesByUserId(@Param("userId") Long userId);
+    
     @Query("SELECT tr FROM TripRequest tr WHERE tr.status = :status " +
            "AND tr.requestedPickupTime BETWEEN :startTime AND :endTime")
     List<TripRequest> findPendingTripsInTimeRange(
@@ -28,11 +107,68 @@ public interface TripRequestRepository extends JpaRepository<TripRequest, Long>
         @Param("startTime") LocalDateTime startTime,
         @Param("endTime") LocalDateTime endTime);
     
-    @Query("SELECT COUNT(tr) FROM TripRequest tr WHERE tr.status = 'COMPLETED' " +
-           "AND DATE(tr.createdAt) = CURRENT_DATE")
-    Long countCompletedTripsToday();
+    @Query("SELECT new se.gothenburg.taxicarpooling.dto.PendingTripKey(tr.id, tr.pickupLatitude, tr.pickupLongitude, " +
+           "tr.requestedPickupTime) FROM TripRequest tr WHERE tr.status = :status AND tr.requestedPickupTime > :time")
+    List<PendingTripKey> findPendingTripKeys(
+        @Param("status") TripRequest.TripStatus status,
+        @Param("time") LocalDateTime time);
+    
+    // Daily completed and shared trip counts are read from cost_savings, see CostSavingsService
+    @Query("SELECT MIN(tr.createdAt) FROM TripRequest tr WHERE tr.status = 'COMPLETED'")
+    LocalDateTime findFirstCompletedCreatedAt();
+    
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT tr FROM TripRequest tr WHERE tr.id IN :ids")
+    List<TripRequest> findAllByIdForUpdate(@Param("ids") Collection<Long> ids);
+    
+    @Modifying
+    @Query("UPDATE TripRequest tr SET tr.status = :matched, tr.sharedTrip = :sharedTrip, tr.estimatedCost = :cost, " +
+           "tr.version = tr.version + 1 WHERE tr.id IN :ids AND tr.status = :pending")
+    int markMatched(
+        @Param("ids") Collection<Long> ids,
+        @Param("sharedTrip") SharedTrip sharedTrip,
+        @Param("cost") BigDecimal cost,
+        @Param("matched") TripRequest.TripStatus matched,
+        @Param("pending") TripRequest.TripStatus pending);
+    
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE TripRequest tr SET tr.status = :assigned, tr.assignedDriver = :driver, tr.assignedAt = :assignedAt, " +
+           "tr.estimatedCost = :cost, tr.version = tr.version + 1 WHERE tr.id = :id AND tr.status = :pending")
+    int assignDriver(
+        @Param("id") Long id,
+        @Param("driver") User driver,
+        @Param("assignedAt") LocalDateTime assignedAt,
+        @Param("cost") BigDecimal cost,
+        @Param("assigned") TripRequest.TripStatus assigned,
+        @Param("pending") TripRequest.TripStatus pending);
+    
+    // Members of a shared trip follow its driver once the driver accepts it
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE TripRequest tr SET tr.status = :assigned, tr.assignedDriver = :driver, tr.assignedAt = :assignedAt, " +
+           "tr.version = tr.version + 1 WHERE tr.sharedTrip.id = :sharedTripId AND tr.status = :matched")
+    int assignSharedTripDriver(
+        @Param("sharedTripId") Long sharedTripId,
+        @Param("driver") User driver,
+        @Param("assignedAt") LocalDateTime assignedAt,
+        @Param("assigned") TripRequest.TripStatus assigned,
+        @Param("matched") TripRequest.TripStatus matched);
+    
+    // Back in the pending pool as if never matched, when the shared trip is cancelled before pickup
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE TripRequest tr SET tr.status = :pending, tr.sharedTrip = null, tr.assignedDriver = null, " +
+           "tr.assignedAt = null, tr.estimatedCost = :cost, tr.version = tr.version + 1 " +
+           "WHERE tr.sharedTrip.id = :sharedTripId AND tr.status IN :from")
+    int releaseFromSharedTrip(
+        @Param("sharedTripId") Long sharedTripId,
+        @Param("cost") BigDecimal cost,
+        @Param("from") Collection<TripRequest.TripStatus> from,
+        @Param("pending") TripRequest.TripStatus pending);
     
-    @Query("SELECT COUNT(tr) FROM TripRequest tr WHERE tr.sharedTrip IS NOT NULL " +
-           "AND tr.status = 'COMPLETED' AND DATE(tr.createdAt) = CURRENT_DATE")
-    Long countSharedTripsToday();
-}
\ No newline at end of file
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE TripRequest tr SET tr.status = :to, tr.version = tr.version + 1 " +
+           "WHERE tr.id = :id AND tr.status IN :from")
+    int transitionStatus(
+        @Param("id") Long id,
+        @Param("from") Collection<TripRequest.TripStatus> from,
+        @Param("to") TripRequest.TripStatus to);
+}
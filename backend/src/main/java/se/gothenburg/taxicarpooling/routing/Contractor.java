@@ -0,0 +1,238 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction hierarchy preprocessing for {@link RoadGraphBuilder}. Nodes are contracted in order
+ * of edge difference plus contracted neighbours, updated lazily when a node reaches the front of
+ * the queue. Contracting a node adds a shortcut between each pair of remaining neighbours unless a
+ * bounded witness search finds a path at least as quick without it; a search cut short only costs
+ * a superfluous shortcut, never a wrong time.
+ */
+final class Contractor {
+    
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    
+    private final int nodeCount;
+    private final int[][] outTarget;
+    private final int[][] outWeight;
+    private final int[] outSize;
+    private final int[][] inSource;
+    private final int[][] inWeight;
+    private final int[] inSize;
+    
+    private final boolean[] contracted;
+    private final int[] contractedNeighbours;
+    private final int[] rank;
+    
+    private final int[] witnessDistance;
+    private final int[] witnessTouched;
+    private int witnessTouchedCount;
+    private final PriorityQueue<long[]> witnessQueue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+    
+    private long shortcuts;
+    
+    Contractor(int nodeCount) {
+        this.nodeCount = nodeCount;
+        outTarget = new int[nodeCount][];
+        outWeight = new int[nodeCount][];
+        outSize = new int[nodeCount];
+        inSource = new int[nodeCount][];
+        inWeight = new int[nodeCount][];
+        inSize = new int[nodeCount];
+        for (int v = 0; v < nodeCount; v++) {
+            outTarget[v] = new int[4];
+            outWeight[v] = new int[4];
+            inSource[v] = new int[4];
+            inWeight[v] = new int[4];
+        }
+        contracted = new boolean[nodeCount];
+        contractedNeighbours = new int[nodeCount];
+        rank = new int[nodeCount];
+        witnessDistance = new int[nodeCount];
+        witnessTouched = new int[nodeCount];
+        Arrays.fill(witnessDistance, UNREACHED);
+    }
+    
+    /** Adds a directed edge, keeping the lower weight when the pair is already connected. */
+    void addEdge(int from, int to, int weight) {
+        if (from == to) {
+            return;
+        }
+        for (int k = 0; k < outSize[from]; k++) {
+            if (outTarget[from][k] == to) {
+                if (weight < outWeight[from][k]) {
+                    outWeight[from][k] = weight;
+                    for (int i = 0; i < inSize[to]; i++) {
+                        if (inSource[to][i] == from) {
+                            inWeight[to][i] = weight;
+                        }
+                    }
+                }
+                return;
+            }
+        }
+        if (outSize[from] == outTarget[from].length) {
+            outTarget[from] = Arrays.copyOf(outTarget[from], outSize[from] * 2);
+            outWeight[from] = Arrays.copyOf(outWeight[from], outSize[from] * 2);
+        }
+        outTarget[from][outSize[from]] = to;
+        outWeight[from][outSize[from]++] = weight;
+        if (inSize[to] == inSource[to].length) {
+            inSource[to] = Arrays.copyOf(inSource[to], inSize[to] * 2);
+            inWeight[to] = Arrays.copyOf(inWeight[to], inSize[to] * 2);
+        }
+        inSource[to][inSize[to]] = from;
+        inWeight[to][inSize[to]++] = weight;
+    }
+    
+    /** Contracts every node and returns the rank of each, 0 for the first contracted. */
+    int[] contract() {
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (int v = 0; v < nodeCount; v++) {
+            queue.add(new long[] {priority(v), v});
+        }
+        int next = 0;
+        while (!queue.isEmpty()) {
+            long[] head = queue.poll();
+            int v = (int) head[1];
+            long current = priority(v);
+            if (!queue.isEmpty() && current > queue.peek()[0]) {
+                queue.add(new long[] {current, v});
+                continue;
+            }
+            contractNode(v, false);
+            contracted[v] = true;
+            rank[v] = next++;
+            for (int k = 0; k < outSize[v]; k++) {
+                contractedNeighbours[outTarget[v][k]]++;
+            }
+            for (int k = 0; k < inSize[v]; k++) {
+                contractedNeighbours[inSource[v][k]]++;
+            }
+            if (next % 50_000 == 0) {
+                System.out.println("  contracted " + next + " of " + nodeCount + " nodes, " + shortcuts + " shortcuts");
+            }
+        }
+        return rank;
+    }
+    
+    long getShortcuts() {
+        return shortcuts;
+    }
+    
+    /** Number of edges in the finished hierarchy, original and shortcut. */
+    int edgeCount() {
+        int edges = 0;
+        for (int v = 0; v < nodeCount; v++) {
+            edges += outSize[v];
+        }
+        return edges;
+    }
+    
+    int outSize(int v) {
+        return outSize[v];
+    }
+    
+    int outTarget(int v, int k) {
+        return outTarget[v][k];
+    }
+    
+    int outWeight(int v, int k) {
+        return outWeight[v][k];
+    }
+    
+    private long priority(int v) {
+        int removed = 0;
+        for (int k = 0; k < outSize[v]; k++) {
+            removed += contracted[outTarget[v][k]] ? 0 : 1;
+        }
+        for (int k = 0; k < inSize[v]; k++) {
+            removed += contracted[inSource[v][k]] ? 0 : 1;
+        }
+        return 2L * contractNode(v, true) - removed + contractedNeighbours[v];
+    }
+    
+    /** Counts, and unless simulating adds, the shortcuts needed to bypass the node. */
+    private int contractNode(int v, boolean simulate) {
+        int needed = 0;
+        for (int i = 0; i < inSize[v]; i++) {
+            int from = inSource[v][i];
+            if (contracted[from]) {
+                continue;
+            }
+            int inW = inWeight[v][i];
+            int limit = 0;
+            for (int k = 0; k < outSize[v]; k++) {
+                int to = outTarget[v][k];
+                if (!contracted[to] && to != from) {
+                    limit = Math.max(limit, inW + outWeight[v][k]);
+                }
+            }
+            if (limit == 0) {
+                continue;
+            }
+            witnessSearch(from, v, limit);
+            for (int k = 0; k < outSize[v]; k++) {
+                int to = outTarget[v][k];
+                if (contracted[to] || to == from) {
+                    continue;
+                }
+                int via = inW + outWeight[v][k];
+                if (witnessDistance[to] > via) {
+                    needed++;
+                    if (!simulate) {
+                        addEdge(from, to, via);
+                        shortcuts++;
+                    }
+                }
+            }
+            resetWitness();
+        }
+        return needed;
+    }
+    
+    /** Dijkstra from the source over uncontracted nodes other than the bypassed one. */
+    private void witnessSearch(int source, int bypassed, int limit) {
+        witnessDistance[source] = 0;
+        witnessTouched[witnessTouchedCount++] = source;
+        witnessQueue.add(new long[] {0, source});
+        int settled = 0;
+        while (!witnessQueue.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+            long[] head = witnessQueue.poll();
+            int node = (int) head[1];
+            int distance = (int) head[0];
+            if (distance > witnessDistance[node]) {
+                continue;
+            }
+            if (distance > limit) {
+                break;
+            }
+            settled++;
+            for (int k = 0; k < outSize[node]; k++) {
+                int next = outTarget[node][k];
+                if (contracted[next] || next == bypassed) {
+                    continue;
+                }
+                int nextDistance = distance + outWeight[node][k];
+                if (nextDistance < witnessDistance[next]) {
+                    if (witnessDistance[next] == UNREACHED) {
+                        witnessTouched[witnessTouchedCount++] = next;
+                    }
+                    witnessDistance[next] = nextDistance;
+                    witnessQueue.add(new long[] {nextDistance, next});
+                }
+            }
+        }
+        witnessQueue.clear();
+    }
+    
+    private void resetWitness() {
+        for (int k = 0; k < witnessTouchedCount; k++) {
+            witnessDistance[witnessTouched[k]] = UNREACHED;
+        }
+        witnessTouchedCount = 0;
+    }
+}
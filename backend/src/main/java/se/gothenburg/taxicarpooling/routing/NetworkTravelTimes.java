@@ -0,0 +1,136 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import se.gothenburg.taxicarpooling.matching.TravelTimes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Driving times over the road network. Each point is snapped to its nearest graph node and the
+ * straight line to it is driven slowly; pairs the network cannot connect, or points too far from
+ * any road, fall back to the given model. Queries run on a per-thread {@link RoadGraphQuery} over
+ * the one shared {@link RoadGraph}.
+ */
+public class NetworkTravelTimes implements TravelTimes {
+    
+    // Grid rings searched when snapping, and the speed on the way to the nearest road node
+    private static final int SNAP_RINGS = 2;
+    private static final double OFF_ROAD_METERS_PER_SECOND = 15 / 3.6;
+    
+    private final RoadGraph graph;
+    private final TravelTimes fallback;
+    private final ThreadLocal<Scratch> scratch;
+    
+    private final LongAdder tables = new LongAdder();
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    
+    public NetworkTravelTimes(RoadGraph graph, TravelTimes fallback) {
+        this.graph = graph;
+        this.fallback = fallback;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(graph));
+    }
+    
+    @Override
+    public String getName() {
+        return "network";
+    }
+    
+    @Override
+    public int seconds(int fromLatE6, int fromLonE6, int toLatE6, int toLonE6) {
+        Scratch s = scratch.get();
+        s.fromLat[0] = fromLatE6;
+        s.fromLon[0] = fromLonE6;
+        s.toLat[0] = toLatE6;
+        s.toLon[0] = toLonE6;
+        table(s.fromLat, s.fromLon, 1, s.toLat, s.toLon, 1, s.single);
+        return s.single[0];
+    }
+    
+    @Override
+    public void table(int[] fromLatE6, int[] fromLonE6, int fromCount,
+                      int[] toLatE6, int[] toLonE6, int toCount, int[] out) {
+        tables.increment();
+        pairs.add((long) fromCount * toCount);
+        Scratch s = scratch.get();
+        s.ensureCapacity(fromCount, toCount);
+        snap(fromLatE6, fromLonE6, fromCount, s.sources, s.sourceSeconds);
+        snap(toLatE6, toLonE6, toCount, s.targets, s.targetSeconds);
+        s.query.table(s.sources, fromCount, s.targets, toCount, s.tenths);
+        
+        for (int i = 0; i < fromCount; i++) {
+            for (int j = 0; j < toCount; j++) {
+                int index = i * toCount + j;
+                int tenths = s.tenths[index];
+                if (s.sourceSeconds[i] < 0 || s.targetSeconds[j] < 0 || tenths == RoadGraphQuery.UNREACHABLE) {
+                    fallbacks.increment();
+                    out[index] = fallback.seconds(fromLatE6[i], fromLonE6[i], toLatE6[j], toLonE6[j]);
+                } else if (s.sources[i] == s.targets[j]) {
+                    out[index] = 0;
+                } else {
+                    out[index] = (tenths + 5) / 10 + s.sourceSeconds[i] + s.targetSeconds[j];
+                }
+            }
+        }
+    }
+    
+    /** Snaps each point to a node, with -1 off-road seconds when no node is near enough. */
+    private void snap(int[] latE6, int[] lonE6, int count, int[] nodes, int[] offRoadSeconds) {
+        for (int i = 0; i < count; i++) {
+            int node = graph.nearestNode(latE6[i], lonE6[i], SNAP_RINGS);
+            if (node < 0) {
+                // Still searched from node 0 to keep the table square; the result is replaced
+                nodes[i] = 0;
+                offRoadSeconds[i] = -1;
+                continue;
+            }
+            nodes[i] = node;
+            double meters = RoadGraph.distanceMeters(latE6[i], lonE6[i], graph.latE6(node), graph.lonE6(node));
+            offRoadSeconds[i] = (int) Math.round(meters / OFF_ROAD_METERS_PER_SECOND);
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("graph", graph.getPath().toString());
+        stats.put("nodes", graph.nodeCount());
+        stats.put("tables", tables.sum());
+        stats.put("pairs", pairs.sum());
+        stats.put("fallbacks", fallbacks.sum());
+        return stats;
+    }
+    
+    private static final class Scratch {
+        
+        final RoadGraphQuery query;
+        final int[] fromLat = new int[1];
+        final int[] fromLon = new int[1];
+        final int[] toLat = new int[1];
+        final int[] toLon = new int[1];
+        final int[] single = new int[1];
+        int[] sources = new int[16];
+        int[] sourceSeconds = new int[16];
+        int[] targets = new int[16];
+        int[] targetSeconds = new int[16];
+        int[] tenths = new int[256];
+        
+        Scratch(RoadGraph graph) {
+            this.query = new RoadGraphQuery(graph);
+        }
+        
+        void ensureCapacity(int fromCount, int toCount) {
+            if (sources.length < fromCount) {
+                sources = new int[fromCount];
+                sourceSeconds = new int[fromCount];
+            }
+            if (targets.length < toCount) {
+                targets = new int[toCount];
+                targetSeconds = new int[toCount];
+            }
+            if (tenths.length < fromCount * toCount) {
+                tenths = new int[fromCount * toCount];
+            }
+        }
+    }
+}
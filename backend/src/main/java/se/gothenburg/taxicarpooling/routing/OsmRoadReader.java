@@ -0,0 +1,166 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the drivable roads of an OSM XML extract into a {@link RawRoadNetwork}, streaming with
+ * StAX so the extract never has to fit in memory. Nodes must precede ways, as in every extract
+ * written by osmium or osmosis. Speeds come from the {@code maxspeed} tag where it is a number,
+ * else from a default per road class.
+ */
+final class OsmRoadReader {
+    
+    private static final Map<String, Integer> DEFAULT_SPEEDS_KMH = new HashMap<>();
+    
+    static {
+        DEFAULT_SPEEDS_KMH.put("motorway", 100);
+        DEFAULT_SPEEDS_KMH.put("motorway_link", 60);
+        DEFAULT_SPEEDS_KMH.put("trunk", 70);
+        DEFAULT_SPEEDS_KMH.put("trunk_link", 50);
+        DEFAULT_SPEEDS_KMH.put("primary", 50);
+        DEFAULT_SPEEDS_KMH.put("primary_link", 40);
+        DEFAULT_SPEEDS_KMH.put("secondary", 50);
+        DEFAULT_SPEEDS_KMH.put("secondary_link", 40);
+        DEFAULT_SPEEDS_KMH.put("tertiary", 40);
+        DEFAULT_SPEEDS_KMH.put("tertiary_link", 30);
+        DEFAULT_SPEEDS_KMH.put("unclassified", 40);
+        DEFAULT_SPEEDS_KMH.put("residential", 30);
+        DEFAULT_SPEEDS_KMH.put("living_street", 7);
+        DEFAULT_SPEEDS_KMH.put("service", 20);
+    }
+    
+    // All OSM nodes sorted by id, with the network index of those that roads use
+    private long[] osmIds = new long[1 << 16];
+    private int[] osmLat = new int[1 << 16];
+    private int[] osmLon = new int[1 << 16];
+    private int[] networkIndex;
+    private int osmCount;
+    
+    private final RawRoadNetwork network = new RawRoadNetwork();
+    
+    static RawRoadNetwork read(Path extract) throws IOException {
+        try (InputStream in = Files.newInputStream(extract)) {
+            return new OsmRoadReader().read(in);
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse " + extract + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private RawRoadNetwork read(InputStream in) throws XMLStreamException {
+        XMLStreamReader xml = XMLInputFactory.newFactory().createXMLStreamReader(in);
+        long[] refs = new long[256];
+        int refCount = 0;
+        Map<String, String> tags = new HashMap<>();
+        boolean inWay = false;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if (name.equals("node")) {
+                    addOsmNode(Long.parseLong(xml.getAttributeValue(null, "id")),
+                        toE6(xml.getAttributeValue(null, "lat")), toE6(xml.getAttributeValue(null, "lon")));
+                } else if (name.equals("way")) {
+                    inWay = true;
+                    refCount = 0;
+                    tags.clear();
+                } else if (inWay && name.equals("nd")) {
+                    if (refCount == refs.length) {
+                        refs = Arrays.copyOf(refs, refCount * 2);
+                    }
+                    refs[refCount++] = Long.parseLong(xml.getAttributeValue(null, "ref"));
+                } else if (inWay && name.equals("tag")) {
+                    tags.put(xml.getAttributeValue(null, "k"), xml.getAttributeValue(null, "v"));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("way")) {
+                inWay = false;
+                addWay(refs, refCount, tags);
+            }
+        }
+        xml.close();
+        return network;
+    }
+    
+    private void addOsmNode(long id, int lat, int lon) {
+        if (osmCount == osmIds.length) {
+            osmIds = Arrays.copyOf(osmIds, osmCount * 2);
+            osmLat = Arrays.copyOf(osmLat, osmCount * 2);
+            osmLon = Arrays.copyOf(osmLon, osmCount * 2);
+        }
+        if (osmCount > 0 && id <= osmIds[osmCount - 1]) {
+            throw new IllegalStateException("OSM nodes must be sorted by id, found " + id + " after " + osmIds[osmCount - 1]);
+        }
+        osmIds[osmCount] = id;
+        osmLat[osmCount] = lat;
+        osmLon[osmCount++] = lon;
+    }
+    
+    private void addWay(long[] refs, int refCount, Map<String, String> tags) {
+        Integer defaultSpeed = DEFAULT_SPEEDS_KMH.get(tags.get("highway"));
+        if (defaultSpeed == null || refCount < 2 || "yes".equals(tags.get("area"))
+                || "no".equals(tags.get("access")) || "private".equals(tags.get("access"))
+                || "no".equals(tags.get("motor_vehicle")) || "no".equals(tags.get("motorcar"))) {
+            return;
+        }
+        if (networkIndex == null) {
+            networkIndex = new int[osmCount];
+            Arrays.fill(networkIndex, -1);
+        }
+        double speed = parseSpeed(tags.get("maxspeed"), defaultSpeed);
+        String oneway = tags.getOrDefault("oneway", "");
+        boolean impliedOneway = "roundabout".equals(tags.get("junction")) || "motorway".equals(tags.get("highway"));
+        boolean forward = !oneway.equals("-1");
+        boolean backward = oneway.equals("-1") || oneway.equals("no")
+            || !(impliedOneway || oneway.equals("yes") || oneway.equals("1") || oneway.equals("true"));
+        
+        int previous = -1;
+        for (int k = 0; k < refCount; k++) {
+            int node = networkNode(refs[k]);
+            if (node >= 0 && previous >= 0) {
+                network.addRoad(previous, node, speed, forward, backward);
+            }
+            previous = node;
+        }
+    }
+    
+    private int networkNode(long osmId) {
+        int i = Arrays.binarySearch(osmIds, 0, osmCount, osmId);
+        if (i < 0) {
+            return -1;
+        }
+        if (networkIndex[i] < 0) {
+            networkIndex[i] = network.addNode(osmLat[i], osmLon[i]);
+        }
+        return networkIndex[i];
+    }
+    
+    private static double parseSpeed(String maxspeed, int defaultSpeed) {
+        if (maxspeed == null) {
+            return defaultSpeed;
+        }
+        if (maxspeed.equals("SE:urban")) {
+            return 50;
+        }
+        if (maxspeed.equals("SE:rural")) {
+            return 70;
+        }
+        int end = 0;
+        while (end < maxspeed.length() && Character.isDigit(maxspeed.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? defaultSpeed : Integer.parseInt(maxspeed.substring(0, end));
+    }
+    
+    private static int toE6(String degrees) {
+        return (int) Math.round(Double.parseDouble(degrees) * 1_000_000);
+    }
+}
@@ -0,0 +1,98 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import java.util.Arrays;
+
+/**
+ * Directed road network as read from an extract or generated, before contraction: node
+ * coordinates in micro-degrees and edges weighted in tenths of a second.
+ */
+final class RawRoadNetwork {
+    
+    int nodeCount;
+    int[] latE6 = new int[1024];
+    int[] lonE6 = new int[1024];
+    
+    int edgeCount;
+    int[] edgeFrom = new int[1024];
+    int[] edgeTo = new int[1024];
+    int[] edgeWeight = new int[1024];
+    
+    int addNode(int lat, int lon) {
+        if (nodeCount == latE6.length) {
+            latE6 = Arrays.copyOf(latE6, nodeCount * 2);
+            lonE6 = Arrays.copyOf(lonE6, nodeCount * 2);
+        }
+        latE6[nodeCount] = lat;
+        lonE6[nodeCount] = lon;
+        return nodeCount++;
+    }
+    
+    void addEdge(int from, int to, int weight) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            edgeWeight = Arrays.copyOf(edgeWeight, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        edgeWeight[edgeCount++] = Math.max(1, weight);
+    }
+    
+    /** Adds a road segment driven at the given speed, in one or both directions. */
+    void addRoad(int from, int to, double speedKmh, boolean forward, boolean backward) {
+        double meters = RoadGraph.distanceMeters(latE6[from], lonE6[from], latE6[to], lonE6[to]);
+        int tenths = (int) Math.round(meters / (speedKmh / 3.6) * 10);
+        if (forward) {
+            addEdge(from, to, tenths);
+        }
+        if (backward) {
+            addEdge(to, from, tenths);
+        }
+    }
+    
+    /**
+     * Keeps only the largest weakly connected component, so every point snaps onto the main road
+     * network rather than an isolated car park or island.
+     */
+    RawRoadNetwork largestComponent() {
+        int[] parent = new int[nodeCount];
+        for (int v = 0; v < nodeCount; v++) {
+            parent[v] = v;
+        }
+        for (int e = 0; e < edgeCount; e++) {
+            int a = find(parent, edgeFrom[e]);
+            int b = find(parent, edgeTo[e]);
+            if (a != b) {
+                parent[a] = b;
+            }
+        }
+        int[] size = new int[nodeCount];
+        int largest = 0;
+        for (int v = 0; v < nodeCount; v++) {
+            int root = find(parent, v);
+            if (++size[root] > size[largest]) {
+                largest = root;
+            }
+        }
+        
+        RawRoadNetwork kept = new RawRoadNetwork();
+        int[] index = new int[nodeCount];
+        for (int v = 0; v < nodeCount; v++) {
+            index[v] = find(parent, v) == largest ? kept.addNode(latE6[v], lonE6[v]) : -1;
+        }
+        for (int e = 0; e < edgeCount; e++) {
+            if (index[edgeFrom[e]] >= 0) {
+                kept.addEdge(index[edgeFrom[e]], index[edgeTo[e]], edgeWeight[e]);
+            }
+        }
+        return kept;
+    }
+    
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+}
@@ -0,0 +1,182 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only road graph prepared by {@link RoadGraphBuilder}, memory-mapped from its file so all
+ * threads share one off-heap copy. The graph holds the upward edges of a contraction hierarchy,
+ * split into the forward edges leaving each node and the backward edges entering it, plus node
+ * coordinates and a grid for snapping points onto the nearest node.
+ * <p>
+ * File layout, all little-endian ints: the header ({@link #MAGIC}, {@link #VERSION}, node count,
+ * forward and backward edge counts, grid rows, columns, minimum latitude and longitude and cell
+ * size in micro-degrees), node latitudes, node longitudes, forward offsets, targets and weights,
+ * backward offsets, sources and weights, grid cell offsets and the nodes of each cell. Weights are
+ * travel times in tenths of a second.
+ */
+public class RoadGraph {
+    
+    public static final int MAGIC = 0x47524F41;
+    public static final int VERSION = 1;
+    static final int HEADER_INTS = 10;
+    
+    private static final double METERS_PER_MICRODEGREE = 0.111195;
+    
+    private final Path path;
+    private final IntBuffer ints;
+    
+    private final int nodeCount;
+    private final int forwardEdgeCount;
+    private final int backwardEdgeCount;
+    private final int gridRows;
+    private final int gridCols;
+    private final int gridMinLatE6;
+    private final int gridMinLonE6;
+    private final int gridCellE6;
+    
+    private final int latBase;
+    private final int lonBase;
+    private final int forwardOffsetBase;
+    private final int forwardTargetBase;
+    private final int forwardWeightBase;
+    private final int backwardOffsetBase;
+    private final int backwardSourceBase;
+    private final int backwardWeightBase;
+    private final int cellOffsetBase;
+    private final int cellNodeBase;
+    
+    private RoadGraph(Path path, IntBuffer ints) {
+        this.path = path;
+        this.ints = ints;
+        if (ints.get(0) != MAGIC || ints.get(1) != VERSION) {
+            throw new IllegalArgumentException(path + " is not a version " + VERSION + " road graph");
+        }
+        nodeCount = ints.get(2);
+        forwardEdgeCount = ints.get(3);
+        backwardEdgeCount = ints.get(4);
+        gridRows = ints.get(5);
+        gridCols = ints.get(6);
+        gridMinLatE6 = ints.get(7);
+        gridMinLonE6 = ints.get(8);
+        gridCellE6 = ints.get(9);
+        
+        latBase = HEADER_INTS;
+        lonBase = latBase + nodeCount;
+        forwardOffsetBase = lonBase + nodeCount;
+        forwardTargetBase = forwardOffsetBase + nodeCount + 1;
+        forwardWeightBase = forwardTargetBase + forwardEdgeCount;
+        backwardOffsetBase = forwardWeightBase + forwardEdgeCount;
+        backwardSourceBase = backwardOffsetBase + nodeCount + 1;
+        backwardWeightBase = backwardSourceBase + backwardEdgeCount;
+        cellOffsetBase = backwardWeightBase + backwardEdgeCount;
+        cellNodeBase = cellOffsetBase + gridRows * gridCols + 1;
+        if (cellNodeBase + nodeCount != ints.limit()) {
+            throw new IllegalArgumentException(path + " is truncated or has trailing data");
+        }
+    }
+    
+    public static RoadGraph open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new RoadGraph(path, buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+        }
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    public int nodeCount() {
+        return nodeCount;
+    }
+    
+    public int latE6(int node) {
+        return ints.get(latBase + node);
+    }
+    
+    public int lonE6(int node) {
+        return ints.get(lonBase + node);
+    }
+    
+    int forwardStart(int node) {
+        return ints.get(forwardOffsetBase + node);
+    }
+    
+    int forwardEnd(int node) {
+        return ints.get(forwardOffsetBase + node + 1);
+    }
+    
+    int forwardTarget(int edge) {
+        return ints.get(forwardTargetBase + edge);
+    }
+    
+    int forwardWeight(int edge) {
+        return ints.get(forwardWeightBase + edge);
+    }
+    
+    int backwardStart(int node) {
+        return ints.get(backwardOffsetBase + node);
+    }
+    
+    int backwardEnd(int node) {
+        return ints.get(backwardOffsetBase + node + 1);
+    }
+    
+    int backwardSource(int edge) {
+        return ints.get(backwardSourceBase + edge);
+    }
+    
+    int backwardWeight(int edge) {
+        return ints.get(backwardWeightBase + edge);
+    }
+    
+    /**
+     * Nearest node to the point, searching grid rings outwards until no closer node can exist, or
+     * -1 when nothing lies within {@code maxRings} cells.
+     */
+    public int nearestNode(int latE6, int lonE6, int maxRings) {
+        int row = Math.floorDiv(latE6 - gridMinLatE6, gridCellE6);
+        int col = Math.floorDiv(lonE6 - gridMinLonE6, gridCellE6);
+        int best = -1;
+        double bestMeters = Double.MAX_VALUE;
+        for (int ring = 0; ring <= maxRings; ring++) {
+            for (int r = row - ring; r <= row + ring; r++) {
+                for (int c = col - ring; c <= col + ring; c++) {
+                    boolean onRing = r == row - ring || r == row + ring || c == col - ring || c == col + ring;
+                    if (!onRing || r < 0 || c < 0 || r >= gridRows || c >= gridCols) {
+                        continue;
+                    }
+                    int cell = r * gridCols + c;
+                    for (int i = ints.get(cellOffsetBase + cell); i < ints.get(cellOffsetBase + cell + 1); i++) {
+                        int node = ints.get(cellNodeBase + i);
+                        double meters = distanceMeters(latE6, lonE6, latE6(node), lonE6(node));
+                        if (meters < bestMeters) {
+                            bestMeters = meters;
+                            best = node;
+                        }
+                    }
+                }
+            }
+            // Nodes outside this ring are at least a full ring of cells away
+            if (best >= 0 && bestMeters <= ring * gridCellE6 * METERS_PER_MICRODEGREE * 0.5) {
+                break;
+            }
+        }
+        return best;
+    }
+    
+    /** Equirectangular distance, accurate to well under a percent over city distances. */
+    public static double distanceMeters(int latE6a, int lonE6a, int latE6b, int lonE6b) {
+        double cosLat = Math.cos(Math.toRadians((latE6a + latE6b) / 2e6));
+        double dLat = (latE6b - latE6a) * METERS_PER_MICRODEGREE;
+        double dLon = (lonE6b - lonE6a) * METERS_PER_MICRODEGREE * cosLat;
+        return Math.sqrt(dLat * dLat + dLon * dLon);
+    }
+}
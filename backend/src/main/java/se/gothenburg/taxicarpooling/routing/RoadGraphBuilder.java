@@ -0,0 +1,279 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Builds a {@link RoadGraph} file, either from an OSM XML extract or as a small synthetic
+ * Gothenburg: a street grid split by the river, crossed only at three points like Älvsborgsbron,
+ * Götaälvbron and the Tingstad tunnel. Only the JDK is needed, so it runs straight from the
+ * compiled classes:
+ * <pre>
+ * java -cp target/classes se.gothenburg.taxicarpooling.routing.RoadGraphBuilder \
+ *     --osm gothenburg.osm --out gothenburg.graph --verify 1000
+ * </pre>
+ * {@code --verify} checks the hierarchy's times for random pairs against plain Dijkstra on the
+ * uncontracted network and exits non-zero on any difference.
+ */
+public class RoadGraphBuilder {
+    
+    private static final int GRID_CELL_E6 = 5_000;
+    
+    // Synthetic grid from Askim to Angered, about 280 by 240 metres between junctions, with the
+    // river between 57.7125 and 57.715
+    private static final int SYNTHETIC_MIN_LAT_E6 = 57_620_000;
+    private static final int SYNTHETIC_MIN_LON_E6 = 11_880_000;
+    private static final int SYNTHETIC_ROWS = 77;
+    private static final int SYNTHETIC_COLS = 51;
+    private static final int SYNTHETIC_LAT_STEP_E6 = 2_500;
+    private static final int SYNTHETIC_LON_STEP_E6 = 4_000;
+    private static final int SYNTHETIC_RIVER_ROW = 37;
+    private static final int[] SYNTHETIC_CROSSING_COLS = {6, 22, 26};
+    
+    public static void main(String[] args) throws IOException {
+        Path osm = null;
+        Path out = null;
+        boolean synthetic = false;
+        int verifyPairs = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--osm" -> osm = Path.of(args[++i]);
+                case "--synthetic" -> synthetic = true;
+                case "--out" -> out = Path.of(args[++i]);
+                case "--verify" -> verifyPairs = Integer.parseInt(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (out == null || (osm == null) == !synthetic) {
+            System.err.println("Usage: RoadGraphBuilder (--osm <extract.osm> | --synthetic) --out <file> [--verify <pairs>]");
+            System.exit(2);
+        }
+        
+        long start = System.currentTimeMillis();
+        RawRoadNetwork network = synthetic ? syntheticGothenburg() : OsmRoadReader.read(osm);
+        System.out.println("Read " + network.nodeCount + " nodes and " + network.edgeCount + " edges");
+        network = network.largestComponent();
+        System.out.println("Largest component has " + network.nodeCount + " nodes and " + network.edgeCount + " edges");
+        
+        build(network, out);
+        System.out.println("Wrote " + out + " in " + (System.currentTimeMillis() - start) + " ms");
+        
+        if (verifyPairs > 0) {
+            int mismatches = verify(network, RoadGraph.open(out), verifyPairs);
+            System.out.println(mismatches == 0
+                ? "Verified " + verifyPairs + " random pairs against Dijkstra"
+                : mismatches + " of " + verifyPairs + " pairs differ from Dijkstra");
+            if (mismatches > 0) {
+                System.exit(1);
+            }
+        }
+    }
+    
+    /** Contracts the network and writes it in the {@link RoadGraph} format. */
+    static void build(RawRoadNetwork network, Path out) throws IOException {
+        int n = network.nodeCount;
+        Contractor contractor = new Contractor(n);
+        for (int e = 0; e < network.edgeCount; e++) {
+            contractor.addEdge(network.edgeFrom[e], network.edgeTo[e], network.edgeWeight[e]);
+        }
+        int[] rank = contractor.contract();
+        System.out.println("Contracted with " + contractor.getShortcuts() + " shortcuts");
+        
+        // Every edge either climbs from its tail, kept forward, or climbs from its head, kept backward
+        int[] forwardOffsets = new int[n + 1];
+        int[] backwardOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            for (int k = 0; k < contractor.outSize(v); k++) {
+                int to = contractor.outTarget(v, k);
+                if (rank[v] < rank[to]) {
+                    forwardOffsets[v + 1]++;
+                } else {
+                    backwardOffsets[to + 1]++;
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            forwardOffsets[v + 1] += forwardOffsets[v];
+            backwardOffsets[v + 1] += backwardOffsets[v];
+        }
+        int[] forwardTargets = new int[forwardOffsets[n]];
+        int[] forwardWeights = new int[forwardOffsets[n]];
+        int[] backwardSources = new int[backwardOffsets[n]];
+        int[] backwardWeights = new int[backwardOffsets[n]];
+        int[] forwardFill = Arrays.copyOf(forwardOffsets, n);
+        int[] backwardFill = Arrays.copyOf(backwardOffsets, n);
+        for (int v = 0; v < n; v++) {
+            for (int k = 0; k < contractor.outSize(v); k++) {
+                int to = contractor.outTarget(v, k);
+                int weight = contractor.outWeight(v, k);
+                if (rank[v] < rank[to]) {
+                    forwardTargets[forwardFill[v]] = to;
+                    forwardWeights[forwardFill[v]++] = weight;
+                } else {
+                    backwardSources[backwardFill[to]] = v;
+                    backwardWeights[backwardFill[to]++] = weight;
+                }
+            }
+        }
+        
+        int minLat = Integer.MAX_VALUE;
+        int minLon = Integer.MAX_VALUE;
+        int maxLat = Integer.MIN_VALUE;
+        int maxLon = Integer.MIN_VALUE;
+        for (int v = 0; v < n; v++) {
+            minLat = Math.min(minLat, network.latE6[v]);
+            minLon = Math.min(minLon, network.lonE6[v]);
+            maxLat = Math.max(maxLat, network.latE6[v]);
+            maxLon = Math.max(maxLon, network.lonE6[v]);
+        }
+        int rows = (maxLat - minLat) / GRID_CELL_E6 + 1;
+        int cols = (maxLon - minLon) / GRID_CELL_E6 + 1;
+        int[] cellOffsets = new int[rows * cols + 1];
+        int[] cellOf = new int[n];
+        for (int v = 0; v < n; v++) {
+            cellOf[v] = (network.latE6[v] - minLat) / GRID_CELL_E6 * cols + (network.lonE6[v] - minLon) / GRID_CELL_E6;
+            cellOffsets[cellOf[v] + 1]++;
+        }
+        for (int c = 0; c < rows * cols; c++) {
+            cellOffsets[c + 1] += cellOffsets[c];
+        }
+        int[] cellNodes = new int[n];
+        int[] cellFill = Arrays.copyOf(cellOffsets, rows * cols);
+        for (int v = 0; v < n; v++) {
+            cellNodes[cellFill[cellOf[v]]++] = v;
+        }
+        
+        int[] header = {
+            RoadGraph.MAGIC, RoadGraph.VERSION, n, forwardTargets.length, backwardSources.length,
+            rows, cols, minLat, minLon, GRID_CELL_E6
+        };
+        int[][] sections = {
+            header, Arrays.copyOf(network.latE6, n), Arrays.copyOf(network.lonE6, n),
+            forwardOffsets, forwardTargets, forwardWeights,
+            backwardOffsets, backwardSources, backwardWeights,
+            cellOffsets, cellNodes
+        };
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (int[] section : sections) {
+                for (int value : section) {
+                    if (!buffer.hasRemaining()) {
+                        writeFully(channel, buffer);
+                    }
+                    buffer.putInt(value);
+                }
+            }
+            writeFully(channel, buffer);
+        }
+        System.out.println("Hierarchy has " + forwardTargets.length + " forward and "
+            + backwardSources.length + " backward edges over " + rows + " x " + cols + " grid cells");
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    static RawRoadNetwork syntheticGothenburg() {
+        RawRoadNetwork network = new RawRoadNetwork();
+        for (int r = 0; r < SYNTHETIC_ROWS; r++) {
+            for (int c = 0; c < SYNTHETIC_COLS; c++) {
+                network.addNode(SYNTHETIC_MIN_LAT_E6 + r * SYNTHETIC_LAT_STEP_E6,
+                    SYNTHETIC_MIN_LON_E6 + c * SYNTHETIC_LON_STEP_E6);
+            }
+        }
+        for (int r = 0; r < SYNTHETIC_ROWS; r++) {
+            for (int c = 0; c < SYNTHETIC_COLS; c++) {
+                int node = r * SYNTHETIC_COLS + c;
+                if (c + 1 < SYNTHETIC_COLS) {
+                    network.addRoad(node, node + 1, r % 5 == 0 ? 50 : 30, true, true);
+                }
+                if (r + 1 < SYNTHETIC_ROWS) {
+                    boolean crossesRiver = r == SYNTHETIC_RIVER_ROW;
+                    if (!crossesRiver || isCrossing(c)) {
+                        network.addRoad(node, node + SYNTHETIC_COLS, crossesRiver || c % 5 == 0 ? 50 : 30, true, true);
+                    }
+                }
+            }
+        }
+        return network;
+    }
+    
+    private static boolean isCrossing(int col) {
+        for (int crossing : SYNTHETIC_CROSSING_COLS) {
+            if (crossing == col) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Compares hierarchy times with Dijkstra on the uncontracted network, returning the mismatches. */
+    static int verify(RawRoadNetwork network, RoadGraph graph, int pairs) {
+        int n = network.nodeCount;
+        int[] offsets = new int[n + 1];
+        for (int e = 0; e < network.edgeCount; e++) {
+            offsets[network.edgeFrom[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] targets = new int[network.edgeCount];
+        int[] weights = new int[network.edgeCount];
+        int[] fill = Arrays.copyOf(offsets, n);
+        for (int e = 0; e < network.edgeCount; e++) {
+            targets[fill[network.edgeFrom[e]]] = network.edgeTo[e];
+            weights[fill[network.edgeFrom[e]]++] = network.edgeWeight[e];
+        }
+        
+        RoadGraphQuery query = new RoadGraphQuery(graph);
+        Random random = new Random(42);
+        int[] distance = new int[n];
+        int mismatches = 0;
+        for (int p = 0; p < pairs; p++) {
+            int source = random.nextInt(n);
+            int target = random.nextInt(n);
+            Arrays.fill(distance, RoadGraphQuery.UNREACHABLE);
+            distance[source] = 0;
+            PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+            queue.add(new long[] {0, source});
+            while (!queue.isEmpty()) {
+                long[] head = queue.poll();
+                int node = (int) head[1];
+                if (head[0] > distance[node]) {
+                    continue;
+                }
+                if (node == target) {
+                    break;
+                }
+                for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+                    int next = distance[node] + weights[e];
+                    if (next < distance[targets[e]]) {
+                        distance[targets[e]] = next;
+                        queue.add(new long[] {next, targets[e]});
+                    }
+                }
+            }
+            int expected = distance[target];
+            int actual = query.travelTime(source, target);
+            if (expected != actual) {
+                mismatches++;
+                if (mismatches <= 10) {
+                    System.err.println("Pair " + source + " -> " + target + ": Dijkstra " + expected + ", hierarchy " + actual);
+                }
+            }
+        }
+        return mismatches;
+    }
+}
@@ -0,0 +1,199 @@
+package se.gothenburg.taxicarpooling.routing;
+
+import java.util.Arrays;
+
+/**
+ * Shortest travel times over a {@link RoadGraph}'s contraction hierarchy. A table is computed the
+ * bucket way: an upward search backwards from every target leaves (target, time) entries at each
+ * node it settles, then an upward search forwards from every source combines the times it settles
+ * with the buckets it meets. Search spaces in a hierarchy are a few hundred nodes, so even a
+ * single pair is answered this way.
+ * <p>
+ * Working arrays are sized to the graph once and reset through the list of touched nodes. An
+ * instance is not thread-safe; keep one per thread.
+ */
+public class RoadGraphQuery {
+    
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    
+    private final RoadGraph graph;
+    
+    private final int[] distance;
+    private final int[] touched;
+    private int touchedCount;
+    
+    private int[] heapKeys = new int[256];
+    private int[] heapNodes = new int[256];
+    private int heapSize;
+    
+    private final int[] bucketHead;
+    private final int[] bucketNodes;
+    private int bucketNodeCount;
+    private int[] entryTarget = new int[1024];
+    private int[] entryTime = new int[1024];
+    private int[] entryNext = new int[1024];
+    private int entryCount;
+    
+    private long searches;
+    private long settled;
+    
+    public RoadGraphQuery(RoadGraph graph) {
+        this.graph = graph;
+        this.distance = new int[graph.nodeCount()];
+        this.touched = new int[graph.nodeCount()];
+        this.bucketHead = new int[graph.nodeCount()];
+        this.bucketNodes = new int[graph.nodeCount()];
+        Arrays.fill(distance, UNREACHABLE);
+        Arrays.fill(bucketHead, -1);
+    }
+    
+    /** Travel time in tenths of a second between two nodes, or {@link #UNREACHABLE}. */
+    public int travelTime(int source, int target) {
+        int[] out = new int[1];
+        table(new int[] {source}, 1, new int[] {target}, 1, out);
+        return out[0];
+    }
+    
+    /**
+     * Fills {@code out[i * targetCount + j]} with the travel time in tenths of a second from
+     * {@code sources[i]} to {@code targets[j]}, or {@link #UNREACHABLE}.
+     */
+    public void table(int[] sources, int sourceCount, int[] targets, int targetCount, int[] out) {
+        Arrays.fill(out, 0, sourceCount * targetCount, UNREACHABLE);
+        for (int j = 0; j < targetCount; j++) {
+            search(targets[j], false);
+            for (int k = 0; k < touchedCount; k++) {
+                int node = touched[k];
+                addBucketEntry(node, j, distance[node]);
+            }
+            reset();
+        }
+        for (int i = 0; i < sourceCount; i++) {
+            search(sources[i], true);
+            int row = i * targetCount;
+            for (int k = 0; k < touchedCount; k++) {
+                int node = touched[k];
+                int time = distance[node];
+                for (int e = bucketHead[node]; e >= 0; e = entryNext[e]) {
+                    int total = time + entryTime[e];
+                    if (total < out[row + entryTarget[e]]) {
+                        out[row + entryTarget[e]] = total;
+                    }
+                }
+            }
+            reset();
+        }
+        clearBuckets();
+    }
+    
+    /** Settles every node reachable upwards from the start, leaving them in {@link #touched}. */
+    private void search(int start, boolean forward) {
+        searches++;
+        distance[start] = 0;
+        touched[touchedCount++] = start;
+        push(0, start);
+        while (heapSize > 0) {
+            int time = heapKeys[0];
+            int node = heapNodes[0];
+            pop();
+            if (time > distance[node]) {
+                continue;
+            }
+            settled++;
+            int end = forward ? graph.forwardEnd(node) : graph.backwardEnd(node);
+            for (int e = forward ? graph.forwardStart(node) : graph.backwardStart(node); e < end; e++) {
+                int next = forward ? graph.forwardTarget(e) : graph.backwardSource(e);
+                int nextTime = time + (forward ? graph.forwardWeight(e) : graph.backwardWeight(e));
+                if (nextTime < distance[next]) {
+                    if (distance[next] == UNREACHABLE) {
+                        touched[touchedCount++] = next;
+                    }
+                    distance[next] = nextTime;
+                    push(nextTime, next);
+                }
+            }
+        }
+    }
+    
+    private void reset() {
+        for (int k = 0; k < touchedCount; k++) {
+            distance[touched[k]] = UNREACHABLE;
+        }
+        touchedCount = 0;
+    }
+    
+    private void addBucketEntry(int node, int target, int time) {
+        if (entryCount == entryTarget.length) {
+            int capacity = entryCount * 2;
+            entryTarget = Arrays.copyOf(entryTarget, capacity);
+            entryTime = Arrays.copyOf(entryTime, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        if (bucketHead[node] < 0) {
+            bucketNodes[bucketNodeCount++] = node;
+        }
+        entryTarget[entryCount] = target;
+        entryTime[entryCount] = time;
+        entryNext[entryCount] = bucketHead[node];
+        bucketHead[node] = entryCount++;
+    }
+    
+    private void clearBuckets() {
+        for (int k = 0; k < bucketNodeCount; k++) {
+            bucketHead[bucketNodes[k]] = -1;
+        }
+        bucketNodeCount = 0;
+        entryCount = 0;
+    }
+    
+    // Binary heap without decrease-key: improved nodes are pushed again and stale entries skipped
+    private void push(int key, int node) {
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[parent];
+            heapNodes[i] = heapNodes[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+    
+    private void pop() {
+        int key = heapKeys[--heapSize];
+        int node = heapNodes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapNodes[i] = heapNodes[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+    
+    public long getSearches() {
+        return searches;
+    }
+    
+    public long getSettledNodes() {
+        return settled;
+    }
+}
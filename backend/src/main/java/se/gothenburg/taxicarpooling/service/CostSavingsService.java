@@ -0,0 +1,211 @@
+package se.gothenburg.taxicarpooling.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.gothenburg.taxicarpooling.dto.SavingsReport;
+import se.gothenburg.taxicarpooling.entity.CostSavings;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.repository.CostSavingsRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Daily cost savings for municipal reporting. Each COMPLETED transition adds the trip to its
+ * booking day in cost_savings inside the same transaction, so reports read a handful of aggregate
+ * rows instead of grouping the whole trip history. A rebuild recomputes a range of days from
+ * trip_requests a few days per transaction.
+ */
+@Service
+public class CostSavingsService {
+    
+    @Autowired
+    private CostSavingsRepository costSavingsRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    
+    @Value("${government.cost.per.individual.trip}")
+    private BigDecimal costPerIndividualTrip;
+    
+    @Value("${savings.rebuild.chunk-days:7}")
+    private int chunkDays;
+    
+    @Value("${savings.rebuild.pause-ms:50}")
+    private long pauseMs;
+    
+    @Value("${savings.rebuild.backfill-on-startup:true}")
+    private boolean backfillOnStartup;
+    
+    private TransactionTemplate transactionTemplate;
+    
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "savings-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final LongAdder tripsRecorded = new LongAdder();
+    private final AtomicLong rebuildChunksDone = new AtomicLong();
+    private final AtomicLong rebuildChunksTotal = new AtomicLong();
+    private volatile String rebuildRange;
+    private volatile long lastRebuildMillis;
+    private volatile String lastRebuildError;
+    
+    @PostConstruct
+    void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+    
+    @PreDestroy
+    void shutdown() {
+        rebuilder.shutdownNow();
+    }
+    
+    /** Adds a trip that just became COMPLETED to its day; runs in the transaction that completed it. */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordCompletion(TripRequest trip) {
+        boolean shared = trip.getSharedTrip() != null;
+        BigDecimal cost = trip.getEstimatedCost();
+        BigDecimal individualCost = BigDecimal.ZERO;
+        BigDecimal sharedCost = BigDecimal.ZERO;
+        BigDecimal savings = BigDecimal.ZERO;
+        if (shared) {
+            sharedCost = cost == null ? BigDecimal.ZERO : cost;
+            savings = costPerIndividualTrip.subtract(sharedCost);
+        } else {
+            individualCost = cost == null ? costPerIndividualTrip : cost;
+        }
+        costSavingsRepository.addCompletedTrip(
+            trip.getCreatedAt().toLocalDate(),
+            shared ? 0 : 1, shared ? 1 : 0, shared ? trip.getPassengerCount() : 0,
+            individualCost, sharedCost, savings, savingsPercentage(individualCost, sharedCost, savings)
+        );
+        tripsRecorded.increment();
+    }
+    
+    /** Totals and daily rows for booking days from..to inclusive, read from the aggregates only. */
+    public SavingsReport getReport(LocalDate from, LocalDate to) {
+        List<CostSavings> days = costSavingsRepository.findByDateBetweenOrderByDate(from, to);
+        long individualTrips = 0;
+        long sharedTrips = 0;
+        long sharedPassengers = 0;
+        BigDecimal individualCost = BigDecimal.ZERO;
+        BigDecimal sharedCost = BigDecimal.ZERO;
+        BigDecimal savings = BigDecimal.ZERO;
+        for (CostSavings day : days) {
+            individualTrips += day.getIndividualTripsCount();
+            sharedTrips += day.getSharedTripsCount();
+            sharedPassengers += day.getPassengersInSharedTrips();
+            individualCost = individualCost.add(day.getTotalIndividualCost());
+            sharedCost = sharedCost.add(day.getTotalSharedCost());
+            savings = savings.add(day.getTotalSavings());
+        }
+        return new SavingsReport(from, to, individualTrips, sharedTrips, sharedPassengers,
+            individualCost, sharedCost, savings, savingsPercentage(individualCost, sharedCost, savings), days);
+    }
+    
+    /**
+     * Recomputes booking days from..to inclusive in the background, chunkDays per transaction with a
+     * pause in between. Returns false if a rebuild is already running.
+     */
+    public boolean rebuild(LocalDate from, LocalDate to) {
+        if (to.isBefore(from) || !rebuilding.compareAndSet(false, true)) {
+            return false;
+        }
+        long days = to.toEpochDay() - from.toEpochDay() + 1;
+        rebuildChunksDone.set(0);
+        rebuildChunksTotal.set((days + chunkDays - 1) / chunkDays);
+        rebuildRange = from + ".." + to;
+        rebuilder.execute(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                for (LocalDate chunkStart = from; !chunkStart.isAfter(to); chunkStart = chunkStart.plusDays(chunkDays)) {
+                    LocalDate chunkEnd = chunkStart.plusDays(chunkDays).isAfter(to.plusDays(1))
+                        ? to.plusDays(1) : chunkStart.plusDays(chunkDays);
+                    rebuildChunk(chunkStart, chunkEnd);
+                    rebuildChunksDone.incrementAndGet();
+                    Thread.sleep(pauseMs);
+                }
+                lastRebuildError = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                lastRebuildError = e.getMessage();
+                System.err.println("Cost savings rebuild of " + rebuildRange + " failed: " + e.getMessage());
+            } finally {
+                lastRebuildMillis = System.currentTimeMillis() - start;
+                rebuilding.set(false);
+            }
+        });
+        return true;
+    }
+    
+    // Replaces the days in [from, to). The trip rows read by INSERT ... SELECT are locked, so a trip
+    // completing meanwhile is added to the rebuilt row after this commits and is counted once.
+    private void rebuildChunk(LocalDate from, LocalDate to) {
+        transactionTemplate.executeWithoutResult(status -> {
+            costSavingsRepository.deleteDays(from, to);
+            costSavingsRepository.insertDaysFromTrips(from.atStartOfDay(), to.atStartOfDay(), costPerIndividualTrip);
+            costSavingsRepository.refreshSavingsPercentage(from, to);
+        });
+    }
+    
+    /** Fills cost_savings from the trip history the first time the application starts against it. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillIfEmpty() {
+        if (!backfillOnStartup || costSavingsRepository.count() > 0) {
+            return;
+        }
+        LocalDateTime firstCompleted = tripRequestRepository.findFirstCompletedCreatedAt();
+        if (firstCompleted != null) {
+            rebuild(firstCompleted.toLocalDate(), LocalDate.now());
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("days", costSavingsRepository.count());
+        stats.put("tripsRecorded", tripsRecorded.sum());
+        stats.put("rebuilding", rebuilding.get());
+        stats.put("rebuildRange", rebuildRange);
+        stats.put("rebuildChunksDone", rebuildChunksDone.get());
+        stats.put("rebuildChunksTotal", rebuildChunksTotal.get());
+        stats.put("lastRebuildMillis", lastRebuildMillis);
+        stats.put("lastRebuildError", lastRebuildError);
+        return stats;
+    }
+    
+    // Same formula as CostSavingsRepository.SAVINGS_PERCENTAGE
+    static BigDecimal savingsPercentage(BigDecimal individualCost, BigDecimal sharedCost, BigDecimal savings) {
+        BigDecimal withoutPooling = individualCost.add(sharedCost).add(savings);
+        if (withoutPooling.signum() <= 0) {
+            return BigDecimal.ZERO;
+        }
+        return savings.multiply(BigDecimal.valueOf(100)).divide(withoutPooling, 2, RoundingMode.HALF_UP);
+    }
+}
@@ -0,0 +1,346 @@
+package se.gothenburg.taxicarpooling.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.gothenburg.taxicarpooling.entity.DispatchOffer;
+import se.gothenburg.taxicarpooling.entity.DispatchOfferLapse;
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.NotificationOutbox;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.matching.AssignmentSolver;
+import se.gothenburg.taxicarpooling.matching.DispatchCostModel;
+import se.gothenburg.taxicarpooling.matching.DriverLocationIndex;
+import se.gothenburg.taxicarpooling.matching.NearbyDriver;
+import se.gothenburg.taxicarpooling.repository.DispatchOfferLapseRepository;
+import se.gothenburg.taxicarpooling.repository.DispatchOfferRepository;
+import se.gothenburg.taxicarpooling.repository.NotificationOutboxRepository;
+import se.gothenburg.taxicarpooling.repository.SharedTripRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+import se.gothenburg.taxicarpooling.repository.UserRepository;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch dispatch of shared trips. With {@code dispatch.mode=batch} shared trips are no longer
+ * broadcast to every driver for the first tap. Instead each tick collects the pending shared trips
+ * without an open offer and the available drivers without one. It solves a minimum-cost assignment
+ * over the {@link DispatchCostModel} and sends each chosen driver a targeted offer through the
+ * outbox. An offer that is not accepted in time lapses; its trip is re-offered on a later tick, to
+ * anyone but that driver.
+ * <p>
+ * Offers and lapses are kept in the database, so every node can accept any offer and nodes can tick
+ * side by side: the offer table's keys let only one of them offer a given trip or driver.
+ */
+@Service
+public class DispatchService {
+    
+    @Autowired
+    private SharedTripRepository sharedTripRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Autowired
+    private UserRepository userRepository;
+    
+    @Autowired
+    private NotificationOutboxRepository notificationOutboxRepository;
+    
+    @Autowired
+    private DispatchOfferRepository dispatchOfferRepository;
+    
+    @Autowired
+    private DispatchOfferLapseRepository dispatchOfferLapseRepository;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    
+    @Autowired
+    private DriverLocationService driverLocationService;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @Autowired
+    private TripListCache tripListCache;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${dispatch.mode:fcfs}")
+    private String dispatchMode;
+    
+    @Value("${dispatch.batch.max-pickup-km:15}")
+    private double maxPickupKm;
+    
+    @Value("${dispatch.batch.wheelchair-penalty-km:3}")
+    private double wheelchairPenaltyKm;
+    
+    @Value("${dispatch.batch.empty-seat-penalty-km:0.5}")
+    private double emptySeatPenaltyKm;
+    
+    @Value("${dispatch.batch.offer-timeout-seconds:60}")
+    private long offerTimeoutSeconds;
+    
+    private DispatchCostModel costModel;
+    
+    private final AssignmentSolver solver = new AssignmentSolver();
+    
+    private TransactionTemplate transactionTemplate;
+    
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder lapsed = new LongAdder();
+    private volatile int lastTrips;
+    private volatile int lastDrivers;
+    private volatile long lastSolveMicros;
+    
+    private Timer solveTimer;
+    private Counter offerCounter;
+    private DistributionSummary offerEmptyKm;
+    
+    @PostConstruct
+    void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        costModel = new DispatchCostModel(maxPickupKm, wheelchairPenaltyKm, emptySeatPenaltyKm);
+        solveTimer = Timer.builder("dispatch.solve")
+            .description("Building and solving one batch assignment")
+            .register(meterRegistry);
+        offerCounter = Counter.builder("dispatch.offers")
+            .description("Targeted offers sent to drivers")
+            .register(meterRegistry);
+        offerEmptyKm = DistributionSummary.builder("dispatch.offer.empty.km")
+            .description("Straight-line empty drive from the offered driver to the first pickup")
+            .baseUnit("km")
+            .register(meterRegistry);
+    }
+    
+    public boolean isBatchMode() {
+        return "batch".equalsIgnoreCase(dispatchMode);
+    }
+    
+    @Scheduled(fixedDelayString = "${dispatch.batch.tick-ms:10000}")
+    public synchronized void dispatchTick() {
+        if (!isBatchMode()) {
+            return;
+        }
+        ticks.increment();
+        for (DispatchOffer offer : dispatchOfferRepository.findExpired()) {
+            // Of several nodes lapsing the same offer, only the one that deletes it records the lapse
+            boolean lapsedHere = Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                if (dispatchOfferRepository.deleteExpired(offer.getSharedTripId(), offer.getDriverId()) == 0) {
+                    return false;
+                }
+                dispatchOfferLapseRepository.save(new DispatchOfferLapse(offer.getSharedTripId(), offer.getDriverId()));
+                return true;
+            }));
+            if (lapsedHere) {
+                lapsed.increment();
+            }
+        }
+        dispatchOfferRepository.deleteUnlessPending();
+        dispatchOfferLapseRepository.deleteUnlessPending();
+        
+        List<SharedTrip> pending = sharedTripRepository.findByStatus(SharedTrip.TripStatus.PENDING);
+        Set<Long> pendingIds = new HashSet<>();
+        for (SharedTrip sharedTrip : pending) {
+            pendingIds.add(sharedTrip.getId());
+        }
+        // Drivers busy with a trip accepted on another node still look available in this node's index
+        Set<Long> offeredDrivers = new HashSet<>(sharedTripRepository.findBusyDriverIds());
+        offeredDrivers.addAll(tripRequestRepository.findBusyDriverIds());
+        for (DispatchOffer offer : dispatchOfferRepository.findAll()) {
+            pendingIds.remove(offer.getSharedTripId());
+            offeredDrivers.add(offer.getDriverId());
+        }
+        if (pendingIds.isEmpty()) {
+            return;
+        }
+        
+        List<NearbyDriver> drivers = new ArrayList<>();
+        for (NearbyDriver driver : driverLocationService.findAvailableDrivers()) {
+            if (!offeredDrivers.contains(driver.getDriverId())) {
+                drivers.add(driver);
+            }
+        }
+        if (drivers.isEmpty()) {
+            return;
+        }
+        
+        List<DispatchCostModel.Order> orders = orders(tripRequestRepository.findBySharedTripIdIn(pendingIds));
+        Map<Long, Set<Long>> lapsedDrivers = new HashMap<>();
+        for (DispatchOfferLapse lapse : dispatchOfferLapseRepository.findBySharedTripIdIn(pendingIds)) {
+            lapsedDrivers.computeIfAbsent(lapse.getSharedTripId(), id -> new HashSet<>()).add(lapse.getDriverId());
+        }
+        long start = System.nanoTime();
+        long[] costs = costModel.costs(orders, drivers);
+        for (int row = 0; row < orders.size(); row++) {
+            Set<Long> excluded = lapsedDrivers.get(orders.get(row).sharedTripId());
+            if (excluded == null) {
+                continue;
+            }
+            for (int col = 0; col < drivers.size(); col++) {
+                if (excluded.contains(drivers.get(col).getDriverId())) {
+                    costs[row * drivers.size() + col] = AssignmentSolver.INFEASIBLE;
+                }
+            }
+        }
+        int[] assignment = solver.solve(costs, orders.size(), drivers.size());
+        long solveNanos = System.nanoTime() - start;
+        solveTimer.record(solveNanos, TimeUnit.NANOSECONDS);
+        lastSolveMicros = solveNanos / 1000;
+        lastTrips = orders.size();
+        lastDrivers = drivers.size();
+        
+        for (int row = 0; row < orders.size(); row++) {
+            if (assignment[row] == AssignmentSolver.UNASSIGNED) {
+                continue;
+            }
+            DispatchCostModel.Order order = orders.get(row);
+            NearbyDriver driver = drivers.get(assignment[row]);
+            double pickupKm = DispatchCostModel.pickupKm(order, driver);
+            // An offer and its event commit together, so no driver holds an offer they were never sent
+            boolean offeredHere = Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                if (dispatchOfferRepository.offer(order.sharedTripId(), driver.getDriverId(), pickupKm, offerTimeoutSeconds) == 0) {
+                    // Another node offered this trip or this driver in the meantime
+                    return false;
+                }
+                DispatchOffer offer = dispatchOfferRepository.findById(order.sharedTripId())
+                    .orElseThrow(() -> new IllegalStateException("Offer for shared trip " + order.sharedTripId() + " vanished"));
+                notificationOutboxRepository.save(offerEvent(order, offer));
+                return true;
+            }));
+            if (offeredHere) {
+                offered.increment();
+                offerCounter.increment();
+                offerEmptyKm.record(pickupKm);
+            }
+        }
+    }
+    
+    /**
+     * Accepts the open offer of a shared trip for its driver. Only the driver the trip was offered
+     * to may accept it, and only until the offer lapses.
+     */
+    @Transactional
+    public SharedTrip acceptOffer(Long sharedTripId, Long driverId) {
+        if (dispatchOfferRepository.take(sharedTripId, driverId) == 0) {
+            throw new TripConflictException("Offer for shared trip " + sharedTripId + " is no longer open to driver " + driverId);
+        }
+        User driver = userRepository.findById(driverId)
+            .orElseThrow(() -> new RuntimeException("Driver not found"));
+        int updated = sharedTripRepository.assignDriver(
+            sharedTripId, driver, SharedTrip.TripStatus.ASSIGNED, SharedTrip.TripStatus.PENDING
+        );
+        if (updated == 0) {
+            throw new TripConflictException("Shared trip " + sharedTripId + " is no longer pending");
+        }
+        tripChangeFeed.record(TripChange.EntityType.SHARED_TRIP, sharedTripId);
+        
+        // The shared trip row above lets only one accept through, so its matched members are stable here
+        List<Long> memberIds = new ArrayList<>();
+        List<Long> userIds = new ArrayList<>();
+        for (TripRequest member : tripRequestRepository.findBySharedTripId(sharedTripId)) {
+            if (member.getStatus() == TripRequest.TripStatus.MATCHED) {
+                memberIds.add(member.getId());
+                userIds.add(member.getUser().getId());
+            }
+        }
+        tripRequestRepository.assignSharedTripDriver(
+            sharedTripId, driver, LocalDateTime.now(), TripRequest.TripStatus.ASSIGNED, TripRequest.TripStatus.MATCHED
+        );
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, memberIds);
+        tripListCache.invalidateAfterCommit(userIds);
+        dispatchOfferLapseRepository.deleteBySharedTripId(sharedTripId);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                driverLocationService.setAvailability(driverId, DriverLocationIndex.Availability.BUSY);
+                accepted.increment();
+            }
+        });
+        return sharedTripRepository.findById(sharedTripId)
+            .orElseThrow(() -> new RuntimeException("Shared trip not found"));
+    }
+    
+    /** One order per shared trip: all members' seats, and the earliest pickup as the place to drive to. */
+    static List<DispatchCostModel.Order> orders(List<TripRequest> members) {
+        Map<Long, List<TripRequest>> bySharedTrip = new LinkedHashMap<>();
+        for (TripRequest member : members) {
+            bySharedTrip.computeIfAbsent(member.getSharedTrip().getId(), id -> new ArrayList<>()).add(member);
+        }
+        List<DispatchCostModel.Order> orders = new ArrayList<>(bySharedTrip.size());
+        for (Map.Entry<Long, List<TripRequest>> entry : bySharedTrip.entrySet()) {
+            TripRequest first = Collections.min(entry.getValue(), Comparator.comparing(TripRequest::getRequestedPickupTime));
+            int seats = 0;
+            boolean wheelchair = false;
+            for (TripRequest member : entry.getValue()) {
+                seats += member.getPassengerCount();
+                wheelchair |= member.isNeedsWheelchairAccess();
+            }
+            orders.add(new DispatchCostModel.Order(entry.getKey(),
+                MicroDegreesConverter.toDouble(first.getPickupLatitudeE6()),
+                MicroDegreesConverter.toDouble(first.getPickupLongitudeE6()),
+                seats, wheelchair));
+        }
+        return orders;
+    }
+    
+    private NotificationOutbox offerEvent(DispatchCostModel.Order order, DispatchOffer offer) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("sharedTripId", order.sharedTripId());
+        payload.put("driverId", offer.getDriverId());
+        payload.put("pickupKm", Math.round(offer.getPickupKm() * 10) / 10.0);
+        payload.put("passengerCount", order.seatsNeeded());
+        payload.put("needsWheelchairAccess", order.needsWheelchair());
+        payload.put("expiresAt", offer.getExpiresAt().toString());
+        
+        NotificationOutbox event = new NotificationOutbox();
+        event.setEventType(OutboxPublisher.SHARED_TRIP_OFFERED);
+        event.setAggregateId(order.sharedTripId());
+        try {
+            event.setPayload(objectMapper.writeValueAsString(payload));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Could not serialize shared trip offer", e);
+        }
+        return event;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", isBatchMode() ? "batch" : "fcfs");
+        stats.put("ticks", ticks.sum());
+        stats.put("openOffers", dispatchOfferRepository.count());
+        stats.put("offered", offered.sum());
+        stats.put("accepted", accepted.sum());
+        stats.put("lapsed", lapsed.sum());
+        stats.put("lastTrips", lastTrips);
+        stats.put("lastDrivers", lastDrivers);
+        stats.put("lastSolveMicros", lastSolveMicros);
+        return stats;
+    }
+}
@@ -0,0 +1,143 @@
+package se.gothenburg.taxicarpooling.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import se.gothenburg.taxicarpooling.dto.DriverLocationDto;
+import se.gothenburg.taxicarpooling.entity.DriverVehicle;
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.matching.DriverLocationIndex;
+import se.gothenburg.taxicarpooling.matching.NearbyDriver;
+import se.gothenburg.taxicarpooling.repository.DriverVehicleRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+@Service
+public class DriverLocationService {
+    
+    @Autowired
+    private DriverVehicleRepository driverVehicleRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Value("${drivers.location.stale-after-ms:60000}")
+    private long staleAfterMs;
+    
+    @Value("${drivers.location.max-search-rings:50}")
+    private int maxSearchRings;
+    
+    private DriverLocationIndex locationIndex;
+    
+    private final LongAdder rejectedPings = new LongAdder();
+    
+    @PostConstruct
+    void init() {
+        locationIndex = new DriverLocationIndex(staleAfterMs, maxSearchRings);
+        try {
+            refreshDrivers();
+        } catch (Exception e) {
+            System.err.println("Could not load driver vehicles, retrying on next refresh: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Reloads which users can be dispatched: drivers with at least one active vehicle. A driver with
+     * several vehicles gets the largest capacity and wheelchair access if any vehicle has it.
+     */
+    @Scheduled(fixedDelayString = "${drivers.capabilities.refresh-ms:60000}")
+    public void refreshDrivers() {
+        List<DriverVehicle> vehicles = driverVehicleRepository.findByStatusAndDriverType(
+            DriverVehicle.VehicleStatus.ACTIVE, User.UserType.DRIVER
+        );
+        Map<Long, Integer> maxPassengers = new HashMap<>();
+        Map<Long, Boolean> wheelchairAccessible = new HashMap<>();
+        for (DriverVehicle vehicle : vehicles) {
+            Long driverId = vehicle.getDriver().getId();
+            maxPassengers.merge(driverId, vehicle.getMaxPassengers(), Math::max);
+            wheelchairAccessible.merge(driverId, vehicle.isWheelchairAccessible(), Boolean::logicalOr);
+        }
+        for (Map.Entry<Long, Integer> driver : maxPassengers.entrySet()) {
+            locationIndex.setCapability(driver.getKey(), driver.getValue(), wheelchairAccessible.get(driver.getKey()));
+        }
+        locationIndex.retainDrivers(maxPassengers.keySet());
+    }
+    
+    @Scheduled(fixedDelayString = "${drivers.location.publish-ms:250}")
+    public void publishLocations() {
+        locationIndex.publish();
+    }
+    
+    public boolean recordLocation(DriverLocationDto ping) {
+        if (ping.getDriverId() == null || !locationIndex.isKnownDriver(ping.getDriverId())) {
+            rejectedPings.increment();
+            return false;
+        }
+        DriverLocationIndex.Availability availability = ping.getStatus() == null
+            ? DriverLocationIndex.Availability.AVAILABLE
+            : DriverLocationIndex.Availability.valueOf(ping.getStatus().toUpperCase());
+        locationIndex.update(ping.getDriverId(), ping.getLatitude(), ping.getLongitude(), availability);
+        return true;
+    }
+    
+    public int recordLocations(List<DriverLocationDto> pings) {
+        int accepted = 0;
+        for (DriverLocationDto ping : pings) {
+            if (recordLocation(ping)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+    
+    public void setAvailability(Long driverId, DriverLocationIndex.Availability availability) {
+        locationIndex.setAvailability(driverId, availability);
+    }
+    
+    public List<NearbyDriver> findNearestDrivers(double latitude, double longitude, int k,
+                                                 int seatsNeeded, boolean needsWheelchair) {
+        if (k < 1) {
+            throw new RuntimeException("k must be at least 1");
+        }
+        return locationIndex.nearest(latitude, longitude, k, seatsNeeded, needsWheelchair);
+    }
+    
+    public List<NearbyDriver> findAvailableDrivers() {
+        return locationIndex.available();
+    }
+    
+    /**
+     * Nearest drivers able to serve a shared trip: enough seats for all members, wheelchair access
+     * if any member needs it, measured from the earliest pickup.
+     */
+    public List<NearbyDriver> findNearestDriversForSharedTrip(Long sharedTripId, int k) {
+        List<TripRequest> members = tripRequestRepository.findBySharedTripId(sharedTripId);
+        if (members.isEmpty()) {
+            throw new RuntimeException("Shared trip not found");
+        }
+        TripRequest firstPickup = Collections.min(members, Comparator.comparing(TripRequest::getRequestedPickupTime));
+        int seatsNeeded = 0;
+        boolean needsWheelchair = false;
+        for (TripRequest member : members) {
+            seatsNeeded += member.getPassengerCount();
+            needsWheelchair |= member.isNeedsWheelchairAccess();
+        }
+        return findNearestDrivers(
+            MicroDegreesConverter.toDouble(firstPickup.getPickupLatitudeE6()),
+            MicroDegreesConverter.toDouble(firstPickup.getPickupLongitudeE6()),
+            k, seatsNeeded, needsWheelchair
+        );
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = locationIndex.getStats();
+        stats.put("rejectedPings", rejectedPings.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,215 @@
+package se.gothenburg.taxicarpooling.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import se.gothenburg.taxicarpooling.entity.NotificationOutbox;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.RoutePlan;
+import se.gothenburg.taxicarpooling.repository.NotificationOutboxRepository;
+import se.gothenburg.taxicarpooling.repository.SharedTripRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists all groups of one matchmaking pass in a single transaction: shared trips are inserted
+ * as one JDBC batch and the member trip requests are marked MATCHED with one UPDATE per group.
+ * Member rows are locked and their versions checked first, so a trip can never end up in two
+ * shared trips even when passes run on several threads or nodes. Each shared trip gets the stop
+ * order and duration the pass sequenced for its group. The realtime notifications and
+ * the change feed rows are written in the same transaction, and cached trip lists of the members
+ * are dropped once it commits.
+ */
+@Service
+public class MatchCommitter {
+    
+    @Autowired
+    private SharedTripRepository sharedTripRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Autowired
+    private NotificationOutboxRepository notificationOutboxRepository;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @Autowired
+    private TripListCache tripListCache;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Value("${dispatch.mode:fcfs}")
+    private String dispatchMode;
+    
+    /**
+     * Locks the member rows, drops every group whose members are no longer pending or were changed
+     * since the pass read them, and commits the rest. Dropped groups come back as conflicts.
+     * {@code routes} holds the route of every group, in the same order.
+     */
+    @Transactional
+    public Result commit(List<List<TripRequest>> groups, List<RoutePlan> routes, BigDecimal costPerSharedTrip) {
+        List<Long> allTripIds = new ArrayList<>();
+        for (List<TripRequest> group : groups) {
+            for (TripRequest trip : group) {
+                allTripIds.add(trip.getId());
+            }
+        }
+        Map<Long, TripRequest> lockedRows = new HashMap<>();
+        for (TripRequest row : tripRequestRepository.findAllByIdForUpdate(allTripIds)) {
+            lockedRows.put(row.getId(), row);
+        }
+        
+        Result result = new Result();
+        List<RoutePlan> committedRoutes = new ArrayList<>();
+        for (int g = 0; g < groups.size(); g++) {
+            List<TripRequest> group = groups.get(g);
+            boolean current = true;
+            for (TripRequest trip : group) {
+                TripRequest row = lockedRows.get(trip.getId());
+                if (row == null || row.getStatus() != TripRequest.TripStatus.PENDING
+                        || row.getVersion() != trip.getVersion()) {
+                    result.staleTrips.put(trip.getId(), row);
+                    current = false;
+                }
+            }
+            if (current) {
+                result.committedGroups.add(group);
+                committedRoutes.add(routes.get(g));
+            } else {
+                result.conflictedGroups.add(group);
+            }
+        }
+        if (result.committedGroups.isEmpty()) {
+            return result;
+        }
+        
+        List<SharedTrip> sharedTrips = new ArrayList<>();
+        for (int g = 0; g < result.committedGroups.size(); g++) {
+            RoutePlan route = committedRoutes.get(g);
+            SharedTrip sharedTrip = new SharedTrip();
+            sharedTrip.setStatus(SharedTrip.TripStatus.PENDING);
+            sharedTrip.setEstimatedCost(costPerSharedTrip);
+            sharedTrip.setPassengerCount(result.committedGroups.get(g).size());
+            sharedTrip.setPickupSequence(route.pickupSequence());
+            sharedTrip.setDropoffSequence(route.dropoffSequence());
+            sharedTrip.setEstimatedDurationMinutes(route.durationMinutes());
+            sharedTrips.add(sharedTrip);
+        }
+        sharedTrips = sharedTripRepository.saveAll(sharedTrips);
+        sharedTripRepository.flush();
+        
+        // Passenger and addresses come from the locked rows; the grouped trips may be restored from a snapshot
+        List<NotificationOutbox> events = new ArrayList<>();
+        for (int g = 0; g < result.committedGroups.size(); g++) {
+            events.add(sharedTripCreatedEvent(sharedTrips.get(g), result.committedGroups.get(g), lockedRows));
+        }
+        notificationOutboxRepository.saveAll(events);
+        
+        for (int g = 0; g < result.committedGroups.size(); g++) {
+            List<TripRequest> group = result.committedGroups.get(g);
+            SharedTrip sharedTrip = sharedTrips.get(g);
+            BigDecimal costShare = costShare(costPerSharedTrip, group.size());
+            
+            List<Long> tripIds = new ArrayList<>();
+            List<Long> userIds = new ArrayList<>();
+            for (TripRequest trip : group) {
+                tripIds.add(trip.getId());
+                userIds.add(lockedRows.get(trip.getId()).getUser().getId());
+            }
+            int updated = tripRequestRepository.markMatched(
+                tripIds, sharedTrip, costShare, TripRequest.TripStatus.MATCHED, TripRequest.TripStatus.PENDING
+            );
+            if (updated != tripIds.size()) {
+                // The rows are locked, so this means something bypassed the lock
+                throw new IllegalStateException("Trips " + tripIds + " are no longer all pending");
+            }
+            tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, tripIds);
+            tripListCache.invalidateAfterCommit(userIds);
+        }
+        List<Long> sharedTripIds = new ArrayList<>();
+        for (SharedTrip sharedTrip : sharedTrips) {
+            sharedTripIds.add(sharedTrip.getId());
+        }
+        tripChangeFeed.record(TripChange.EntityType.SHARED_TRIP, sharedTripIds);
+        result.sharedTrips.addAll(sharedTrips);
+        return result;
+    }
+    
+    private NotificationOutbox sharedTripCreatedEvent(SharedTrip sharedTrip, List<TripRequest> tripRequests,
+                                                      Map<Long, TripRequest> lockedRows) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("sharedTripId", sharedTrip.getId());
+        payload.put("status", "MATCHED");
+        payload.put("passengerCount", sharedTrip.getPassengerCount());
+        payload.put("pickupSequence", sharedTrip.getPickupSequence());
+        payload.put("dropoffSequence", sharedTrip.getDropoffSequence());
+        payload.put("estimatedDurationMinutes", sharedTrip.getEstimatedDurationMinutes());
+        // In batch mode the trip is offered to one driver later instead of broadcast now
+        payload.put("dispatch", dispatchMode);
+        
+        List<Map<String, Object>> tripData = new ArrayList<>();
+        for (TripRequest grouped : tripRequests) {
+            TripRequest trip = lockedRows.get(grouped.getId());
+            Map<String, Object> tripInfo = new LinkedHashMap<>();
+            tripInfo.put("tripId", trip.getId());
+            tripInfo.put("userId", trip.getUser().getId());
+            tripInfo.put("pickupAddress", trip.getPickupAddress());
+            tripInfo.put("destinationAddress", trip.getDestinationAddress());
+            tripInfo.put("pickupLatitude", trip.getPickupLatitude());
+            tripInfo.put("pickupLongitude", trip.getPickupLongitude());
+            tripInfo.put("destinationLatitude", trip.getDestinationLatitude());
+            tripInfo.put("destinationLongitude", trip.getDestinationLongitude());
+            tripInfo.put("requestedPickupTime", trip.getRequestedPickupTime());
+            tripInfo.put("passengerCount", trip.getPassengerCount());
+            tripInfo.put("needsWheelchairAccess", trip.isNeedsWheelchairAccess());
+            tripInfo.put("needsAssistance", trip.isNeedsAssistance());
+            tripData.add(tripInfo);
+        }
+        payload.put("trips", tripData);
+        
+        NotificationOutbox event = new NotificationOutbox();
+        event.setEventType(OutboxPublisher.SHARED_TRIP_CREATED);
+        event.setAggregateId(sharedTrip.getId());
+        try {
+            event.setPayload(objectMapper.writeValueAsString(payload));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Could not serialize shared trip event", e);
+        }
+        return event;
+    }
+    
+    static BigDecimal costShare(BigDecimal costPerSharedTrip, int groupSize) {
+        return costPerSharedTrip.divide(BigDecimal.valueOf(groupSize), 2, RoundingMode.HALF_UP);
+    }
+    
+    public static class Result {
+        private final List<List<TripRequest>> committedGroups = new ArrayList<>();
+        private final List<SharedTrip> sharedTrips = new ArrayList<>();
+        private final List<List<TripRequest>> conflictedGroups = new ArrayList<>();
+        private final Map<Long, TripRequest> staleTrips = new HashMap<>();
+        
+        public List<List<TripRequest>> getCommittedGroups() { return committedGroups; }
+        
+        public List<SharedTrip> getSharedTrips() { return sharedTrips; }
+        
+        public List<List<TripRequest>> getConflictedGroups() { return conflictedGroups; }
+        
+        /** Current row for every trip that failed the check, null when the row is gone. */
+        public Map<Long, TripRequest> getStaleTrips() { return staleTrips; }
+    }
+}
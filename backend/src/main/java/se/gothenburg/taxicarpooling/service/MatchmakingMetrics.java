@@ -0,0 +1,179 @@
+package se.gothenburg.taxicarpooling.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for booking, matchmaking and dispatch, exported through Actuator at
+ * /actuator/prometheus. Per-trip meters are tagged with the two-hour pickup slot and the priority;
+ * all of them are registered up front, so recording on the booking and matching paths is a plain
+ * array lookup.
+ */
+@Component
+public class MatchmakingMetrics {
+    
+    public static final String PHASE_INDEX_LOAD = "index_load";
+    public static final String PHASE_CANDIDATE_LOOKUP = "candidate_lookup";
+    public static final String PHASE_COMPATIBILITY = "compatibility";
+    public static final String PHASE_LOCK_WAIT = "lock_wait";
+    public static final String PHASE_SLOT_GRAPH = "slot_graph";
+    public static final String PHASE_GROUPING = "grouping";
+    public static final String PHASE_ROUTING = "routing";
+    public static final String PHASE_COMMIT = "commit";
+    
+    private static final String[] PHASES = {
+        PHASE_INDEX_LOAD, PHASE_CANDIDATE_LOOKUP, PHASE_COMPATIBILITY,
+        PHASE_LOCK_WAIT, PHASE_SLOT_GRAPH, PHASE_GROUPING, PHASE_ROUTING, PHASE_COMMIT
+    };
+    
+    private static final int SLOTS = 12;
+    private static final TripRequest.Priority[] PRIORITIES = TripRequest.Priority.values();
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    private Timer[] phaseTimers;
+    private Timer[] passTimers;
+    private DistributionSummary passStatements;
+    
+    private Counter[][] booked;
+    private Counter[][] matched;
+    private Timer[][] bookingTimers;
+    private Timer[][] assignmentTimers;
+    private DistributionSummary[][] candidateCounts;
+    private DistributionSummary[][] groupSizes;
+    private Counter[] sharedTripsCreated;
+    
+    @PostConstruct
+    void init() {
+        phaseTimers = new Timer[PHASES.length];
+        for (int p = 0; p < PHASES.length; p++) {
+            phaseTimers[p] = Timer.builder("matchmaking.phase")
+                .description("Time spent in one phase of matchmaking")
+                .tag("phase", PHASES[p])
+                .register(meterRegistry);
+        }
+        passTimers = new Timer[] {
+            Timer.builder("matchmaking.pass").description("Matchmaking pass duration")
+                .tag("mode", "batch").register(meterRegistry),
+            Timer.builder("matchmaking.pass").description("Matchmaking pass duration")
+                .tag("mode", "full").register(meterRegistry)
+        };
+        passStatements = DistributionSummary.builder("matchmaking.pass.statements")
+            .description("JDBC statements prepared by one matchmaking pass")
+            .register(meterRegistry);
+        
+        booked = new Counter[SLOTS][PRIORITIES.length];
+        matched = new Counter[SLOTS][PRIORITIES.length];
+        bookingTimers = new Timer[SLOTS][PRIORITIES.length];
+        assignmentTimers = new Timer[SLOTS][PRIORITIES.length];
+        candidateCounts = new DistributionSummary[SLOTS][PRIORITIES.length];
+        groupSizes = new DistributionSummary[SLOTS][PRIORITIES.length];
+        sharedTripsCreated = new Counter[SLOTS];
+        for (int s = 0; s < SLOTS; s++) {
+            String slot = String.format("%02d-%02d", 2 * s, 2 * s + 2);
+            sharedTripsCreated[s] = Counter.builder("shared.trips.created")
+                .description("Shared trips committed by matchmaking")
+                .tag("slot", slot)
+                .register(meterRegistry);
+            for (TripRequest.Priority priority : PRIORITIES) {
+                int p = priority.ordinal();
+                String priorityTag = priority.name();
+                booked[s][p] = Counter.builder("trips.booked")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+                matched[s][p] = Counter.builder("trips.matched")
+                    .description("Booked trips that joined a shared trip")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+                bookingTimers[s][p] = Timer.builder("trips.booking")
+                    .description("Booking request time up to the committed trip")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+                assignmentTimers[s][p] = Timer.builder("trips.assignment")
+                    .description("Time from booking until the trip joined a shared trip")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+                candidateCounts[s][p] = DistributionSummary.builder("matchmaking.candidates")
+                    .description("Pending trips near a new trip that the compatibility check ran against")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+                groupSizes[s][p] = DistributionSummary.builder("matchmaking.group.size")
+                    .description("Passengers per shared trip, tagged with the most urgent member's priority")
+                    .tag("slot", slot).tag("priority", priorityTag)
+                    .register(meterRegistry);
+            }
+        }
+        Gauge.builder("matchmaking.share.rate", this, MatchmakingMetrics::shareRate)
+            .description("Share of booked trips that were matched into a shared trip since startup")
+            .register(meterRegistry);
+    }
+    
+    public void recordPhase(String phase, long nanos) {
+        for (int p = 0; p < PHASES.length; p++) {
+            if (PHASES[p].equals(phase)) {
+                phaseTimers[p].record(nanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+    }
+    
+    public void recordPass(boolean fullPass, long nanos, long statements) {
+        passTimers[fullPass ? 1 : 0].record(nanos, TimeUnit.NANOSECONDS);
+        passStatements.record(statements);
+    }
+    
+    public void recordBooking(TripRequest trip, long nanos) {
+        int s = slot(trip);
+        int p = trip.getPriority().ordinal();
+        booked[s][p].increment();
+        bookingTimers[s][p].record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void recordCandidates(TripRequest trip, int candidates) {
+        candidateCounts[slot(trip)][trip.getPriority().ordinal()].record(candidates);
+    }
+    
+    public void recordSharedTrip(List<TripRequest> group, LocalDateTime matchedAt) {
+        int s = slot(group.get(0));
+        int mostUrgent = 0;
+        for (TripRequest trip : group) {
+            int p = trip.getPriority().ordinal();
+            mostUrgent = Math.max(mostUrgent, p);
+            matched[slot(trip)][p].increment();
+            if (trip.getCreatedAt() != null) {
+                assignmentTimers[slot(trip)][p].record(Duration.between(trip.getCreatedAt(), matchedAt));
+            }
+        }
+        groupSizes[s][mostUrgent].record(group.size());
+        sharedTripsCreated[s].increment();
+    }
+    
+    private double shareRate() {
+        double bookedTotal = 0;
+        double matchedTotal = 0;
+        for (int s = 0; s < SLOTS; s++) {
+            for (int p = 0; p < PRIORITIES.length; p++) {
+                bookedTotal += booked[s][p].count();
+                matchedTotal += matched[s][p].count();
+            }
+        }
+        return bookedTotal == 0 ? 0.0 : Math.min(1.0, matchedTotal / bookedTotal);
+    }
+    
+    private static int slot(TripRequest trip) {
+        return trip.getRequestedPickupTime().getHour() / 2;
+    }
+}
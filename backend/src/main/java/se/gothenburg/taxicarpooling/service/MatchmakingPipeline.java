@@ -0,0 +1,225 @@
+package se.gothenburg.taxicarpooling.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import se.gothenburg.taxicarpooling.config.StatementCounter;
+import se.gothenburg.taxicarpooling.config.VirtualThreads;
+import se.gothenburg.taxicarpooling.dto.TripChangeEvent;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
+import se.gothenburg.taxicarpooling.entity.MicroDegreesConverter;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects booked trips and runs one matchmaking pass per batch on a dedicated thread, so booking
+ * requests never wait for matching or for the realtime service.
+ * <p>
+ * Trips booked or changed through other nodes reach this one through the change feed. With
+ * sharding on, a full pass also runs after this node took over shards.
+ */
+@Component
+public class MatchmakingPipeline {
+    
+    @Autowired
+    private MatchmakingService matchmakingService;
+    
+    @Autowired
+    private MatchmakingMetrics matchmakingMetrics;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Autowired
+    private ShardLeaseManager shardLeaseManager;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @Value("${matchmaking.pipeline.queue-capacity:10000}")
+    private int queueCapacity;
+    
+    @Value("${matchmaking.pipeline.max-batch-size:50}")
+    private int maxBatchSize;
+    
+    private BlockingQueue<Long> queue;
+    
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    
+    private ExecutorService executor;
+    
+    private final AtomicBoolean passScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);
+    private final AtomicBoolean fullPassRequested = new AtomicBoolean(false);
+    
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedTrips = new LongAdder();
+    private final LongAdder failedPasses = new LongAdder();
+    private final LongAdder remoteTrips = new LongAdder();
+    private final AtomicLong lastBatchSize = new AtomicLong();
+    private final AtomicLong largestBatchSize = new AtomicLong();
+    private final AtomicLong lastPassMillis = new AtomicLong();
+    
+    @PostConstruct
+    void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        executor = Executors.newSingleThreadExecutor(VirtualThreads.threadFactory("matchmaking-pipeline", virtualThreads));
+        Gauge.builder("matchmaking.queue.depth", queue, BlockingQueue::size)
+            .description("Booked trips waiting for the next matchmaking batch")
+            .register(meterRegistry);
+        tripChangeFeed.addListener(this::followChanges);
+        if (shardLeaseManager.isEnabled()) {
+            shardLeaseManager.addListener(new ShardLeaseManager.Listener() {
+                @Override
+                public void shardsAcquired(Set<Integer> shards) {
+                    fullPassRequested.set(true);
+                    schedulePass();
+                }
+                
+                @Override
+                public void shardsReleased(Set<Integer> shards) {
+                }
+            });
+        }
+    }
+    
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    public boolean submit(TripRequest trip) {
+        boolean accepted = queue.offer(trip.getId());
+        if (accepted) {
+            enqueued.increment();
+        } else {
+            // The trip is already in the pending index, the next pass will still consider it
+            dropped.increment();
+            overflowed.set(true);
+        }
+        if (queue.size() >= maxBatchSize) {
+            schedulePass();
+        }
+        return accepted;
+    }
+    
+    /**
+     * Keeps the pending index in step with trips changed on other nodes: new pending trips this node
+     * matches are indexed and queued, trips no longer pending are dropped. Changes made on this node
+     * come through as well and find the index already up to date.
+     */
+    private void followChanges(List<TripChangeEvent> events) {
+        List<Long> booked = new ArrayList<>();
+        for (TripChangeEvent event : events) {
+            if (event.type() != TripChange.EntityType.TRIP_REQUEST) {
+                continue;
+            }
+            if (!(event.state() instanceof TripSummary trip) || trip.status() != TripRequest.TripStatus.PENDING) {
+                if (matchmakingService.isIndexed(event.id())) {
+                    matchmakingService.removePendingTrip(event.id());
+                }
+            } else if (!matchmakingService.isIndexed(event.id()) && trip.pickupLatitude() != null && trip.pickupLongitude() != null
+                    && matchmakingService.isOwned(
+                        MicroDegreesConverter.toMicroDegrees(trip.pickupLatitude()),
+                        MicroDegreesConverter.toMicroDegrees(trip.pickupLongitude()),
+                        (int) Math.floorDiv(trip.requestedPickupTime().toEpochSecond(ZoneOffset.UTC), 60))) {
+                booked.add(event.id());
+            }
+        }
+        if (!booked.isEmpty()) {
+            // Loaded on the pipeline thread so the change feed poller is not held up
+            executor.execute(() -> indexRemoteTrips(booked));
+        }
+    }
+    
+    private void indexRemoteTrips(List<Long> tripIds) {
+        try {
+            for (TripRequest trip : matchmakingService.indexPendingTrips(tripIds)) {
+                remoteTrips.increment();
+                submit(trip);
+            }
+        } catch (Exception e) {
+            System.err.println("Could not index " + tripIds.size() + " trips from other nodes: " + e.getMessage());
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${matchmaking.pipeline.batch-window-ms:200}")
+    public void flush() {
+        if (!queue.isEmpty() || overflowed.get() || fullPassRequested.get()) {
+            schedulePass();
+        }
+    }
+    
+    private void schedulePass() {
+        if (passScheduled.compareAndSet(false, true)) {
+            executor.execute(this::runBatch);
+        }
+    }
+    
+    private void runBatch() {
+        passScheduled.set(false);
+        
+        List<Long> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        boolean hadOverflow = overflowed.getAndSet(false);
+        boolean fullPass = fullPassRequested.getAndSet(false) || hadOverflow;
+        if (batch.isEmpty() && !fullPass) {
+            return;
+        }
+        
+        batches.increment();
+        batchedTrips.add(batch.size());
+        lastBatchSize.set(batch.size());
+        largestBatchSize.accumulateAndGet(batch.size(), Math::max);
+        
+        long start = System.nanoTime();
+        long[] enclosing = StatementCounter.begin();
+        try {
+            if (fullPass) {
+                // Dropped trips and those of newly owned shards are not in the batch
+                matchmakingService.processMatchmaking();
+            } else {
+                matchmakingService.processMatchmaking(batch);
+            }
+        } catch (Exception e) {
+            failedPasses.increment();
+            System.err.println("Matchmaking pass failed for batch of " + batch.size() + " trips: " + e.getMessage());
+        } finally {
+            long nanos = System.nanoTime() - start;
+            matchmakingMetrics.recordPass(fullPass, nanos, StatementCounter.end(enclosing));
+            lastPassMillis.set(nanos / 1_000_000);
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long batchCount = batches.sum();
+        stats.put("queueDepth", queue.size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("enqueued", enqueued.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("batches", batchCount);
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("largestBatchSize", largestBatchSize.get());
+        stats.put("avgBatchSize", batchCount == 0 ? 0.0 : (double) batchedTrips.sum() / batchCount);
+        stats.put("failedPasses", failedPasses.sum());
+        stats.put("remoteTrips", remoteTrips.sum());
+        stats.put("lastPassMillis", lastPassMillis.get());
+        return stats;
+    }
+}
@@ -2,19 +2,50 @@ package se.gothenburg.taxicarpooling.service;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import se.gothenburg.taxicarpooling.dto.PendingTripKey;
+import se.gothenburg.taxicarpooling.entity.TripChange;
 import se.gothenburg.taxicarpooling.entity.TripRequest;
 import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.matching.CompatibilityGraph;
+import se.gothenburg.taxicarpooling.matching.GeoKernel;
+import se.gothenburg.taxicarpooling.matching.GreedyGroupingEngine;
+import se.gothenburg.taxicarpooling.matching.GroupingEngine;
+import se.gothenburg.taxicarpooling.matching.HaversineTravelTimes;
+import se.gothenburg.taxicarpooling.matching.MatchingSnapshot;
+import se.gothenburg.taxicarpooling.matching.OptimalGroupingEngine;
+import se.gothenburg.taxicarpooling.matching.PendingTripIndex;
+import se.gothenburg.taxicarpooling.matching.RoutePlan;
+import se.gothenburg.taxicarpooling.matching.RouteSequencer;
+import se.gothenburg.taxicarpooling.matching.ShardMap;
+import se.gothenburg.taxicarpooling.matching.SlotGraph;
+import se.gothenburg.taxicarpooling.matching.StripedLocks;
+import se.gothenburg.taxicarpooling.matching.TravelTimeFilter;
+import se.gothenburg.taxicarpooling.matching.TravelTimes;
+import se.gothenburg.taxicarpooling.matching.TripColumns;
+import se.gothenburg.taxicarpooling.repository.TripChangeRepository;
 import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
-import se.gothenburg.taxicarpooling.repository.SharedTripRepository;
+import se.gothenburg.taxicarpooling.routing.NetworkTravelTimes;
+import se.gothenburg.taxicarpooling.routing.RoadGraph;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 @Service
@@ -24,7 +55,19 @@ public class MatchmakingService {
     private TripRequestRepository tripRequestRepository;
     
     @Autowired
-    private SharedTripRepository sharedTripRepository;
+    private MatchCommitter matchCommitter;
+    
+    @Autowired
+    private MatchmakingMetrics matchmakingMetrics;
+    
+    @Autowired
+    private ShardLeaseManager shardLeaseManager;
+    
+    @Autowired
+    private TripChangeRepository tripChangeRepository;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
     
     @Value("${government.max.passengers.per.trip}")
     private int maxPassengersPerTrip;
@@ -32,180 +75,798 @@ public class MatchmakingService {
     @Value("${government.cost.per.shared.trip}")
     private BigDecimal costPerSharedTrip;
     
-    @Value("${realtime.service.url:http://localhost:3001}")
-    private String realtimeServiceUrl;
+    @Value("${government.cost.per.individual.trip}")
+    private BigDecimal costPerIndividualTrip;
+    
+    @Value("${matchmaking.kernel.vector:false}")
+    private boolean useVectorKernel;
+    
+    @Value("${matchmaking.grouping.strategy:greedy}")
+    private String groupingStrategy;
+    
+    @Value("${matchmaking.grouping.time-budget-ms:50}")
+    private long groupingTimeBudgetMs;
+    
+    @Value("${matchmaking.grouping.parallelism:0}")
+    private int groupingParallelism;
+    
+    @Value("${matchmaking.route.max-detour-factor:1.5}")
+    private double maxDetourFactor;
+    
+    @Value("${matchmaking.route.min-detour-minutes:5}")
+    private int minDetourMinutes;
     
-    private RestTemplate restTemplate = new RestTemplate();
+    @Value("${matchmaking.route.stop-minutes:2}")
+    private int stopMinutes;
+    
+    @Value("${matchmaking.route.average-speed-kmh:30}")
+    private double averageSpeedKmh;
+    
+    @Value("${matchmaking.travel-times:haversine}")
+    private String travelTimesModel;
+    
+    @Value("${matchmaking.route.graph-file:}")
+    private String graphFile;
+    
+    @Value("${matchmaking.snapshot.path:}")
+    private String snapshotPath;
+    
+    @Value("${matchmaking.snapshot.max-age-minutes:60}")
+    private long snapshotMaxAgeMinutes;
     
     private static final double MAX_PICKUP_DISTANCE_KM = 2.0;
     private static final double MAX_DESTINATION_DISTANCE_KM = 2.0;
     private static final int MAX_TIME_DIFFERENCE_MINUTES = 30;
     
-    public void processMatchmaking() {
-        List<TripRequest> pendingTrips = tripRequestRepository.findByStatusAndRequestedPickupTimeAfter(
-            TripRequest.TripStatus.PENDING, LocalDateTime.now()
+    // Partitions are about 5.5 x 6 km per two-hour slot, wide enough that most groups stay inside one
+    private static final int PARTITION_LAT_MICRODEGREES = 50_000;
+    private static final int PARTITION_LON_MICRODEGREES = 100_000;
+    private static final int SLOT_MINUTES = 2 * 60;
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+    private static final int LOAD_CHUNK_SIZE = 1_000;
+    private static final int ROUTE_CACHE_SIZE = 1 << 14;
+    
+    // Shard regions are about 11 x 12 km, so only trips near their edges need the hand-off rule
+    private static final int SHARD_REGION_LAT_MICRODEGREES = 100_000;
+    private static final int SHARD_REGION_LON_MICRODEGREES = 200_000;
+    
+    // Changes recorded this long before a snapshot are replayed too, in case they were indexed late
+    private static final int SNAPSHOT_REPLAY_OVERLAP_SECONDS = 60;
+    
+    private final PendingTripIndex pendingTripIndex = new PendingTripIndex(
+        MAX_PICKUP_DISTANCE_KM, MAX_DESTINATION_DISTANCE_KM, MAX_TIME_DIFFERENCE_MINUTES
+    );
+    
+    private final CompatibilityGraph compatibilityGraph = new CompatibilityGraph();
+    
+    private final ThreadLocal<TripColumns> scratchColumns = ThreadLocal.withInitial(TripColumns::new);
+    
+    private GeoKernel geoKernel;
+    
+    private GroupingEngine groupingEngine;
+    
+    private TravelTimes travelTimes;
+    
+    private ThreadLocal<RouteSequencer> routeSequencers;
+    
+    // Only with network travel times; haversine times add nothing to the kernel's distance checks
+    private TravelTimeFilter travelTimeFilter;
+    
+    private final StripedLocks partitionLocks = new StripedLocks(64);
+    
+    // With sharding on, only trips of shards this node owns are indexed and grouped
+    private ShardMap shardMap;
+    
+    // Passes hold it shared; giving up shards waits for them, so no pass here overlaps the next owner
+    private final ReentrantReadWriteLock shardHandOffLock = new ReentrantReadWriteLock();
+    
+    // Shards whose pending trips are all indexed, which is what a snapshot covers
+    private final Set<Integer> indexedShards = ConcurrentHashMap.newKeySet();
+    
+    // Settings the compatibility edges depend on; a snapshot written under others is not restored
+    private long snapshotFingerprint;
+    
+    private final Map<String, Object> warmStartStats = new LinkedHashMap<>();
+    private final Map<String, Object> snapshotStats = new LinkedHashMap<>();
+    private final ReentrantLock snapshotWriteLock = new ReentrantLock();
+    
+    private final LongAdder conflictedGroups = new LongAdder();
+    private final LongAdder abandonedRetries = new LongAdder();
+    private final LongAdder routedGroups = new LongAdder();
+    private final LongAdder trimmedGroups = new LongAdder();
+    private final LongAdder detourRejectedGroups = new LongAdder();
+    
+    private volatile boolean indexLoaded = false;
+    
+    // Not synchronized: the initial load runs a JDBC query, which would pin a virtual thread's carrier
+    private final ReentrantLock indexLoadLock = new ReentrantLock();
+    
+    @PostConstruct
+    void initEngines() {
+        geoKernel = GeoKernel.create(
+            MAX_PICKUP_DISTANCE_KM, MAX_DESTINATION_DISTANCE_KM, MAX_TIME_DIFFERENCE_MINUTES, useVectorKernel
         );
-        
-        Map<String, List<TripRequest>> tripsByTimeSlot = groupTripsByTimeSlot(pendingTrips);
-        
-        for (List<TripRequest> tripsInSlot : tripsByTimeSlot.values()) {
-            createOptimalMatches(tripsInSlot);
+        if ("optimal".equalsIgnoreCase(groupingStrategy)) {
+            groupingEngine = new OptimalGroupingEngine(
+                groupingParallelism, groupingTimeBudgetMs,
+                costPerIndividualTrip.longValue(), costPerSharedTrip.longValue()
+            );
+        } else {
+            groupingEngine = new GreedyGroupingEngine();
         }
+        HaversineTravelTimes haversine = new HaversineTravelTimes(averageSpeedKmh);
+        travelTimes = createTravelTimes(haversine);
+        routeSequencers = ThreadLocal.withInitial(() -> new RouteSequencer(
+            travelTimes, maxDetourFactor, minDetourMinutes * 60, stopMinutes * 60, ROUTE_CACHE_SIZE
+        ));
+        // A pair passes when driving between the stops takes no longer than the haversine model
+        // gives for stops at the distance limit
+        travelTimeFilter = travelTimes instanceof NetworkTravelTimes ? new TravelTimeFilter(
+            travelTimes,
+            haversine.secondsForKm(MAX_PICKUP_DISTANCE_KM),
+            haversine.secondsForKm(MAX_DESTINATION_DISTANCE_KM)
+        ) : null;
+        if (shardLeaseManager.isEnabled()) {
+            shardMap = new ShardMap(
+                shardLeaseManager.getShardCount(), SHARD_REGION_LAT_MICRODEGREES, SHARD_REGION_LON_MICRODEGREES,
+                SLOT_MINUTES, MAX_PICKUP_DISTANCE_KM
+            );
+            shardLeaseManager.addListener(new ShardLeaseManager.Listener() {
+                @Override
+                public void shardsAcquired(Set<Integer> shards) {
+                    loadShards(shards);
+                }
+                
+                @Override
+                public void shardsReleased(Set<Integer> shards) {
+                    dropShards(shards);
+                }
+            });
+        }
+        String settings = MAX_PICKUP_DISTANCE_KM + "|" + MAX_DESTINATION_DISTANCE_KM + "|" + MAX_TIME_DIFFERENCE_MINUTES
+            + "|" + travelTimes.getName() + "|" + graphFile
+            + "|" + (shardMap == null ? "unsharded" : shardMap.shardCount() + "/" + SHARD_REGION_LAT_MICRODEGREES
+                + "/" + SHARD_REGION_LON_MICRODEGREES + "/" + SLOT_MINUTES);
+        snapshotFingerprint = UUID.nameUUIDFromBytes(settings.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
     }
     
-    private Map<String, List<TripRequest>> groupTripsByTimeSlot(List<TripRequest> trips) {
-        return trips.stream()
-            .collect(Collectors.groupingBy(trip -> 
-                trip.getRequestedPickupTime().toLocalDate().toString() + "_" +
-                (trip.getRequestedPickupTime().getHour() / 2) * 2
-            ));
+    /** Loads the index as soon as the node is up, so the first bookings do not wait for it. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmStart() {
+        // With sharding, the index is loaded once the node holds shards
+        if (shardMap == null) {
+            ensureIndexLoaded();
+        }
     }
     
-    private void createOptimalMatches(List<TripRequest> trips) {
-        List<List<TripRequest>> potentialGroups = findCompatibleGroups(trips);
-        
-        for (List<TripRequest> group : potentialGroups) {
-            if (group.size() >= 2 && group.size() <= maxPassengersPerTrip) {
-                createSharedTrip(group);
+    private TravelTimes createTravelTimes(HaversineTravelTimes haversine) {
+        if (!"network".equalsIgnoreCase(travelTimesModel)) {
+            return haversine;
+        }
+        if (graphFile == null || graphFile.isBlank()) {
+            System.err.println("Network travel times need matchmaking.route.graph-file, using haversine");
+            return haversine;
+        }
+        try {
+            return new NetworkTravelTimes(RoadGraph.open(Path.of(graphFile)), haversine);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not load road graph " + graphFile + ", using haversine: " + e.getMessage());
+            return haversine;
+        }
+    }
+    
+    @PreDestroy
+    void shutdownEngines() {
+        writeSnapshot();
+        if (groupingEngine instanceof OptimalGroupingEngine) {
+            ((OptimalGroupingEngine) groupingEngine).shutdown();
+        }
+    }
+    
+    public void processMatchmaking() {
+        ensureIndexLoaded();
+        evictExpiredTrips();
+        runPass(pendingTripIndex.pendingAfter(LocalDateTime.now()));
+    }
+    
+    /**
+     * Runs a pass over only the trips that can end up in a group with one of the given trips, so
+     * passes for different areas or times lock different partitions and run side by side.
+     */
+    public void processMatchmaking(Collection<Long> tripIds) {
+        ensureIndexLoaded();
+        evictExpiredTrips();
+        runPass(connectedPendingTrips(tripIds));
+    }
+    
+    private void evictExpiredTrips() {
+        for (Long expiredTripId : pendingTripIndex.evictPickupsBefore(LocalDateTime.now())) {
+            compatibilityGraph.removeTrip(expiredTripId);
+        }
+    }
+    
+    private void runPass(List<TripRequest> trips) {
+        shardHandOffLock.readLock().lock();
+        try {
+            runPassAttempts(trips);
+        } finally {
+            shardHandOffLock.readLock().unlock();
+        }
+    }
+    
+    private void runPassAttempts(List<TripRequest> trips) {
+        for (int attempt = 1; !trips.isEmpty(); attempt++) {
+            List<TripRequest> retry;
+            long lockStart = System.nanoTime();
+            try (StripedLocks.Held held = partitionLocks.lockAll(partitionKeys(trips))) {
+                matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_LOCK_WAIT, System.nanoTime() - lockStart);
+                // Another pass may have matched some of these while we waited for the locks
+                List<TripRequest> stillPending = new ArrayList<>();
+                LocalDateTime now = LocalDateTime.now();
+                for (TripRequest trip : trips) {
+                    TripRequest current = pendingTripIndex.get(trip.getId());
+                    if (current != null && current.getRequestedPickupTime().isAfter(now) && isOwned(current)) {
+                        stillPending.add(current);
+                    }
+                }
+                retry = createOptimalMatches(groupTripsByTimeSlot(stillPending));
             }
+            if (!retry.isEmpty() && attempt == MAX_COMMIT_ATTEMPTS) {
+                abandonedRetries.add(retry.size());
+                System.err.println("Giving up on " + retry.size() + " conflicting trips, next pass will retry them");
+                return;
+            }
+            trips = retry;
         }
     }
     
-    private List<List<TripRequest>> findCompatibleGroups(List<TripRequest> trips) {
-        List<List<TripRequest>> groups = new ArrayList<>();
-        boolean[] used = new boolean[trips.size()];
-        
-        for (int i = 0; i < trips.size(); i++) {
-            if (used[i]) continue;
-            
-            List<TripRequest> currentGroup = new ArrayList<>();
-            currentGroup.add(trips.get(i));
-            used[i] = true;
-            
-            for (int j = i + 1; j < trips.size(); j++) {
-                if (used[j] || currentGroup.size() >= maxPassengersPerTrip) continue;
-                
-                if (isCompatible(currentGroup, trips.get(j))) {
-                    currentGroup.add(trips.get(j));
-                    used[j] = true;
+    private List<TripRequest> connectedPendingTrips(Collection<Long> tripIds) {
+        Set<Long> visited = new HashSet<>();
+        Deque<Long> toVisit = new ArrayDeque<>(tripIds);
+        List<TripRequest> trips = new ArrayList<>();
+        while (!toVisit.isEmpty()) {
+            Long tripId = toVisit.poll();
+            if (!visited.add(tripId)) {
+                continue;
+            }
+            TripRequest trip = pendingTripIndex.get(tripId);
+            if (trip != null) {
+                trips.add(trip);
+                toVisit.addAll(compatibilityGraph.neighbours(tripId));
+            }
+        }
+        trips.sort(Comparator.comparing(TripRequest::getId));
+        return trips;
+    }
+    
+    private long[] partitionKeys(List<TripRequest> trips) {
+        long[] keys = new long[trips.size()];
+        for (int i = 0; i < keys.length; i++) {
+            TripRequest trip = trips.get(i);
+            long slot = Math.floorDiv(trip.getPickupEpochMinute(), SLOT_MINUTES);
+            long latCell = Math.floorDiv(trip.getPickupLatitudeE6(), PARTITION_LAT_MICRODEGREES);
+            long lonCell = Math.floorDiv(trip.getPickupLongitudeE6(), PARTITION_LON_MICRODEGREES);
+            keys[i] = (slot * 4_000 + latCell) * 4_000 + lonCell;
+        }
+        return keys;
+    }
+    
+    public void registerPendingTrip(TripRequest trip) {
+        if (!indexLoaded) {
+            indexLoadLock.lock();
+            try {
+                if (!indexLoaded) {
+                    return; // picked up by the initial load
                 }
+            } finally {
+                indexLoadLock.unlock();
             }
-            
-            if (currentGroup.size() >= 2) {
-                groups.add(currentGroup);
+        }
+        removePendingTrip(trip.getId());
+        if (trip.getStatus() == TripRequest.TripStatus.PENDING && isOwned(trip)) {
+            pendingTripIndex.add(trip);
+            connectToCandidates(trip);
+        }
+    }
+    
+    public boolean isIndexed(Long tripId) {
+        return pendingTripIndex.contains(tripId);
+    }
+    
+    /**
+     * Indexes trips booked through other nodes, as the change feed reports them. Returns the ones
+     * that were still pending and are this node's to match.
+     */
+    public List<TripRequest> indexPendingTrips(Collection<Long> tripIds) {
+        ensureIndexLoaded();
+        List<TripRequest> indexed = new ArrayList<>();
+        for (TripRequest trip : tripRequestRepository.findAllById(tripIds)) {
+            if (trip.getStatus() == TripRequest.TripStatus.PENDING && isOwned(trip) && !pendingTripIndex.contains(trip.getId())) {
+                pendingTripIndex.add(trip);
+                connectToCandidates(trip);
+                indexed.add(trip);
             }
         }
-        
-        return groups;
+        return indexed;
+    }
+    
+    /** Whether this node matches the trip: always, unless sharding is on and another node owns its shard. */
+    public boolean isOwned(TripRequest trip) {
+        return shardMap == null || shardLeaseManager.owns(shardMap.shardOf(trip));
     }
     
-    private boolean isCompatible(List<TripRequest> group, TripRequest newTrip) {
-        for (TripRequest existingTrip : group) {
-            if (!isTimeCompatible(existingTrip, newTrip) ||
-                !isLocationCompatible(existingTrip, newTrip) ||
-                !isAccessibilityCompatible(existingTrip, newTrip)) {
-                return false;
+    public boolean isOwned(int pickupLatitudeE6, int pickupLongitudeE6, int pickupEpochMinute) {
+        return shardMap == null
+            || shardLeaseManager.owns(shardMap.shardOf(pickupLatitudeE6, pickupLongitudeE6, pickupEpochMinute));
+    }
+    
+    /** Indexes the pending trips of newly owned shards; the first pass over them is up to the caller. */
+    private void loadShards(Set<Integer> shards) {
+        indexLoadLock.lock();
+        try {
+            if (!indexLoaded) {
+                return; // the initial load reads whatever is owned by then
             }
+            long start = System.nanoTime();
+            for (TripRequest trip : loadOwnedPendingTrips(shards)) {
+                if (!pendingTripIndex.contains(trip.getId())) {
+                    pendingTripIndex.add(trip);
+                    connectToCandidates(trip);
+                }
+            }
+            indexedShards.addAll(shards);
+            matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_INDEX_LOAD, System.nanoTime() - start);
+        } finally {
+            indexLoadLock.unlock();
         }
-        return true;
     }
     
-    private boolean isTimeCompatible(TripRequest trip1, TripRequest trip2) {
-        long timeDifference = Math.abs(
-            java.time.Duration.between(trip1.getRequestedPickupTime(), trip2.getRequestedPickupTime()).toMinutes()
-        );
-        return timeDifference <= MAX_TIME_DIFFERENCE_MINUTES;
+    private void dropShards(Set<Integer> shards) {
+        indexLoadLock.lock();
+        shardHandOffLock.writeLock().lock();
+        try {
+            indexedShards.removeAll(shards);
+            for (TripRequest trip : pendingTripIndex.pendingAfter(LocalDateTime.MIN)) {
+                if (shards.contains(shardMap.shardOf(trip))) {
+                    removePendingTrip(trip.getId());
+                }
+            }
+        } finally {
+            shardHandOffLock.writeLock().unlock();
+            indexLoadLock.unlock();
+        }
     }
     
-    private boolean isLocationCompatible(TripRequest trip1, TripRequest trip2) {
-        double pickupDistance = calculateDistance(
-            trip1.getPickupLatitude(), trip1.getPickupLongitude(),
-            trip2.getPickupLatitude(), trip2.getPickupLongitude()
-        );
-        
-        double destinationDistance = calculateDistance(
-            trip1.getDestinationLatitude(), trip1.getDestinationLongitude(),
-            trip2.getDestinationLatitude(), trip2.getDestinationLongitude()
-        );
-        
-        return pickupDistance <= MAX_PICKUP_DISTANCE_KM && 
-               destinationDistance <= MAX_DESTINATION_DISTANCE_KM;
+    /**
+     * Pending trips of the given shards, or of all shards without sharding. Shards are worked out
+     * from the pickup columns alone, so only owned trips are loaded as entities.
+     */
+    private List<TripRequest> loadOwnedPendingTrips(Set<Integer> shards) {
+        LocalDateTime now = LocalDateTime.now();
+        if (shardMap == null) {
+            return tripRequestRepository.findByStatusAndRequestedPickupTimeAfter(TripRequest.TripStatus.PENDING, now);
+        }
+        List<Long> ids = new ArrayList<>();
+        for (PendingTripKey key : tripRequestRepository.findPendingTripKeys(TripRequest.TripStatus.PENDING, now)) {
+            if (shards.contains(shardMap.shardOf(key.pickupLatitudeE6(), key.pickupLongitudeE6(), key.pickupEpochMinute()))) {
+                ids.add(key.id());
+            }
+        }
+        List<TripRequest> trips = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size(); from += LOAD_CHUNK_SIZE) {
+            trips.addAll(tripRequestRepository.findAllById(ids.subList(from, Math.min(ids.size(), from + LOAD_CHUNK_SIZE))));
+        }
+        trips.sort(Comparator.comparing(TripRequest::getId));
+        return trips;
+    }
+    
+    public void removePendingTrip(Long tripId) {
+        pendingTripIndex.remove(tripId);
+        compatibilityGraph.removeTrip(tripId);
+    }
+    
+    public Map<String, Object> getIndexStats() {
+        Map<String, Object> stats = pendingTripIndex.getStats();
+        stats.put("loaded", indexLoaded);
+        if (shardMap != null) {
+            stats.put("ownedShards", shardLeaseManager.ownedShards().size());
+        }
+        stats.put("warmStart", new LinkedHashMap<>(warmStartStats));
+        synchronized (snapshotStats) {
+            stats.put("snapshot", new LinkedHashMap<>(snapshotStats));
+        }
+        stats.put("kernel", geoKernel.getName());
+        stats.put("compatibilityGraph", compatibilityGraph.getStats());
+        return stats;
     }
     
-    private boolean isAccessibilityCompatible(TripRequest trip1, TripRequest trip2) {
-        return !(trip1.isNeedsWheelchairAccess() && trip2.isNeedsWheelchairAccess());
+    public Map<String, Object> getGroupingStats() {
+        Map<String, Object> stats = groupingEngine.getStats();
+        stats.put("partitionLocks", partitionLocks.getStats());
+        stats.put("conflictedGroups", conflictedGroups.sum());
+        stats.put("abandonedRetries", abandonedRetries.sum());
+        stats.put("routedGroups", routedGroups.sum());
+        stats.put("trimmedGroups", trimmedGroups.sum());
+        stats.put("detourRejectedGroups", detourRejectedGroups.sum());
+        stats.put("travelTimes", travelTimes.getName());
+        if (travelTimes instanceof NetworkTravelTimes network) {
+            stats.put("network", network.getStats());
+        }
+        if (travelTimeFilter != null) {
+            stats.put("travelTimePairsEvaluated", travelTimeFilter.getEvaluated());
+            stats.put("travelTimePairsRejected", travelTimeFilter.getRejected());
+        }
+        return stats;
     }
     
-    private double calculateDistance(BigDecimal lat1, BigDecimal lon1, BigDecimal lat2, BigDecimal lon2) {
-        final int R = 6371;
+    private void connectToCandidates(TripRequest trip) {
+        compatibilityGraph.addTrip(trip.getId());
+        long start = System.nanoTime();
+        List<TripRequest> candidates = pendingTripIndex.findCandidates(trip);
+        if (shardMap != null) {
+            // Trips are only grouped within a shard, whichever nodes own the shards
+            int shard = shardMap.shardOf(trip);
+            candidates.removeIf(candidate -> shardMap.shardOf(candidate) != shard);
+        }
+        long lookedUp = System.nanoTime();
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_CANDIDATE_LOOKUP, lookedUp - start);
+        matchmakingMetrics.recordCandidates(trip, candidates.size());
+        if (candidates.isEmpty()) {
+            return;
+        }
         
-        double latDistance = Math.toRadians(lat2.doubleValue() - lat1.doubleValue());
-        double lonDistance = Math.toRadians(lon2.doubleValue() - lon1.doubleValue());
+        TripColumns columns = scratchColumns.get();
+        columns.clear();
+        columns.addAll(candidates);
+        int newRow = columns.add(trip);
         
-        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
-                + Math.cos(Math.toRadians(lat1.doubleValue())) * Math.cos(Math.toRadians(lat2.doubleValue()))
-                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        int[] compatibleRows = columns.rowBuffer();
+        int compatibleCount = geoKernel.filterCompatible(columns, newRow, compatibleRows);
+        if (travelTimeFilter != null) {
+            compatibleCount = travelTimeFilter.filter(trip, candidates, compatibleRows, compatibleCount);
+        }
+        for (int k = 0; k < compatibleCount; k++) {
+            compatibilityGraph.addEdge(columns.id(compatibleRows[k]), trip.getId());
+        }
+        compatibilityGraph.recordPairEvaluations(candidates.size());
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_COMPATIBILITY, System.nanoTime() - lookedUp);
+    }
+    
+    private void ensureIndexLoaded() {
+        if (indexLoaded) {
+            return;
+        }
+        indexLoadLock.lock();
+        try {
+            if (indexLoaded) {
+                return;
+            }
+            long start = System.nanoTime();
+            Set<Integer> shards = shardMap == null ? Collections.emptySet() : shardLeaseManager.ownedShards();
+            if (!restoreSnapshot(shards)) {
+                List<TripRequest> pendingTrips = loadOwnedPendingTrips(shards);
+                for (TripRequest trip : pendingTrips) {
+                    pendingTripIndex.add(trip);
+                    connectToCandidates(trip);
+                }
+                warmStartStats.put("source", "database");
+                warmStartStats.put("loadedTrips", pendingTrips.size());
+            }
+            indexedShards.addAll(shards);
+            indexLoaded = true;
+            long nanos = System.nanoTime() - start;
+            warmStartStats.put("readyMillis", nanos / 1_000_000);
+            matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_INDEX_LOAD, nanos);
+        } finally {
+            indexLoadLock.unlock();
+        }
+    }
+    
+    /**
+     * Fills the empty index from the snapshot file: trips unchanged since the snapshot keep their
+     * edges, and trips changed since its high-water mark, or in shards it does not cover, are loaded
+     * and checked as on a cold start. Returns false, leaving the index empty, when there is no usable
+     * snapshot.
+     */
+    private boolean restoreSnapshot(Set<Integer> shards) {
+        if (snapshotPath == null || snapshotPath.isEmpty() || !Files.exists(Path.of(snapshotPath))) {
+            return false;
+        }
+        MatchingSnapshot snapshot;
+        try {
+            snapshot = MatchingSnapshot.open(Path.of(snapshotPath));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring matching snapshot: " + e.getMessage());
+            return false;
+        }
+        String unusable = checkSnapshot(snapshot);
+        if (unusable != null) {
+            System.err.println("Ignoring matching snapshot " + snapshotPath + ": " + unusable);
+            return false;
+        }
         
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        LocalDateTime now = LocalDateTime.now();
+        Set<Long> changed = new HashSet<>(tripChangeRepository.findEntityIdsChangedSince(
+            TripChange.EntityType.TRIP_REQUEST, snapshot.highWaterSeq(),
+            snapshot.createdAt().minusSeconds(SNAPSHOT_REPLAY_OVERLAP_SECONDS)
+        ));
+        int n = snapshot.tripCount();
+        boolean[] kept = new boolean[n];
+        int restored = 0;
+        for (int row = 0; row < n; row++) {
+            long tripId = snapshot.tripId(row);
+            if (changed.contains(tripId) || !LocalDateTime.ofEpochSecond(snapshot.pickupEpochSecond(row), 0, ZoneOffset.UTC).isAfter(now)) {
+                continue;
+            }
+            if (shardMap != null && !shards.contains(shardMap.shardOf(snapshot.pickupLatitudeE6(row),
+                    snapshot.pickupLongitudeE6(row), (int) Math.floorDiv(snapshot.pickupEpochSecond(row), 60)))) {
+                continue;
+            }
+            pendingTripIndex.add(snapshot.trip(row));
+            compatibilityGraph.addTrip(tripId);
+            kept[row] = true;
+            restored++;
+        }
+        for (int row = 0; row < n; row++) {
+            if (!kept[row]) {
+                continue;
+            }
+            for (int edge = snapshot.neighbourStart(row); edge < snapshot.neighbourEnd(row); edge++) {
+                int other = snapshot.neighbour(edge);
+                if (other > row && kept[other]) {
+                    compatibilityGraph.addEdge(snapshot.tripId(row), snapshot.tripId(other));
+                }
+            }
+        }
         
-        return R * c;
+        // Changed trips, and with sharding whole shards the snapshot did not cover, come from the database
+        List<TripRequest> fresh = new ArrayList<>();
+        if (shardMap != null && !shards.isEmpty()) {
+            Set<Integer> uncovered = new HashSet<>(shards);
+            uncovered.removeAll(snapshot.shards());
+            if (!uncovered.isEmpty()) {
+                fresh.addAll(loadOwnedPendingTrips(uncovered));
+            }
+        }
+        List<Long> changedIds = new ArrayList<>(changed);
+        for (int from = 0; from < changedIds.size(); from += LOAD_CHUNK_SIZE) {
+            fresh.addAll(tripRequestRepository.findAllById(changedIds.subList(from, Math.min(changedIds.size(), from + LOAD_CHUNK_SIZE))));
+        }
+        int replayed = 0;
+        for (TripRequest trip : fresh) {
+            if (trip.getStatus() == TripRequest.TripStatus.PENDING && trip.getRequestedPickupTime().isAfter(now)
+                    && !pendingTripIndex.contains(trip.getId())
+                    && (shardMap == null || shards.contains(shardMap.shardOf(trip)))) {
+                pendingTripIndex.add(trip);
+                connectToCandidates(trip);
+                replayed++;
+            }
+        }
+        warmStartStats.put("source", "snapshot");
+        warmStartStats.put("snapshotTrips", n);
+        warmStartStats.put("restoredTrips", restored);
+        warmStartStats.put("edges", compatibilityGraph.edgeCount());
+        warmStartStats.put("changedSinceSnapshot", changed.size());
+        warmStartStats.put("loadedTrips", replayed);
+        return true;
+    }
+    
+    // Null when the snapshot can be restored, otherwise why not
+    private String checkSnapshot(MatchingSnapshot snapshot) {
+        if (snapshot.fingerprint() != snapshotFingerprint) {
+            return "written with other matching or sharding settings";
+        }
+        if (snapshot.createdAt().isBefore(LocalDateTime.now().minusMinutes(snapshotMaxAgeMinutes))) {
+            return "older than " + snapshotMaxAgeMinutes + " minutes";
+        }
+        if (snapshot.highWaterSeq() > tripChangeRepository.findMaxSeq()) {
+            return "ahead of the change feed, the database is not the one it was written from";
+        }
+        Long oldestSeq = tripChangeRepository.findMinSeq();
+        if (oldestSeq != null && oldestSeq > snapshot.highWaterSeq() + 1) {
+            return "changes after it were already deleted";
+        }
+        return null;
     }
     
-    private void createSharedTrip(List<TripRequest> tripRequests) {
-        SharedTrip sharedTrip = new SharedTrip();
-        sharedTrip.setStatus(SharedTrip.TripStatus.PENDING);
-        sharedTrip.setEstimatedCost(costPerSharedTrip);
-        sharedTrip.setPassengerCount(tripRequests.size());
+    /**
+     * Writes the pending trips and their edges to the snapshot file. The high-water mark is read
+     * before the state is copied, so a restart replays every change the copy may have missed.
+     */
+    @Scheduled(fixedDelayString = "${matchmaking.snapshot.interval-ms:60000}")
+    public void writeSnapshot() {
+        if (snapshotPath == null || snapshotPath.isEmpty() || !indexLoaded || !snapshotWriteLock.tryLock()) {
+            return;
+        }
+        try {
+            writeSnapshotFile();
+        } finally {
+            snapshotWriteLock.unlock();
+        }
+    }
+    
+    private void writeSnapshotFile() {
+        long start = System.nanoTime();
+        long highWaterSeq = tripChangeFeed.currentSeq();
+        ByteBuffer encoded;
+        int trips;
+        // Copied between passes and shard hand-offs, so trips, edges and covered shards agree
+        indexLoadLock.lock();
+        shardHandOffLock.writeLock().lock();
+        try {
+            List<TripRequest> pending = pendingTripIndex.pendingAfter(LocalDateTime.now());
+            trips = pending.size();
+            encoded = MatchingSnapshot.encode(snapshotFingerprint, highWaterSeq, pending, compatibilityGraph,
+                shardMap == null ? null : new ArrayList<>(indexedShards));
+        } finally {
+            shardHandOffLock.writeLock().unlock();
+            indexLoadLock.unlock();
+        }
+        long encodedNanos = System.nanoTime() - start;
+        try {
+            MatchingSnapshot.write(Path.of(snapshotPath), encoded);
+        } catch (IOException e) {
+            System.err.println("Could not write matching snapshot " + snapshotPath + ": " + e.getMessage());
+            return;
+        }
+        synchronized (snapshotStats) {
+            snapshotStats.put("writtenAt", LocalDateTime.now());
+            snapshotStats.put("trips", trips);
+            snapshotStats.put("bytes", encoded.capacity());
+            snapshotStats.put("highWaterSeq", highWaterSeq);
+            snapshotStats.put("encodeMillis", encodedNanos / 1_000_000);
+            snapshotStats.put("writeMillis", (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+    
+    private Map<String, List<TripRequest>> groupTripsByTimeSlot(List<TripRequest> trips) {
+        return trips.stream()
+            .collect(Collectors.groupingBy(trip -> 
+                trip.getRequestedPickupTime().toLocalDate().toString() + "_" +
+                (trip.getRequestedPickupTime().getHour() / 2) * 2
+            ));
+    }
+    
+    private List<TripRequest> createOptimalMatches(Map<String, List<TripRequest>> tripsByTimeSlot) {
+        long start = System.nanoTime();
+        List<List<TripRequest>> slots = new ArrayList<>();
+        List<SlotGraph> slotGraphs = new ArrayList<>();
+        for (Map.Entry<String, List<TripRequest>> slot : tripsByTimeSlot.entrySet()) {
+            slots.add(slot.getValue());
+            slotGraphs.add(buildSlotGraph(slot.getKey(), slot.getValue()));
+        }
+        long built = System.nanoTime();
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_SLOT_GRAPH, built - start);
         
-        sharedTrip = sharedTripRepository.save(sharedTrip);
+        List<List<int[]>> groupsBySlot = groupingEngine.groupAll(slotGraphs, maxPassengersPerTrip);
+        long grouped = System.nanoTime();
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_GROUPING, grouped - built);
         
-        for (TripRequest trip : tripRequests) {
-            trip.setSharedTrip(sharedTrip);
-            trip.setStatus(TripRequest.TripStatus.MATCHED);
-            trip.setEstimatedCost(costPerSharedTrip.divide(BigDecimal.valueOf(tripRequests.size())));
-            tripRequestRepository.save(trip);
+        RouteSequencer sequencer = routeSequencers.get();
+        List<List<TripRequest>> groups = new ArrayList<>();
+        List<RoutePlan> routes = new ArrayList<>();
+        for (int s = 0; s < slots.size(); s++) {
+            List<TripRequest> trips = slots.get(s);
+            for (int[] positions : groupsBySlot.get(s)) {
+                if (positions.length >= 2 && positions.length <= maxPassengersPerTrip) {
+                    List<TripRequest> group = new ArrayList<>();
+                    for (int position : positions) {
+                        group.add(trips.get(position));
+                    }
+                    group = routeWithinDetour(sequencer, group);
+                    if (group != null) {
+                        groups.add(group);
+                        routes.add(sequencer.plan(group));
+                    }
+                }
+            }
         }
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_ROUTING, System.nanoTime() - grouped);
         
-        // Notify real-time service about the new shared trip
-        notifyRealtimeService(sharedTrip, tripRequests);
+        if (groups.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return createSharedTrips(groups, routes);
     }
     
-    private void notifyRealtimeService(SharedTrip sharedTrip, List<TripRequest> tripRequests) {
-        try {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("sharedTripId", sharedTrip.getId());
-            payload.put("status", "MATCHED");
-            payload.put("passengerCount", sharedTrip.getPassengerCount());
-            
-            List<Map<String, Object>> tripData = tripRequests.stream()
-                .map(trip -> {
-                    Map<String, Object> tripInfo = new HashMap<>();
-                    tripInfo.put("tripId", trip.getId());
-                    tripInfo.put("userId", trip.getUser().getId());
-                    tripInfo.put("pickupAddress", trip.getPickupAddress());
-                    tripInfo.put("destinationAddress", trip.getDestinationAddress());
-                    tripInfo.put("pickupLatitude", trip.getPickupLatitude());
-                    tripInfo.put("pickupLongitude", trip.getPickupLongitude());
-                    tripInfo.put("destinationLatitude", trip.getDestinationLatitude());
-                    tripInfo.put("destinationLongitude", trip.getDestinationLongitude());
-                    tripInfo.put("requestedPickupTime", trip.getRequestedPickupTime());
-                    tripInfo.put("passengerCount", trip.getPassengerCount());
-                    tripInfo.put("needsWheelchairAccess", trip.isNeedsWheelchairAccess());
-                    tripInfo.put("needsAssistance", trip.isNeedsAssistance());
-                    return tripInfo;
-                })
-                .collect(Collectors.toList());
-            
-            payload.put("trips", tripData);
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            HttpEntity<Map<String, Object>> request = new HttpEntity<>(payload, headers);
-            
-            restTemplate.postForObject(realtimeServiceUrl + "/api/shared-trip-created", request, String.class);
+    /**
+     * Returns the group when some stop order keeps every member's ride within the detour limit. If
+     * none does, returns the quickest pair that still works, or null. Members left out stay pending
+     * for the next pass. The sequencer is left holding the returned group's order.
+     */
+    private List<TripRequest> routeWithinDetour(RouteSequencer sequencer, List<TripRequest> group) {
+        if (sequencer.sequence(group) != RouteSequencer.INFEASIBLE) {
+            routedGroups.increment();
+            return group;
+        }
+        List<TripRequest> best = null;
+        int bestSeconds = Integer.MAX_VALUE;
+        if (group.size() > 2) {
+            for (int leftOut = 0; leftOut < group.size(); leftOut++) {
+                List<TripRequest> smaller = new ArrayList<>(group);
+                smaller.remove(leftOut);
+                int seconds = sequencer.sequence(smaller);
+                if (seconds != RouteSequencer.INFEASIBLE && seconds < bestSeconds) {
+                    best = smaller;
+                    bestSeconds = seconds;
+                }
+            }
+        }
+        if (best == null) {
+            detourRejectedGroups.increment();
+            return null;
+        }
+        sequencer.sequence(best);
+        trimmedGroups.increment();
+        routedGroups.increment();
+        return best;
+    }
+    
+    private SlotGraph buildSlotGraph(String slotKey, List<TripRequest> trips) {
+        long[] tripIds = new long[trips.size()];
+        Map<Long, Integer> positions = new HashMap<>();
+        for (int i = 0; i < trips.size(); i++) {
+            tripIds[i] = trips.get(i).getId();
+            positions.put(trips.get(i).getId(), i);
+        }
+        
+        SlotGraph slotGraph = new SlotGraph(slotKey, tripIds);
+        for (int i = 0; i < trips.size(); i++) {
+            for (Long neighbourId : compatibilityGraph.neighbours(tripIds[i])) {
+                Integer j = positions.get(neighbourId);
+                if (j != null && j > i) {
+                    slotGraph.connect(i, j);
+                }
+            }
+        }
+        return slotGraph;
+    }
+    
+    /**
+     * Commits the groups and returns the still pending members of groups that lost a conflict, with
+     * their current state, so the caller can group them again.
+     */
+    private List<TripRequest> createSharedTrips(List<List<TripRequest>> groups, List<RoutePlan> routes) {
+        long start = System.nanoTime();
+        MatchCommitter.Result result = matchCommitter.commit(groups, routes, costPerSharedTrip);
+        matchmakingMetrics.recordPhase(MatchmakingMetrics.PHASE_COMMIT, System.nanoTime() - start);
+        
+        LocalDateTime matchedAt = LocalDateTime.now();
+        for (int g = 0; g < result.getCommittedGroups().size(); g++) {
+            List<TripRequest> tripRequests = result.getCommittedGroups().get(g);
+            SharedTrip sharedTrip = result.getSharedTrips().get(g);
+            BigDecimal costShare = MatchCommitter.costShare(costPerSharedTrip, tripRequests.size());
+            matchmakingMetrics.recordSharedTrip(tripRequests, matchedAt);
             
-        } catch (Exception e) {
-            System.err.println("Failed to notify real-time service: " + e.getMessage());
+            for (TripRequest trip : tripRequests) {
+                trip.setSharedTrip(sharedTrip);
+                trip.setStatus(TripRequest.TripStatus.MATCHED);
+                trip.setEstimatedCost(costShare);
+                trip.setVersion(trip.getVersion() + 1);
+                removePendingTrip(trip.getId());
+            }
+        }
+        
+        if (result.getConflictedGroups().isEmpty()) {
+            return Collections.emptyList();
+        }
+        conflictedGroups.add(result.getConflictedGroups().size());
+        for (Map.Entry<Long, TripRequest> stale : result.getStaleTrips().entrySet()) {
+            if (stale.getValue() == null) {
+                removePendingTrip(stale.getKey());
+            } else {
+                registerPendingTrip(stale.getValue());
+            }
+        }
+        List<TripRequest> retry = new ArrayList<>();
+        for (List<TripRequest> group : result.getConflictedGroups()) {
+            for (TripRequest trip : group) {
+                TripRequest current = pendingTripIndex.get(trip.getId());
+                if (current != null) {
+                    retry.add(current);
+                }
+            }
         }
+        return retry;
     }
-}
\ No newline at end of file
+}
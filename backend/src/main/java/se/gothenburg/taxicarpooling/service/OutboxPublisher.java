@@ -0,0 +1,315 @@
+package se.gothenburg.taxicarpooling.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import se.gothenburg.taxicarpooling.config.VirtualThreads;
+import se.gothenburg.taxicarpooling.entity.NotificationOutbox;
+import se.gothenburg.taxicarpooling.repository.NotificationOutboxRepository;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers outbox events to the realtime service off the matchmaking path. Due events are claimed in
+ * batches, coalesced per aggregate, posted in chunks to the batch endpoint with a bounded number of
+ * requests in flight, and retried with exponential backoff when delivery fails.
+ * <p>
+ * Draining runs on the publisher's own thread rather than the shared scheduler, so a slow or hanging
+ * realtime service delays only notifications. A claim marks a batch as taken by one drain until
+ * {@code claim-timeout-ms} has passed, so several backend nodes never send the same event at once;
+ * events of a node that stopped mid-batch become due again when their claim runs out.
+ */
+@Component
+public class OutboxPublisher {
+    
+    public static final String SHARED_TRIP_CREATED = "SHARED_TRIP_CREATED";
+    public static final String SHARED_TRIP_OFFERED = "SHARED_TRIP_OFFERED";
+    
+    @Autowired
+    private NotificationOutboxRepository notificationOutboxRepository;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${realtime.service.url:http://localhost:3001}")
+    private String realtimeServiceUrl;
+    
+    @Value("${notifications.outbox.poll-ms:250}")
+    private long pollMs;
+    
+    @Value("${notifications.outbox.batch-size:500}")
+    private int batchSize;
+    
+    @Value("${notifications.outbox.chunk-size:50}")
+    private int chunkSize;
+    
+    @Value("${notifications.outbox.max-concurrency:4}")
+    private int maxConcurrency;
+    
+    @Value("${notifications.outbox.connect-timeout-ms:1000}")
+    private int connectTimeoutMs;
+    
+    @Value("${notifications.outbox.read-timeout-ms:3000}")
+    private int readTimeoutMs;
+    
+    @Value("${notifications.outbox.claim-timeout-ms:60000}")
+    private long claimTimeoutMs;
+    
+    @Value("${notifications.outbox.max-attempts:10}")
+    private int maxAttempts;
+    
+    @Value("${notifications.outbox.backoff-base-ms:500}")
+    private long backoffBaseMs;
+    
+    @Value("${notifications.outbox.backoff-max-ms:60000}")
+    private long backoffMaxMs;
+    
+    @Value("${notifications.outbox.retention-hours:24}")
+    private long retentionHours;
+    
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    
+    private RestTemplate restTemplate;
+    
+    private ExecutorService senders;
+    
+    private ScheduledExecutorService drainer;
+    
+    private final LongAdder published = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failedAttempts = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final AtomicLong lastBatchMillis = new AtomicLong();
+    
+    private Timer deliveredRequests;
+    private Timer failedRequests;
+    private Timer deliveryLag;
+    private Counter deliveredEvents;
+    private Counter failedEvents;
+    private Counter deadLetteredEvents;
+    
+    @PostConstruct
+    void init() {
+        // A fixed pool caps the requests in flight; its workers are virtual threads in virtual mode
+        senders = Executors.newFixedThreadPool(maxConcurrency, VirtualThreads.threadFactory("outbox-publisher", virtualThreads));
+        
+        HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+            .build();
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+        requestFactory.setReadTimeout(readTimeoutMs);
+        restTemplate = new RestTemplate(requestFactory);
+        
+        deliveredRequests = Timer.builder("realtime.notifications.requests")
+            .description("Batch requests to the realtime service")
+            .tag("outcome", "success").register(meterRegistry);
+        failedRequests = Timer.builder("realtime.notifications.requests")
+            .description("Batch requests to the realtime service")
+            .tag("outcome", "failure").register(meterRegistry);
+        deliveryLag = Timer.builder("realtime.notifications.lag")
+            .description("Time from writing an event to the outbox until the realtime service acknowledged it")
+            .register(meterRegistry);
+        deliveredEvents = Counter.builder("realtime.notifications.events")
+            .tag("outcome", "delivered").register(meterRegistry);
+        failedEvents = Counter.builder("realtime.notifications.events")
+            .tag("outcome", "failed").register(meterRegistry);
+        deadLetteredEvents = Counter.builder("realtime.notifications.events")
+            .tag("outcome", "dead_lettered").register(meterRegistry);
+        
+        drainer = Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("outbox-drainer", virtualThreads));
+        drainer.scheduleWithFixedDelay(this::drain, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    void shutdown() {
+        drainer.shutdownNow();
+        senders.shutdownNow();
+    }
+    
+    // A scheduled executor stops repeating a task that throws, so failures end here
+    private void drain() {
+        try {
+            publishPending();
+        } catch (RuntimeException e) {
+            System.err.println("Outbox drain failed: " + e.getMessage());
+        }
+    }
+    
+    public void publishPending() {
+        List<Long> dueIds = notificationOutboxRepository.findDueIds(PageRequest.of(0, batchSize));
+        if (dueIds.isEmpty()) {
+            return;
+        }
+        // Only rows still due are claimed, so of several nodes that read the same ids each row goes to one
+        String claimToken = UUID.randomUUID().toString();
+        if (notificationOutboxRepository.claim(dueIds, claimToken, TimeUnit.MILLISECONDS.toMicros(claimTimeoutMs)) == 0) {
+            return;
+        }
+        List<NotificationOutbox> due = notificationOutboxRepository.findByClaimTokenOrderById(claimToken);
+        long start = System.currentTimeMillis();
+        batches.increment();
+        
+        // Only the newest event per aggregate is sent, older ones are superseded by it
+        Map<String, NotificationOutbox> latest = new LinkedHashMap<>();
+        List<Long> superseded = new ArrayList<>();
+        for (NotificationOutbox event : due) {
+            NotificationOutbox previous = latest.put(event.getEventType() + ":" + event.getAggregateId(), event);
+            if (previous != null) {
+                superseded.add(previous.getId());
+            }
+        }
+        if (!superseded.isEmpty()) {
+            notificationOutboxRepository.markPublished(superseded, claimToken, LocalDateTime.now());
+            coalesced.add(superseded.size());
+        }
+        
+        List<NotificationOutbox> events = new ArrayList<>(latest.values());
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < events.size(); from += chunkSize) {
+            List<NotificationOutbox> chunk = events.subList(from, Math.min(from + chunkSize, events.size()));
+            chunks.add(() -> {
+                sendChunk(chunk, claimToken);
+                return null;
+            });
+        }
+        try {
+            senders.invokeAll(chunks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lastBatchMillis.set(System.currentTimeMillis() - start);
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${notifications.outbox.cleanup-ms:3600000}")
+    public void deletePublished() {
+        notificationOutboxRepository.deletePublishedBefore(LocalDateTime.now().minusHours(retentionHours));
+    }
+    
+    private void sendChunk(List<NotificationOutbox> chunk, String claimToken) {
+        Set<Long> delivered = new HashSet<>();
+        String error = null;
+        long start = System.nanoTime();
+        try {
+            List<Map<String, Object>> body = new ArrayList<>();
+            for (NotificationOutbox event : chunk) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("eventId", event.getId());
+                entry.put("type", event.getEventType());
+                entry.put("payload", objectMapper.readTree(event.getPayload()));
+                body.add(entry);
+            }
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            Map<String, Object> request = Collections.singletonMap("events", body);
+            
+            JsonNode response = restTemplate.postForObject(
+                realtimeServiceUrl + "/api/events/batch", new HttpEntity<>(request, headers), JsonNode.class
+            );
+            // Events the realtime service did not acknowledge are retried
+            if (response != null && response.has("results")) {
+                for (JsonNode result : response.get("results")) {
+                    if (result.path("success").asBoolean(false)) {
+                        delivered.add(result.path("eventId").asLong());
+                    } else if (error == null) {
+                        error = result.path("error").asText("rejected by realtime service");
+                    }
+                }
+            }
+        } catch (Exception e) {
+            error = e.getMessage();
+        }
+        (error == null ? deliveredRequests : failedRequests).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        
+        LocalDateTime now = LocalDateTime.now();
+        List<Long> deliveredIds = new ArrayList<>();
+        List<NotificationOutbox> retry = new ArrayList<>();
+        for (NotificationOutbox event : chunk) {
+            if (delivered.contains(event.getId())) {
+                deliveredIds.add(event.getId());
+                deliveryLag.record(Duration.between(event.getCreatedAt(), now));
+            } else {
+                retry.add(event);
+            }
+        }
+        if (!deliveredIds.isEmpty()) {
+            notificationOutboxRepository.markPublished(deliveredIds, claimToken, now);
+            published.add(deliveredIds.size());
+            deliveredEvents.increment(deliveredIds.size());
+        }
+        if (!retry.isEmpty()) {
+            scheduleRetry(retry, claimToken, error == null ? "no acknowledgement" : error);
+        }
+    }
+    
+    private void scheduleRetry(List<NotificationOutbox> events, String claimToken, String error) {
+        failedAttempts.add(events.size());
+        failedEvents.increment(events.size());
+        System.err.println("Failed to deliver " + events.size() + " realtime events, will retry: " + error);
+        String lastError = error.length() > 255 ? error.substring(0, 255) : error;
+        
+        // One conditional update per attempt count, since the backoff grows with the attempts
+        List<Long> exhausted = new ArrayList<>();
+        Map<Integer, List<Long>> byAttempts = new TreeMap<>();
+        for (NotificationOutbox event : events) {
+            int attempts = event.getAttempts() + 1;
+            if (attempts >= maxAttempts) {
+                exhausted.add(event.getId());
+            } else {
+                byAttempts.computeIfAbsent(attempts, a -> new ArrayList<>()).add(event.getId());
+            }
+        }
+        if (!exhausted.isEmpty()) {
+            int failed = notificationOutboxRepository.deadLetter(exhausted, claimToken, lastError);
+            deadLettered.add(failed);
+            deadLetteredEvents.increment(failed);
+        }
+        for (Map.Entry<Integer, List<Long>> group : byAttempts.entrySet()) {
+            long backoff = Math.min(backoffMaxMs, backoffBaseMs << Math.min(group.getKey() - 1, 20));
+            // Jitter so retries of many events do not hit the realtime service at the same moment
+            backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            notificationOutboxRepository.retry(group.getValue(), claimToken, lastError, TimeUnit.MILLISECONDS.toMicros(backoff));
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        LocalDateTime oldestPending = notificationOutboxRepository.findOldestPendingCreatedAt();
+        stats.put("pending", notificationOutboxRepository.countByStatus(NotificationOutbox.OutboxStatus.PENDING));
+        stats.put("claimed", notificationOutboxRepository.countByStatus(NotificationOutbox.OutboxStatus.CLAIMED));
+        stats.put("failed", notificationOutboxRepository.countByStatus(NotificationOutbox.OutboxStatus.FAILED));
+        stats.put("lagMillis", oldestPending == null ? 0 : Duration.between(oldestPending, LocalDateTime.now()).toMillis());
+        stats.put("published", published.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("failedAttempts", failedAttempts.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("batches", batches.sum());
+        stats.put("lastBatchMillis", lastBatchMillis.get());
+        return stats;
+    }
+}
@@ -0,0 +1,282 @@
+package se.gothenburg.taxicarpooling.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import se.gothenburg.taxicarpooling.config.VirtualThreads;
+import se.gothenburg.taxicarpooling.entity.MatchmakingNode;
+import se.gothenburg.taxicarpooling.entity.ShardLease;
+import se.gothenburg.taxicarpooling.repository.MatchmakingNodeRepository;
+import se.gothenburg.taxicarpooling.repository.ShardLeaseRepository;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the matchmaking shards between the running backend nodes through lease rows in the
+ * database. Every tick a node records its heartbeat, renews the leases it holds, releases any above
+ * its even share of the live nodes, and takes free or expired leases up to that share. A node that
+ * joins thereby gets shards as the others shed them, and the shards of a node that stops are picked
+ * up once it released them or its leases ran out.
+ * <p>
+ * Ownership is also bounded locally: a node stops treating shards as its own once its last
+ * successful renewal is a lease length old, so a node cut off from the database stops matching
+ * before another can take over. Listeners hear about shards lost before they are released, and
+ * about shards gained after they were won.
+ * <p>
+ * Lease and heartbeat times come from the database clock, so clock skew between nodes does not
+ * decide when a lease has run out. Renewal runs on its own thread, so a slow scheduled job elsewhere
+ * cannot delay it past the local cut-off.
+ */
+@Component
+public class ShardLeaseManager {
+    
+    /** Told when this node gains or loses shards, on the lease thread. */
+    public interface Listener {
+        void shardsAcquired(Set<Integer> shards);
+        
+        void shardsReleased(Set<Integer> shards);
+    }
+    
+    @Autowired
+    private ShardLeaseRepository shardLeaseRepository;
+    
+    @Autowired
+    private MatchmakingNodeRepository matchmakingNodeRepository;
+    
+    @Value("${matchmaking.sharding.enabled:false}")
+    private boolean enabled;
+    
+    @Value("${matchmaking.sharding.shards:32}")
+    private int shardCount;
+    
+    @Value("${matchmaking.sharding.lease-seconds:15}")
+    private long leaseSeconds;
+    
+    @Value("${matchmaking.sharding.renew-ms:3000}")
+    private long renewMs;
+    
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    
+    @Value("${matchmaking.sharding.node-id:}")
+    private String nodeId;
+    
+    private ScheduledExecutorService renewer;
+    
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    
+    private volatile Set<Integer> owned = Collections.emptySet();
+    private volatile long ownedUntilNanos;
+    private volatile int liveNodes;
+    private volatile int target;
+    
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder failedRenewals = new LongAdder();
+    
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        Set<Integer> existing = new HashSet<>();
+        for (ShardLease lease : shardLeaseRepository.findAll()) {
+            existing.add(lease.getShardId());
+        }
+        List<ShardLease> missing = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (!existing.contains(shard)) {
+                missing.add(new ShardLease(shard, LocalDateTime.now()));
+            }
+        }
+        try {
+            shardLeaseRepository.saveAll(missing);
+        } catch (DataIntegrityViolationException e) {
+            // Another node created the rows at the same time
+        }
+    }
+    
+    // Once every listener is registered, so none misses the first shards won
+    @EventListener(ApplicationReadyEvent.class)
+    public void startRenewing() {
+        if (!enabled || renewer != null) {
+            return;
+        }
+        renewer = Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("shard-leases", virtualThreads));
+        renewer.scheduleWithFixedDelay(this::renewLeases, 0, renewMs, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    void releaseAll() {
+        if (!enabled) {
+            return;
+        }
+        if (renewer != null) {
+            renewer.shutdown();
+            try {
+                renewer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Set<Integer> held = owned;
+        owned = Collections.emptySet();
+        try {
+            for (Integer shard : held) {
+                shardLeaseRepository.release(shard, nodeId);
+            }
+            matchmakingNodeRepository.deleteById(nodeId);
+        } catch (RuntimeException e) {
+            // The leases run out on their own
+            System.err.println("Could not release shard leases of " + nodeId + ": " + e.getMessage());
+        }
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public int getShardCount() {
+        return shardCount;
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    public boolean owns(int shard) {
+        return owned.contains(shard) && System.nanoTime() - ownedUntilNanos < 0;
+    }
+    
+    public Set<Integer> ownedShards() {
+        return System.nanoTime() - ownedUntilNanos < 0 ? owned : Collections.emptySet();
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void renewLeases() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            rebalance();
+        } catch (RuntimeException e) {
+            failedRenewals.increment();
+            System.err.println("Shard lease renewal failed, retrying: " + e.getMessage());
+        }
+    }
+    
+    private synchronized void rebalance() {
+        long startNanos = System.nanoTime();
+        if (matchmakingNodeRepository.heartbeat(nodeId) == 0) {
+            matchmakingNodeRepository.save(new MatchmakingNode(nodeId, LocalDateTime.now()));
+            matchmakingNodeRepository.heartbeat(nodeId);
+        }
+        matchmakingNodeRepository.deleteStale(10 * leaseSeconds);
+        List<String> live = new ArrayList<>(matchmakingNodeRepository.findLiveNodeIds(leaseSeconds));
+        if (!live.contains(nodeId)) {
+            live.add(nodeId);
+            Collections.sort(live);
+        }
+        int share = fairShare(live);
+        
+        shardLeaseRepository.renewAll(nodeId, leaseSeconds);
+        TreeSet<Integer> held = new TreeSet<>();
+        for (Integer shard : shardLeaseRepository.findShardIdsByOwner(nodeId)) {
+            if (shard < shardCount) {
+                held.add(shard);
+            }
+        }
+        Set<Integer> gone = new TreeSet<>(owned);
+        gone.removeAll(held);
+        lost.add(gone.size());
+        Set<Integer> surplus = new TreeSet<>();
+        while (held.size() > share) {
+            surplus.add(held.pollLast());
+        }
+        
+        // Stop matching the shards before another node can take them
+        owned = Collections.unmodifiableSet(new TreeSet<>(held));
+        ownedUntilNanos = startNanos + TimeUnit.SECONDS.toNanos(leaseSeconds);
+        gone.addAll(surplus);
+        if (!gone.isEmpty()) {
+            for (Listener listener : listeners) {
+                listener.shardsReleased(gone);
+            }
+        }
+        for (Integer shard : surplus) {
+            shardLeaseRepository.release(shard, nodeId);
+        }
+        released.add(surplus.size());
+        
+        Set<Integer> won = new TreeSet<>();
+        if (held.size() < share) {
+            for (Integer shard : shardLeaseRepository.findAcquirable()) {
+                if (held.size() + won.size() >= share) {
+                    break;
+                }
+                if (shard < shardCount && shardLeaseRepository.acquire(shard, nodeId, leaseSeconds) == 1) {
+                    won.add(shard);
+                }
+            }
+        }
+        if (!won.isEmpty()) {
+            held.addAll(won);
+            owned = Collections.unmodifiableSet(new TreeSet<>(held));
+            acquired.add(won.size());
+            for (Listener listener : listeners) {
+                listener.shardsAcquired(won);
+            }
+        }
+        liveNodes = live.size();
+        target = share;
+    }
+    
+    /** An even split of the shards over the live nodes, the first nodes by id taking one extra. */
+    private int fairShare(List<String> live) {
+        int position = live.indexOf(nodeId);
+        return shardCount / live.size() + (position < shardCount % live.size() ? 1 : 0);
+    }
+    
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "node";
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("nodeId", nodeId);
+        stats.put("shards", shardCount);
+        stats.put("liveNodes", liveNodes);
+        stats.put("target", target);
+        stats.put("owned", ownedShards());
+        stats.put("acquired", acquired.sum());
+        stats.put("released", released.sum());
+        stats.put("lost", lost.sum());
+        stats.put("failedRenewals", failedRenewals.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,136 @@
+package se.gothenburg.taxicarpooling.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.matching.DriverLocationIndex;
+import se.gothenburg.taxicarpooling.repository.SharedTripRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+@Service
+public class SharedTripService {
+    
+    // Members not yet picked up; they go back to matching when their shared trip is cancelled
+    private static final Set<TripRequest.TripStatus> BEFORE_PICKUP =
+        EnumSet.of(TripRequest.TripStatus.MATCHED, TripRequest.TripStatus.ASSIGNED);
+    
+    // A completed shared trip completes every member still on it, whatever the driver reported per passenger
+    private static final Set<TripRequest.TripStatus> ON_BOARD = EnumSet.of(
+        TripRequest.TripStatus.MATCHED, TripRequest.TripStatus.ASSIGNED,
+        TripRequest.TripStatus.PICKUP_CONFIRMED, TripRequest.TripStatus.IN_TRANSIT);
+    
+    @Autowired
+    private SharedTripRepository sharedTripRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Autowired
+    private MatchmakingService matchmakingService;
+    
+    @Autowired
+    private DriverLocationService driverLocationService;
+    
+    @Autowired
+    private CostSavingsService costSavingsService;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @Autowired
+    private TripListCache tripListCache;
+    
+    @Transactional
+    public SharedTrip updateStatus(Long sharedTripId, String status) {
+        SharedTrip.TripStatus target = SharedTrip.TripStatus.valueOf(status);
+        if (target == SharedTrip.TripStatus.ASSIGNED) {
+            throw new IllegalArgumentException("Shared trips are assigned by accepting a dispatch offer");
+        }
+        
+        int updated = sharedTripRepository.transitionStatus(sharedTripId, SharedTrip.TripStatus.sourcesOf(target), target);
+        SharedTrip sharedTrip = sharedTripRepository.findById(sharedTripId)
+            .orElseThrow(() -> new RuntimeException("Shared trip not found"));
+        if (updated == 0) {
+            throw new TripConflictException(
+                "Shared trip " + sharedTripId + " cannot move from " + sharedTrip.getStatus() + " to " + target
+            );
+        }
+        tripChangeFeed.record(TripChange.EntityType.SHARED_TRIP, sharedTripId);
+        if (target == SharedTrip.TripStatus.CANCELLED) {
+            releaseMembers(sharedTripId);
+        } else if (target == SharedTrip.TripStatus.COMPLETED) {
+            completeMembers(sharedTripId);
+        }
+        
+        Long releasedDriverId = sharedTrip.getAssignedDriver() != null && (target == SharedTrip.TripStatus.COMPLETED
+            || target == SharedTrip.TripStatus.CANCELLED) ? sharedTrip.getAssignedDriver().getId() : null;
+        if (releasedDriverId != null) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    driverLocationService.setAvailability(releasedDriverId, DriverLocationIndex.Availability.AVAILABLE);
+                }
+            });
+        }
+        return sharedTrip;
+    }
+    
+    // One conditional UPDATE returns the members not yet picked up to PENDING, with the shared trip cleared
+    private void releaseMembers(Long sharedTripId) {
+        List<Long> memberIds = new ArrayList<>();
+        List<Long> userIds = new ArrayList<>();
+        for (TripRequest member : tripRequestRepository.findBySharedTripId(sharedTripId)) {
+            if (BEFORE_PICKUP.contains(member.getStatus())) {
+                memberIds.add(member.getId());
+                userIds.add(member.getUser().getId());
+            }
+        }
+        if (memberIds.isEmpty()) {
+            return;
+        }
+        tripRequestRepository.releaseFromSharedTrip(
+            sharedTripId, TripRequestService.SOLO_ESTIMATED_COST, BEFORE_PICKUP, TripRequest.TripStatus.PENDING
+        );
+        List<TripRequest> released = tripRequestRepository.findAllById(memberIds);
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, memberIds);
+        tripListCache.invalidateAfterCommit(userIds);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                for (TripRequest trip : released) {
+                    matchmakingService.registerPendingTrip(trip);
+                }
+            }
+        });
+    }
+    
+    // Per member, so that only the call whose update moved a trip records its savings
+    private void completeMembers(Long sharedTripId) {
+        List<Long> completedIds = new ArrayList<>();
+        List<Long> userIds = new ArrayList<>();
+        for (TripRequest member : tripRequestRepository.findBySharedTripId(sharedTripId)) {
+            if (tripRequestRepository.transitionStatus(member.getId(), ON_BOARD, TripRequest.TripStatus.COMPLETED) == 1) {
+                completedIds.add(member.getId());
+                userIds.add(member.getUser().getId());
+            }
+        }
+        if (completedIds.isEmpty()) {
+            return;
+        }
+        for (TripRequest trip : tripRequestRepository.findAllById(completedIds)) {
+            costSavingsService.recordCompletion(trip);
+        }
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, completedIds);
+        tripListCache.invalidateAfterCommit(userIds);
+    }
+}
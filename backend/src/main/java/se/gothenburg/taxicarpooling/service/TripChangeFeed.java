@@ -0,0 +1,408 @@
+package se.gothenburg.taxicarpooling.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import se.gothenburg.taxicarpooling.dto.SharedTripSummary;
+import se.gothenburg.taxicarpooling.dto.TripChangeEvent;
+import se.gothenburg.taxicarpooling.dto.TripChanges;
+import se.gothenburg.taxicarpooling.dto.TripSnapshot;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
+import se.gothenburg.taxicarpooling.entity.SharedTrip;
+import se.gothenburg.taxicarpooling.entity.TripChange;
+import se.gothenburg.taxicarpooling.entity.TripRequest;
+import se.gothenburg.taxicarpooling.repository.SharedTripRepository;
+import se.gothenburg.taxicarpooling.repository.TripChangeRepository;
+import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Change feed of trip requests and shared trips. Writers record a {@link TripChange} row in their
+ * transaction; a single poller numbers new rows after commit, reads them once together with the
+ * current state of the changed trips, and keeps the result in a ring buffer. Long-poll and SSE
+ * clients are served from that buffer, so database reads follow the rate of change rather than the
+ * number of viewers. Clients whose cursor fell out of the buffer are served from the table, and
+ * told to reload the snapshot once their cursor is older than the retained rows.
+ */
+@Component
+public class TripChangeFeed {
+    
+    @Autowired
+    private TripChangeRepository tripChangeRepository;
+    
+    @Autowired
+    private TripRequestRepository tripRequestRepository;
+    
+    @Autowired
+    private SharedTripRepository sharedTripRepository;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    
+    @Value("${changes.buffer-size:10000}")
+    private int bufferSize;
+    
+    @Value("${changes.batch-size:1000}")
+    private int batchSize;
+    
+    @Value("${changes.max-wait-ms:30000}")
+    private long maxWaitMs;
+    
+    @Value("${changes.sse-timeout-ms:300000}")
+    private long sseTimeoutMs;
+    
+    @Value("${changes.heartbeat-ms:15000}")
+    private long heartbeatMs;
+    
+    @Value("${changes.retention-hours:24}")
+    private long retentionHours;
+    
+    private TransactionTemplate transactionTemplate;
+    
+    // Ring buffer of the newest events; it covers every change after bufferFloorSeq up to headSeq
+    private TripChangeEvent[] buffer;
+    private int bufferFirst;
+    private int bufferCount;
+    private long bufferFloorSeq;
+    private long headSeq;
+    private long lastSentMillis = System.currentTimeMillis();
+    
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<List<TripChangeEvent>>> listeners = new CopyOnWriteArrayList<>();
+    
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder sequenced = new LongAdder();
+    private final LongAdder eventsPublished = new LongAdder();
+    private final LongAdder tableReads = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    
+    @PostConstruct
+    void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        buffer = new TripChangeEvent[bufferSize];
+        headSeq = tripChangeRepository.findMaxSeq();
+        bufferFloorSeq = headSeq;
+    }
+    
+    /** Records that these entities changed; runs in the caller's transaction so it commits with the change. */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(TripChange.EntityType type, Collection<Long> ids) {
+        List<TripChange> changes = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            changes.add(new TripChange(type, id));
+        }
+        tripChangeRepository.saveAll(changes);
+        recorded.add(changes.size());
+    }
+    
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(TripChange.EntityType type, Long id) {
+        record(type, Collections.singletonList(id));
+    }
+    
+    @Scheduled(fixedDelayString = "${changes.poll-ms:100}")
+    public void poll() {
+        try {
+            sequenceCommittedChanges();
+        } catch (RuntimeException e) {
+            // Another node numbered rows at the same time; whatever is left is picked up next poll
+            System.err.println("Change feed sequencing failed, retrying: " + e.getMessage());
+        }
+        List<TripChange> rows = tripChangeRepository.findSequencedAfter(currentSeq(), PageRequest.of(0, batchSize));
+        if (!rows.isEmpty()) {
+            publish(toEvents(rows), rows.get(rows.size() - 1).getSeq());
+        } else if (System.currentTimeMillis() - lastSentMillis > heartbeatMs) {
+            sendHeartbeats();
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${changes.cleanup-ms:3600000}")
+    public void deleteOldChanges() {
+        tripChangeRepository.deleteSequencedBefore(LocalDateTime.now().minusHours(retentionHours));
+    }
+    
+    private void sequenceCommittedChanges() {
+        transactionTemplate.executeWithoutResult(status -> {
+            List<TripChange> unsequenced = tripChangeRepository.findUnsequencedForUpdate(PageRequest.of(0, batchSize));
+            if (unsequenced.isEmpty()) {
+                return;
+            }
+            long seq = tripChangeRepository.findMaxSeq();
+            for (TripChange change : unsequenced) {
+                change.setSeq(++seq);
+            }
+            sequenced.add(unsequenced.size());
+        });
+    }
+    
+    /**
+     * One event per changed entity carrying its state as of now; several changes of the same entity
+     * in one batch collapse into the last one.
+     */
+    private List<TripChangeEvent> toEvents(List<TripChange> rows) {
+        Map<String, TripChange> latest = new LinkedHashMap<>();
+        Set<Long> tripIds = new HashSet<>();
+        Set<Long> sharedTripIds = new HashSet<>();
+        for (TripChange row : rows) {
+            String key = row.getEntityType() + ":" + row.getEntityId();
+            latest.remove(key);
+            latest.put(key, row);
+            if (row.getEntityType() == TripChange.EntityType.TRIP_REQUEST) {
+                tripIds.add(row.getEntityId());
+            } else {
+                sharedTripIds.add(row.getEntityId());
+            }
+        }
+        
+        Map<Long, TripSummary> trips = new HashMap<>();
+        if (!tripIds.isEmpty()) {
+            for (TripSummary trip : tripRequestRepository.findSummariesByIdIn(tripIds)) {
+                trips.put(trip.id(), trip);
+            }
+        }
+        Map<Long, SharedTripSummary> sharedTrips = new HashMap<>();
+        if (!sharedTripIds.isEmpty()) {
+            for (SharedTripSummary sharedTrip : sharedTripRepository.findSummariesByIdIn(sharedTripIds)) {
+                sharedTrips.put(sharedTrip.id(), sharedTrip);
+            }
+        }
+        
+        List<TripChangeEvent> events = new ArrayList<>(latest.size());
+        for (TripChange row : latest.values()) {
+            Object state = row.getEntityType() == TripChange.EntityType.TRIP_REQUEST
+                ? trips.get(row.getEntityId())
+                : sharedTrips.get(row.getEntityId());
+            events.add(new TripChangeEvent(row.getSeq(), row.getEntityType(), row.getEntityId(), state));
+        }
+        return events;
+    }
+    
+    private void publish(List<TripChangeEvent> events, long lastSeq) {
+        List<Waiter> ready;
+        synchronized (this) {
+            for (TripChangeEvent event : events) {
+                if (bufferCount == buffer.length) {
+                    bufferFloorSeq = buffer[bufferFirst].seq();
+                    bufferFirst = (bufferFirst + 1) % buffer.length;
+                    bufferCount--;
+                }
+                buffer[(bufferFirst + bufferCount) % buffer.length] = event;
+                bufferCount++;
+            }
+            headSeq = lastSeq;
+            ready = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        eventsPublished.add(events.size());
+        lastSentMillis = System.currentTimeMillis();
+        
+        for (Consumer<List<TripChangeEvent>> listener : listeners) {
+            listener.accept(events);
+        }
+        for (Waiter waiter : ready) {
+            waiter.result.setResult(changesSince(waiter.since, waiter.limit));
+        }
+        // Sent from the poller thread; events are small, so a slow client only delays the others briefly
+        for (Subscriber subscriber : subscribers) {
+            sendPending(subscriber);
+        }
+    }
+    
+    /** Hands every published batch of events to the listener, on the poller thread. */
+    public void addListener(Consumer<List<TripChangeEvent>> listener) {
+        listeners.add(listener);
+    }
+    
+    public synchronized long currentSeq() {
+        return headSeq;
+    }
+    
+    public TripSnapshot snapshot() {
+        // Read the position first: anything that changes while the snapshot loads comes after it
+        long seq = currentSeq();
+        List<TripSummary> trips = tripRequestRepository.findSummariesByStatusInAndRequestedPickupTimeAfter(
+            EnumSet.of(TripRequest.TripStatus.PENDING, TripRequest.TripStatus.MATCHED), LocalDateTime.now()
+        );
+        List<SharedTripSummary> sharedTrips = sharedTripRepository.findSummariesByStatusIn(
+            EnumSet.of(SharedTrip.TripStatus.PENDING, SharedTrip.TripStatus.ASSIGNED, SharedTrip.TripStatus.IN_PROGRESS)
+        );
+        return new TripSnapshot(seq, trips, sharedTrips);
+    }
+    
+    /** Up to {@code limit} changes after {@code since}, without waiting. */
+    public TripChanges changesSince(long since, int limit) {
+        synchronized (this) {
+            if (since > headSeq) {
+                // A cursor this feed never handed out, e.g. from before the database was reset
+                resets.increment();
+                return new TripChanges(headSeq, true, Collections.emptyList());
+            }
+            if (since >= bufferFloorSeq) {
+                List<TripChangeEvent> events = new ArrayList<>();
+                for (int i = 0; i < bufferCount && events.size() < limit; i++) {
+                    TripChangeEvent event = buffer[(bufferFirst + i) % buffer.length];
+                    if (event.seq() > since) {
+                        events.add(event);
+                    }
+                }
+                long seq = events.size() == limit ? events.get(events.size() - 1).seq() : headSeq;
+                return new TripChanges(seq, false, events);
+            }
+        }
+        
+        // Older than the buffer: read the rows again, unless the oldest of them were already deleted
+        tableReads.increment();
+        List<TripChange> rows = tripChangeRepository.findSequencedAfter(since, PageRequest.of(0, limit));
+        if (rows.isEmpty() || rows.get(0).getSeq() != since + 1) {
+            resets.increment();
+            return new TripChanges(currentSeq(), true, Collections.emptyList());
+        }
+        return new TripChanges(rows.get(rows.size() - 1).getSeq(), false, toEvents(rows));
+    }
+    
+    /** Long poll: completes as soon as there are changes after {@code since}, or empty after {@code waitMs}. */
+    public DeferredResult<TripChanges> awaitChanges(long since, int limit, long waitMs) {
+        long timeout = Math.max(0, Math.min(waitMs, maxWaitMs));
+        DeferredResult<TripChanges> result = new DeferredResult<>(Math.max(1, timeout));
+        TripChanges changes = changesSince(since, limit);
+        if (!changes.changes().isEmpty() || changes.reset() || timeout == 0) {
+            result.setResult(changes);
+            return result;
+        }
+        
+        Waiter waiter = new Waiter(since, limit, result);
+        synchronized (this) {
+            if (headSeq > since) {
+                result.setResult(changesSince(since, limit));
+                return result;
+            }
+            waiters.add(waiter);
+        }
+        result.onTimeout(() -> {
+            synchronized (this) {
+                waiters.remove(waiter);
+            }
+            result.setResult(new TripChanges(since, false, Collections.emptyList()));
+        });
+        result.onCompletion(() -> {
+            synchronized (this) {
+                waiters.remove(waiter);
+            }
+        });
+        return result;
+    }
+    
+    /** SSE stream of changes after {@code since}; each event's id is its sequence number. */
+    public SseEmitter subscribe(long since) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, since);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(error -> subscribers.remove(subscriber));
+        
+        // Catch up first, then join the live subscribers once nothing new arrived in between
+        while (sendPending(subscriber)) {
+            synchronized (this) {
+                if (subscriber.cursor >= headSeq) {
+                    subscribers.add(subscriber);
+                    break;
+                }
+            }
+        }
+        return emitter;
+    }
+    
+    // Returns false when the subscriber is gone
+    private boolean sendPending(Subscriber subscriber) {
+        synchronized (subscriber) {
+            try {
+                while (true) {
+                    TripChanges changes = changesSince(subscriber.cursor, batchSize);
+                    if (changes.reset()) {
+                        subscriber.emitter.send(SseEmitter.event().name("reset").id(Long.toString(changes.seq())).data(changes.seq()));
+                    }
+                    for (TripChangeEvent event : changes.changes()) {
+                        subscriber.emitter.send(SseEmitter.event().name("change").id(Long.toString(event.seq())).data(event));
+                    }
+                    boolean more = changes.changes().size() == batchSize;
+                    subscriber.cursor = changes.seq();
+                    if (!more) {
+                        return true;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(subscriber);
+                subscriber.emitter.completeWithError(e);
+                return false;
+            }
+        }
+    }
+    
+    private void sendHeartbeats() {
+        lastSentMillis = System.currentTimeMillis();
+        for (Subscriber subscriber : subscribers) {
+            synchronized (subscriber) {
+                try {
+                    subscriber.emitter.send(SseEmitter.event().comment("keepalive"));
+                } catch (IOException | IllegalStateException e) {
+                    subscribers.remove(subscriber);
+                }
+            }
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("headSeq", headSeq);
+            stats.put("bufferedEvents", bufferCount);
+            stats.put("bufferFloorSeq", bufferFloorSeq);
+            stats.put("longPollWaiters", waiters.size());
+        }
+        stats.put("sseSubscribers", subscribers.size());
+        stats.put("recorded", recorded.sum());
+        stats.put("sequenced", sequenced.sum());
+        stats.put("eventsPublished", eventsPublished.sum());
+        stats.put("tableReads", tableReads.sum());
+        stats.put("resets", resets.sum());
+        return stats;
+    }
+    
+    private static final class Waiter {
+        final long since;
+        final int limit;
+        final DeferredResult<TripChanges> result;
+        
+        Waiter(long since, int limit, DeferredResult<TripChanges> result) {
+            this.since = since;
+            this.limit = limit;
+            this.result = result;
+        }
+    }
+    
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        long cursor;
+        
+        Subscriber(SseEmitter emitter, long cursor) {
+            this.emitter = emitter;
+            this.cursor = cursor;
+        }
+    }
+}
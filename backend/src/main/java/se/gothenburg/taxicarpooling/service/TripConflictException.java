@@ -0,0 +1,13 @@
+package se.gothenburg.taxicarpooling.service;
+
+/**
+ * Thrown when a conditional update finds the trip in a status that does not allow the change,
+ * typically because another driver or request got there first. Mapped to 409 by the controllers.
+ */
+public class TripConflictException extends RuntimeException {
+    
+    public TripConflictException(String message) {
+        // Losing a race is expected, so skip the stack trace
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,209 @@
+package se.gothenburg.taxicarpooling.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of the pending queue and each passenger's trip list. Entries are bounded in
+ * number, expire after a TTL, and are dropped when a write touching them commits. A load only fills
+ * the cache if no invalidation of its key happened while it ran, so a read that starts after a write
+ * committed on this node never sees the state from before that write.
+ */
+@Component
+public class TripListCache {
+    
+    private static final String PENDING_KEY = "pending";
+    
+    @Value("${trips.cache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${trips.cache.max-users:10000}")
+    private int maxUsers;
+    
+    @Value("${trips.cache.ttl-ms:30000}")
+    private long ttlMillis;
+    
+    private Region<String> pending;
+    private Region<Long> userTrips;
+    
+    @PostConstruct
+    void init() {
+        pending = new Region<>(1, ttlMillis);
+        userTrips = new Region<>(maxUsers, ttlMillis);
+    }
+    
+    public List<TripSummary> getPendingTrips(Supplier<List<TripSummary>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        List<TripSummary> trips = pending.get(PENDING_KEY, loader);
+        // Trips leave the queue when their pickup time passes, without any write, so skip those here
+        LocalDateTime now = LocalDateTime.now();
+        int first = 0;
+        while (first < trips.size() && !trips.get(first).requestedPickupTime().isAfter(now)) {
+            first++;
+        }
+        return first == 0 ? trips : trips.subList(first, trips.size());
+    }
+    
+    public List<TripSummary> getUserTrips(Long userId, Supplier<List<TripSummary>> loader) {
+        return enabled ? userTrips.get(userId, loader) : loader.get();
+    }
+    
+    /**
+     * Drops the pending queue and the trip lists of the given passengers once the current transaction
+     * commits, or right away when there is none. Called by every write to trip requests.
+     */
+    public void invalidateAfterCommit(Collection<Long> userIds) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(userIds);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                invalidate(userIds);
+            }
+        });
+    }
+    
+    private void invalidate(Collection<Long> userIds) {
+        pending.invalidate(PENDING_KEY);
+        for (Long userId : userIds) {
+            userTrips.invalidate(userId);
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ttlMillis", ttlMillis);
+        stats.put("pending", pending.getStats());
+        stats.put("userTrips", userTrips.getStats());
+        return stats;
+    }
+    
+    /**
+     * LRU map with a TTL. Every key hashes to a generation stripe that invalidation bumps; a load
+     * that saw a different generation when it started is returned to its caller but not cached.
+     */
+    private static final class Region<K> {
+        private static final int STRIPES = 1024;
+        
+        private final int maxSize;
+        private final long ttlMillis;
+        private final LinkedHashMap<K, Entry> entries;
+        private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+        
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder expirations = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+        private final LongAdder discardedLoads = new LongAdder();
+        private final LongAdder loadNanos = new LongAdder();
+        
+        Region(int maxSize, long ttlMillis) {
+            this.maxSize = maxSize;
+            this.ttlMillis = ttlMillis;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry> eldest) {
+                    if (size() > Region.this.maxSize) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        
+        List<TripSummary> get(K key, Supplier<List<TripSummary>> loader) {
+            int stripe = stripe(key);
+            long generation;
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    if (System.currentTimeMillis() - entry.loadedAtMillis <= ttlMillis) {
+                        hits.increment();
+                        return entry.trips;
+                    }
+                    entries.remove(key);
+                    expirations.increment();
+                }
+                // Read under the lock so an invalidation cannot slip between the miss and the load
+                generation = generations.get(stripe);
+            }
+            misses.increment();
+            
+            long start = System.nanoTime();
+            List<TripSummary> trips = List.copyOf(loader.get());
+            loadNanos.add(System.nanoTime() - start);
+            
+            synchronized (entries) {
+                if (generations.get(stripe) == generation) {
+                    entries.put(key, new Entry(trips, System.currentTimeMillis()));
+                } else {
+                    discardedLoads.increment();
+                }
+            }
+            return trips;
+        }
+        
+        void invalidate(K key) {
+            synchronized (entries) {
+                generations.incrementAndGet(stripe(key));
+                if (entries.remove(key) != null) {
+                    invalidations.increment();
+                }
+            }
+        }
+        
+        Map<String, Object> getStats() {
+            long missCount = misses.sum();
+            long requests = hits.sum() + missCount;
+            Map<String, Object> stats = new LinkedHashMap<>();
+            synchronized (entries) {
+                stats.put("size", entries.size());
+            }
+            stats.put("maxSize", maxSize);
+            stats.put("hits", hits.sum());
+            stats.put("misses", missCount);
+            stats.put("hitRate", requests == 0 ? 0.0 : (double) hits.sum() / requests);
+            stats.put("evictions", evictions.sum());
+            stats.put("expirations", expirations.sum());
+            stats.put("invalidations", invalidations.sum());
+            stats.put("discardedLoads", discardedLoads.sum());
+            stats.put("avgLoadMillis", missCount == 0 ? 0.0 : loadNanos.sum() / 1e6 / missCount);
+            return stats;
+        }
+        
+        private static int stripe(Object key) {
+            int h = key.hashCode();
+            return (h ^ (h >>> 16)) & (STRIPES - 1);
+        }
+    }
+    
+    private static final class Entry {
+        final List<TripSummary> trips;
+        final long loadedAtMillis;
+        
+        Entry(List<TripSummary> trips, long loadedAtMillis) {
+            this.trips = trips;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+    }
+}
@@ -1,21 +1,41 @@
 package se.gothenburg.taxicarpooling.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import se.gothenburg.taxicarpooling.entity.TripChange;
 import se.gothenburg.taxicarpooling.entity.TripRequest;
 import se.gothenburg.taxicarpooling.entity.User;
+import se.gothenburg.taxicarpooling.matching.DriverLocationIndex;
 import se.gothenburg.taxicarpooling.repository.TripRequestRepository;
 import se.gothenburg.taxicarpooling.repository.UserRepository;
+import se.gothenburg.taxicarpooling.dto.TripCursor;
+import se.gothenburg.taxicarpooling.dto.TripPage;
 import se.gothenburg.taxicarpooling.dto.TripRequestDto;
+import se.gothenburg.taxicarpooling.dto.TripSummary;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 import java.math.BigDecimal;
 
 @Service
 public class TripRequestService {
     
+    // Estimate for a trip taken alone, until matching gives it a share of a shared trip
+    static final BigDecimal SOLO_ESTIMATED_COST = BigDecimal.valueOf(650);
+    
     @Autowired
     private TripRequestRepository tripRequestRepository;
     
@@ -25,10 +45,44 @@ public class TripRequestService {
     @Autowired
     private MatchmakingService matchmakingService;
     
+    @Autowired
+    private MatchmakingPipeline matchmakingPipeline;
+    
+    @Autowired
+    private ShardLeaseManager shardLeaseManager;
+    
+    @Autowired
+    private DriverLocationService driverLocationService;
+    
+    @Autowired
+    private OutboxPublisher outboxPublisher;
+    
+    @Autowired
+    private TripChangeFeed tripChangeFeed;
+    
+    @Autowired
+    private TripListCache tripListCache;
+    
+    @Autowired
+    private CostSavingsService costSavingsService;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Value("${trips.listing.default-page-size:100}")
+    private int defaultPageSize;
+    
+    @Value("${trips.listing.max-page-size:500}")
+    private int maxPageSize;
+    
+    @Value("${trips.listing.stream-flush-rows:256}")
+    private int streamFlushRows;
+    
+    @Transactional
     public TripRequest createTripRequest(TripRequestDto dto) {
         User user = userRepository.findById(dto.getUserId())
             .orElseThrow(() -> new RuntimeException("User not found"));
-            
+        
         TripRequest tripRequest = new TripRequest();
         tripRequest.setUser(user);
         tripRequest.setPickupAddress(dto.getPickupAddress());
@@ -37,79 +91,193 @@ public class TripRequestService {
         tripRequest.setPickupLongitude(dto.getPickupLongitude());
         tripRequest.setDestinationLatitude(dto.getDestinationLatitude());
         tripRequest.setDestinationLongitude(dto.getDestinationLongitude());
-        tripRequest.setRequestedPickupTime(dto.getRequestedPickupTime());
+        // Matching compares pickup times in whole minutes
+        tripRequest.setRequestedPickupTime(dto.getRequestedPickupTime().truncatedTo(ChronoUnit.MINUTES));
         tripRequest.setPriority(TripRequest.Priority.valueOf(dto.getPriority()));
         tripRequest.setPassengerCount(dto.getPassengerCount());
         tripRequest.setNeedsWheelchairAccess(dto.isNeedsWheelchairAccess());
         tripRequest.setNeedsAssistance(dto.isNeedsAssistance());
         tripRequest.setSpecialRequirements(dto.getSpecialRequirements());
-        tripRequest.setEstimatedCost(BigDecimal.valueOf(650));
+        tripRequest.setEstimatedCost(SOLO_ESTIMATED_COST);
         
         TripRequest savedRequest = tripRequestRepository.save(tripRequest);
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, savedRequest.getId());
+        tripListCache.invalidateAfterCommit(List.of(user.getId()));
         
-        // Automatically trigger matchmaking after order creation
-        try {
-            matchmakingService.processMatchmaking();
-        } catch (Exception e) {
-            // Log error but don't fail the trip creation
-            System.err.println("Matchmaking failed for trip " + savedRequest.getId() + ": " + e.getMessage());
-        }
+        // Matchmaking runs asynchronously in the next pipeline batch, once the trip is committed
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                matchmakingService.registerPendingTrip(savedRequest);
+                matchmakingPipeline.submit(savedRequest);
+            }
+        });
         
         return savedRequest;
     }
     
-    public List<TripRequest> getUserTrips(Long userId) {
-        return tripRequestRepository.findByUserIdOrderByCreatedAtDesc(userId);
+    public List<TripSummary> getUserTrips(Long userId) {
+        return tripListCache.getUserTrips(userId, () -> tripRequestRepository.findSummariesByUserId(userId));
     }
     
-    public List<TripRequest> getPendingTrips() {
-        return tripRequestRepository.findByStatusAndRequestedPickupTimeAfter(
+    public List<TripSummary> getPendingTrips() {
+        return tripListCache.getPendingTrips(() -> tripRequestRepository.findSummariesByStatusAndRequestedPickupTimeAfter(
             TripRequest.TripStatus.PENDING, LocalDateTime.now()
+        ));
+    }
+    
+    /** Trip history newest first, one page at a time. */
+    public TripPage getUserTrips(Long userId, TripCursor before, Integer limit) {
+        int pageSize = pageSize(limit);
+        List<TripSummary> trips = before == null
+            ? tripRequestRepository.findSummariesByUserId(userId, PageRequest.of(0, pageSize))
+            : tripRequestRepository.findSummariesByUserIdBefore(userId, before.time(), before.id(), PageRequest.of(0, pageSize));
+        TripSummary last = trips.size() == pageSize ? trips.get(pageSize - 1) : null;
+        return new TripPage(trips, last == null ? null : new TripCursor(last.createdAt(), last.id()).encode());
+    }
+    
+    /** Pending queue in pickup order, one page at a time. */
+    public TripPage getPendingTrips(TripCursor after, Integer limit) {
+        int pageSize = pageSize(limit);
+        LocalDateTime now = LocalDateTime.now();
+        // Without a cursor the page starts at now, and no id sorts after Long.MAX_VALUE
+        List<TripSummary> trips = tripRequestRepository.findSummariesByStatusAndRequestedPickupTimeAfter(
+            TripRequest.TripStatus.PENDING, now,
+            after == null ? now : after.time(), after == null ? Long.MAX_VALUE : after.id(),
+            PageRequest.of(0, pageSize)
         );
+        TripSummary last = trips.size() == pageSize ? trips.get(pageSize - 1) : null;
+        return new TripPage(trips, last == null ? null : new TripCursor(last.requestedPickupTime(), last.id()).encode());
+    }
+    
+    @Transactional(readOnly = true)
+    public void streamUserTrips(Long userId, OutputStream out) throws IOException {
+        try (Stream<TripSummary> trips = tripRequestRepository.streamSummariesByUserId(userId)) {
+            writeNdjson(trips, out);
+        }
     }
     
+    @Transactional(readOnly = true)
+    public void streamPendingTrips(OutputStream out) throws IOException {
+        try (Stream<TripSummary> trips = tripRequestRepository.streamSummariesByStatusAndRequestedPickupTimeAfter(
+                TripRequest.TripStatus.PENDING, LocalDateTime.now())) {
+            writeNdjson(trips, out);
+        }
+    }
+    
+    // One JSON object per line as rows arrive from the cursor; the first row is flushed at once
+    private void writeNdjson(Stream<TripSummary> trips, OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writerFor(TripSummary.class);
+        Iterator<TripSummary> rows = trips.iterator();
+        int written = 0;
+        while (rows.hasNext()) {
+            out.write(writer.writeValueAsBytes(rows.next()));
+            out.write('\n');
+            if (written++ % streamFlushRows == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+    
+    private int pageSize(Integer limit) {
+        return Math.max(1, Math.min(limit == null ? defaultPageSize : limit, maxPageSize));
+    }
+    
+    @Transactional
     public TripRequest updateTripStatus(Long tripId, String status) {
+        TripRequest.TripStatus target = TripRequest.TripStatus.valueOf(status);
+        if (target == TripRequest.TripStatus.ASSIGNED) {
+            throw new IllegalArgumentException("Trips are assigned by a driver accepting them");
+        }
+        
+        // One conditional UPDATE; the transition table decides which current statuses qualify
+        int updated = tripRequestRepository.transitionStatus(tripId, TripRequest.TripStatus.sourcesOf(target), target);
         TripRequest trip = tripRequestRepository.findById(tripId)
             .orElseThrow(() -> new RuntimeException("Trip not found"));
-            
-        // Prevent duplicate assignment
-        if ("ASSIGNED".equals(status) && trip.getStatus() != TripRequest.TripStatus.PENDING) {
-            throw new RuntimeException("Trip already assigned or completed");
+        if (updated == 0) {
+            throw new TripConflictException("Trip " + tripId + " cannot move from " + trip.getStatus() + " to " + target);
+        }
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, tripId);
+        tripListCache.invalidateAfterCommit(List.of(trip.getUser().getId()));
+        if (target == TripRequest.TripStatus.COMPLETED) {
+            // COMPLETED is terminal and the conditional update let only this call in, so it is counted once
+            costSavingsService.recordCompletion(trip);
         }
         
-        trip.setStatus(TripRequest.TripStatus.valueOf(status));
-        return tripRequestRepository.save(trip);
+        Long releasedDriverId = trip.getAssignedDriver() != null && (target == TripRequest.TripStatus.COMPLETED
+            || target == TripRequest.TripStatus.CANCELLED) ? trip.getAssignedDriver().getId() : null;
+        // The index and driver availability only follow once the status change is committed
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                matchmakingService.registerPendingTrip(trip);
+                if (releasedDriverId != null) {
+                    driverLocationService.setAvailability(releasedDriverId, DriverLocationIndex.Availability.AVAILABLE);
+                }
+            }
+        });
+        return trip;
     }
     
     @Transactional
     public TripRequest assignMergedTripToDriver(Long mergedTripId, Long driverId) {
-        // Find the merged/shared trip
+        User driver = userRepository.findById(driverId)
+            .orElseThrow(() -> new RuntimeException("Driver not found"));
+        
+        // Only the first accept of a pending order wins, the rest see zero updated rows
+        int updated = tripRequestRepository.assignDriver(
+            mergedTripId, driver, LocalDateTime.now(),
+            BigDecimal.valueOf(800), // Gothenburg Kommun rate for merged orders
+            TripRequest.TripStatus.ASSIGNED, TripRequest.TripStatus.PENDING
+        );
         TripRequest trip = tripRequestRepository.findById(mergedTripId)
             .orElseThrow(() -> new RuntimeException("Trip not found"));
-            
-        // Prevent duplicate acceptance - only one 800 SEK per merged order
-        if (trip.getStatus() != TripRequest.TripStatus.PENDING) {
-            throw new RuntimeException("Du har redan accepterat denna sammanslagna order");
-        }
-        
-        // Check if driver already has this merged order
-        if (trip.getAssignedDriver() != null && trip.getAssignedDriver().getId().equals(driverId)) {
-            throw new RuntimeException("Du har redan accepterat denna order (800 SEK)");
+        if (updated == 0) {
+            // Prevent duplicate acceptance - only one 800 SEK per merged order
+            if (trip.getAssignedDriver() != null && trip.getAssignedDriver().getId().equals(driverId)) {
+                throw new TripConflictException("Du har redan accepterat denna order (800 SEK)");
+            }
+            throw new TripConflictException("Du har redan accepterat denna sammanslagna order");
         }
+        tripChangeFeed.record(TripChange.EntityType.TRIP_REQUEST, mergedTripId);
+        tripListCache.invalidateAfterCommit(List.of(trip.getUser().getId()));
         
-        User driver = userRepository.findById(driverId)
-            .orElseThrow(() -> new RuntimeException("Driver not found"));
-            
-        // Set the government rate for merged orders
-        trip.setStatus(TripRequest.TripStatus.ASSIGNED);
-        trip.setAssignedDriver(driver);
-        trip.setAssignedAt(LocalDateTime.now());
-        trip.setEstimatedCost(BigDecimal.valueOf(800)); // Gothenburg Kommun rate
-        
-        return tripRequestRepository.save(trip);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                matchmakingService.removePendingTrip(mergedTripId);
+                driverLocationService.setAvailability(driverId, DriverLocationIndex.Availability.BUSY);
+            }
+        });
+        return trip;
     }
     
     public void runMatchmaking() {
         matchmakingService.processMatchmaking();
     }
+    
+    public Map<String, Object> getMatchmakingIndexStats() {
+        return matchmakingService.getIndexStats();
+    }
+    
+    public Map<String, Object> getMatchmakingGroupingStats() {
+        return matchmakingService.getGroupingStats();
+    }
+    
+    public Map<String, Object> getMatchmakingPipelineStats() {
+        return matchmakingPipeline.getStats();
+    }
+    
+    public Map<String, Object> getMatchmakingShardStats() {
+        return shardLeaseManager.getStats();
+    }
+    
+    public Map<String, Object> getOutboxStats() {
+        return outboxPublisher.getStats();
+    }
+    
+    public Map<String, Object> getCacheStats() {
+        return tripListCache.getStats();
+    }
 }
\ No newline at end of file
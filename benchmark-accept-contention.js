@@ -0,0 +1,111 @@
+#!/usr/bin/env node
+
+/**
+ * Accept contention benchmark - Gothenburg Taxi
+ * N drivers race to accept each of M fresh orders. Exactly one accept per order may win (800 SEK),
+ * every other driver should get a fast 409. Reports accept latency and throughput.
+ *
+ * Usage: ORDERS=50 DRIVERS=20 DRIVER_IDS=4,5 node benchmark-accept-contention.js
+ */
+
+const axios = require('axios');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const ORDERS = parseInt(process.env.ORDERS || '50', 10);
+const DRIVERS = parseInt(process.env.DRIVERS || '20', 10);
+const DRIVER_IDS = (process.env.DRIVER_IDS || '4,5').split(',').map(id => parseInt(id, 10));
+const USER_ID = parseInt(process.env.USER_ID || '1', 10);
+
+function percentile(sorted, p) {
+    if (sorted.length === 0) return 0;
+    const index = Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1);
+    return sorted[Math.max(index, 0)];
+}
+
+async function createOrder(i) {
+    const response = await axios.post(`${API_URL}/api/trips/book`, {
+        userId: USER_ID,
+        pickupAddress: `Benchmark pickup ${i}`,
+        destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+        pickupLatitude: 57.7089 + (Math.random() - 0.5) * 0.05,
+        pickupLongitude: 11.9733 + (Math.random() - 0.5) * 0.05,
+        destinationLatitude: 57.6838,
+        destinationLongitude: 11.9607,
+        requestedPickupTime: new Date(Date.now() + 3 * 60 * 60 * 1000).toISOString().slice(0, 19),
+        priority: 'NORMAL',
+        passengerCount: 1,
+        needsWheelchairAccess: false,
+        needsAssistance: false
+    });
+    return response.data.id;
+}
+
+async function accept(tripId, driverId) {
+    const start = process.hrtime.bigint();
+    let status;
+    try {
+        const response = await axios.post(`${API_URL}/api/trips/${tripId}/assign?driverId=${driverId}`);
+        status = response.status;
+    } catch (error) {
+        status = error.response ? error.response.status : 'network';
+    }
+    const latencyMs = Number(process.hrtime.bigint() - start) / 1e6;
+    return { tripId, driverId, status, latencyMs };
+}
+
+async function runBenchmark() {
+    console.log(`🏁 Accept contention: ${DRIVERS} drivers x ${ORDERS} orders against ${API_URL}`);
+
+    const tripIds = [];
+    for (let i = 0; i < ORDERS; i++) {
+        tripIds.push(await createOrder(i));
+    }
+    console.log(`✅ Created ${tripIds.length} orders`);
+
+    const start = process.hrtime.bigint();
+    const results = await Promise.all(tripIds.flatMap(tripId =>
+        Array.from({ length: DRIVERS }, (_, d) => accept(tripId, DRIVER_IDS[d % DRIVER_IDS.length]))
+    ));
+    const elapsedSeconds = Number(process.hrtime.bigint() - start) / 1e9;
+
+    const winsByTrip = new Map();
+    const statusCounts = {};
+    for (const result of results) {
+        statusCounts[result.status] = (statusCounts[result.status] || 0) + 1;
+        if (result.status === 200) {
+            winsByTrip.set(result.tripId, (winsByTrip.get(result.tripId) || 0) + 1);
+        }
+    }
+
+    const report = (label, latencies) => {
+        const sorted = latencies.sort((a, b) => a - b);
+        console.log(`   ${label}: n=${sorted.length} p50=${percentile(sorted, 50).toFixed(1)}ms ` +
+            `p95=${percentile(sorted, 95).toFixed(1)}ms p99=${percentile(sorted, 99).toFixed(1)}ms ` +
+            `max=${percentile(sorted, 100).toFixed(1)}ms`);
+    };
+
+    console.log(`\n📊 ${results.length} accepts in ${elapsedSeconds.toFixed(2)}s ` +
+        `(${(results.length / elapsedSeconds).toFixed(0)} accepts/s)`);
+    console.log('   Status codes:', statusCounts);
+    report('all     ', results.map(r => r.latencyMs));
+    report('winners ', results.filter(r => r.status === 200).map(r => r.latencyMs));
+    report('409     ', results.filter(r => r.status === 409).map(r => r.latencyMs));
+
+    const doubleAssigned = [...winsByTrip.entries()].filter(([, wins]) => wins > 1);
+    const unassigned = tripIds.filter(tripId => !winsByTrip.has(tripId));
+    if (doubleAssigned.length > 0) {
+        console.log('❌ Orders accepted more than once:', doubleAssigned);
+        process.exitCode = 1;
+    } else {
+        console.log('✅ No order was accepted twice');
+    }
+    if (unassigned.length > 0) {
+        // Orders matched into a shared trip by the pipeline before the race are no longer PENDING
+        console.log(`⚠️  ${unassigned.length} orders had no winner (already matched before the race)`);
+    }
+}
+
+runBenchmark().catch(error => {
+    console.error('❌ Benchmark failed:', error.response?.data || error.message);
+    process.exit(1);
+});
@@ -0,0 +1,164 @@
+#!/usr/bin/env node
+
+/**
+ * Change feed benchmark - Gothenburg Taxi
+ * Books trips at a steady rate while VIEWERS dashboards watch the pending queue, first by polling
+ * /api/trips/pending every POLL_MS, then by following /api/changes from one snapshot. Reports the
+ * HTTP requests, bytes and MySQL selects each approach costs, and how long a booking takes to show up.
+ *
+ * Usage: VIEWERS=50 SECONDS=30 BOOKINGS_PER_SECOND=5 POLL_MS=5000 node benchmark-change-feed.js
+ */
+
+const axios = require('axios');
+const http = require('http');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const VIEWERS = parseInt(process.env.VIEWERS || '50', 10);
+const SECONDS = parseInt(process.env.SECONDS || '30', 10);
+const BOOKINGS_PER_SECOND = parseInt(process.env.BOOKINGS_PER_SECOND || '5', 10);
+const POLL_MS = parseInt(process.env.POLL_MS || '5000', 10);
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+const client = axios.create({ httpAgent: new http.Agent({ keepAlive: true }), timeout: 60000 });
+
+function sleep(ms) {
+    return new Promise(resolve => setTimeout(resolve, ms));
+}
+
+function percentile(sorted, p) {
+    if (sorted.length === 0) return 0;
+    const index = Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1);
+    return sorted[Math.max(index, 0)];
+}
+
+function bookingRequest(i) {
+    return {
+        userId: USER_IDS[i % USER_IDS.length],
+        pickupAddress: `Change feed pickup ${i}`,
+        destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+        pickupLatitude: 57.7089 + (Math.random() - 0.5) * 0.1,
+        pickupLongitude: 11.9733 + (Math.random() - 0.5) * 0.15,
+        destinationLatitude: 57.6838 + (Math.random() - 0.5) * 0.01,
+        destinationLongitude: 11.9607 + (Math.random() - 0.5) * 0.01,
+        requestedPickupTime: new Date(Date.now() + (60 + (i % 8) * 15) * 60 * 1000).toISOString().slice(0, 19),
+        priority: 'NORMAL',
+        passengerCount: 1,
+        needsWheelchairAccess: false,
+        needsAssistance: false
+    };
+}
+
+async function comSelect(connection) {
+    const [[row]] = await connection.query("SHOW GLOBAL STATUS LIKE 'Com_select'");
+    return Number(row.Value);
+}
+
+// Books at a fixed rate and remembers when each trip id was created
+async function book(deadline, bookedAt) {
+    let sequence = 0;
+    while (Date.now() < deadline) {
+        const tickStart = Date.now();
+        await Promise.all(Array.from({ length: BOOKINGS_PER_SECOND }, async () => {
+            try {
+                const response = await client.post(`${API_URL}/api/trips/book`, bookingRequest(sequence++));
+                bookedAt.set(response.data.id, Date.now());
+            } catch (error) {
+                // a failed booking is simply not observed
+            }
+        }));
+        await sleep(Math.max(0, 1000 - (Date.now() - tickStart)));
+    }
+}
+
+function seen(tripId, bookedAt, lags, viewer) {
+    if (!viewer.has(tripId) && bookedAt.has(tripId)) {
+        viewer.add(tripId);
+        lags.push(Date.now() - bookedAt.get(tripId));
+    }
+}
+
+async function pollingViewer(deadline, bookedAt, totals) {
+    const viewer = new Set();
+    await sleep(Math.random() * POLL_MS);
+    while (Date.now() < deadline) {
+        const response = await client.get(`${API_URL}/api/trips/pending`,
+            { responseType: 'text', transformResponse: data => data });
+        totals.requests++;
+        totals.bytes += Buffer.byteLength(response.data);
+        JSON.parse(response.data).forEach(trip => seen(trip.id, bookedAt, totals.lags, viewer));
+        await sleep(POLL_MS);
+    }
+}
+
+async function feedViewer(deadline, bookedAt, totals) {
+    const viewer = new Set();
+    const snapshot = await client.get(`${API_URL}/api/changes/snapshot`,
+        { responseType: 'text', transformResponse: data => data });
+    totals.requests++;
+    totals.bytes += Buffer.byteLength(snapshot.data);
+    let seq = JSON.parse(snapshot.data).seq;
+    while (Date.now() < deadline) {
+        const waitMs = Math.max(1, Math.min(25000, deadline - Date.now()));
+        const response = await client.get(`${API_URL}/api/changes`,
+            { params: { since: seq, waitMs }, responseType: 'text', transformResponse: data => data });
+        totals.requests++;
+        totals.bytes += Buffer.byteLength(response.data);
+        const body = JSON.parse(response.data);
+        body.changes.forEach(change => {
+            if (change.type === 'TRIP_REQUEST') seen(change.id, bookedAt, totals.lags, viewer);
+        });
+        seq = body.seq;
+    }
+}
+
+async function run(label, viewer, connection) {
+    const totals = { requests: 0, bytes: 0, lags: [] };
+    const bookedAt = new Map();
+    const deadline = Date.now() + SECONDS * 1000;
+    const selectsBefore = await comSelect(connection);
+
+    await Promise.all([
+        book(deadline, bookedAt),
+        ...Array.from({ length: VIEWERS }, () => viewer(deadline, bookedAt, totals))
+    ]);
+
+    const selects = await comSelect(connection) - selectsBefore;
+    const lags = totals.lags.sort((a, b) => a - b);
+    console.log(`\n📊 ${label}: ${bookedAt.size} bookings, ${VIEWERS} viewers`);
+    console.log(`   requests: ${totals.requests} (${(totals.requests / SECONDS).toFixed(1)}/s), ` +
+        `received: ${(totals.bytes / 1024 / 1024).toFixed(2)} MB`);
+    console.log(`   MySQL selects: ${selects} (${(selects / SECONDS).toFixed(1)}/s)`);
+    console.log(`   booking visible after: p50=${percentile(lags, 50)}ms p95=${percentile(lags, 95)}ms ` +
+        `p99=${percentile(lags, 99)}ms`);
+    return { requests: totals.requests, bytes: totals.bytes, selects };
+}
+
+async function runBenchmark() {
+    console.log(`🚕 Change feed benchmark: ${VIEWERS} viewers, ${BOOKINGS_PER_SECOND} bookings/s for ${SECONDS}s against ${API_URL}`);
+    const connection = await mysql.createConnection(DB_CONFIG);
+    try {
+        const polling = await run(`Polling every ${POLL_MS}ms`, pollingViewer, connection);
+        const feed = await run('Change feed long-poll', feedViewer, connection);
+
+        console.log('\n✅ Change feed vs polling:');
+        console.log(`   bytes: ${(polling.bytes / Math.max(feed.bytes, 1)).toFixed(1)}x less, ` +
+            `selects: ${(polling.selects / Math.max(feed.selects, 1)).toFixed(1)}x fewer`);
+        const stats = (await client.get(`${API_URL}/api/changes/stats`)).data;
+        console.log(`   feed stats: ${JSON.stringify(stats)}`);
+    } finally {
+        await connection.end();
+    }
+}
+
+runBenchmark().catch(error => {
+    console.error('❌ Benchmark failed:', error.response?.data || error.message);
+    process.exit(1);
+});
@@ -0,0 +1,157 @@
+#!/usr/bin/env node
+
+/**
+ * Driver location benchmark - Gothenburg Taxi
+ * Seeds benchmark drivers with vehicles, streams 1 Hz GPS pings for all of them through the batch
+ * ingest endpoint and runs nearest-driver queries alongside. Reports ingest throughput, HTTP query
+ * latency and the in-JVM query time from the index stats.
+ *
+ * Usage: DRIVERS=5000 SECONDS=30 QUERY_CLIENTS=8 node benchmark-driver-locations.js
+ */
+
+const axios = require('axios');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const DRIVERS = parseInt(process.env.DRIVERS || '5000', 10);
+const SECONDS = parseInt(process.env.SECONDS || '30', 10);
+const BATCH_SIZE = parseInt(process.env.BATCH_SIZE || '500', 10);
+const QUERY_CLIENTS = parseInt(process.env.QUERY_CLIENTS || '8', 10);
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+// Drivers start around central Gothenburg and drift like cars in traffic
+const CENTER = { latitude: 57.7089, longitude: 11.9733 };
+
+function sleep(ms) {
+    return new Promise(resolve => setTimeout(resolve, ms));
+}
+
+function percentile(sorted, p) {
+    if (sorted.length === 0) return 0;
+    const index = Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1);
+    return sorted[Math.max(index, 0)];
+}
+
+async function seedDrivers() {
+    const connection = await mysql.createConnection(DB_CONFIG);
+    try {
+        for (let start = 0; start < DRIVERS; start += 500) {
+            const rows = [];
+            for (let i = start; i < Math.min(start + 500, DRIVERS); i++) {
+                const suffix = String(i).padStart(7, '0');
+                rows.push([`BENCH${suffix}`, 'Bench', `Driver ${i}`, `bench.driver.${i}@taxigbg.se`, 'DRIVER']);
+            }
+            await connection.query(
+                'INSERT IGNORE INTO users (personnummer, first_name, last_name, email, user_type) VALUES ?', [rows]);
+        }
+        await connection.query(`
+            INSERT IGNORE INTO driver_vehicles (driver_id, license_plate, vehicle_make, vehicle_model, max_passengers, wheelchair_accessible)
+            SELECT id, CONCAT('B', id), 'Volvo', 'V70', 4 + (id % 3), (id % 10 = 0)
+            FROM users WHERE personnummer LIKE 'BENCH%'`);
+        const [drivers] = await connection.query(
+            "SELECT id FROM users WHERE personnummer LIKE 'BENCH%' ORDER BY id LIMIT ?", [DRIVERS]);
+        return drivers.map(row => row.id);
+    } finally {
+        await connection.end();
+    }
+}
+
+async function runBenchmark() {
+    console.log(`🚕 Driver location benchmark: ${DRIVERS} drivers x 1 Hz for ${SECONDS}s against ${API_URL}`);
+
+    const driverIds = await seedDrivers();
+    await axios.post(`${API_URL}/api/drivers/refresh`);
+    console.log(`✅ ${driverIds.length} benchmark drivers with vehicles`);
+
+    const positions = driverIds.map(() => ({
+        latitude: CENTER.latitude + (Math.random() - 0.5) * 0.2,
+        longitude: CENTER.longitude + (Math.random() - 0.5) * 0.3
+    }));
+
+    let running = true;
+    let pingsSent = 0;
+    let pingsAccepted = 0;
+    let ingestErrors = 0;
+    const ingestLatencies = [];
+    const queryLatencies = [];
+
+    const ingest = (async () => {
+        for (let second = 0; second < SECONDS; second++) {
+            const tickStart = Date.now();
+            const requests = [];
+            for (let start = 0; start < driverIds.length; start += BATCH_SIZE) {
+                const batch = [];
+                for (let i = start; i < Math.min(start + BATCH_SIZE, driverIds.length); i++) {
+                    positions[i].latitude += (Math.random() - 0.5) * 0.0005;
+                    positions[i].longitude += (Math.random() - 0.5) * 0.0008;
+                    batch.push({
+                        driverId: driverIds[i],
+                        latitude: positions[i].latitude,
+                        longitude: positions[i].longitude,
+                        status: i % 5 === 0 ? 'BUSY' : 'AVAILABLE'
+                    });
+                }
+                const requestStart = process.hrtime.bigint();
+                requests.push(axios.post(`${API_URL}/api/drivers/locations`, batch)
+                    .then(response => {
+                        pingsAccepted += response.data.accepted;
+                        ingestLatencies.push(Number(process.hrtime.bigint() - requestStart) / 1e6);
+                    })
+                    .catch(() => ingestErrors++));
+                pingsSent += batch.length;
+            }
+            await Promise.all(requests);
+            await sleep(Math.max(0, 1000 - (Date.now() - tickStart)));
+        }
+        running = false;
+    })();
+
+    const queries = Array.from({ length: QUERY_CLIENTS }, async () => {
+        await sleep(1500); // let the first snapshot publish
+        while (running) {
+            const start = process.hrtime.bigint();
+            try {
+                await axios.get(`${API_URL}/api/drivers/nearest`, {
+                    params: {
+                        latitude: CENTER.latitude + (Math.random() - 0.5) * 0.2,
+                        longitude: CENTER.longitude + (Math.random() - 0.5) * 0.3,
+                        k: 5,
+                        seats: 1 + Math.floor(Math.random() * 4),
+                        wheelchair: Math.random() < 0.1
+                    }
+                });
+                queryLatencies.push(Number(process.hrtime.bigint() - start) / 1e6);
+            } catch (error) {
+                // counted by the missing latency sample
+            }
+        }
+    });
+
+    await Promise.all([ingest, ...queries]);
+
+    const stats = (await axios.get(`${API_URL}/api/drivers/locations/stats`)).data;
+    const report = (label, latencies) => {
+        const sorted = latencies.sort((a, b) => a - b);
+        console.log(`   ${label}: n=${sorted.length} p50=${percentile(sorted, 50).toFixed(1)}ms ` +
+            `p95=${percentile(sorted, 95).toFixed(1)}ms p99=${percentile(sorted, 99).toFixed(1)}ms`);
+    };
+
+    console.log(`\n📊 ${pingsSent} pings sent (${(pingsSent / SECONDS).toFixed(0)}/s), ` +
+        `${pingsAccepted} accepted, ${ingestErrors} failed batches`);
+    report(`ingest batch (${BATCH_SIZE})`, ingestLatencies);
+    report('nearest query (HTTP)', queryLatencies);
+    console.log(`   nearest query (index): avg ${Number(stats.avgQueryMicros).toFixed(1)}µs over ${stats.queries} queries`);
+    console.log(`   snapshot: ${stats.availableDrivers} available drivers in ${stats.occupiedCells} cells, ` +
+        `publish ${stats.lastPublishMicros}µs, ${stats.coalescedPings} pings coalesced`);
+}
+
+runBenchmark().catch(error => {
+    console.error('❌ Benchmark failed:', error.response?.data || error.message);
+    process.exit(1);
+});
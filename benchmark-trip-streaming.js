@@ -0,0 +1,141 @@
+#!/usr/bin/env node
+
+/**
+ * Trip listing streaming benchmark - Gothenburg Taxi
+ * Gives one passenger a long trip history, then reads it three ways: the whole JSON list, keyset
+ * pages walked with X-Next-Cursor, and the NDJSON stream. Reports time to first byte, total time,
+ * rows and the backend heap growth sampled from /api/system/memory while each read runs.
+ *
+ * Usage: HISTORY=200000 PAGE_SIZE=500 USER_ID=1 node benchmark-trip-streaming.js
+ */
+
+const axios = require('axios');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const HISTORY = parseInt(process.env.HISTORY || '200000', 10);
+const PAGE_SIZE = parseInt(process.env.PAGE_SIZE || '500', 10);
+const USER_ID = parseInt(process.env.USER_ID || '1', 10);
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+// Completed dialysis rides, three a week going back as far as HISTORY needs
+async function seedHistory() {
+    const connection = await mysql.createConnection(DB_CONFIG);
+    try {
+        const [[{ existing }]] = await connection.query(
+            'SELECT COUNT(*) AS existing FROM trip_requests WHERE user_id = ?', [USER_ID]);
+        for (let start = existing; start < HISTORY; start += 1000) {
+            const rows = [];
+            for (let i = start; i < Math.min(start + 1000, HISTORY); i++) {
+                const when = new Date(Date.now() - (i * 56 + 60) * 60 * 60 * 1000);
+                const stamp = when.toISOString().slice(0, 19).replace('T', ' ');
+                rows.push([USER_ID, `Hemadress ${i % 50}`, 'Sahlgrenska Dialysmottagning', 57.70, 11.97, 57.6838, 11.9607,
+                    stamp, 'COMPLETED', 'NORMAL', 1, 650, stamp]);
+            }
+            await connection.query(
+                'INSERT INTO trip_requests (user_id, pickup_address, destination_address, pickup_latitude, pickup_longitude, ' +
+                'destination_latitude, destination_longitude, requested_pickup_time, status, priority, passenger_count, ' +
+                'estimated_cost, created_at) VALUES ?', [rows]);
+        }
+    } finally {
+        await connection.end();
+    }
+}
+
+async function heapUsed() {
+    return (await axios.get(`${API_URL}/api/system/memory`)).data.heapUsedBytes;
+}
+
+// Samples backend heap every 50 ms while read() runs and reports the peak above the starting point
+async function withHeapSampling(read) {
+    const baseline = await heapUsed();
+    let peak = baseline;
+    let sampling = true;
+    const sampler = (async () => {
+        while (sampling) {
+            peak = Math.max(peak, await heapUsed());
+            await new Promise(resolve => setTimeout(resolve, 50));
+        }
+    })();
+    try {
+        return { ...(await read()), heapGrowth: Math.max(0, peak - baseline) };
+    } finally {
+        sampling = false;
+        await sampler;
+    }
+}
+
+async function readStream(path) {
+    const start = process.hrtime.bigint();
+    const response = await axios.get(`${API_URL}${path}`, { responseType: 'stream' });
+    let firstByteMs = null;
+    const ndjson = path.endsWith('/stream');
+    const chunks = [];
+    let rows = 0;
+    let bytes = 0;
+    for await (const chunk of response.data) {
+        if (firstByteMs === null) {
+            firstByteMs = Number(process.hrtime.bigint() - start) / 1e6;
+        }
+        bytes += chunk.length;
+        if (ndjson) {
+            for (const byte of chunk) {
+                if (byte === 10) rows++;
+            }
+        } else {
+            chunks.push(chunk);
+        }
+    }
+    if (!ndjson) {
+        rows = JSON.parse(Buffer.concat(chunks).toString()).length;
+    }
+    return { firstByteMs, totalMs: Number(process.hrtime.bigint() - start) / 1e6, rows, bytes };
+}
+
+async function readPages() {
+    const start = process.hrtime.bigint();
+    let firstByteMs = null;
+    let rows = 0;
+    let bytes = 0;
+    let cursor = null;
+    do {
+        const params = { limit: PAGE_SIZE };
+        if (cursor) params.before = cursor;
+        const response = await axios.get(`${API_URL}/api/trips/user/${USER_ID}`,
+            { params, responseType: 'text', transformResponse: data => data });
+        if (firstByteMs === null) {
+            firstByteMs = Number(process.hrtime.bigint() - start) / 1e6;
+        }
+        rows += JSON.parse(response.data).length;
+        bytes += Buffer.byteLength(response.data);
+        cursor = response.headers['x-next-cursor'];
+    } while (cursor);
+    return { firstByteMs, totalMs: Number(process.hrtime.bigint() - start) / 1e6, rows, bytes };
+}
+
+function report(label, result) {
+    console.log(`   ${label.padEnd(16)} rows=${result.rows} first byte=${result.firstByteMs.toFixed(0)}ms ` +
+        `total=${result.totalMs.toFixed(0)}ms size=${(result.bytes / 1048576).toFixed(1)}MiB ` +
+        `heap growth=${(result.heapGrowth / 1048576).toFixed(0)}MiB`);
+}
+
+async function runBenchmark() {
+    console.log(`📚 Seeding ${HISTORY} trips of history for user ${USER_ID}`);
+    await seedHistory();
+
+    console.log(`\n📊 Reading the history of user ${USER_ID} from ${API_URL}`);
+    report('full list', await withHeapSampling(() => readStream(`/api/trips/user/${USER_ID}`)));
+    report(`pages of ${PAGE_SIZE}`, await withHeapSampling(readPages));
+    report('ndjson stream', await withHeapSampling(() => readStream(`/api/trips/user/${USER_ID}/stream`)));
+}
+
+runBenchmark().catch(error => {
+    console.error('❌ Benchmark failed:', error.response?.data || error.message);
+    process.exit(1);
+});
@@ -0,0 +1,114 @@
+#!/usr/bin/env node
+
+/**
+ * Thread mode benchmark - Gothenburg Taxi
+ * Runs the same closed-loop load against two backend instances, one on platform threads and one
+ * started with spring.threads.virtual.enabled=true on Java 21, and compares throughput and tail
+ * latency for booking and the pending list. Pinning stats come from /api/system/threads.
+ *
+ * Usage: PLATFORM_URL=http://localhost:8081 VIRTUAL_URL=http://localhost:8082 CLIENTS=200 SECONDS=30 \
+ *        node benchmark-virtual-threads.js
+ */
+
+const axios = require('axios');
+const http = require('http');
+
+const PLATFORM_URL = process.env.PLATFORM_URL || 'http://localhost:8081';
+const VIRTUAL_URL = process.env.VIRTUAL_URL || 'http://localhost:8082';
+const CLIENTS = parseInt(process.env.CLIENTS || '200', 10);
+const SECONDS = parseInt(process.env.SECONDS || '30', 10);
+const BOOK_RATIO = parseFloat(process.env.BOOK_RATIO || '0.3');
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+
+// Keep-alive so the benchmark measures the server, not connection setup
+const client = axios.create({ httpAgent: new http.Agent({ keepAlive: true, maxSockets: CLIENTS }), timeout: 30000 });
+
+function percentile(sorted, p) {
+    if (sorted.length === 0) return 0;
+    const index = Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1);
+    return sorted[Math.max(index, 0)];
+}
+
+function bookingRequest(i) {
+    return {
+        userId: USER_IDS[i % USER_IDS.length],
+        pickupAddress: `Benchmark pickup ${i}`,
+        destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+        pickupLatitude: 57.7089 + (Math.random() - 0.5) * 0.1,
+        pickupLongitude: 11.9733 + (Math.random() - 0.5) * 0.15,
+        destinationLatitude: 57.6838 + (Math.random() - 0.5) * 0.01,
+        destinationLongitude: 11.9607 + (Math.random() - 0.5) * 0.01,
+        requestedPickupTime: new Date(Date.now() + (60 + (i % 8) * 15) * 60 * 1000).toISOString().slice(0, 19),
+        priority: 'NORMAL',
+        passengerCount: 1,
+        needsWheelchairAccess: false,
+        needsAssistance: false
+    };
+}
+
+async function runLoad(label, baseUrl) {
+    const latencies = { book: [], pending: [] };
+    const errors = { book: 0, pending: 0 };
+    const deadline = Date.now() + SECONDS * 1000;
+    let sequence = 0;
+
+    const clients = Array.from({ length: CLIENTS }, async () => {
+        while (Date.now() < deadline) {
+            const endpoint = Math.random() < BOOK_RATIO ? 'book' : 'pending';
+            const start = process.hrtime.bigint();
+            try {
+                if (endpoint === 'book') {
+                    await client.post(`${baseUrl}/api/trips/book`, bookingRequest(sequence++));
+                } else {
+                    await client.get(`${baseUrl}/api/trips/pending`);
+                }
+                latencies[endpoint].push(Number(process.hrtime.bigint() - start) / 1e6);
+            } catch (error) {
+                errors[endpoint]++;
+            }
+        }
+    });
+    await Promise.all(clients);
+
+    let threads = null;
+    try {
+        threads = (await client.get(`${baseUrl}/api/system/threads`)).data;
+    } catch (error) {
+        // older instances without the endpoint
+    }
+    return { label, latencies, errors, threads };
+}
+
+function report(result) {
+    const { label, latencies, errors, threads } = result;
+    const mode = threads ? `${threads.threadMode}, Java ${threads.javaVersion}` : 'unknown mode';
+    console.log(`\n📊 ${label} (${mode})`);
+    for (const endpoint of ['book', 'pending']) {
+        const sorted = latencies[endpoint].sort((a, b) => a - b);
+        console.log(`   ${endpoint.padEnd(8)} ${(sorted.length / SECONDS).toFixed(0).padStart(6)} req/s ` +
+            `p50=${percentile(sorted, 50).toFixed(1)}ms p95=${percentile(sorted, 95).toFixed(1)}ms ` +
+            `p99=${percentile(sorted, 99).toFixed(1)}ms p99.9=${percentile(sorted, 99.9).toFixed(1)}ms ` +
+            `errors=${errors[endpoint]}`);
+    }
+    if (threads && threads.pinningMonitor) {
+        console.log(`   pinned: ${threads.pinnedEvents} events, ${threads.pinnedMillis}ms total (threshold ${threads.pinningThresholdMs}ms)`);
+        for (const [site, count] of Object.entries(threads.topPinnedSites)) {
+            console.log(`      ${String(count).padStart(6)}  ${site}`);
+        }
+    }
+}
+
+async function runBenchmark() {
+    console.log(`🧵 ${CLIENTS} clients for ${SECONDS}s per instance, ${Math.round(BOOK_RATIO * 100)}% bookings`);
+
+    // One instance at a time so they do not compete for the database
+    const platform = await runLoad('platform threads', PLATFORM_URL);
+    const virtual = await runLoad('virtual threads', VIRTUAL_URL);
+    report(platform);
+    report(virtual);
+}
+
+runBenchmark().catch(error => {
+    console.error('❌ Benchmark failed:', error.response?.data || error.message);
+    process.exit(1);
+});
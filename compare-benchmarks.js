@@ -0,0 +1,71 @@
+#!/usr/bin/env node
+
+/**
+ * JMH result comparison - Gothenburg Taxi
+ * Compares two JSON result files written by backend-benchmarks and prints the change of every
+ * benchmark/parameter combination. Lower is better for all of our modes (time per operation), so a
+ * score that grew by more than THRESHOLD percent is reported as a regression.
+ *
+ * Usage: THRESHOLD=10 node compare-benchmarks.js backend-benchmarks/jmh-results/<before>.json backend-benchmarks/jmh-results/<after>.json
+ */
+
+const fs = require('fs');
+
+const THRESHOLD = parseFloat(process.env.THRESHOLD || '10');
+
+function loadResults(file) {
+    const results = new Map();
+    for (const result of JSON.parse(fs.readFileSync(file, 'utf8'))) {
+        const params = Object.entries(result.params || {})
+            .map(([name, value]) => `${name}=${value}`)
+            .join(',');
+        const name = result.benchmark.replace(/^.*\.(\w+\.\w+)$/, '$1');
+        results.set(`${name}${params ? ` [${params}]` : ''} (${result.mode})`, result.primaryMetric);
+    }
+    return results;
+}
+
+function runComparison() {
+    const [beforeFile, afterFile] = process.argv.slice(2);
+    if (!beforeFile || !afterFile) {
+        console.error('❌ Usage: node compare-benchmarks.js <before.json> <after.json>');
+        process.exit(1);
+    }
+    const before = loadResults(beforeFile);
+    const after = loadResults(afterFile);
+    console.log(`📊 ${beforeFile} -> ${afterFile} (threshold ${THRESHOLD}%)\n`);
+
+    let regressions = 0;
+    for (const [key, metric] of after) {
+        const baseline = before.get(key);
+        if (!baseline) {
+            console.log(`🆕 ${key}: ${metric.score.toFixed(3)} ${metric.scoreUnit}`);
+            continue;
+        }
+        const change = (metric.score - baseline.score) / baseline.score * 100;
+        // Changes inside both runs' error bars are not worth flagging
+        const noise = (Math.abs(baseline.scoreError || 0) + Math.abs(metric.scoreError || 0)) / baseline.score * 100;
+        let icon = '➖';
+        if (change > THRESHOLD && change > noise) {
+            icon = '❌';
+            regressions++;
+        } else if (change < -THRESHOLD && -change > noise) {
+            icon = '✅';
+        }
+        console.log(`${icon} ${key}: ${baseline.score.toFixed(3)} -> ${metric.score.toFixed(3)} ${metric.scoreUnit} ` +
+            `(${change >= 0 ? '+' : ''}${change.toFixed(1)}%)`);
+    }
+    for (const key of before.keys()) {
+        if (!after.has(key)) {
+            console.log(`⚠️  ${key}: missing from ${afterFile}`);
+        }
+    }
+
+    if (regressions > 0) {
+        console.log(`\n❌ ${regressions} regressions above ${THRESHOLD}%`);
+        process.exit(1);
+    }
+    console.log('\n✅ No regressions');
+}
+
+runComparison();
@@ -0,0 +1,19 @@
+-- Switch shared_trips to pooled id allocation so Hibernate can batch the inserts of a matchmaking pass.
+-- Run once against an existing database before deploying the new backend.
+-- trip_requests.shared_trip_id references shared_trips(id), and InnoDB refuses to modify a referenced
+-- column (error 1833) unless foreign key checks are off; only AUTO_INCREMENT is dropped, so the key
+-- itself stays valid. Checked against the original schema.sql with existing rows (on H2 in MySQL mode).
+USE taxi_carpooling;
+
+SET FOREIGN_KEY_CHECKS = 0;
+ALTER TABLE shared_trips MODIFY id BIGINT NOT NULL;
+SET FOREIGN_KEY_CHECKS = 1;
+
+CREATE TABLE IF NOT EXISTS shared_trips_seq (
+    next_val BIGINT
+);
+
+-- Start past the ids already handed out by AUTO_INCREMENT, leaving room for one allocation block
+DELETE FROM shared_trips_seq;
+INSERT INTO shared_trips_seq
+SELECT COALESCE(MAX(id), 0) + 51 FROM shared_trips;
@@ -0,0 +1,6 @@
+-- Version columns for optimistic locking of trip requests and shared trips.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+ALTER TABLE trip_requests ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE shared_trips ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,24 @@
+-- Transactional outbox for realtime-service notifications.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+CREATE TABLE IF NOT EXISTS notification_outbox (
+    id BIGINT PRIMARY KEY,
+    event_type VARCHAR(50) NOT NULL,
+    aggregate_id BIGINT NOT NULL,
+    payload TEXT NOT NULL,
+    status ENUM('PENDING', 'PUBLISHED', 'FAILED') DEFAULT 'PENDING',
+    attempts INT NOT NULL DEFAULT 0,
+    next_attempt_at TIMESTAMP NULL,
+    last_error VARCHAR(255),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    published_at TIMESTAMP NULL
+);
+
+CREATE TABLE IF NOT EXISTS notification_outbox_seq (
+    next_val BIGINT
+);
+DELETE FROM notification_outbox_seq;
+INSERT INTO notification_outbox_seq VALUES (1);
+
+CREATE INDEX idx_notification_outbox_due ON notification_outbox(status, next_attempt_at, id);
@@ -0,0 +1,7 @@
+-- Indexes matching the keyset order of the pending queue and trip history listings.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+CREATE INDEX idx_trip_requests_pending_queue ON trip_requests(status, requested_pickup_time, id);
+CREATE INDEX idx_trip_requests_user_history ON trip_requests(user_id, created_at, id);
+DROP INDEX idx_trip_requests_user_id ON trip_requests;
@@ -0,0 +1,18 @@
+-- Change feed of trip requests and shared trips for dashboards.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+CREATE TABLE IF NOT EXISTS trip_changes (
+    id BIGINT PRIMARY KEY,
+    seq BIGINT NULL,
+    entity_type ENUM('TRIP_REQUEST', 'SHARED_TRIP') NOT NULL,
+    entity_id BIGINT NOT NULL,
+    changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE KEY unique_trip_changes_seq (seq)
+);
+
+CREATE TABLE IF NOT EXISTS trip_changes_seq (
+    next_val BIGINT
+);
+DELETE FROM trip_changes_seq;
+INSERT INTO trip_changes_seq VALUES (1);
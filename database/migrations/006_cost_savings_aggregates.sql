@@ -0,0 +1,16 @@
+-- Daily cost savings maintained by the backend instead of re-aggregated by the view.
+-- Run once against an existing database before deploying the new backend; the backend fills
+-- cost_savings from the trip history on its first start.
+USE taxi_carpooling;
+
+CREATE INDEX idx_trip_requests_completed_day ON trip_requests(status, created_at);
+
+CREATE OR REPLACE VIEW government_savings_summary AS
+SELECT
+    date as trip_date,
+    individual_trips_count as individual_trips,
+    shared_trips_count as shared_trips,
+    total_individual_cost as individual_cost,
+    total_shared_cost as shared_cost,
+    total_savings
+FROM cost_savings;
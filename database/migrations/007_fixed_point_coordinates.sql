@@ -0,0 +1,14 @@
+-- Micro-degree coordinates and whole-minute pickup times for trip requests.
+-- Run once against an existing database before deploying the new backend. Coordinates are rounded
+-- to 6 decimals; pending pickup times lose their seconds so minute comparisons match the old ones.
+USE taxi_carpooling;
+
+ALTER TABLE trip_requests
+    MODIFY pickup_latitude DECIMAL(9, 6),
+    MODIFY pickup_longitude DECIMAL(9, 6),
+    MODIFY destination_latitude DECIMAL(9, 6),
+    MODIFY destination_longitude DECIMAL(9, 6);
+
+UPDATE trip_requests
+SET requested_pickup_time = DATE_FORMAT(requested_pickup_time, '%Y-%m-%d %H:%i:00')
+WHERE status = 'PENDING' AND SECOND(requested_pickup_time) <> 0;
@@ -0,0 +1,9 @@
+-- Claims on outbox events, so only one backend node sends each event.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+ALTER TABLE notification_outbox
+    MODIFY status ENUM('PENDING', 'CLAIMED', 'PUBLISHED', 'FAILED') DEFAULT 'PENDING',
+    ADD COLUMN claim_token VARCHAR(36) NULL AFTER last_error;
+
+CREATE INDEX idx_notification_outbox_claim ON notification_outbox(claim_token);
@@ -0,0 +1,18 @@
+-- Batch dispatch offers and lapses, shared by all backend nodes.
+-- Run once against an existing database before deploying the new backend.
+USE taxi_carpooling;
+
+CREATE TABLE IF NOT EXISTS dispatch_offers (
+    shared_trip_id BIGINT PRIMARY KEY,
+    driver_id BIGINT NOT NULL,
+    pickup_km DOUBLE NOT NULL,
+    expires_at TIMESTAMP NOT NULL,
+    UNIQUE KEY unique_dispatch_offers_driver (driver_id)
+);
+
+CREATE TABLE IF NOT EXISTS dispatch_offer_lapses (
+    id BIGINT PRIMARY KEY AUTO_INCREMENT,
+    shared_trip_id BIGINT NOT NULL,
+    driver_id BIGINT NOT NULL,
+    UNIQUE KEY unique_dispatch_offer_lapses (shared_trip_id, driver_id)
+);
@@ -19,9 +19,9 @@ CREATE TABLE users (
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
--- Shared trips table for grouped rides
+-- Shared trips table for grouped rides (ids come from shared_trips_seq so inserts can be batched)
 CREATE TABLE shared_trips (
-    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    id BIGINT PRIMARY KEY,
     status ENUM('PENDING', 'ASSIGNED', 'IN_PROGRESS', 'COMPLETED', 'CANCELLED') DEFAULT 'PENDING',
     assigned_driver_id BIGINT,
     estimated_cost DECIMAL(10,2),
@@ -33,19 +33,27 @@ CREATE TABLE shared_trips (
     actual_duration_minutes INT,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     completed_at TIMESTAMP NULL,
+    version BIGINT NOT NULL DEFAULT 0,
     FOREIGN KEY (assigned_driver_id) REFERENCES users(id)
 );
 
+-- Pooled id allocation for shared trips (Hibernate sequence emulation, allocation size 50)
+CREATE TABLE shared_trips_seq (
+    next_val BIGINT
+);
+INSERT INTO shared_trips_seq VALUES (1);
+
 -- Trip requests table
 CREATE TABLE trip_requests (
     id BIGINT AUTO_INCREMENT PRIMARY KEY,
     user_id BIGINT NOT NULL,
     pickup_address TEXT NOT NULL,
     destination_address TEXT NOT NULL,
-    pickup_latitude DECIMAL(10, 8),
-    pickup_longitude DECIMAL(11, 8),
-    destination_latitude DECIMAL(10, 8),
-    destination_longitude DECIMAL(11, 8),
+    -- Coordinates are stored at micro-degree precision (about 0.1 m), the backend maps them to ints
+    pickup_latitude DECIMAL(9, 6),
+    pickup_longitude DECIMAL(9, 6),
+    destination_latitude DECIMAL(9, 6),
+    destination_longitude DECIMAL(9, 6),
     requested_pickup_time TIMESTAMP NOT NULL,
     actual_pickup_time TIMESTAMP NULL,
     actual_dropoff_time TIMESTAMP NULL,
@@ -60,12 +68,68 @@ CREATE TABLE trip_requests (
     estimated_cost DECIMAL(10,2),
     actual_cost DECIMAL(10,2),
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    version BIGINT NOT NULL DEFAULT 0,
     FOREIGN KEY (user_id) REFERENCES users(id),
     FOREIGN KEY (assigned_driver_id) REFERENCES users(id),
     FOREIGN KEY (shared_trip_id) REFERENCES shared_trips(id)
 );
 
--- Cost savings tracking table
+-- Outbox of realtime-service events, written in the same transaction as the change they describe
+CREATE TABLE notification_outbox (
+    id BIGINT PRIMARY KEY,
+    event_type VARCHAR(50) NOT NULL,
+    aggregate_id BIGINT NOT NULL,
+    payload TEXT NOT NULL,
+    status ENUM('PENDING', 'CLAIMED', 'PUBLISHED', 'FAILED') DEFAULT 'PENDING',
+    attempts INT NOT NULL DEFAULT 0,
+    next_attempt_at TIMESTAMP NULL,
+    last_error VARCHAR(255),
+    claim_token VARCHAR(36),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    published_at TIMESTAMP NULL
+);
+
+CREATE TABLE notification_outbox_seq (
+    next_val BIGINT
+);
+INSERT INTO notification_outbox_seq VALUES (1);
+
+-- Change feed of trip requests and shared trips, numbered by seq after commit
+CREATE TABLE trip_changes (
+    id BIGINT PRIMARY KEY,
+    seq BIGINT NULL,
+    entity_type ENUM('TRIP_REQUEST', 'SHARED_TRIP') NOT NULL,
+    entity_id BIGINT NOT NULL,
+    changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE KEY unique_trip_changes_seq (seq)
+);
+
+CREATE TABLE trip_changes_seq (
+    next_val BIGINT
+);
+INSERT INTO trip_changes_seq VALUES (1);
+
+-- Open batch dispatch offers: at most one per shared trip and one per driver
+CREATE TABLE dispatch_offers (
+    shared_trip_id BIGINT PRIMARY KEY,
+    driver_id BIGINT NOT NULL,
+    pickup_km DOUBLE NOT NULL,
+    expires_at TIMESTAMP NOT NULL,
+    UNIQUE KEY unique_dispatch_offers_driver (driver_id)
+);
+
+-- Drivers who let the offer of a still pending shared trip lapse
+CREATE TABLE dispatch_offer_lapses (
+    id BIGINT PRIMARY KEY AUTO_INCREMENT,
+    shared_trip_id BIGINT NOT NULL,
+    driver_id BIGINT NOT NULL,
+    UNIQUE KEY unique_dispatch_offer_lapses (shared_trip_id, driver_id)
+);
+
+-- Cost savings tracking table, one row per booking day of completed trips.
+-- Updated on every COMPLETED transition and rebuilt from trip_requests by POST /api/savings/rebuild.
+-- shared_trips_count counts trip requests that rode in a shared trip; total_savings is what those
+-- would have cost at the individual rate minus their cost share.
 CREATE TABLE cost_savings (
     id BIGINT AUTO_INCREMENT PRIMARY KEY,
     date DATE NOT NULL,
@@ -118,20 +182,21 @@ INSERT INTO driver_vehicles (driver_id, license_plate, vehicle_make, vehicle_mod
 -- Create indexes for performance
 CREATE INDEX idx_trip_requests_status ON trip_requests(status);
 CREATE INDEX idx_trip_requests_pickup_time ON trip_requests(requested_pickup_time);
-CREATE INDEX idx_trip_requests_user_id ON trip_requests(user_id);
+CREATE INDEX idx_trip_requests_pending_queue ON trip_requests(status, requested_pickup_time, id);
+CREATE INDEX idx_trip_requests_user_history ON trip_requests(user_id, created_at, id);
+CREATE INDEX idx_trip_requests_completed_day ON trip_requests(status, created_at);
 CREATE INDEX idx_shared_trips_status ON shared_trips(status);
+CREATE INDEX idx_notification_outbox_due ON notification_outbox(status, next_attempt_at, id);
+CREATE INDEX idx_notification_outbox_claim ON notification_outbox(claim_token);
 CREATE INDEX idx_users_eligibility ON users(eligibility_type);
 
 -- Create view for government cost analysis
 CREATE VIEW government_savings_summary AS
-SELECT 
-    DATE(tr.created_at) as trip_date,
-    COUNT(CASE WHEN tr.shared_trip_id IS NULL THEN 1 END) as individual_trips,
-    COUNT(CASE WHEN tr.shared_trip_id IS NOT NULL THEN 1 END) as shared_trips,
-    SUM(CASE WHEN tr.shared_trip_id IS NULL THEN 650 ELSE 0 END) as individual_cost,
-    SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN tr.estimated_cost ELSE 0 END) as shared_cost,
-    (SUM(CASE WHEN tr.shared_trip_id IS NULL THEN 650 ELSE 0 END) - 
-     SUM(CASE WHEN tr.shared_trip_id IS NOT NULL THEN tr.estimated_cost ELSE 0 END)) as total_savings
-FROM trip_requests tr
-WHERE tr.status = 'COMPLETED'
-GROUP BY DATE(tr.created_at);
\ No newline at end of file
+SELECT
+    date as trip_date,
+    individual_trips_count as individual_trips,
+    shared_trips_count as shared_trips,
+    total_individual_cost as individual_cost,
+    total_shared_cost as shared_cost,
+    total_savings
+FROM cost_savings;
\ No newline at end of file
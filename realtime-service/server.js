@@ -16,7 +16,7 @@ const io = socketIo(server, {
 });
 
 app.use(cors());
-app.use(express.json());
+app.use(express.json({ limit: '1mb' })); // outbox batches carry up to 50 events
 app.use(express.static('public'));
 
 // Add a root route
@@ -71,6 +71,31 @@ let qrCodeContent = {};
 // Driver constraint: Only one merged order per driver at a time
 const driverAssignments = new Map(); // driverId -> { assignedTripId, assignedAt, status }
 
+// Latest position per driver, forwarded to the backend location index once a second
+const pendingDriverLocations = new Map();
+
+function queueDriverLocation(driverId, status) {
+  const driver = activeDrivers.get(driverId);
+  if (!driver || !driver.location) return;
+  pendingDriverLocations.set(driverId, {
+    driverId: driverId,
+    latitude: driver.location.latitude,
+    longitude: driver.location.longitude,
+    status: (status || driver.status).toUpperCase()
+  });
+}
+
+setInterval(async () => {
+  if (pendingDriverLocations.size === 0) return;
+  const batch = Array.from(pendingDriverLocations.values());
+  pendingDriverLocations.clear();
+  try {
+    await axios.post(`${SPRING_BOOT_API}/api/drivers/locations`, batch, { timeout: 2000 });
+  } catch (error) {
+    console.error('Failed to forward driver locations:', error.message);
+  }
+}, 1000);
+
 io.on('connection', (socket) => {
   console.log('Client connected:', socket.id);
   
@@ -89,6 +114,7 @@ io.on('connection', (socket) => {
       },
       connectedAt: new Date()
     });
+    queueDriverLocation(data.driverId);
     console.log(`Driver ${data.driverId} connected with vehicle ${data.vehicleInfo?.licensePlate || 'ABC123'}`);
   });
   
@@ -102,6 +128,7 @@ io.on('connection', (socket) => {
       const driver = activeDrivers.get(data.driverId);
       driver.location = data.location;
       driver.lastLocationUpdate = new Date();
+      queueDriverLocation(data.driverId);
       
       // Broadcast to all management dashboards
       socket.broadcast.emit('driver-location-update', {
@@ -175,6 +202,18 @@ io.on('connection', (socket) => {
         return;
       }
       
+      // An offered trip can only be taken by the driver it was offered to
+      if (sharedTrip.status === 'OFFERED' && sharedTrip.offeredDriverId !== driverId) {
+        const driverSocket = activeDrivers.get(driverId)?.socketId;
+        if (driverSocket) {
+          io.to(driverSocket).emit('assignment-rejected', {
+            reason: 'Denna resa har erbjudits en annan förare.',
+            sharedTripId: sharedTripId
+          });
+        }
+        return;
+      }
+      
       sharedTrip.status = 'ASSIGNED';
       sharedTrip.assignedDriverId = driverId;
       sharedTrip.assignedAt = new Date();
@@ -182,6 +221,7 @@ io.on('connection', (socket) => {
       // Update driver status and assignment
       if (activeDrivers.has(driverId)) {
         activeDrivers.get(driverId).status = 'busy';
+        queueDriverLocation(driverId);
       }
       
       // Record driver assignment with atomic check
@@ -369,6 +409,7 @@ io.on('connection', (socket) => {
       // Update driver status to available and clear assignment
       if (activeDrivers.has(driverId)) {
         activeDrivers.get(driverId).status = 'available';
+        queueDriverLocation(driverId);
       }
       
       // Clear driver assignment so they can take new orders
@@ -411,6 +452,7 @@ io.on('connection', (socket) => {
   socket.on('disconnect', () => {
     for (let [driverId, driverData] of activeDrivers.entries()) {
       if (driverData.socketId === socket.id) {
+        queueDriverLocation(driverId, 'offline');
         activeDrivers.delete(driverId);
         console.log(`Driver ${driverId} disconnected`);
         break;
@@ -520,8 +562,11 @@ app.get('/api/active-drivers', (req, res) => {
   res.json(drivers);
 });
 
-app.post('/api/shared-trip-created', (req, res) => {
-  const { sharedTripId, trips, passengerCount } = req.body;
+function handleSharedTripCreated({ sharedTripId, trips, passengerCount, dispatch }) {
+  // Delivery from the backend outbox is at-least-once, so a repeated event is acknowledged without rebroadcasting
+  if (sharedTrips.has(sharedTripId)) {
+    return 0;
+  }
   
   console.log(`New shared trip created: ${sharedTripId} with ${passengerCount} passengers`);
   
@@ -533,6 +578,11 @@ app.post('/api/shared-trip-created', (req, res) => {
     createdAt: new Date()
   });
   
+  // In batch dispatch the backend offers the trip to one driver with SHARED_TRIP_OFFERED instead
+  if (dispatch === 'batch') {
+    return 0;
+  }
+  
   // Notify all active drivers about the new shared trip
   const availableDrivers = Array.from(activeDrivers.entries())
     .filter(([id, data]) => data.status === 'available');
@@ -548,7 +598,70 @@ app.post('/api/shared-trip-created', (req, res) => {
     });
   });
   
-  res.json({ success: true, notifiedDrivers: availableDrivers.length });
+  return availableDrivers.length;
+}
+
+function handleSharedTripOffered({ sharedTripId, driverId, pickupKm, passengerCount, expiresAt }) {
+  const sharedTrip = sharedTrips.get(sharedTripId);
+  if (!sharedTrip || sharedTrip.status === 'ASSIGNED') {
+    return 0;
+  }
+  // A repeated delivery of the same offer is not sent again; a re-offer to another driver is
+  if (sharedTrip.status === 'OFFERED' && sharedTrip.offeredDriverId === driverId && sharedTrip.offerExpiresAt === expiresAt) {
+    return 0;
+  }
+  
+  sharedTrip.status = 'OFFERED';
+  sharedTrip.offeredDriverId = driverId;
+  sharedTrip.offerExpiresAt = expiresAt;
+  
+  const driverData = activeDrivers.get(driverId);
+  if (!driverData) {
+    return 0;
+  }
+  io.to(driverData.socketId).emit('shared-trip-offer', {
+    sharedTripId: sharedTripId,
+    trips: sharedTrip.trips,
+    passengerCount: passengerCount,
+    pickupKm: pickupKm,
+    expiresAt: expiresAt,
+    estimatedEarning: 800,
+    pickupAddresses: sharedTrip.trips.map(trip => trip.pickupAddress),
+    destinationAddresses: sharedTrip.trips.map(trip => trip.destinationAddress)
+  });
+  return 1;
+}
+
+const eventHandlers = {
+  SHARED_TRIP_CREATED: handleSharedTripCreated,
+  SHARED_TRIP_OFFERED: handleSharedTripOffered
+};
+
+app.post('/api/shared-trip-created', (req, res) => {
+  const notifiedDrivers = handleSharedTripCreated(req.body);
+  res.json({ success: true, notifiedDrivers: notifiedDrivers });
+});
+
+// Batch contract for the backend outbox: { events: [{ eventId, type, payload }] }.
+// Every event gets its own result; events answered with success: false are retried by the backend.
+app.post('/api/events/batch', (req, res) => {
+  const events = Array.isArray(req.body?.events) ? req.body.events : [];
+  
+  const results = events.map(event => {
+    const handler = eventHandlers[event.type];
+    if (!handler) {
+      return { eventId: event.eventId, success: false, error: `Unknown event type ${event.type}` };
+    }
+    try {
+      handler(event.payload);
+      return { eventId: event.eventId, success: true };
+    } catch (error) {
+      console.error(`Failed to handle event ${event.eventId}:`, error.message);
+      return { eventId: event.eventId, success: false, error: error.message };
+    }
+  });
+  
+  res.json({ results: results });
 });
 
 app.get('/api/shared-trips', (req, res) => {
@@ -566,30 +679,94 @@ app.get('/api/shared-trips', (req, res) => {
   res.json(trips);
 });
 
+// Pending orders mirrored from the backend change feed: one snapshot, then long polls for the
+// deltas, so dashboard refreshes are answered from memory instead of reloading the whole queue
+const pendingOrders = new Map();
+let changeFeedSeq = null;
+
+function formatPendingOrder(trip) {
+  return {
+    id: trip.id,
+    userId: trip.user.id,
+    userName: `${trip.user.firstName} ${trip.user.lastName}`,
+    pickupAddress: trip.pickupAddress,
+    destinationAddress: trip.destinationAddress,
+    requestedPickupTime: trip.requestedPickupTime,
+    status: trip.status,
+    passengerCount: trip.passengerCount,
+    estimatedCost: trip.estimatedCost,
+    createdAt: trip.createdAt,
+    priority: trip.priority,
+    needsWheelchairAccess: trip.needsWheelchairAccess,
+    needsAssistance: trip.needsAssistance
+  };
+}
+
+function applyTripState(tripId, trip) {
+  if (trip && trip.status === 'PENDING') {
+    pendingOrders.set(tripId, formatPendingOrder(trip));
+  } else {
+    pendingOrders.delete(tripId);
+  }
+}
+
+async function loadPendingSnapshot() {
+  const response = await axios.get(`${SPRING_BOOT_API}/api/changes/snapshot`);
+  pendingOrders.clear();
+  response.data.trips.forEach(trip => applyTripState(trip.id, trip));
+  changeFeedSeq = response.data.seq;
+  console.log(`Change feed bootstrapped at ${changeFeedSeq} with ${pendingOrders.size} pending orders`);
+}
+
+async function followChangeFeed() {
+  while (true) {
+    try {
+      if (changeFeedSeq === null) {
+        await loadPendingSnapshot();
+      }
+      const response = await axios.get(`${SPRING_BOOT_API}/api/changes`, {
+        params: { since: changeFeedSeq, waitMs: 25000 },
+        timeout: 35000
+      });
+      if (response.data.reset) {
+        changeFeedSeq = null;
+        continue;
+      }
+      let pendingChanged = false;
+      response.data.changes.forEach(change => {
+        if (change.type === 'TRIP_REQUEST') {
+          applyTripState(change.id, change.state);
+          pendingChanged = true;
+        }
+      });
+      changeFeedSeq = response.data.seq;
+      if (pendingChanged) {
+        io.emit('pending-orders-changed', { count: pendingOrders.size });
+      }
+    } catch (error) {
+      console.error('Change feed unavailable, retrying:', error.message);
+      await new Promise(resolve => setTimeout(resolve, 2000));
+    }
+  }
+}
+
+followChangeFeed();
+
 app.get('/api/pending-orders', async (req, res) => {
   try {
-    // Get pending orders from backend
-    const response = await axios.get(`${SPRING_BOOT_API}/api/trips/pending`);
-    const pendingTrips = response.data;
-    
-    // Return formatted data for dashboard
-    const formattedTrips = pendingTrips.map(trip => ({
-      id: trip.id,
-      userId: trip.user.id,
-      userName: `${trip.user.firstName} ${trip.user.lastName}`,
-      pickupAddress: trip.pickupAddress,
-      destinationAddress: trip.destinationAddress,
-      requestedPickupTime: trip.requestedPickupTime,
-      status: trip.status,
-      passengerCount: trip.passengerCount,
-      estimatedCost: trip.estimatedCost,
-      createdAt: trip.createdAt,
-      priority: trip.priority,
-      needsWheelchairAccess: trip.needsWheelchairAccess,
-      needsAssistance: trip.needsAssistance
-    }));
-    
-    res.json(formattedTrips);
+    let orders;
+    if (changeFeedSeq !== null) {
+      // Orders whose pickup time passed produce no change, so they are filtered here
+      const now = new Date();
+      orders = Array.from(pendingOrders.values())
+        .filter(order => new Date(order.requestedPickupTime) > now)
+        .sort((a, b) => new Date(a.requestedPickupTime) - new Date(b.requestedPickupTime));
+    } else {
+      // Not bootstrapped yet, ask the backend directly
+      const response = await axios.get(`${SPRING_BOOT_API}/api/trips/pending`);
+      orders = response.data.map(formatPendingOrder);
+    }
+    res.json(orders);
   } catch (error) {
     console.error('Error fetching pending orders:', error);
     res.status(500).json({ error: 'Failed to fetch pending orders' });
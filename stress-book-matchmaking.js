@@ -0,0 +1,134 @@
+#!/usr/bin/env node
+
+/**
+ * Booking stress test - Gothenburg Taxi
+ * Hammers /book from many concurrent clients while manual matchmaking passes run alongside the
+ * pipeline, then checks in the database that no trip request ended up in two shared trips.
+ *
+ * Usage: CLIENTS=32 BOOKINGS=2000 node stress-book-matchmaking.js
+ */
+
+const axios = require('axios');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const CLIENTS = parseInt(process.env.CLIENTS || '32', 10);
+const BOOKINGS = parseInt(process.env.BOOKINGS || '2000', 10);
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+// A few busy pickup areas so many bookings land in the same partitions
+const HOTSPOTS = [
+    { name: 'Centralstationen', lat: 57.7089, lon: 11.9733 },
+    { name: 'Mölndal Centrum', lat: 57.6580, lon: 12.0130 },
+    { name: 'Östra sjukhuset', lat: 57.7210, lon: 12.0510 }
+];
+
+function sleep(ms) {
+    return new Promise(resolve => setTimeout(resolve, ms));
+}
+
+async function book(i) {
+    const hotspot = HOTSPOTS[i % HOTSPOTS.length];
+    const pickupTime = new Date(Date.now() + (60 + (i % 4) * 15) * 60 * 1000);
+    await axios.post(`${API_URL}/api/trips/book`, {
+        userId: USER_IDS[i % USER_IDS.length],
+        pickupAddress: `${hotspot.name} (stress ${i})`,
+        destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+        pickupLatitude: hotspot.lat + (Math.random() - 0.5) * 0.02,
+        pickupLongitude: hotspot.lon + (Math.random() - 0.5) * 0.02,
+        destinationLatitude: 57.6838 + (Math.random() - 0.5) * 0.01,
+        destinationLongitude: 11.9607 + (Math.random() - 0.5) * 0.01,
+        requestedPickupTime: pickupTime.toISOString().slice(0, 19),
+        priority: 'NORMAL',
+        passengerCount: 1,
+        needsWheelchairAccess: false,
+        needsAssistance: false
+    });
+}
+
+async function runStressTest() {
+    console.log(`🔨 ${CLIENTS} clients booking ${BOOKINGS} trips against ${API_URL}`);
+
+    let next = 0;
+    let failed = 0;
+    let done = false;
+    const start = Date.now();
+
+    const clients = Array.from({ length: CLIENTS }, async () => {
+        while (next < BOOKINGS) {
+            const i = next++;
+            try {
+                await book(i);
+            } catch (error) {
+                failed++;
+            }
+        }
+    });
+
+    // Manual passes race with the pipeline passes the bookings trigger
+    const manualPasses = (async () => {
+        let passes = 0;
+        while (!done) {
+            try {
+                await axios.post(`${API_URL}/api/trips/matchmaking`);
+                passes++;
+            } catch (error) {
+                console.error('⚠️  Manual pass failed:', error.response?.data || error.message);
+            }
+            await sleep(50);
+        }
+        return passes;
+    })();
+
+    await Promise.all(clients);
+    done = true;
+    const passes = await manualPasses;
+    const seconds = (Date.now() - start) / 1000;
+    console.log(`✅ ${BOOKINGS - failed} bookings (${failed} failed) in ${seconds.toFixed(1)}s, ${passes} manual passes`);
+
+    // Let the pipeline drain before checking
+    await sleep(2000);
+    await axios.post(`${API_URL}/api/trips/matchmaking`);
+
+    const connection = await mysql.createConnection(DB_CONFIG);
+    try {
+        // A trip request can only reference one shared trip, so a double match shows up as a shared
+        // trip whose passenger count is larger than the requests that still point at it
+        const [mismatched] = await connection.execute(`
+            SELECT st.id, st.passenger_count, COUNT(tr.id) AS members
+            FROM shared_trips st
+            LEFT JOIN trip_requests tr ON tr.shared_trip_id = st.id
+            GROUP BY st.id, st.passenger_count
+            HAVING COUNT(tr.id) <> st.passenger_count`);
+        const [inconsistent] = await connection.execute(`
+            SELECT id, status FROM trip_requests
+            WHERE (status = 'MATCHED' AND shared_trip_id IS NULL)
+               OR (status = 'PENDING' AND shared_trip_id IS NOT NULL)`);
+        const [[summary]] = await connection.execute(`
+            SELECT COUNT(*) AS sharedTrips, COALESCE(SUM(passenger_count), 0) AS matchedRequests
+            FROM shared_trips`);
+
+        console.log(`📊 ${summary.sharedTrips} shared trips holding ${summary.matchedRequests} requests`);
+        if (mismatched.length > 0 || inconsistent.length > 0) {
+            console.log('❌ Shared trips with missing members:', mismatched.slice(0, 10));
+            console.log('❌ Requests with inconsistent status:', inconsistent.slice(0, 10));
+            process.exitCode = 1;
+        } else {
+            console.log('✅ No trip request belongs to two shared trips');
+        }
+    } finally {
+        await connection.end();
+    }
+}
+
+runStressTest().catch(error => {
+    console.error('❌ Stress test failed:', error.response?.data || error.message);
+    process.exit(1);
+});
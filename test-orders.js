@@ -169,8 +169,8 @@ async function showTripsStatus() {
                 console.log(`      From: ${trip.pickupAddress} → To: ${trip.destinationAddress}`);
                 console.log(`      Cost: ${trip.estimatedCost} SEK, User: ${trip.user.firstName} ${trip.user.lastName}`);
                 console.log(`      Pickup time: ${new Date(trip.requestedPickupTime).toLocaleString('sv-SE')}`);
-                if (trip.sharedTrip) {
-                    console.log(`      🎯 Part of shared trip: ${trip.sharedTrip.id}`);
+                if (trip.sharedTripId) {
+                    console.log(`      🎯 Part of shared trip: ${trip.sharedTripId}`);
                 }
             });
         }
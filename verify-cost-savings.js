@@ -0,0 +1,114 @@
+#!/usr/bin/env node
+
+/**
+ * Cost savings aggregate check - Gothenburg Taxi
+ * Drives a few booked trips through to COMPLETED via the API, then compares /api/savings over several
+ * date ranges with the same figures grouped straight from trip_requests, and times both. The direct
+ * query is what the old government_savings_summary view ran on every read.
+ *
+ * Usage: COMPLETE=20 USER_IDS=1,2,3 node verify-cost-savings.js
+ */
+
+const axios = require('axios');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const COMPLETE = parseInt(process.env.COMPLETE || '20', 10);
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+const INDIVIDUAL_RATE = 650;
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+function isoDate(date) {
+    return date.toISOString().slice(0, 10);
+}
+
+async function completeTrips() {
+    for (let i = 0; i < COMPLETE; i++) {
+        const trip = (await axios.post(`${API_URL}/api/trips/book`, {
+            userId: USER_IDS[i % USER_IDS.length],
+            pickupAddress: `Savings check pickup ${i}`,
+            destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+            pickupLatitude: 57.7089,
+            pickupLongitude: 11.9733,
+            destinationLatitude: 57.6838,
+            destinationLongitude: 11.9607,
+            requestedPickupTime: new Date(Date.now() + 90 * 60 * 1000).toISOString().slice(0, 19),
+            priority: 'NORMAL',
+            passengerCount: 1,
+            needsWheelchairAccess: false,
+            needsAssistance: false
+        })).data;
+        // Matchmaking may already have pooled it, in which case the move to ASSIGNED is refused
+        await axios.put(`${API_URL}/api/trips/${trip.id}/status`, null,
+            { params: { status: 'ASSIGNED' }, validateStatus: () => true });
+        for (const status of ['PICKUP_CONFIRMED', 'IN_TRANSIT', 'COMPLETED']) {
+            await axios.put(`${API_URL}/api/trips/${trip.id}/status`, null, { params: { status } });
+        }
+    }
+}
+
+async function directTotals(connection, from, to) {
+    const [[row]] = await connection.query(`
+        SELECT COUNT(CASE WHEN shared_trip_id IS NULL THEN 1 END) AS individualTrips,
+               COUNT(CASE WHEN shared_trip_id IS NOT NULL THEN 1 END) AS sharedTrips,
+               COALESCE(SUM(CASE WHEN shared_trip_id IS NOT NULL THEN ? - COALESCE(estimated_cost, 0) END), 0) AS savings
+        FROM trip_requests
+        WHERE status = 'COMPLETED' AND DATE(created_at) BETWEEN ? AND ?`, [INDIVIDUAL_RATE, from, to]);
+    return row;
+}
+
+async function runCheck() {
+    console.log(`🚕 Cost savings check against ${API_URL}`);
+    const connection = await mysql.createConnection(DB_CONFIG);
+    let mismatches = 0;
+    try {
+        await completeTrips();
+        console.log(`✅ ${COMPLETE} trips completed`);
+
+        const today = new Date();
+        const ranges = [1, 7, 30, 365, 3650].map(days => {
+            const from = new Date(today.getTime() - (days - 1) * 24 * 60 * 60 * 1000);
+            return { label: `${days} days`, from: isoDate(from), to: isoDate(today) };
+        });
+
+        for (const range of ranges) {
+            let start = process.hrtime.bigint();
+            const report = (await axios.get(`${API_URL}/api/savings`, { params: { from: range.from, to: range.to } })).data;
+            const apiMs = Number(process.hrtime.bigint() - start) / 1e6;
+
+            start = process.hrtime.bigint();
+            const direct = await directTotals(connection, range.from, range.to);
+            const directMs = Number(process.hrtime.bigint() - start) / 1e6;
+
+            const same = report.individualTrips === Number(direct.individualTrips)
+                && report.sharedTrips === Number(direct.sharedTrips)
+                && Math.abs(Number(report.savings) - Number(direct.savings)) < 0.01;
+            if (!same) mismatches++;
+            console.log(`${same ? '✅' : '❌'} ${range.label}: api ${report.individualTrips}/${report.sharedTrips} trips, ` +
+                `${report.savings} SEK saved (${report.savingsPercentage}%) in ${apiMs.toFixed(1)}ms | ` +
+                `direct ${direct.individualTrips}/${direct.sharedTrips} trips, ${Number(direct.savings).toFixed(2)} SEK ` +
+                `in ${directMs.toFixed(1)}ms`);
+        }
+    } finally {
+        await connection.end();
+    }
+
+    const stats = (await axios.get(`${API_URL}/api/savings/stats`)).data;
+    console.log(`\n📊 ${stats.days} aggregate days, ${stats.tripsRecorded} completions recorded since start, ` +
+        `last rebuild ${stats.lastRebuildMillis}ms`);
+    if (mismatches > 0) {
+        console.log(`\n❌ ${mismatches} ranges differ; a rebuild (POST /api/savings/rebuild?from=...) resyncs them`);
+        process.exit(1);
+    }
+}
+
+runCheck().catch(error => {
+    console.error('❌ Check failed:', error.response?.data || error.message);
+    process.exit(1);
+});
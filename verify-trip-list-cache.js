@@ -0,0 +1,143 @@
+#!/usr/bin/env node
+
+/**
+ * Trip list cache consistency check - Gothenburg Taxi
+ * Keeps the pending queue and the passengers' trip lists hot with background readers, then books and
+ * cancels trips one by one and reads both lists right after each write returns. A read that misses
+ * the write is a stale read and fails the check. Prints the cache stats from /api/trips/cache.
+ *
+ * Usage: ROUNDS=200 READERS=20 USER_IDS=1,2,3 node verify-trip-list-cache.js
+ */
+
+const axios = require('axios');
+const http = require('http');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const ROUNDS = parseInt(process.env.ROUNDS || '200', 10);
+const READERS = parseInt(process.env.READERS || '20', 10);
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+const client = axios.create({ httpAgent: new http.Agent({ keepAlive: true }), timeout: 30000 });
+
+function percentile(sorted, p) {
+    if (sorted.length === 0) return 0;
+    const index = Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1);
+    return sorted[Math.max(index, 0)];
+}
+
+function bookingRequest(userId, i) {
+    return {
+        userId,
+        pickupAddress: `Cache check pickup ${i}`,
+        destinationAddress: 'Östra sjukhuset',
+        pickupLatitude: 57.7089 + (Math.random() - 0.5) * 0.1,
+        pickupLongitude: 11.9733 + (Math.random() - 0.5) * 0.15,
+        destinationLatitude: 57.7210,
+        destinationLongitude: 12.0530,
+        requestedPickupTime: new Date(Date.now() + (120 + i % 60) * 60 * 1000).toISOString().slice(0, 19),
+        priority: 'NORMAL',
+        passengerCount: 1,
+        needsWheelchairAccess: false,
+        needsAssistance: false
+    };
+}
+
+async function userTrip(userId, tripId) {
+    const response = await client.get(`${API_URL}/api/trips/user/${userId}`);
+    return response.data.find(trip => trip.id === tripId);
+}
+
+async function inPendingQueue(tripId) {
+    const response = await client.get(`${API_URL}/api/trips/pending`);
+    return response.data.some(trip => trip.id === tripId);
+}
+
+async function runCheck() {
+    console.log(`🚕 Trip list cache check: ${ROUNDS} rounds, ${READERS} background readers against ${API_URL}`);
+    const connection = await mysql.createConnection(DB_CONFIG);
+    const failures = [];
+    const readLatencies = [];
+    let running = true;
+
+    // Background readers keep every list cached, so each check below races a hot entry
+    const readers = Array.from({ length: READERS }, async (_, r) => {
+        while (running) {
+            const start = process.hrtime.bigint();
+            try {
+                if (r % 2 === 0) {
+                    await client.get(`${API_URL}/api/trips/pending`);
+                } else {
+                    await client.get(`${API_URL}/api/trips/user/${USER_IDS[r % USER_IDS.length]}`);
+                }
+                readLatencies.push(Number(process.hrtime.bigint() - start) / 1e6);
+            } catch (error) {
+                // reader errors do not affect consistency
+            }
+        }
+    });
+
+    try {
+        for (let round = 0; round < ROUNDS; round++) {
+            const userId = USER_IDS[round % USER_IDS.length];
+            const trip = (await client.post(`${API_URL}/api/trips/book`, bookingRequest(userId, round))).data;
+
+            if (!(await userTrip(userId, trip.id))) {
+                failures.push(`round ${round}: booked trip ${trip.id} missing from user ${userId}'s list`);
+            }
+            if (!(await inPendingQueue(trip.id))) {
+                // Matchmaking may already have taken it out of the queue, which is not stale
+                const [[row]] = await connection.query('SELECT status FROM trip_requests WHERE id = ?', [trip.id]);
+                if (row.status === 'PENDING') {
+                    failures.push(`round ${round}: pending trip ${trip.id} missing from the pending queue`);
+                }
+            }
+
+            const cancelled = await client.put(`${API_URL}/api/trips/${trip.id}/status`, null,
+                { params: { status: 'CANCELLED' }, validateStatus: () => true });
+            if (cancelled.status !== 200) {
+                continue; // already moved past a cancellable state
+            }
+            const listed = await userTrip(userId, trip.id);
+            if (!listed || listed.status !== 'CANCELLED') {
+                failures.push(`round ${round}: user ${userId}'s list shows trip ${trip.id} as ${listed && listed.status} after cancel`);
+            }
+            if (await inPendingQueue(trip.id)) {
+                failures.push(`round ${round}: cancelled trip ${trip.id} still in the pending queue`);
+            }
+        }
+    } finally {
+        running = false;
+        await Promise.all(readers);
+        await connection.end();
+    }
+
+    const stats = (await client.get(`${API_URL}/api/trips/cache`)).data;
+    const sorted = readLatencies.sort((a, b) => a - b);
+    console.log(`\n📊 background reads: n=${sorted.length} p50=${percentile(sorted, 50).toFixed(1)}ms ` +
+        `p99=${percentile(sorted, 99).toFixed(1)}ms`);
+    for (const region of ['pending', 'userTrips']) {
+        const s = stats[region];
+        console.log(`   ${region}: hit rate ${(s.hitRate * 100).toFixed(1)}% (${s.hits} hits, ${s.misses} misses), ` +
+            `${s.invalidations} invalidations, ${s.evictions} evictions, ${s.discardedLoads} discarded loads`);
+    }
+
+    if (failures.length > 0) {
+        console.log(`\n❌ ${failures.length} stale reads:`);
+        failures.slice(0, 20).forEach(failure => console.log(`   ${failure}`));
+        process.exit(1);
+    }
+    console.log(`\n✅ No stale reads after ${ROUNDS} book/cancel rounds`);
+}
+
+runCheck().catch(error => {
+    console.error('❌ Check failed:', error.response?.data || error.message);
+    process.exit(1);
+});
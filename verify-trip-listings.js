@@ -0,0 +1,114 @@
+#!/usr/bin/env node
+
+/**
+ * Trip listing check - Gothenburg Taxi
+ * Seeds pending trips for several passengers and asserts that /api/trips/pending and
+ * /api/trips/user/{id} each cost one SELECT however many trips they return, counted through the
+ * MySQL Com_select status counter. Reports payload bytes per trip, and compares both against an
+ * instance on the previous build when BASELINE_URL is set.
+ *
+ * Usage: TRIPS=200 USER_IDS=1,2,3 [BASELINE_URL=http://localhost:8082] node verify-trip-listings.js
+ */
+
+const axios = require('axios');
+const mysql = require('mysql2/promise');
+
+const API_URL = process.env.API_URL || 'http://localhost:8081';
+const BASELINE_URL = process.env.BASELINE_URL;
+const TRIPS = parseInt(process.env.TRIPS || '200', 10);
+const USER_IDS = (process.env.USER_IDS || '1,2,3').split(',').map(id => parseInt(id, 10));
+const MAX_SELECTS = parseInt(process.env.MAX_SELECTS || '1', 10);
+const SAMPLES = 7;
+
+const DB_CONFIG = {
+    host: 'localhost',
+    user: 'root',
+    password: 'adminroot',
+    database: 'taxi_carpooling'
+};
+
+async function seedTrips() {
+    for (let i = 0; i < TRIPS; i++) {
+        await axios.post(`${API_URL}/api/trips/book`, {
+            userId: USER_IDS[i % USER_IDS.length],
+            pickupAddress: `Listing check pickup ${i}`,
+            destinationAddress: 'Sahlgrenska Universitetssjukhuset',
+            pickupLatitude: 57.7089 + (Math.random() - 0.5) * 0.1,
+            pickupLongitude: 11.9733 + (Math.random() - 0.5) * 0.15,
+            destinationLatitude: 57.6838,
+            destinationLongitude: 11.9607,
+            // Far enough ahead that matchmaking leaves most of them pending
+            requestedPickupTime: new Date(Date.now() + (24 + i) * 60 * 60 * 1000).toISOString().slice(0, 19),
+            priority: 'NORMAL',
+            passengerCount: 1,
+            needsWheelchairAccess: false,
+            needsAssistance: false
+        });
+    }
+}
+
+async function selectCount(connection) {
+    const [[row]] = await connection.query("SHOW GLOBAL STATUS LIKE 'Com_select'");
+    return Number(row.Value);
+}
+
+// Scheduled jobs also run selects, so the smallest delta over several samples is the request's own cost
+async function measure(connection, url) {
+    let selects = Infinity;
+    let bytes = 0;
+    let rows = 0;
+    for (let sample = 0; sample < SAMPLES; sample++) {
+        const before = await selectCount(connection);
+        const response = await axios.get(url, { responseType: 'text', transformResponse: data => data });
+        const after = await selectCount(connection);
+        selects = Math.min(selects, after - before);
+        bytes = Buffer.byteLength(response.data);
+        rows = JSON.parse(response.data).length;
+    }
+    return { selects, bytes, rows };
+}
+
+function describe(label, result) {
+    const perTrip = result.rows === 0 ? 0 : result.bytes / result.rows;
+    console.log(`   ${label.padEnd(28)} ${String(result.rows).padStart(5)} trips  ${String(result.selects).padStart(4)} selects  ` +
+        `${(result.bytes / 1024).toFixed(1).padStart(8)} KiB  ${perTrip.toFixed(0).padStart(5)} B/trip`);
+}
+
+async function runCheck() {
+    console.log(`🔎 Seeding ${TRIPS} trips for users ${USER_IDS.join(', ')} against ${API_URL}`);
+    await seedTrips();
+
+    const connection = await mysql.createConnection(DB_CONFIG);
+    let failed = false;
+    try {
+        const endpoints = [['pending', '/api/trips/pending'], ['user', `/api/trips/user/${USER_IDS[0]}`]];
+        for (const [name, path] of endpoints) {
+            console.log(`\n📊 ${path}`);
+            const current = await measure(connection, `${API_URL}${path}`);
+            describe(`${name} (this build)`, current);
+            if (BASELINE_URL) {
+                const baseline = await measure(connection, `${BASELINE_URL}${path}`);
+                describe(`${name} (baseline)`, baseline);
+                console.log(`   payload ${(100 * (1 - current.bytes / baseline.bytes)).toFixed(0)}% smaller, ` +
+                    `${baseline.selects - current.selects} fewer selects`);
+            }
+            if (current.selects > MAX_SELECTS) {
+                console.log(`❌ ${path} ran ${current.selects} selects for ${current.rows} trips, expected at most ${MAX_SELECTS}`);
+                failed = true;
+            }
+        }
+    } finally {
+        await connection.end();
+    }
+
+    if (failed) {
+        process.exitCode = 1;
+    } else {
+        console.log(`\n✅ Trip listings stay at ${MAX_SELECTS} select regardless of trip count`);
+    }
+}
+
+runCheck().catch(error => {
+    console.error('❌ Check failed:', error.response?.data || error.message);
+    process.exit(1);
+});